@@ -0,0 +1,47 @@
+package ru.selena.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run storage benchmarks for each number of threads with GC profiler, which reports allocation rate as
+ * {@code gc.alloc.rate.norm} bytes per operation.
+ * <p/>
+ * Usage: {@code java -jar benchmarks.jar [threads...] [-Dbenchmark=regexp]}, thread counts are 1, 4 and 16 by default.
+ * <p/>
+ * Date: 3/31/13
+ * Time: 1:10 PM
+ *
+ * @author Artem Titov
+ */
+public final class BenchmarkRunner {
+    private BenchmarkRunner() {
+        throw new AssertionError("This class not for instantiation");
+    }
+
+    private static final int[] DEFAULT_THREADS = {1, 4, 16};
+
+    public static void main(final String[] args) throws RunnerException {
+        final int[] threads;
+        if (args.length == 0) {
+            threads = DEFAULT_THREADS;
+        } else {
+            threads = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threads[i] = Integer.parseInt(args[i]);
+            }
+        }
+        final String include = System.getProperty("benchmark", LocalStoreServiceBenchmark.class.getSimpleName());
+        for (final int count : threads) {
+            final Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(count)
+                    .addProfiler(GCProfiler.class)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package ru.selena.benchmarks;
+
+import com.google.common.io.Files;
+import com.google.common.primitives.Longs;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.selena.Factories;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.core.impl.InMemoryLocalStoreService;
+import ru.selena.core.impl.LogStructuredLocalStoreService;
+import ru.selena.core.impl.LsmTreeLocalStoreService;
+import ru.selena.core.impl.OffHeapLocalStoreService;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.model.Version;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of {@link LocalStoreService} operations for each storage engine. Storage is filled with {@code keyCount}
+ * objects before measurement, keys and values are generated once, so benchmarks measure only the storage.
+ * <ul>
+ * <li>{@link #get(ThreadState)} - read existing key with probability {@code hitRatio}, absent key otherwise</li>
+ * <li>{@link #miss(ThreadState)} - read absent key</li>
+ * <li>{@link #put(ThreadState)} - overwrite existing key by newer version</li>
+ * <li>{@link #overwriteOlder(ThreadState)} - try to overwrite existing key by older version, which is rejected</li>
+ * </ul>
+ * Values have {@code valueSize} bytes or uniformly distributed size up to {@code 2 * valueSize} bytes depending on
+ * {@code valueDistribution}. Number of threads is set by {@link BenchmarkRunner}, which also adds GC profiler to
+ * report allocation rate per operation.
+ * <p/>
+ * Date: 3/31/13
+ * Time: 12:30 PM
+ *
+ * @author Artem Titov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalStoreServiceBenchmark {
+
+    private static final int MISSING_KEYS = 1024;
+
+    @Param({"IN_MEMORY", "LOG_STRUCTURED", "LSM_TREE", "OFF_HEAP"})
+    private Engine engine;
+
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"100", "4096"})
+    private int valueSize;
+
+    @Param({"FIXED", "UNIFORM"})
+    private ValueDistribution valueDistribution;
+
+    @Param({"1.0", "0.5"})
+    private double hitRatio;
+
+    @Param({"100000"})
+    private int keyCount;
+
+    private final AtomicLong versionCounter = new AtomicLong();
+
+    private File directory;
+    private LocalStoreService store;
+    private Key[] keys;
+    private Key[] missingKeys;
+    private byte[][] values;
+    private Version oldVersion;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, DataStoreException {
+        final Random random = new Random(keyCount);
+        keys = new Key[keyCount];
+        values = new byte[keyCount][];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = createKey(random);
+            values[i] = new byte[valueDistribution.getSize(valueSize, random)];
+            random.nextBytes(values[i]);
+        }
+        missingKeys = new Key[MISSING_KEYS];
+        for (int i = 0; i < MISSING_KEYS; i++) {
+            missingKeys[i] = createKey(random);
+        }
+        oldVersion = createVersion(0);
+        directory = Files.createTempDir();
+        store = engine.create(directory);
+        store.open();
+        for (int i = 0; i < keyCount; i++) {
+            store.put(Factories.Instances.getDataObjectFactory().createDataObject(keys[i],
+                    createVersion(versionCounter.incrementAndGet()), values[i]));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try {
+            store.close();
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    @Benchmark
+    public DataObject get(final ThreadState state) throws DataStoreException {
+        final Key key = state.nextDouble() < hitRatio ? keys[state.nextInt(keyCount)]
+                : missingKeys[state.nextInt(MISSING_KEYS)];
+        try {
+            return store.get(key);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public DataObject miss(final ThreadState state) throws DataStoreException {
+        try {
+            return store.get(missingKeys[state.nextInt(MISSING_KEYS)]);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public void put(final ThreadState state) throws DataStoreException {
+        final int index = state.nextInt(keyCount);
+        store.put(Factories.Instances.getDataObjectFactory().createDataObject(keys[index],
+                createVersion(versionCounter.incrementAndGet()), values[index]));
+    }
+
+    @Benchmark
+    public boolean overwriteOlder(final ThreadState state) throws DataStoreException {
+        final int index = state.nextInt(keyCount);
+        try {
+            store.put(Factories.Instances.getDataObjectFactory().createDataObject(keys[index], oldVersion,
+                    values[index]));
+            return true;
+        } catch (UpdatingOlderVersionException e) {
+            return false;
+        }
+    }
+
+    private Key createKey(final Random random) {
+        final byte[] key = new byte[keySize];
+        random.nextBytes(key);
+        return Factories.Instances.getKeyFactory().createKey(key);
+    }
+
+    private static Version createVersion(final long version) {
+        return Factories.Instances.getVersionFactory().createVersion(Longs.toByteArray(version));
+    }
+
+    /**
+     * Random of the benchmark thread, shared random would make threads contend on its seed.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private int nextInt(final int bound) {
+            return ThreadLocalRandom.current().nextInt(bound);
+        }
+
+        private double nextDouble() {
+            return ThreadLocalRandom.current().nextDouble();
+        }
+    }
+
+    public enum ValueDistribution {
+        FIXED {
+            @Override
+            int getSize(final int valueSize, final Random random) {
+                return valueSize;
+            }
+        },
+        UNIFORM {
+            @Override
+            int getSize(final int valueSize, final Random random) {
+                return 1 + random.nextInt(2 * valueSize);
+            }
+        };
+
+        abstract int getSize(final int valueSize, final Random random);
+    }
+
+    public enum Engine {
+        IN_MEMORY {
+            @Override
+            LocalStoreService create(final File directory) {
+                return new InMemoryLocalStoreService();
+            }
+        },
+        LOG_STRUCTURED {
+            @Override
+            LocalStoreService create(final File directory) {
+                final LogStructuredLocalStoreService store = new LogStructuredLocalStoreService();
+                store.setDataDirectory(directory.getPath());
+                return store;
+            }
+        },
+        LSM_TREE {
+            @Override
+            LocalStoreService create(final File directory) {
+                final LsmTreeLocalStoreService store = new LsmTreeLocalStoreService();
+                store.setDataDirectory(directory.getPath());
+                return store;
+            }
+        },
+        OFF_HEAP {
+            @Override
+            LocalStoreService create(final File directory) {
+                final OffHeapLocalStoreService store = new OffHeapLocalStoreService();
+                store.setCapacity(1024L * 1024 * 1024);
+                return store;
+            }
+        };
+
+        abstract LocalStoreService create(final File directory);
+    }
+}
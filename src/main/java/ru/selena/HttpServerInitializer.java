@@ -12,6 +12,7 @@ import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.servlet.ServletMapping;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
@@ -35,6 +36,7 @@ public final class HttpServerInitializer implements InitializingBean {
     private static final int FAILED_TO_START_DUE_EXCEPTION = 3;
     private static final int FAILED_TO_OPEN_STORAGE_DUE_EXCEPTION = 1;
     private static final int CLUSTER_LOST = 4;
+    private static final int DEFAULT_MAX_THREADS = 254;
 
     private Server server;
 
@@ -43,6 +45,7 @@ public final class HttpServerInitializer implements InitializingBean {
     private ClusterManager clusterManager;
     private LocalStoreService localStoreService;
     private KeyRingService keyRingService;
+    private int maxThreads = DEFAULT_MAX_THREADS;
 
     @Required
     public void setClientServlet(final HttpServlet clientServlet) {
@@ -69,18 +72,34 @@ public final class HttpServerInitializer implements InitializingBean {
         this.keyRingService = keyRingService;
     }
 
+    /**
+     * Set maximum number of server worker threads, including acceptor and selector threads. Client requests are
+     * served asynchronously, so threads are busy only while request is parsed and response is written.
+     *
+     * @param maxThreads number of threads, 254 by default
+     */
+    public void setMaxThreads(final int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         log.info("Initializing server");
         server = new Server();
+        final QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads);
+        threadPool.setMinThreads(Math.min(threadPool.getMinThreads(), maxThreads));
+        threadPool.setName("http");
+        server.setThreadPool(threadPool);
         server.setConnectors(createConnectors());
         server.setHandler(createHandler());
     }
 
     private Handler createHandler() {
         final ServletHandler servletHandler = new ServletHandler();
+        final ServletHolder clientHolder = new ServletHolder("client", clientServlet);
+        clientHolder.setAsyncSupported(true);
         servletHandler.setServlets(new ServletHolder[]{
-                new ServletHolder("client", clientServlet),
+                clientHolder,
                 new ServletHolder("internal", internalServlet)
         });
         servletHandler.setServletMappings(new ServletMapping[]{
@@ -88,6 +107,7 @@ public final class HttpServerInitializer implements InitializingBean {
                 mappingFor("client", "/put"),
                 mappingFor("client", "/delete"),
                 mappingFor("internal", "/internal/get"),
+                mappingFor("internal", "/internal/version"),
                 mappingFor("internal", "/internal/put"),
                 mappingFor("internal", "/internal/delete"),
         });
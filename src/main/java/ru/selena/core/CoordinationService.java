@@ -1,5 +1,9 @@
 package ru.selena.core;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+
 /**
  * Date: 12/16/12
  * Time: 1:39 AM
@@ -8,4 +12,23 @@ package ru.selena.core;
  */
 public interface CoordinationService extends StoreService {
 
+    /**
+     * Asynchronous variant of {@link #get(Key)}. Future completes when read quorum is reached and fails with the same
+     * exceptions as synchronous method.
+     *
+     * @param key key, not null
+     * @return future of the newest data object among quorum responses
+     * @throws NullPointerException if key is null
+     */
+    ListenableFuture<DataObject> getAsync(final Key key);
+
+    /**
+     * Asynchronous variant of {@link #put(DataObject)}. Future completes when write quorum is reached and fails with
+     * the same exceptions as synchronous method.
+     *
+     * @param dataObject data object to store, not null
+     * @return future which completes when data object is stored
+     * @throws NullPointerException if dataObject is null
+     */
+    ListenableFuture<Void> putAsync(final DataObject dataObject);
 }
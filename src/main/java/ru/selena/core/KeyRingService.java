@@ -29,6 +29,14 @@ public interface KeyRingService {
      */
     List<Host> getReplicas(final Host host);
 
+    /**
+     * Return segments of the ring in ring order. Segment of the host is the range from the token of the previous host
+     * to the token of the host. Segment of the only host covers the whole ring.
+     *
+     * @return ranges, empty list if ring is empty
+     */
+    List<TokenRange> getRingSegments();
+
     /**
      * Update ring with new list of hosts.
      *
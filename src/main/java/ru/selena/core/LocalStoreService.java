@@ -5,6 +5,7 @@ import ru.selena.model.DataObject;
 import ru.selena.model.Key;
 
 import java.io.IOException;
+import java.util.Iterator;
 
 /**
  * Date: 12/16/12
@@ -45,6 +46,19 @@ public interface LocalStoreService extends StoreService {
     @Override
     void put(final DataObject dataObject) throws DataStoreException;
 
+    /**
+     * Return iterator over data objects, including stubs, which key tokens belong to the range. Objects are returned
+     * in ring order of their tokens starting from the range start, objects with equal tokens are ordered by key bytes.
+     * Iterator loads data by pages of limited size, so memory usage doesn't depend on the range size. Iterator is
+     * weakly consistent: objects written after its creation may be returned or not.
+     * <p/>
+     * Interrupted iteration can be resumed by {@link TokenRange#resumeFrom(int)}.
+     *
+     * @param range token range
+     * @return iterator, which throws {@link ru.selena.core.exception.OperationFailedException} if read failed
+     */
+    Iterator<DataObject> iterator(final TokenRange range);
+
     /**
      * Close storage.
      *
@@ -1,8 +1,10 @@
 package ru.selena.core;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import ru.selena.core.exception.DataStoreException;
 import ru.selena.model.DataObject;
 import ru.selena.model.Key;
+import ru.selena.model.Version;
 import ru.selena.net.model.Host;
 
 /**
@@ -28,6 +30,19 @@ public interface RemoteStoreService {
      */
     DataObject get(final Key key, final Host remoteHost) throws DataStoreException;
 
+    /**
+     * Retrieve version of data from remote node by the key without the value.
+     *
+     * @param key        key, not null
+     * @param remoteHost remote node
+     * @return version of data object or stub associated with this key
+     * @throws java.util.NoSuchElementException
+     *                              if no any element associated with this key found
+     * @throws DataStoreException   if operation fails
+     * @throws NullPointerException if any parameter is null
+     */
+    Version getVersion(final Key key, final Host remoteHost) throws DataStoreException;
+
     /**
      * Store data on the remote node by the key.
      *
@@ -41,4 +56,36 @@ public interface RemoteStoreService {
      */
     void put(final DataObject dataObject, final Host remoteHost) throws DataStoreException;
 
+    /**
+     * Asynchronous variant of {@link #get(Key, Host)}. Future fails with the same exceptions as synchronous method.
+     *
+     * @param key        key, not null
+     * @param remoteHost remote node
+     * @return future of data object
+     * @throws NullPointerException if any parameter is null
+     */
+    ListenableFuture<DataObject> getAsync(final Key key, final Host remoteHost);
+
+    /**
+     * Asynchronous variant of {@link #getVersion(Key, Host)}. Future fails with the same exceptions as synchronous
+     * method.
+     *
+     * @param key        key, not null
+     * @param remoteHost remote node
+     * @return future of version
+     * @throws NullPointerException if any parameter is null
+     */
+    ListenableFuture<Version> getVersionAsync(final Key key, final Host remoteHost);
+
+    /**
+     * Asynchronous variant of {@link #put(DataObject, Host)}. Future fails with the same exceptions as synchronous
+     * method.
+     *
+     * @param dataObject data object to store, not null
+     * @param remoteHost remote node
+     * @return future which completes when remote node stored data object
+     * @throws NullPointerException if any parameter is null
+     */
+    ListenableFuture<Void> putAsync(final DataObject dataObject, final Host remoteHost);
+
 }
@@ -0,0 +1,27 @@
+package ru.selena.core;
+
+import ru.selena.model.DataObject;
+
+import java.util.Iterator;
+
+/**
+ * Optional interface of the local storage which can read all data objects in one pass. Unlike
+ * {@link LocalStoreService#iterator(TokenRange)} objects aren't ordered, so storage which keeps them unordered doesn't
+ * scan all keys for each page. It's used to rebuild indexes over the whole storage.
+ * <p/>
+ * Date: 3/31/13
+ * Time: 10:10 PM
+ *
+ * @author Artem Titov
+ */
+public interface ScannableDataSource {
+
+    /**
+     * Return iterator over all data objects, including stubs, in no particular order. Iterator is weakly consistent:
+     * objects written or removed after its creation may be returned or not, object which is moved inside the storage
+     * during iteration may be returned twice.
+     *
+     * @return iterator, which throws {@link ru.selena.core.exception.OperationFailedException} if read failed
+     */
+    Iterator<DataObject> scan();
+}
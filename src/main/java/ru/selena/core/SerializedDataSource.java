@@ -0,0 +1,52 @@
+package ru.selena.core;
+
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.model.Key;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Optional interface of the local storage which keeps data objects in the format of
+ * {@link ru.selena.net.utils.SerializationUtils}, so they can be sent to the network as is, without deserialization
+ * and repeated serialization.
+ * <p/>
+ * Date: 3/30/13
+ * Time: 6:10 PM
+ *
+ * @author Artem Titov
+ */
+public interface SerializedDataSource {
+
+    /**
+     * Return serialized data object by key. Returned data refers to the storage files, so it should be written
+     * immediately.
+     *
+     * @param key key
+     * @return serialized data object
+     * @throws DataStoreException               if failed to locate data object
+     * @throws java.util.NoSuchElementException if storage has no data object with specified key
+     */
+    SerializedData getSerialized(final Key key) throws DataStoreException;
+
+    /**
+     * Bytes of the serialized data object.
+     */
+    interface SerializedData {
+
+        /**
+         * Return number of bytes.
+         *
+         * @return length
+         */
+        int getLength();
+
+        /**
+         * Write all bytes to the channel.
+         *
+         * @param channel target channel
+         * @throws IOException if failed to read bytes from the storage or to write them
+         */
+        void writeTo(final WritableByteChannel channel) throws IOException;
+    }
+}
@@ -0,0 +1,131 @@
+package ru.selena.core;
+
+import ru.selena.model.Key;
+import ru.selena.utils.NumberUtils;
+
+/**
+ * Range of the key ring tokens {@code (start, end]}, the same way as host with token {@code end} owns keys after
+ * the token of the previous host. If start isn't less than end, range wraps around the end of the ring, and if start
+ * equals end, range covers the whole ring. Token of the key is integer value of {@link Key#getHash()}.
+ * <p/>
+ * Ring order of tokens in range starts from the token next to the range start.
+ * <p/>
+ * Date: 3/26/13
+ * Time: 8:20 PM
+ *
+ * @author Artem Titov
+ */
+public final class TokenRange {
+
+    private final int start;
+    private final int end;
+
+    /**
+     * Create range.
+     *
+     * @param start exclusive start token
+     * @param end   inclusive end token
+     */
+    public TokenRange(final int start, final int end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Create range which covers the whole ring.
+     *
+     * @return range
+     */
+    public static TokenRange wholeRing() {
+        return new TokenRange(Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    public static int getToken(final Key key) {
+        return NumberUtils.toInt(key.getHash());
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public boolean contains(final int token) {
+        return start == end || getOffset(token) < getOffset(end) + 1;
+    }
+
+    public boolean contains(final Key key) {
+        return contains(getToken(key));
+    }
+
+    /**
+     * Return whether range wraps around the end of the ring, so it can't be represented by one interval of
+     * signed integers.
+     *
+     * @return true if range wraps
+     */
+    public boolean isWrapping() {
+        return start + 1 > end;
+    }
+
+    /**
+     * Return remaining part of the range starting from the specified token inclusively. Iteration over the range
+     * can be resumed from the token of the last returned key, keys of this token will be returned again.
+     *
+     * @param token token in the range
+     * @return range
+     */
+    public TokenRange resumeFrom(final int token) {
+        return new TokenRange(token - 1, end);
+    }
+
+    /**
+     * Compare tokens by their position in the range.
+     *
+     * @param t1 first token
+     * @param t2 second token
+     * @return negative number, zero or positive number if first token is before, equal to or after the second one
+     */
+    public int compareTokens(final int t1, final int t2) {
+        final long o1 = getOffset(t1);
+        final long o2 = getOffset(t2);
+        return o1 < o2 ? -1 : (o1 == o2 ? 0 : 1);
+    }
+
+    /**
+     * Return distance from the first token of the range.
+     *
+     * @param token token
+     * @return unsigned distance
+     */
+    private long getOffset(final int token) {
+        return (token - start - 1) & 0xffffffffL;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof TokenRange)) {
+            return false;
+        }
+        final TokenRange r = (TokenRange) obj;
+        return start == r.start && end == r.end;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 17;
+        result += 31 * result + start;
+        result += 31 * result + end;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%d, %d]", start, end);
+    }
+}
@@ -0,0 +1,256 @@
+package ru.selena.core.impl;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import org.springframework.beans.factory.annotation.Required;
+import ru.selena.Factories;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.ScannableDataSource;
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.OperationFailedException;
+import ru.selena.core.impl.compression.CompressionCodec;
+import ru.selena.core.impl.compression.LzfCodec;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.model.Version;
+import ru.selena.utils.NumberUtils;
+import ru.selena.utils.collections.ArrayUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Decorator which compresses values before they are passed to the underlying storage. Value is kept uncompressed if
+ * it's shorter than {@link #setMinCompressionSize(int) minimum size} or if compression saves less than
+ * {@code 1/8} of its size, so incompressible data costs only one additional byte. Returned data objects decompress
+ * value on the first {@link DataObject#getValue()} call, so operations which need only key and version don't pay
+ * for decompression.
+ * <p/>
+ * Stored value format is {@code [0][value]} for uncompressed value and
+ * {@code [1][original length 4][compressed value]} for compressed one. Stubs are stored as is. Header is checked when
+ * object is read, value without valid header fails the read with {@link DataStoreException}, or with
+ * {@link OperationFailedException} on iteration.
+ * <p/>
+ * Values written without the decorator don't have the header and can't be told from encoded ones, so the decorator
+ * may be enabled only on the empty data directory.
+ * <p/>
+ * Date: 3/25/13
+ * Time: 10:30 PM
+ *
+ * @author Artem Titov
+ */
+public class CompressingLocalStoreService implements LocalStoreService, ScannableDataSource {
+
+    private static final int INT_BYTE_SIZE = Integer.SIZE / Byte.SIZE;
+    private static final byte UNCOMPRESSED = 0;
+    private static final byte COMPRESSED = 1;
+    private static final int HEADER_SIZE = 1 + INT_BYTE_SIZE;
+    private static final int DEFAULT_MIN_COMPRESSION_SIZE = 64;
+
+    private LocalStoreService localStoreService;
+    private CompressionCodec codec = new LzfCodec();
+    private int minCompressionSize = DEFAULT_MIN_COMPRESSION_SIZE;
+    private final Function<DataObject, DataObject> decoder = new Function<DataObject, DataObject>() {
+        @Override
+        public DataObject apply(final DataObject stored) {
+            try {
+                return decode(stored);
+            } catch (DataStoreException e) {
+                throw new OperationFailedException(e.getMessage(), e);
+            }
+        }
+    };
+
+    @Required
+    public void setLocalStoreService(final LocalStoreService localStoreService) {
+        this.localStoreService = localStoreService;
+    }
+
+    public void setCodec(final CompressionCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Set minimum size of value which will be compressed.
+     *
+     * @param minCompressionSize size in bytes
+     */
+    public void setMinCompressionSize(final int minCompressionSize) {
+        this.minCompressionSize = minCompressionSize;
+    }
+
+    @Override
+    public StorageStatus open() throws IOException {
+        return localStoreService.open();
+    }
+
+    @Override
+    public StorageStatus restore() throws IOException {
+        return localStoreService.restore();
+    }
+
+    @Override
+    public DataObject get(final Key key) throws DataStoreException {
+        return decode(localStoreService.get(key));
+    }
+
+    @Override
+    public void put(final DataObject dataObject) throws DataStoreException {
+        if (dataObject.isStub()) {
+            localStoreService.put(dataObject);
+            return;
+        }
+        localStoreService.put(Factories.Instances.getDataObjectFactory().createDataObject(dataObject.getKey(),
+                dataObject.getVersion(), encode(dataObject.getValue()), dataObject.getExpirationTime()));
+    }
+
+    @Override
+    public Iterator<DataObject> iterator(final TokenRange range) {
+        return Iterators.transform(localStoreService.iterator(range), decoder);
+    }
+
+    @Override
+    public Iterator<DataObject> scan() {
+        return Iterators.transform(LocalStoreUtils.scan(localStoreService), decoder);
+    }
+
+    @Override
+    public void close() throws IOException {
+        localStoreService.close();
+    }
+
+    /**
+     * Check header of the stored value and return data object which decodes it on demand.
+     *
+     * @param stored data object of the underlying storage
+     * @return decoded data object
+     * @throws DataStoreException if stored value has no valid header
+     */
+    private DataObject decode(final DataObject stored) throws DataStoreException {
+        if (stored.isStub()) {
+            return stored;
+        }
+        final byte[] encoded = stored.getValue();
+        final String error;
+        if (encoded.length == 0) {
+            error = "has no compression header";
+        } else if (encoded[0] == UNCOMPRESSED) {
+            error = null;
+        } else if (encoded[0] != COMPRESSED) {
+            error = "has unknown compression header " + encoded[0];
+        } else if (encoded.length < HEADER_SIZE || NumberUtils.toInt(encoded, 1) < 0) {
+            error = "has malformed compression header";
+        } else {
+            error = null;
+        }
+        if (error != null) {
+            throw new DataStoreException(String.format("Stored value of %s %s, storage may contain values written " +
+                    "without compression", ArrayUtils.toHexString(stored.getKey().getHash()), error));
+        }
+        return new CompressedDataObject(stored, codec);
+    }
+
+    private byte[] encode(final byte[] value) {
+        if (value.length >= minCompressionSize) {
+            final byte[] buffer = new byte[HEADER_SIZE + codec.getMaxCompressedLength(value.length)];
+            final int compressedLength = codec.compress(value, buffer, HEADER_SIZE);
+            if (compressedLength <= value.length - (value.length >>> 3)) {
+                buffer[0] = COMPRESSED;
+                NumberUtils.toByteArray(value.length, buffer, 1);
+                return Arrays.copyOf(buffer, HEADER_SIZE + compressedLength);
+            }
+        }
+        final byte[] encoded = new byte[1 + value.length];
+        encoded[0] = UNCOMPRESSED;
+        System.arraycopy(value, 0, encoded, 1, value.length);
+        return encoded;
+    }
+
+    /**
+     * Data object read from the underlying storage, which decodes value on demand.
+     */
+    private static final class CompressedDataObject implements DataObject {
+        private final DataObject stored;
+        private final CompressionCodec codec;
+        private volatile byte[] value;
+
+        private CompressedDataObject(final DataObject stored, final CompressionCodec codec) {
+            this.stored = stored;
+            this.codec = codec;
+        }
+
+        @Override
+        public Key getKey() {
+            return stored.getKey();
+        }
+
+        @Override
+        public byte[] getValue() {
+            byte[] result = value;
+            if (result == null) {
+                result = decode(stored.getValue());
+                value = result;
+            }
+            return result;
+        }
+
+        @Override
+        public Version getVersion() {
+            return stored.getVersion();
+        }
+
+        @Override
+        public boolean isStub() {
+            return false;
+        }
+
+        @Override
+        public long getCreationTime() {
+            return stored.getCreationTime();
+        }
+
+        @Override
+        public long getExpirationTime() {
+            return stored.getExpirationTime();
+        }
+
+        /**
+         * Decode value, which header has been checked on read.
+         */
+        private byte[] decode(final byte[] encoded) {
+            if (encoded[0] == UNCOMPRESSED) {
+                return Arrays.copyOfRange(encoded, 1, encoded.length);
+            }
+            final byte[] decoded = new byte[NumberUtils.toInt(encoded, 1)];
+            codec.decompress(encoded, HEADER_SIZE, encoded.length - HEADER_SIZE, decoded);
+            return decoded;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = 17;
+            result += 31 * result + getKey().hashCode();
+            result += 31 * result + getVersion().hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof DataObject)) {
+                return false;
+            }
+            final DataObject d = (DataObject) obj;
+            return getKey().equals(d.getKey()) && getVersion().equals(d.getVersion());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (v. %s)", getKey().toString(), getVersion().toString());
+        }
+    }
+}
@@ -1,8 +1,16 @@
 package ru.selena.core.impl;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.lang.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Required;
 import ru.selena.core.*;
@@ -10,34 +18,90 @@ import ru.selena.core.exception.DataStoreException;
 import ru.selena.core.exception.UpdatingOlderVersionException;
 import ru.selena.model.DataObject;
 import ru.selena.model.Key;
+import ru.selena.model.Version;
 import ru.selena.net.model.Host;
 import ru.selena.utils.collections.ArrayUtils;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Coordinates reads and writes of replicas. Requests are asynchronous: remote replicas are called through
+ * {@link RemoteStoreService#getAsync(Key, Host)} and {@link RemoteStoreService#putAsync(DataObject, Host)}, local
+ * replica operations are run by the shared bounded pool of {@code replicaThreads} threads. Each operation reports
+ * its response to the request when it completes, request future is completed as soon as quorum is reached, so no
+ * thread waits for replicas. Synchronous {@link #get(Key)} and {@link #put(DataObject)} just wait for the future.
+ * <p/>
+ * The last response finishes the request: starts read repair or repair read of the rejected write, which aren't
+ * awaited. Local repair writes are run by the separate {@code repairThreads} pool, so background work never takes
+ * threads of client requests. Request which isn't completed in {@value #MAX_RESPONSE_WAIT_TIMEOUT} ms fails and its
+ * pending replica operations are cancelled.
+ * <p/>
+ * Pools have bounded queues. If local operation can't be queued it is considered failed, if repair can't be queued
+ * it is skipped, so overload fails requests instead of piling threads up.
+ * <p/>
+ * By default read is sent to all replicas. If {@code hedgedReads} is enabled, read is sent only to {@code readCount}
+ * replicas, local replica first, and if they don't answer within the {@code hedgePercentile} of their latencies
+ * tracked by {@link LatencyTracker}, or one of them fails, read is sent to the next replica and the request takes
+ * whichever responses come first. So one slow replica doesn't delay reads, while replicas receive fewer reads than
+ * without hedging. Read repair covers only replicas which were read.
+ * <p/>
+ * If {@code digestReads} is enabled, full data object is read only from the closest replica: local one or the one
+ * with the lowest estimate of full read latency, other replicas return only versions. If replicas of the quorum
+ * disagree and the newest version isn't the read one, it's read again from the replica which has it. So large values
+ * cross network once per read instead of once per replica. If quorum of digests is received and the data replica
+ * doesn't respond within its full read latency estimate, or {@value #DEFAULT_FETCH_DELAY} ms without estimate, the
+ * newest version is read from other replica which has it, so slow data replica doesn't fail the read. Hedged reads
+ * are always full.
+ * <p/>
+ * Latencies of all replica reads are tracked, full reads and digest reads separately, since digest response doesn't
+ * carry the value. Replicas without estimate of full read are chosen for full read first, and every
+ * {@value #DATA_HOST_ROTATION}th read takes full object from the next replica in turn, so estimates of replicas
+ * which aren't the closest ones stay current.
+ * <p/>
  * Date: 12/17/12
  * Time: 1:48 AM
  *
  * @author Artem Titov
  */
-public final class CoordinationServiceImpl implements CoordinationService, InitializingBean {
+public final class CoordinationServiceImpl implements CoordinationService, InitializingBean, DisposableBean {
     private static final Logger log = LoggerFactory.getLogger(CoordinationServiceImpl.class);
 
     private static final int MAX_RESPONSE_WAIT_TIMEOUT = 1000; //1s
+    private static final int DEFAULT_REPLICA_THREADS = 64;
+    private static final int DEFAULT_REPAIR_THREADS = 4;
+    private static final int DEFAULT_QUEUE_SIZE = 4096;
+    private static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+    private static final int DATA_HOST_ROTATION = 64;
+    private static final int DEFAULT_FETCH_DELAY = MAX_RESPONSE_WAIT_TIMEOUT / 4;
 
     private int writeCount;
     private int readCount;
+    private int replicaThreads = DEFAULT_REPLICA_THREADS;
+    private int repairThreads = DEFAULT_REPAIR_THREADS;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private boolean hedgedReads;
+    private double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private boolean digestReads;
     private KeyRingService keyRingService;
     private LocalStoreService localStoreService;
     private RemoteStoreService remoteStoreService;
     private ClusterManager clusterManager;
     private Host currentHost;
+    private ListeningExecutorService replicaExecutor;
+    private ListeningExecutorService repairExecutor;
+    private ScheduledExecutorService timeoutExecutor;
+    private LatencyTracker latencyTracker;
+    private LatencyTracker digestLatencyTracker;
+    private final AtomicLong readCounter = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
 
     @Required
     public void setWriteCount(final int writeCount) {
@@ -69,196 +133,420 @@ public final class CoordinationServiceImpl implements CoordinationService, Initi
         this.clusterManager = clusterManager;
     }
 
+    /**
+     * Set number of threads which perform operations of the local replica. Number of threads limits number of
+     * concurrent local operations, remote operations don't take these threads.
+     *
+     * @param replicaThreads number of threads, 64 by default
+     */
+    public void setReplicaThreads(final int replicaThreads) {
+        this.replicaThreads = replicaThreads;
+    }
+
+    /**
+     * Set number of threads which perform read repair of the local replica.
+     *
+     * @param repairThreads number of threads, 4 by default
+     */
+    public void setRepairThreads(final int repairThreads) {
+        this.repairThreads = repairThreads;
+    }
+
+    /**
+     * Set maximum number of operations waiting for thread in each pool.
+     *
+     * @param queueSize queue size, 4096 by default
+     */
+    public void setQueueSize(final int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Enable hedged reads.
+     *
+     * @param hedgedReads true to read from {@code readCount} replicas and hedge to the next one, false by default
+     *                    and in the shipped {@code core-config.xml}
+     */
+    public void setHedgedReads(final boolean hedgedReads) {
+        this.hedgedReads = hedgedReads;
+    }
+
+    /**
+     * Set percentile of replica latency after which read is hedged.
+     *
+     * @param hedgePercentile percentile, 0.95 by default
+     */
+    public void setHedgePercentile(final double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Enable digest reads. Disabled unless set, the shipped {@code core-config.xml} enables them.
+     *
+     * @param digestReads true to read full object from one replica and versions from others, false if not set
+     */
+    public void setDigestReads(final boolean digestReads) {
+        this.digestReads = digestReads;
+    }
+
+    /**
+     * Return number of reads sent to additional replica because quorum was late or failed.
+     *
+     * @return number of hedged reads
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * Return number of hedged reads which response was counted to the quorum.
+     *
+     * @return number of hedged reads
+     */
+    public long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         this.currentHost = clusterManager.getCurrentHost();
+        this.latencyTracker = new LatencyTracker(hedgePercentile);
+        this.digestLatencyTracker = new LatencyTracker(hedgePercentile);
+        this.replicaExecutor = createExecutor("coordinator-%d", replicaThreads);
+        this.repairExecutor = createExecutor("read-repair-%d", repairThreads);
+        this.timeoutExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("coordinator-timeout-%d").setDaemon(true).build());
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        replicaExecutor.shutdown();
+        repairExecutor.shutdown();
+        timeoutExecutor.shutdown();
     }
 
     @Override
     public DataObject get(final Key key) throws DataStoreException {
-        final CountDownLatch receivedResponses = new CountDownLatch(readCount);
-        final AtomicReference<DataObject> responseContainer = new AtomicReference<DataObject>();
-        final ReadResponseListener responseListener = new ReadResponseListener(
-                receivedResponses, responseContainer
-        );
-        final ReadResponseHandlerThread handlerThread = new ReadResponseHandlerThread(
-                key,
-                new ReadOperationPerformer(),
-                responseListener
-        );
-        handlerThread.start();
-        boolean isComplete = false;
-        try {
-            isComplete = receivedResponses.await(MAX_RESPONSE_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException ignore) {
-        }
-        if (!isComplete) {
-            throw new DataStoreException(
-                    String.format("Read for %s failed. Not enough good responses received from cluster",
-                            ArrayUtils.toHexString(key.getHash())));
-        }
-        final DataObject dataObject = responseContainer.get();
-        if (dataObject == null) {
-            throw new NoSuchElementException(ArrayUtils.toHexString(key.getHash()));
-        }
-        return dataObject;
+        return getResult(getAsync(key));
     }
 
     @Override
     public void put(final DataObject dataObject) throws DataStoreException {
-        final CountDownLatch receivedResponses = new CountDownLatch(writeCount);
-        final AtomicReference<OperationResult> result = new AtomicReference<OperationResult>();
-        final ResponseListener responseListener = new WriteResponseListener(result, receivedResponses);
-        final WriteResponseHandlerThread handlerThread = new WriteResponseHandlerThread(
-                dataObject,
-                new WriteOperationPerformer(),
-                responseListener
-        );
-        handlerThread.start();
-        boolean isComplete = false;
-        try {
-            isComplete = receivedResponses.await(MAX_RESPONSE_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException ignore) {
+        getResult(putAsync(dataObject));
+    }
+
+    @Override
+    public ListenableFuture<DataObject> getAsync(final Key key) {
+        return read(key, hedgedReads);
+    }
+
+    /**
+     * Read replicas.
+     *
+     * @param key    key
+     * @param hedged true to read {@code readCount} replicas and hedge, false to read all replicas
+     * @return newest object
+     */
+    private ListenableFuture<DataObject> read(final Key key, final boolean hedged) {
+        log.debug(String.format("Start loading data for key[hash=%s]", ArrayUtils.toHexString(key.getHash())));
+        final List<Host> preferredHosts = keyRingService.getPreferredHosts(key);
+        log.debug("Known replicas: " + preferredHosts);
+
+        final SettableFuture<DataObject> result = SettableFuture.create();
+        final PendingOperations operations = withTimeout(result, String.format("Read for %s failed. Not enough good responses received from cluster",
+                ArrayUtils.toHexString(key.getHash())));
+        final List<Host> hosts = hedged ? selectReadHosts(preferredHosts) : preferredHosts;
+        final HedgedRead hedgedRead = hedged && hosts.size() < preferredHosts.size()
+                ? new HedgedRead(key, preferredHosts, result) : null;
+        final Host dataHost = digestReads ? selectDataHost(hosts) : null;
+        final ReadResponseListener listener = new ReadResponseListener(key, result, hedgedRead, dataHost);
+        final ResponseCollector collector = new ResponseCollector(listener, operations, hosts, hosts.size());
+        listener.setCollector(collector);
+        if (hedgedRead != null) {
+            hedgedRead.init(collector, hosts);
         }
-        if (!isComplete) {
-            throw new DataStoreException(
-                    String.format("Write for %s failed. Not enough good responses received from cluster",
-                            ArrayUtils.toHexString(dataObject.getKey().getHash())));
+        for (final Host host : hosts) {
+            readReplica(collector, key, host, dataHost != null && !dataHost.equals(host));
         }
-        if (result.get() == OperationResult.UPDATING_OLD_VERSION) {
-            throw new UpdatingOlderVersionException("Trying to put older version than exist in the system");
+        if (hedgedRead != null) {
+            hedgedRead.schedule(hosts, dataHost);
         }
+        return result;
     }
 
-    private class ReadResponseHandlerThread extends Thread {
+    /**
+     * Read replica, record latency of the read and pass response to the collector.
+     *
+     * @param digest true to read only version
+     */
+    private void readReplica(final ResponseCollector collector,
+                             final Key key,
+                             final Host host,
+                             final boolean digest) {
+        final ListenableFuture<?> operation = digest ? readVersion(key, host) : readDataObject(key, host);
+        final LatencyTracker tracker = digest ? digestLatencyTracker : latencyTracker;
+        final long start = System.nanoTime();
+        Futures.addCallback(operation, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(final Object ignore) {
+                record();
+            }
 
-        private final Key key;
-        private final String keyHash;
-        private final ReadOperationPerformer operationPerformer;
-        private final ResponseListener responseListener;
-
-        private ReadResponseHandlerThread(final Key key,
-                                          final ReadOperationPerformer operationPerformer,
-                                          final ResponseListener responseListener) {
-            super("Reader_" + ArrayUtils.toHexString(key.getHash()) + "_thread");
-            this.key = key;
-            this.operationPerformer = operationPerformer;
-            this.keyHash = ArrayUtils.toHexString(key.getHash());
-            this.responseListener = responseListener;
-        }
+            @Override
+            public void onFailure(final Throwable t) {
+                if (t instanceof NoSuchElementException) {
+                    record();
+                }
+            }
 
-        @Override
-        public void run() {
-            log.debug(String.format("Start loading data for key[hash=%s]", keyHash));
-            final List<Host> preferredHosts = keyRingService.getPreferredHosts(key);
-            log.debug("Known replicas: " + preferredHosts);
+            private void record() {
+                tracker.record(host, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
+        });
+        collect(collector, host, operation);
+    }
 
-            final BlockingQueue<ResponseWrapper> responses =
-                    new ArrayBlockingQueue<ResponseWrapper>(preferredHosts.size());
-            responseListener.init(preferredHosts);
+    private ListenableFuture<DataObject> readDataObject(final Key key, final Host host) {
+        if (!currentHost.equals(host)) {
+            return remoteStoreService.getAsync(key, host);
+        }
+        return submitLocal(new Callable<DataObject>() {
+            @Override
+            public DataObject call() throws DataStoreException {
+                log.debug("This is current host. Use local storage service");
+                return localStoreService.get(key);
+            }
+        });
+    }
 
-            final ExecutorService executorService = Executors.newFixedThreadPool(preferredHosts.size());
-            for (final Host host : preferredHosts) {
-                executorService.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        Thread.currentThread().setName(getThreadName(host));
-                        responses.offer(operationPerformer.perform(key, host));
-                    }
-                });
+    private ListenableFuture<Version> readVersion(final Key key, final Host host) {
+        if (!currentHost.equals(host)) {
+            return remoteStoreService.getVersionAsync(key, host);
+        }
+        return submitLocal(new Callable<Version>() {
+            @Override
+            public Version call() throws DataStoreException {
+                return localStoreService.get(key).getVersion();
             }
-            executorService.shutdown();
+        });
+    }
 
-            while (true) {
-                try {
-                    final ResponseWrapper response = responses.poll(10, TimeUnit.MILLISECONDS);
-                    if (response != null) {
-                        responseListener.onResponse(response);
-                    } else if (executorService.isTerminated()) {
-                        break;
-                    }
-                } catch (InterruptedException ignore) {
-                }
+    /**
+     * Return replica which full data object is read from: local one, or one without estimate of full read latency,
+     * or the next one in turn on each {@value #DATA_HOST_ROTATION}th read, or one with the lowest estimate.
+     */
+    private Host selectDataHost(final List<Host> hosts) {
+        if (hosts.contains(currentHost)) {
+            return currentHost;
+        }
+        final long read = readCounter.getAndIncrement();
+        if (read % DATA_HOST_ROTATION == 0) {
+            return hosts.get((int) (read / DATA_HOST_ROTATION % hosts.size()));
+        }
+        Host closest = null;
+        long closestEstimate = Long.MAX_VALUE;
+        for (final Host host : hosts) {
+            final long estimate = latencyTracker.getEstimate(host);
+            if (estimate == LatencyTracker.UNKNOWN) {
+                return host;
+            }
+            if (estimate < closestEstimate) {
+                closest = host;
+                closestEstimate = estimate;
             }
-            responseListener.finish();
         }
+        return closest;
+    }
 
-        private String getThreadName(final Host host) {
-            return String.format("Thread-get-%s-%s", keyHash, host);
+    /**
+     * Return {@code readCount} replicas to read, local replica first and others in preference order.
+     */
+    private List<Host> selectReadHosts(final List<Host> preferredHosts) {
+        final List<Host> hosts = new ArrayList<Host>(readCount);
+        if (preferredHosts.contains(currentHost)) {
+            hosts.add(currentHost);
+        }
+        for (final Host host : preferredHosts) {
+            if (hosts.size() >= readCount) {
+                break;
+            }
+            if (!currentHost.equals(host)) {
+                hosts.add(host);
+            }
         }
+        return hosts;
     }
 
-    private class WriteResponseHandlerThread extends Thread {
+    /**
+     * Local replica is written before remote ones, remote replicas aren't written if local replica already has newer
+     * version.
+     *
+     * @inheritDoc
+     */
+    @Override
+    public ListenableFuture<Void> putAsync(final DataObject dataObject) {
+        log.debug(String.format("Start storing data for key[hash=%s], version=%s",
+                ArrayUtils.toHexString(dataObject.getKey().getHash()), dataObject.getVersion()));
+        final List<Host> preferredHosts = keyRingService.getPreferredHosts(dataObject.getKey());
+        log.debug("Known replicas: " + preferredHosts);
 
-        private final DataObject dataObject;
-        private final String keyHash;
-        private final WriteOperationPerformer operationPerformer;
-        private final ResponseListener responseListener;
-
-        private WriteResponseHandlerThread(final DataObject dataObject,
-                                           final WriteOperationPerformer operationPerformer,
-                                           final ResponseListener responseListener) {
-            super("Writer_" + ArrayUtils.toHexString(dataObject.getKey().getHash()) + "_thread");
-            this.dataObject = dataObject;
-            this.operationPerformer = operationPerformer;
-            this.responseListener = responseListener;
-            this.keyHash = ArrayUtils.toHexString(dataObject.getKey().getHash());
-        }
+        final SettableFuture<Void> result = SettableFuture.create();
+        final PendingOperations operations = withTimeout(result, String.format("Write for %s failed. Not enough good responses received from cluster",
+                ArrayUtils.toHexString(dataObject.getKey().getHash())));
+        final ResponseListener responseListener = new WriteResponseListener(dataObject, result);
+        if (!preferredHosts.contains(currentHost)) {
+            writeRemote(dataObject, preferredHosts, new ResponseCollector(
+                    responseListener, operations, preferredHosts, preferredHosts.size()));
+        } else {
+            Futures.addCallback(submitLocal(new Callable<Void>() {
+                @Override
+                public Void call() throws DataStoreException {
+                    localStoreService.put(dataObject);
+                    return null;
+                }
+            }), new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(final Void ignore) {
+                    final ResponseCollector collector = new ResponseCollector(
+                            responseListener, operations, preferredHosts, preferredHosts.size());
+                    collector.onResponse(new ResponseWrapper(currentHost, OperationResult.SUCCESS, null, null));
+                    writeRemote(dataObject, preferredHosts, collector);
+                }
 
-        @Override
-        public void run() {
-            log.debug(String.format("Start storing data for key[hash=%s], version=%s", keyHash, dataObject.getVersion()));
-            final List<Host> preferredHosts = keyRingService.getPreferredHosts(dataObject.getKey());
-            log.debug("Known replicas: " + preferredHosts);
-
-            final BlockingQueue<ResponseWrapper> responses =
-                    new ArrayBlockingQueue<ResponseWrapper>(preferredHosts.size());
-            responseListener.init(preferredHosts);
-
-            boolean needContinue = true;
-            for (final Host host : preferredHosts) {
-                if (currentHost.equals(host)) {
-                    final ResponseWrapper res = operationPerformer.perform(dataObject, host);
-                    responses.offer(res);
-                    if (res.getResult() == OperationResult.UPDATING_OLD_VERSION) {
-                        needContinue = false;
+                @Override
+                public void onFailure(final Throwable t) {
+                    final OperationResult localResult = toOperationResult(t, currentHost);
+                    final ResponseCollector collector = new ResponseCollector(responseListener, operations,
+                            preferredHosts, localResult == OperationResult.UPDATING_OLD_VERSION ? 1 : preferredHosts.size());
+                    collector.onResponse(new ResponseWrapper(currentHost, localResult, null, null));
+                    if (localResult != OperationResult.UPDATING_OLD_VERSION) {
+                        writeRemote(dataObject, preferredHosts, collector);
                     }
-                    break;
                 }
+            });
+        }
+        return result;
+    }
+
+    private void writeRemote(final DataObject dataObject,
+                             final List<Host> preferredHosts,
+                             final ResponseCollector collector) {
+        for (final Host host : preferredHosts) {
+            if (!currentHost.equals(host)) {
+                collect(collector, host, remoteStoreService.putAsync(dataObject, host));
             }
+        }
+    }
 
-            final ExecutorService executorService = Executors.newFixedThreadPool(preferredHosts.size());
-            if (needContinue) {
-                for (final Host host : preferredHosts) {
-                    if (!currentHost.equals(host)) {
-                        executorService.execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                Thread.currentThread().setName(getThreadName(host));
-                                responses.offer(operationPerformer.perform(dataObject, host));
-                            }
-                        });
-                    }
+    /**
+     * Run operation of the local replica in the replica pool. Operation which can't be queued is failed immediately.
+     */
+    private <T> ListenableFuture<T> submitLocal(final Callable<T> operation) {
+        try {
+            return replicaExecutor.submit(operation);
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(
+                    new DataStoreException("Replica operation queue is full, local operation failed", e));
+        }
+    }
+
+    /**
+     * Pass result of the replica operation to the collector when it completes. Operation is cancelled if the request
+     * times out before.
+     */
+    private void collect(final ResponseCollector collector, final Host host, final ListenableFuture<?> operation) {
+        Futures.addCallback(operation, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(final Object data) {
+                if (data instanceof DataObject) {
+                    collector.onResponse(new ResponseWrapper(host, OperationResult.SUCCESS, (DataObject) data,
+                            ((DataObject) data).getVersion()));
+                } else {
+                    collector.onResponse(new ResponseWrapper(host, OperationResult.SUCCESS, null,
+                            data instanceof Version ? (Version) data : null));
                 }
             }
-            executorService.shutdown();
 
-            while (true) {
-                try {
-                    final ResponseWrapper response = responses.poll(10, TimeUnit.MILLISECONDS);
-                    if (response != null) {
-                        responseListener.onResponse(response);
-                    } else if (executorService.isTerminated()) {
-                        break;
+            @Override
+            public void onFailure(final Throwable t) {
+                collector.onResponse(new ResponseWrapper(host, toOperationResult(t, host), null, null));
+            }
+        });
+        collector.operations.add(operation);
+    }
+
+    private static OperationResult toOperationResult(final Throwable t, final Host host) {
+        if (t instanceof UpdatingOlderVersionException) {
+            log.warn("Trying to put older version than exist in the system", t);
+            return OperationResult.UPDATING_OLD_VERSION;
+        } else if (t instanceof NoSuchElementException) {
+            log.warn("Missing data on the replica: " + host);
+            return OperationResult.NO_SUCH_ELEMENT;
+        } else if (t instanceof CancellationException) {
+            log.debug("Replica operation on host " + host + " is cancelled by request timeout");
+            return OperationResult.ERROR;
+        }
+        log.error("Replica operation failed on host " + host, t);
+        return OperationResult.ERROR;
+    }
+
+    /**
+     * Fail request which isn't completed within {@value #MAX_RESPONSE_WAIT_TIMEOUT} ms and cancel its pending replica
+     * operations.
+     *
+     * @return replica operations of the request
+     */
+    private <T> PendingOperations withTimeout(final SettableFuture<T> result, final String message) {
+        final PendingOperations operations = new PendingOperations();
+        try {
+            final ScheduledFuture<?> timeout = timeoutExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (result.setException(new DataStoreException(message))) {
+                        operations.cancel();
                     }
-                } catch (InterruptedException ignore) {
                 }
-            }
-            responseListener.finish();
+            }, MAX_RESPONSE_WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+            result.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    timeout.cancel(false);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        } catch (RejectedExecutionException e) {
+            result.setException(new DataStoreException(message, e));
+        }
+        return operations;
+    }
+
+    private void repair(final Runnable task) {
+        try {
+            repairExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.warn("Repair queue is full, repair is skipped");
         }
+    }
 
-        private String getThreadName(final Host host) {
-            return String.format("Thread-get-%s-%s", keyHash, host);
+    private ListeningExecutorService createExecutor(final String nameFormat, final int threads) {
+        Validate.isTrue(threads > 0, "Number of threads must be positive");
+        return MoreExecutors.listeningDecorator(new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build()));
+    }
+
+    private static <T> T getResult(final ListenableFuture<T> future) throws DataStoreException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataStoreException("Interrupted while waiting for replicas", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DataStoreException) {
+                throw (DataStoreException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new DataStoreException("Replica operation failed", e.getCause());
         }
     }
 
@@ -266,11 +554,16 @@ public final class CoordinationServiceImpl implements CoordinationService, Initi
         private final Host host;
         private final OperationResult result;
         private final DataObject data;
+        private final Version version;
 
-        private ResponseWrapper(final Host host, final OperationResult result, final DataObject data) {
+        private ResponseWrapper(final Host host,
+                                final OperationResult result,
+                                final DataObject data,
+                                final Version version) {
             this.data = data;
             this.result = result;
             this.host = host;
+            this.version = version;
         }
 
         public Host getHost() {
@@ -284,139 +577,314 @@ public final class CoordinationServiceImpl implements CoordinationService, Initi
         public DataObject getData() {
             return data;
         }
+
+        public Version getVersion() {
+            return version;
+        }
     }
 
     private static enum OperationResult {
         SUCCESS, ERROR, NO_SUCH_ELEMENT, UPDATING_OLD_VERSION
     }
 
-    private static interface OperationPerformer<T> {
-        ResponseWrapper perform(final T t, final Host host);
-    }
-
     private static interface ResponseListener {
         void init(final List<Host> hosts);
 
+        void onRequest(final Host host);
+
         void onResponse(final ResponseWrapper response);
 
         void finish();
     }
 
-    private class ReadOperationPerformer implements OperationPerformer<Key> {
+    /**
+     * Replica operations of one request. Operations are cancelled when request times out, so transport stops waiting
+     * for replicas which can't affect the result anymore. Operation added after that is cancelled at once.
+     */
+    private static final class PendingOperations {
+        private final List<Future<?>> operations = new ArrayList<Future<?>>();
+        private boolean cancelled;
 
-        @Override
-        public ResponseWrapper perform(final Key key, final Host host) {
-            log.debug("Loading data from " + host);
-            DataObject dataObject = null;
-            OperationResult result;
-            try {
-                if (currentHost.equals(host)) {
-                    log.debug("This is current host. Use local storage service");
-                    dataObject = localStoreService.get(key);
-                } else {
-                    log.debug("This is remote host. Use remote storage service");
-                    dataObject = remoteStoreService.get(key, host);
+        private void add(final Future<?> operation) {
+            synchronized (this) {
+                if (!cancelled) {
+                    operations.add(operation);
+                    return;
                 }
-                result = OperationResult.SUCCESS;
-            } catch (DataStoreException e) {
-                final String keyHash = ArrayUtils.toHexString(key.getHash());
-                log.error("Failed to get data for key[hash=" + keyHash + "]", e);
-                result = OperationResult.ERROR;
-            } catch (NoSuchElementException ignore) {
-                log.warn("Missing data on the replica: " + host);
-                result = OperationResult.NO_SUCH_ELEMENT;
             }
-            return new ResponseWrapper(host, result, dataObject);
+            operation.cancel(false);
+        }
+
+        private void cancel() {
+            final List<Future<?>> toCancel;
+            synchronized (this) {
+                cancelled = true;
+                toCancel = new ArrayList<Future<?>>(operations);
+                operations.clear();
+            }
+            for (final Future<?> operation : toCancel) {
+                operation.cancel(false);
+            }
         }
     }
 
-    private class WriteOperationPerformer implements OperationPerformer<DataObject> {
-        @Override
-        public ResponseWrapper perform(final DataObject dataObject, final Host host) {
-            OperationResult result;
-            try {
-                if (!currentHost.equals(host)) {
-                    remoteStoreService.put(dataObject, host);
-                } else {
-                    localStoreService.put(dataObject);
-                }
-                result = OperationResult.SUCCESS;
-            } catch (UpdatingOlderVersionException e) {
-                log.warn("Trying to put older version than exist in the system", e);
-                result = OperationResult.UPDATING_OLD_VERSION;
-            } catch (DataStoreException e) {
-                final String keyHash = ArrayUtils.toHexString(dataObject.getKey().getHash());
-                log.error(String.format("Remote store operation failed for key[hash=%s]", keyHash), e);
-                result = OperationResult.ERROR;
+    /**
+     * Passes responses to the listener one by one in threads which received them and finishes listener after the
+     * expected number of responses.
+     */
+    private static final class ResponseCollector {
+        private final ResponseListener listener;
+        private final PendingOperations operations;
+        private int pending;
+
+        private ResponseCollector(final ResponseListener listener,
+                                  final PendingOperations operations,
+                                  final List<Host> hosts,
+                                  final int expected) {
+            this.listener = listener;
+            this.operations = operations;
+            this.pending = expected;
+            listener.init(hosts);
+        }
+
+        /**
+         * Expect one more response.
+         *
+         * @param host host which request is sent to
+         * @return false if listener is already finished
+         */
+        private synchronized boolean addRequest(final Host host) {
+            if (pending == 0) {
+                return false;
+            }
+            pending++;
+            listener.onRequest(host);
+            return true;
+        }
+
+        private synchronized void onResponse(final ResponseWrapper response) {
+            listener.onResponse(response);
+            if (--pending == 0) {
+                listener.finish();
             }
-            return new ResponseWrapper(host, result, dataObject);
         }
     }
 
     private class ReadResponseListener implements ResponseListener {
 
-        private final CountDownLatch receivedResponses;
-        private final AtomicReference<DataObject> newestDataObject;
+        private final Key key;
+        private final SettableFuture<DataObject> result;
+        private final HedgedRead hedgedRead;
+        private final Host dataHost;
         private final Set<Host> hostWithNewestObjects;
+        private ResponseCollector collector;
+        private boolean dataHostResponded;
+        private Version newestVersion;
+        private DataObject newestDataObject;
+        private int receivedResponses;
         private List<Host> prefferedHosts;
+        private boolean hedgeCounted;
+        private Host fetchHost;
+        private boolean fetchScheduled;
 
-        private ReadResponseListener(final CountDownLatch receivedResponses,
-                                     final AtomicReference<DataObject> newestDataObject) {
-            this.receivedResponses = receivedResponses;
-            this.newestDataObject = newestDataObject;
+        /**
+         * Create listener.
+         *
+         * @param dataHost replica which full data object is read from, if others are read for digest, or null
+         */
+        private ReadResponseListener(final Key key,
+                                     final SettableFuture<DataObject> result,
+                                     final HedgedRead hedgedRead,
+                                     final Host dataHost) {
+            this.key = key;
+            this.result = result;
+            this.hedgedRead = hedgedRead;
+            this.dataHost = dataHost;
             this.hostWithNewestObjects = new HashSet<Host>();
         }
 
+        /**
+         * Set collector of the read, which newest data object is fetched through. Must be called before replicas
+         * are read.
+         */
+        private void setCollector(final ResponseCollector collector) {
+            this.collector = collector;
+        }
+
         @Override
         public void init(final List<Host> hosts) {
-            prefferedHosts = hosts;
+            prefferedHosts = new ArrayList<Host>(hosts);
+        }
+
+        @Override
+        public void onRequest(final Host host) {
+            if (!prefferedHosts.contains(host)) {
+                prefferedHosts.add(host);
+            }
         }
 
         @Override
         public void onResponse(final ResponseWrapper response) {
             final DataObject remoteObject = response.getData();
+            final Version remoteVersion = response.getVersion();
             final Host remoteHost = response.getHost();
-            final OperationResult result = response.getResult();
+            final OperationResult operationResult = response.getResult();
             log.debug(String.format("Host: %s; Result: %s; Data: %s;",
-                    remoteHost, result, remoteObject != null ? remoteObject.getVersion() : "null"));
-            if (result == OperationResult.ERROR) {
+                    remoteHost, operationResult, remoteVersion != null ? remoteVersion : "null"));
+            if (remoteHost.equals(fetchHost) && !result.isDone()
+                    && (operationResult != OperationResult.SUCCESS || remoteObject == null)) {
+                // if data replica is still expected, its response may complete the read
+                if (dataHost == null || dataHostResponded) {
+                    result.setException(new DataStoreException(String.format(
+                            "Read for %s failed. Failed to read the newest version from %s",
+                            ArrayUtils.toHexString(key.getHash()), remoteHost)));
+                }
                 return;
             }
-            if (result == OperationResult.NO_SUCH_ELEMENT) {
-                receivedResponses.countDown();
+            if (remoteHost.equals(dataHost)) {
+                dataHostResponded = true;
+            }
+            if (operationResult == OperationResult.ERROR) {
+                if (hedgedRead != null) {
+                    hedgedRead.onFailure();
+                }
+                if (receivedResponses >= readCount) {
+                    complete();
+                }
                 return;
             }
-            if (newestDataObject.get() == null) {
-                newestDataObject.set(remoteObject);
-                hostWithNewestObjects.add(remoteHost);
-            } else {
-                // here we've already got one not null response
-                assert remoteObject != null;
-                if (remoteObject.getVersion().equals(newestDataObject.get().getVersion())) {
+            if (!hedgeCounted && hedgedRead != null && hedgedRead.isSentTo(remoteHost) && !result.isDone()) {
+                hedgeCounted = true;
+                hedgeWinCount.incrementAndGet();
+            }
+            if (operationResult == OperationResult.SUCCESS) {
+                if (newestVersion == null) {
+                    newestVersion = remoteVersion;
+                    hostWithNewestObjects.add(remoteHost);
+                } else if (remoteVersion.equals(newestVersion)) {
                     hostWithNewestObjects.add(remoteHost);
-                } else if (remoteObject.getVersion().isAfter(newestDataObject.get().getVersion())) {
-                    newestDataObject.set(remoteObject);
+                } else if (remoteVersion.isAfter(newestVersion)) {
+                    newestVersion = remoteVersion;
                     hostWithNewestObjects.clear();
                     hostWithNewestObjects.add(remoteHost);
                 }
+                if (remoteObject != null && remoteVersion.equals(newestVersion)) {
+                    newestDataObject = remoteObject;
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Current newest version is " + newestVersion);
+                    log.debug("Current replicas with newest object: " + hostWithNewestObjects);
+                }
+            }
+            if (++receivedResponses >= readCount) {
+                complete();
+            }
+        }
+
+        /**
+         * Complete the read after quorum of responses. If only digests of the newest version are received, waits
+         * for the full data object from the data replica and reads the newest version again if data replica doesn't
+         * have it. If data replica hasn't responded, waits for it no longer than its full read latency estimate and
+         * then reads the newest version from replica which returned its digest, so one slow replica doesn't fail the
+         * read.
+         */
+        private void complete() {
+            if (result.isDone()) {
+                return;
             }
-            if (log.isDebugEnabled()) {
-                log.debug("Current newest object is " +
-                        (newestDataObject.get() != null ? newestDataObject.get().getVersion() : "null"));
-                log.debug("Current replicas with newest object: " + hostWithNewestObjects);
+            if (newestVersion == null) {
+                result.setException(new NoSuchElementException(ArrayUtils.toHexString(key.getHash())));
+            } else if (isNewestRead()) {
+                result.set(newestDataObject);
+            } else if (fetchHost != null) {
+                return;
+            } else if (dataHost == null || dataHostResponded) {
+                fetchNewest();
+            } else if (!fetchScheduled) {
+                scheduleFetch();
             }
-            receivedResponses.countDown();
+        }
+
+        /**
+         * Read the newest version from other replica if data replica doesn't respond within its full read latency
+         * estimate, or within {@value #DEFAULT_FETCH_DELAY} ms if it has no estimate yet, so replica which isn't
+         * measured doesn't cause extra full reads.
+         */
+        private void scheduleFetch() {
+            fetchScheduled = true;
+            final long estimate = latencyTracker.getEstimate(dataHost);
+            final long delay = estimate == LatencyTracker.UNKNOWN
+                    ? TimeUnit.MILLISECONDS.toMicros(DEFAULT_FETCH_DELAY) : estimate;
+            try {
+                final ScheduledFuture<?> timer = timeoutExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (collector) {
+                            if (!result.isDone() && !dataHostResponded && fetchHost == null) {
+                                fetchNewest();
+                            }
+                        }
+                    }
+                }, delay, TimeUnit.MICROSECONDS);
+                result.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        timer.cancel(false);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            } catch (RejectedExecutionException e) {
+                fetchNewest();
+            }
+        }
+
+        private boolean isNewestRead() {
+            return newestDataObject != null && newestDataObject.getVersion().equals(newestVersion);
+        }
+
+        /**
+         * Read full data object from the replica which returned the newest version as digest. Response is expected
+         * by the collector, so listener isn't finished before it.
+         */
+        private void fetchNewest() {
+            final Host host = hostWithNewestObjects.iterator().next();
+            if (!collector.addRequest(host)) {
+                return;
+            }
+            fetchHost = host;
+            log.debug("Reading the newest version from " + fetchHost);
+            readReplica(collector, key, fetchHost, false);
         }
 
         @Override
         public void finish() {
-            if (newestDataObject.get() != null && hostWithNewestObjects.size() != prefferedHosts.size()) {
-                readRepair(newestDataObject.get(), hostWithNewestObjects, prefferedHosts);
+            result.setException(new DataStoreException(
+                    String.format("Read for %s failed. Not enough good responses received from cluster",
+                            ArrayUtils.toHexString(key.getHash()))));
+            if (newestVersion == null || hostWithNewestObjects.size() == prefferedHosts.size()) {
+                return;
             }
+            if (isNewestRead()) {
+                readRepair(newestDataObject, hostWithNewestObjects, prefferedHosts);
+                return;
+            }
+            // newer digest came after the quorum, so the newest object must be read for repair
+            final Host host = hostWithNewestObjects.iterator().next();
+            Futures.addCallback(readDataObject(key, host), new FutureCallback<DataObject>() {
+                @Override
+                public void onSuccess(final DataObject dataObject) {
+                    readRepair(dataObject, hostWithNewestObjects, prefferedHosts);
+                }
+
+                @Override
+                public void onFailure(final Throwable t) {
+                    log.error("Failed to read the newest version for repair from host " + host, t);
+                }
+            });
         }
 
         /**
-         * Perform write operation for those host which data object version was older than the newest one.
+         * Write newest data object to those host which data object version was older than the newest one. Repair
+         * isn't awaited.
          *
          * @param newestDataObject newest data object
          * @param bestHosts        hosts with the newest data object
@@ -428,81 +896,211 @@ public final class CoordinationServiceImpl implements CoordinationService, Initi
             Validate.notNull(newestDataObject, "Newest data object can't be null");
 
             log.debug("Performing read repair. Newest version is " + newestDataObject.getVersion());
-            final String keyHash = ArrayUtils.toHexString(newestDataObject.getKey().getHash());
-            log.debug("" + (hosts.size() - bestHosts.size()));
-            final ExecutorService executorService = Executors.newFixedThreadPool(hosts.size() - bestHosts.size());
             for (final Host host : hosts) {
-                if (!bestHosts.contains(host)) {
-                    executorService.execute(new Runnable() {
+                if (bestHosts.contains(host)) {
+                    continue;
+                }
+                if (host.equals(currentHost)) {
+                    repair(new Runnable() {
                         @Override
                         public void run() {
-                            Thread.currentThread().setName(String.format("Thread-repair-%s-%s", keyHash, host));
                             try {
-                                if (host.equals(currentHost)) {
-                                    localStoreService.put(newestDataObject);
-                                } else {
-                                    remoteStoreService.put(newestDataObject, host);
-                                }
+                                localStoreService.put(newestDataObject);
                             } catch (DataStoreException e) {
                                 log.error("Repair failed for host " + host, e);
                             }
                         }
                     });
+                } else {
+                    Futures.addCallback(remoteStoreService.putAsync(newestDataObject, host), new FutureCallback<Void>() {
+                        @Override
+                        public void onSuccess(final Void ignore) {
+                            log.debug("Repaired host " + host);
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable t) {
+                            log.error("Repair failed for host " + host, t);
+                        }
+                    });
                 }
             }
-            executorService.shutdown();
-            try {
-                while (!executorService.awaitTermination(10, TimeUnit.MILLISECONDS)) {
-                }
-            } catch (InterruptedException ignore) {
-                executorService.shutdownNow();
-            }
-            log.debug("Repairing complete");
         }
     }
 
     private class WriteResponseListener implements ResponseListener {
 
-        private final AtomicReference<OperationResult> result;
-        private final CountDownLatch receivedResponses;
-        private DataObject dataObject;
+        private final DataObject dataObject;
+        private final SettableFuture<Void> result;
+        private int receivedResponses;
+        private boolean rejected;
 
-        private WriteResponseListener(final AtomicReference<OperationResult> result,
-                                      final CountDownLatch receivedResponses) {
+        private WriteResponseListener(final DataObject dataObject, final SettableFuture<Void> result) {
+            this.dataObject = dataObject;
             this.result = result;
-            this.receivedResponses = receivedResponses;
         }
 
         @Override
         public void init(final List<Host> hosts) {
         }
 
+        @Override
+        public void onRequest(final Host host) {
+            // writes aren't hedged
+        }
+
         @Override
         public void onResponse(final ResponseWrapper response) {
             final OperationResult remoteOperationResult = response.getResult();
             final Host remoteHost = response.getHost();
-            dataObject = response.getData();
             log.debug(String.format("Got response from remote host %s: %s",
                     remoteHost, remoteOperationResult));
             if (remoteOperationResult == OperationResult.SUCCESS) {
-                receivedResponses.countDown();
-            } else if (remoteOperationResult == OperationResult.UPDATING_OLD_VERSION) {
-                result.set(OperationResult.UPDATING_OLD_VERSION);
-                for (long i = 0; i < receivedResponses.getCount(); i++) {
-                    receivedResponses.countDown();
+                if (++receivedResponses == writeCount) {
+                    result.set(null);
                 }
+            } else if (remoteOperationResult == OperationResult.UPDATING_OLD_VERSION) {
+                rejected = true;
+                result.setException(
+                        new UpdatingOlderVersionException("Trying to put older version than exist in the system"));
             }
         }
 
+        /**
+         * If write was rejected, read with read repair is performed, so replicas which accepted older version
+         * receive the newest one.
+         */
         @Override
         public void finish() {
-            if (result.get() == OperationResult.UPDATING_OLD_VERSION) {
-                try {
-                    CoordinationServiceImpl.this.get(dataObject.getKey());
-                } catch (DataStoreException e) {
-                    log.error("Failed to perform repair write", e);
+            result.setException(new DataStoreException(
+                    String.format("Write for %s failed. Not enough good responses received from cluster",
+                            ArrayUtils.toHexString(dataObject.getKey().getHash()))));
+            if (rejected) {
+                Futures.addCallback(read(dataObject.getKey(), false), new FutureCallback<DataObject>() {
+                    @Override
+                    public void onSuccess(final DataObject ignore) {
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable t) {
+                        log.error("Failed to perform repair write", t);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Sends read to the first replica which wasn't read yet. Read is hedged at most once: after the highest latency
+     * estimate of the read replicas or on the first failed response, whichever comes first. Read isn't hedged by time
+     * if any of replicas has no estimate yet.
+     */
+    private final class HedgedRead implements Runnable {
+        private final Key key;
+        private final List<Host> preferredHosts;
+        private final SettableFuture<DataObject> result;
+        private final AtomicBoolean fired = new AtomicBoolean();
+        private volatile ResponseCollector collector;
+        private volatile Host host;
+
+        private HedgedRead(final Key key, final List<Host> preferredHosts, final SettableFuture<DataObject> result) {
+            this.key = key;
+            this.preferredHosts = preferredHosts;
+            this.result = result;
+        }
+
+        /**
+         * Remember collector of the read and choose replica to hedge to. Must be called before replicas are read.
+         */
+        private void init(final ResponseCollector collector, final List<Host> hosts) {
+            this.collector = collector;
+            for (final Host preferredHost : preferredHosts) {
+                if (!hosts.contains(preferredHost)) {
+                    this.host = preferredHost;
+                    break;
                 }
             }
         }
+
+        /**
+         * Schedule hedged read after the highest latency estimate of the read replicas.
+         *
+         * @param dataHost replica which full data object is read from, if others are read for digest, or null
+         */
+        private void schedule(final List<Host> hosts, final Host dataHost) {
+            long delay = 0;
+            for (final Host readHost : hosts) {
+                final long estimate = dataHost == null || dataHost.equals(readHost)
+                        ? latencyTracker.getEstimate(readHost) : digestLatencyTracker.getEstimate(readHost);
+                if (estimate == LatencyTracker.UNKNOWN) {
+                    return;
+                }
+                delay = Math.max(delay, estimate);
+            }
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                final ScheduledFuture<?> timer = timeoutExecutor.schedule(this, delay, TimeUnit.MICROSECONDS);
+                result.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        timer.cancel(false);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            } catch (RejectedExecutionException e) {
+                log.warn("Failed to schedule hedged read", e);
+            }
+        }
+
+        /**
+         * Hedge read because replica failed. Called by response listener, so response of the hedged read is
+         * expected before the failed response is counted, but read is sent by the timer thread and listener doesn't
+         * receive responses recursively.
+         */
+        private void onFailure() {
+            if (!reserve()) {
+                return;
+            }
+            try {
+                timeoutExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        send();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                send();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (reserve()) {
+                send();
+            }
+        }
+
+        /**
+         * Make collector expect response of the hedged read.
+         *
+         * @return false if read is already hedged or finished
+         */
+        private boolean reserve() {
+            if (result.isDone() || !fired.compareAndSet(false, true) || !collector.addRequest(host)) {
+                return false;
+            }
+            hedgeCount.incrementAndGet();
+            return true;
+        }
+
+        private void send() {
+            log.debug("Hedging read to " + host);
+            readReplica(collector, key, host, false);
+        }
+
+        private boolean isSentTo(final Host responseHost) {
+            return fired.get() && responseHost.equals(host);
+        }
     }
 }
@@ -0,0 +1,235 @@
+package ru.selena.core.impl;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+import ru.selena.Factories;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.core.impl.storage.TimingWheel;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decorator which deletes data objects after their {@link DataObject#getExpirationTime() expiration time}. Expired
+ * object is replaced by the stub of the same version, so it's deleted on all replicas the same way as by client and
+ * stub is purged after tombstone grace period of the underlying storage.
+ * <p/>
+ * Keys of objects with expiration time are kept in {@link TimingWheel}, which is advanced every {@code tickDuration}
+ * ms by background thread, so expiration doesn't scan the storage. Besides that objects are checked on read, so
+ * expired object is never returned even if background thread is behind. Wheel is filled by one pass over all objects
+ * of the underlying storage, see {@link LocalStoreUtils#scan}, on {@link #open()} if storage is opened fine or on
+ * {@link #restore()} otherwise, since corrupted storage may fail the pass.
+ * <p/>
+ * Date: 3/29/13
+ * Time: 8:30 PM
+ *
+ * @author Artem Titov
+ */
+public class ExpiringLocalStoreService implements LocalStoreService {
+    private static final Logger log = LoggerFactory.getLogger(ExpiringLocalStoreService.class);
+
+    private static final long DEFAULT_TICK_DURATION = 1000;
+
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    private LocalStoreService localStoreService;
+    private long tickDuration = DEFAULT_TICK_DURATION;
+    private TimingWheel<Key> wheel;
+    private ScheduledExecutorService expirationExecutor;
+
+    @Required
+    public void setLocalStoreService(final LocalStoreService localStoreService) {
+        this.localStoreService = localStoreService;
+    }
+
+    /**
+     * Set how often expired objects are deleted.
+     *
+     * @param tickDuration duration in ms, 1 second by default
+     */
+    public void setTickDuration(final long tickDuration) {
+        this.tickDuration = tickDuration;
+    }
+
+    /**
+     * Return number of objects replaced by stubs since storage was opened.
+     *
+     * @return number of objects
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    @Override
+    public StorageStatus open() throws IOException {
+        final StorageStatus status = localStoreService.open();
+        synchronized (this) {
+            wheel = new TimingWheel<Key>(tickDuration, System.currentTimeMillis());
+        }
+        if (status == StorageStatus.OK) {
+            scheduleAll();
+        }
+        expirationExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("expiration-%d").setDaemon(true).build());
+        expirationExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expireObjects();
+            }
+        }, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+        return status;
+    }
+
+    @Override
+    public StorageStatus restore() throws IOException {
+        final StorageStatus status = localStoreService.restore();
+        if (status == StorageStatus.OK) {
+            synchronized (this) {
+                wheel = new TimingWheel<Key>(tickDuration, System.currentTimeMillis());
+            }
+            scheduleAll();
+        }
+        return status;
+    }
+
+    @Override
+    public DataObject get(final Key key) throws DataStoreException {
+        final DataObject dataObject = localStoreService.get(key);
+        if (!isExpired(dataObject, System.currentTimeMillis())) {
+            return dataObject;
+        }
+        return expire(dataObject);
+    }
+
+    @Override
+    public void put(final DataObject dataObject) throws DataStoreException {
+        localStoreService.put(dataObject);
+        if (!dataObject.isStub() && dataObject.getExpirationTime() != DataObject.NEVER_EXPIRES) {
+            schedule(dataObject);
+        }
+    }
+
+    /**
+     * Expired objects are returned as stubs, but aren't deleted by iteration.
+     *
+     * @inheritDoc
+     */
+    @Override
+    public Iterator<DataObject> iterator(final TokenRange range) {
+        return Iterators.transform(localStoreService.iterator(range), new Function<DataObject, DataObject>() {
+            @Override
+            public DataObject apply(final DataObject dataObject) {
+                if (!isExpired(dataObject, System.currentTimeMillis())) {
+                    return dataObject;
+                }
+                return Factories.Instances.getDataObjectFactory().createDataObject(dataObject.getKey(),
+                        dataObject.getVersion());
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (expirationExecutor != null) {
+            expirationExecutor.shutdown();
+            try {
+                expirationExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for expiration task");
+            }
+            expirationExecutor = null;
+        }
+        localStoreService.close();
+    }
+
+    /**
+     * Replace expired objects which deadlines came by stubs.
+     */
+    private void expireObjects() {
+        final long now = System.currentTimeMillis();
+        final List<Key> keys;
+        synchronized (this) {
+            keys = wheel.advance(now);
+        }
+        int expired = 0;
+        for (final Key key : keys) {
+            try {
+                // object could be overwritten after it was scheduled
+                final DataObject dataObject = localStoreService.get(key);
+                if (isExpired(dataObject, now)) {
+                    expire(dataObject);
+                    expired++;
+                }
+            } catch (NoSuchElementException e) {
+                log.debug("Scheduled object was removed", e);
+            } catch (DataStoreException e) {
+                log.error("Failed to expire object " + key, e);
+            } catch (RuntimeException e) {
+                log.error("Failed to expire object " + key, e);
+            }
+        }
+        if (expired > 0) {
+            log.debug(String.format("Expired %d objects", expired));
+        }
+    }
+
+    /**
+     * Write stub instead of expired object.
+     *
+     * @param dataObject expired object
+     * @return stub
+     * @throws DataStoreException if failed to write stub
+     */
+    private DataObject expire(final DataObject dataObject) throws DataStoreException {
+        final DataObject stub = Factories.Instances.getDataObjectFactory().createDataObject(dataObject.getKey(),
+                dataObject.getVersion());
+        try {
+            localStoreService.put(stub);
+            expiredCount.incrementAndGet();
+        } catch (UpdatingOlderVersionException e) {
+            log.debug("Expired object was overwritten by newer one", e);
+        }
+        return stub;
+    }
+
+    private synchronized void schedule(final DataObject dataObject) {
+        wheel.schedule(dataObject.getKey(), dataObject.getExpirationTime());
+    }
+
+    /**
+     * Schedule all objects with expiration time from the underlying storage.
+     */
+    private void scheduleAll() {
+        int scheduled = 0;
+        final Iterator<DataObject> iterator = LocalStoreUtils.scan(localStoreService);
+        while (iterator.hasNext()) {
+            final DataObject dataObject = iterator.next();
+            if (!dataObject.isStub() && dataObject.getExpirationTime() != DataObject.NEVER_EXPIRES) {
+                schedule(dataObject);
+                scheduled++;
+            }
+        }
+        log.info(String.format("Scheduled expiration of %d objects", scheduled));
+    }
+
+    private static boolean isExpired(final DataObject dataObject, final long now) {
+        return !dataObject.isStub() && dataObject.getExpirationTime() != DataObject.NEVER_EXPIRES
+                && dataObject.getExpirationTime() <= now;
+    }
+}
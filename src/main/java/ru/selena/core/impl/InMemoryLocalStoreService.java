@@ -1,28 +1,95 @@
 package ru.selena.core.impl;
 
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.selena.core.LocalStoreService;
+import ru.selena.core.ScannableDataSource;
+import ru.selena.core.TokenRange;
 import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.core.impl.storage.ConcurrentIntHashIndex;
+import ru.selena.core.impl.storage.PagedRangeIterator;
+import ru.selena.core.impl.storage.RangePage;
 import ru.selena.model.DataObject;
 import ru.selena.model.Key;
 import ru.selena.utils.collections.ArrayUtils;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Non persistent storage. Version check and replace are done atomically per key by compare-and-replace loop, so
+ * concurrent writes of the same key never let older version overwrite newer one. Objects are kept in
+ * {@link ConcurrentIntHashIndex}, so besides objects themselves storage costs about 16 bytes per key.
+ * <p/>
+ * Stubs older than {@code tombstoneGracePeriod} are removed by background sweep every {@code sweepPeriod}.
+ * <p/>
+ * Objects are kept unordered, so each page of {@link #iterator(TokenRange)} requires scan of all objects, while
+ * {@link #scan()} reads them in one pass.
+ * <p/>
  * Date: 12/17/12
  * Time: 12:34 AM
  *
  * @author Artem Titov
  */
-public class InMemoryLocalStoreService implements LocalStoreService {
+public class InMemoryLocalStoreService implements LocalStoreService, ScannableDataSource {
+    private static final Logger log = LoggerFactory.getLogger(InMemoryLocalStoreService.class);
 
-    private ConcurrentMap<Key, DataObject> storage = new ConcurrentHashMap<Key, DataObject>();
+    private static final long DEFAULT_TOMBSTONE_GRACE_PERIOD = TimeUnit.DAYS.toMillis(10);
+    private static final long DEFAULT_SWEEP_PERIOD = TimeUnit.HOURS.toMillis(1);
+    private static final int RANGE_PAGE_SIZE = 1024;
+
+    private static final ConcurrentIntHashIndex.KeyExtractor<DataObject> DATA_OBJECT_KEY =
+            new ConcurrentIntHashIndex.KeyExtractor<DataObject>() {
+                @Override
+                public Key getKey(final DataObject dataObject) {
+                    return dataObject.getKey();
+                }
+            };
+
+    private final ConcurrentIntHashIndex<DataObject> storage = new ConcurrentIntHashIndex<DataObject>(DATA_OBJECT_KEY);
+    private long tombstoneGracePeriod = DEFAULT_TOMBSTONE_GRACE_PERIOD;
+    private long sweepPeriod = DEFAULT_SWEEP_PERIOD;
+    private ScheduledExecutorService sweepExecutor;
+
+    /**
+     * Set how long stubs are kept. Grace period must be longer than time required to deliver delete to all replicas,
+     * otherwise deleted data can be restored by read repair.
+     *
+     * @param tombstoneGracePeriod period in milliseconds, 10 days by default
+     */
+    public void setTombstoneGracePeriod(final long tombstoneGracePeriod) {
+        this.tombstoneGracePeriod = tombstoneGracePeriod;
+    }
+
+    /**
+     * Set period of the background stub sweep.
+     *
+     * @param sweepPeriod period in milliseconds, 1 hour by default
+     */
+    public void setSweepPeriod(final long sweepPeriod) {
+        this.sweepPeriod = sweepPeriod;
+    }
 
     @Override
     public StorageStatus open() throws IOException {
+        sweepExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("tombstone-sweep-%d").setDaemon(true).build());
+        sweepExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final int removed = sweepTombstones();
+                if (removed > 0) {
+                    log.info(String.format("Removed %d stubs", removed));
+                }
+            }
+        }, sweepPeriod, sweepPeriod, TimeUnit.MILLISECONDS);
         return StorageStatus.OK;
     }
 
@@ -42,15 +109,64 @@ public class InMemoryLocalStoreService implements LocalStoreService {
 
     @Override
     public void put(final DataObject dataObject) throws UpdatingOlderVersionException {
-        final DataObject old = storage.get(dataObject.getKey());
-        if (old != null && !dataObject.getVersion().isBefore(old.getVersion())) {
-            throw new UpdatingOlderVersionException("Can't store older object");
+        while (true) {
+            final DataObject old = storage.putIfAbsent(dataObject);
+            if (old == null) {
+                return;
+            }
+            if (dataObject.getVersion().isBefore(old.getVersion())) {
+                throw new UpdatingOlderVersionException("Can't store older object");
+            }
+            if (storage.replace(old, dataObject)) {
+                return;
+            }
         }
-        storage.put(dataObject.getKey(), dataObject);
+    }
+
+    @Override
+    public Iterator<DataObject> iterator(final TokenRange range) {
+        return new PagedRangeIterator(range, RANGE_PAGE_SIZE) {
+            @Override
+            protected List<DataObject> loadPage(final TokenRange range, final Key after, final int limit) {
+                final RangePage<DataObject> page = new RangePage<DataObject>(range, after, limit);
+                final Iterator<DataObject> iterator = storage.iterator();
+                while (iterator.hasNext()) {
+                    final DataObject dataObject = iterator.next();
+                    page.offer(dataObject.getKey(), dataObject);
+                }
+                return page.getValues();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<DataObject> scan() {
+        return Iterators.unmodifiableIterator(storage.iterator());
     }
 
     @Override
     public void close() throws IOException {
-        // do nothing
+        if (sweepExecutor != null) {
+            sweepExecutor.shutdownNow();
+            sweepExecutor = null;
+        }
+    }
+
+    /**
+     * Remove stubs older than grace period. Stub isn't removed if it has been replaced concurrently.
+     *
+     * @return number of removed stubs
+     */
+    public int sweepTombstones() {
+        final long removeBefore = System.currentTimeMillis() - tombstoneGracePeriod;
+        int removed = 0;
+        final Iterator<DataObject> iterator = storage.iterator();
+        while (iterator.hasNext()) {
+            final DataObject dataObject = iterator.next();
+            if (dataObject.isStub() && dataObject.getCreationTime() < removeBefore && storage.remove(dataObject)) {
+                removed++;
+            }
+        }
+        return removed;
     }
 }
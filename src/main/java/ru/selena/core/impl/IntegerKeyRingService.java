@@ -2,6 +2,7 @@ package ru.selena.core.impl;
 
 import org.springframework.beans.factory.annotation.Required;
 import ru.selena.core.KeyRingService;
+import ru.selena.core.TokenRange;
 import ru.selena.model.Key;
 import ru.selena.net.model.Host;
 import ru.selena.utils.NumberUtils;
@@ -94,6 +95,25 @@ public class IntegerKeyRingService implements KeyRingService {
         return hosts;
     }
 
+    @Override
+    public List<TokenRange> getRingSegments() {
+        final Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            final List<TokenRange> segments = new ArrayList<TokenRange>(ring.size());
+            for (int i = 0; i < ring.size(); i++) {
+                final int start = ring.get((i + ring.size() - 1) % ring.size()).getFirst();
+                final int end = ring.get(i).getFirst();
+                if (i == 0 || start != end) {
+                    segments.add(new TokenRange(start, end));
+                }
+            }
+            return segments;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
     @Override
     public void updateRing(final List<Host> hosts) {
         final List<Pair<Integer, Host>> newRing = new ArrayList<Pair<Integer, Host>>(hosts.size());
@@ -0,0 +1,130 @@
+package ru.selena.core.impl;
+
+import org.apache.commons.lang.Validate;
+import ru.selena.net.model.Host;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks latencies of replica operations per host and estimates their percentile. Each host has histogram with
+ * {@value #SUB_BUCKETS} buckets per power of two microseconds, so estimate is the upper bound of the bucket and is
+ * at most 25% higher than the real value. Counts are halved every {@value #DECAY_INTERVAL} samples of the host, so
+ * old samples fade out and estimate follows changes of the host latency.
+ * <p/>
+ * Estimate is recalculated every {@value #RECALCULATION_INTERVAL} samples and isn't available until host has
+ * {@value #MIN_SAMPLES} samples. Samples are recorded without locks, lost updates only make estimate less precise.
+ * <p/>
+ * Date: 3/31/13
+ * Time: 8:10 PM
+ *
+ * @author Artem Titov
+ */
+public final class LatencyTracker {
+
+    public static final long UNKNOWN = -1;
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    private static final int DECAY_INTERVAL = 1024;
+    private static final int RECALCULATION_INTERVAL = 16;
+    private static final int MIN_SAMPLES = 64;
+
+    private final ConcurrentMap<Host, Histogram> histograms = new ConcurrentHashMap<Host, Histogram>();
+    private final double percentile;
+
+    /**
+     * Create tracker.
+     *
+     * @param percentile estimated percentile, greater than 0 and not greater than 1
+     */
+    public LatencyTracker(final double percentile) {
+        Validate.isTrue(percentile > 0 && percentile <= 1, "Percentile must be in (0, 1]");
+        this.percentile = percentile;
+    }
+
+    /**
+     * Record latency of the operation.
+     *
+     * @param host   replica host
+     * @param micros latency in microseconds
+     */
+    public void record(final Host host, final long micros) {
+        Histogram histogram = histograms.get(host);
+        if (histogram == null) {
+            final Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(host, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(Math.max(micros, 0));
+    }
+
+    /**
+     * Return estimated percentile of the host latency.
+     *
+     * @param host replica host
+     * @return latency in microseconds or {@link #UNKNOWN} if host has too few samples
+     */
+    public long getEstimate(final Host host) {
+        final Histogram histogram = histograms.get(host);
+        return histogram == null ? UNKNOWN : histogram.estimate;
+    }
+
+    static int getBucket(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros);
+        final int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long getUpperBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    private final class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong samples = new AtomicLong();
+        private volatile long estimate = UNKNOWN;
+
+        private void record(final long micros) {
+            counts.incrementAndGet(getBucket(micros));
+            final long count = samples.incrementAndGet();
+            if (count % DECAY_INTERVAL == 0) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts.set(i, counts.get(i) >> 1);
+                }
+            }
+            if (count >= MIN_SAMPLES && count % RECALCULATION_INTERVAL == 0) {
+                estimate = calculate();
+            }
+        }
+
+        private long calculate() {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += counts.get(i);
+            }
+            final long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank && seen > 0) {
+                    return getUpperBound(i);
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+}
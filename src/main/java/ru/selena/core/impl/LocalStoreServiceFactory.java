@@ -0,0 +1,22 @@
+package ru.selena.core.impl;
+
+import ru.selena.core.LocalStoreService;
+
+/**
+ * Factory of storages which keep data in the specified directory.
+ * <p/>
+ * Date: 3/27/13
+ * Time: 8:10 PM
+ *
+ * @author Artem Titov
+ */
+public interface LocalStoreServiceFactory {
+
+    /**
+     * Create not opened storage.
+     *
+     * @param dataDirectory directory for storage files
+     * @return storage
+     */
+    LocalStoreService createLocalStoreService(final String dataDirectory);
+}
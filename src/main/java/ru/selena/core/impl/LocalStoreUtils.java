@@ -0,0 +1,69 @@
+package ru.selena.core.impl;
+
+import com.google.common.collect.AbstractIterator;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.ScannableDataSource;
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.OperationFailedException;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.utils.collections.ArrayUtils;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Date: 3/31/13
+ * Time: 10:20 PM
+ *
+ * @author Artem Titov
+ */
+public final class LocalStoreUtils {
+
+    private LocalStoreUtils() {
+        throw new AssertionError("This class not for instantiation");
+    }
+
+    /**
+     * Return iterator over all data objects of the storage by {@link ScannableDataSource#scan()} if storage supports
+     * it, otherwise by iteration over the whole ring.
+     *
+     * @param storeService storage
+     * @return iterator
+     */
+    public static Iterator<DataObject> scan(final LocalStoreService storeService) {
+        if (storeService instanceof ScannableDataSource) {
+            return ((ScannableDataSource) storeService).scan();
+        }
+        return storeService.iterator(TokenRange.wholeRing());
+    }
+
+    /**
+     * Return iterator which reads data objects of the keys from the storage one by one. Keys which have been removed
+     * since they were listed are skipped.
+     *
+     * @param storeService storage
+     * @param keys         keys
+     * @return iterator, which throws {@link OperationFailedException} if read failed
+     */
+    public static Iterator<DataObject> getAll(final LocalStoreService storeService, final Iterator<Key> keys) {
+        return new AbstractIterator<DataObject>() {
+            @Override
+            protected DataObject computeNext() {
+                while (keys.hasNext()) {
+                    final Key key = keys.next();
+                    try {
+                        return storeService.get(key);
+                    } catch (NoSuchElementException e) {
+                        // removed concurrently
+                    } catch (DataStoreException e) {
+                        throw new OperationFailedException("Failed to read data for key " +
+                                ArrayUtils.toHexString(key.getHash()), e);
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+}
@@ -0,0 +1,988 @@
+package ru.selena.core.impl;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.ScannableDataSource;
+import ru.selena.core.SerializedDataSource;
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.core.impl.storage.*;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.model.Version;
+import ru.selena.net.utils.SerializationUtils;
+import ru.selena.utils.collections.ArrayUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistent storage in the Bitcask manner. All data objects are appended to the active segment file, when it becomes
+ * too large it is closed and new active segment is created. Location of the latest record for each key is stored in
+ * the in-memory key directory, so any read requires only one positioned read from the disk. Key directory is
+ * {@link ConcurrentIntHashIndex} of entries which hold their keys, so no map entry object is created per key.
+ * <p/>
+ * Segments except active one are immutable, so they can be read through memory mapping if
+ * {@link #setMemoryMapped(boolean)} is set. Otherwise records can be cached in the shared {@link BlockCache}.
+ * <p/>
+ * Key directory is rebuilt on {@link #open()}. When segment becomes immutable its {@link HintFile} is written in the
+ * background, so on open key directory is loaded from hints and only segments without valid hint (usually the last
+ * active one) are scanned. Segments are loaded in parallel by {@code startupThreads} threads, duration of the startup
+ * phases is available via {@link #getStartupStatistics()}. If some segment contains damaged records (for example
+ * after unclean shutdown) open returns {@link StorageStatus#CORRUPTED} and {@link #restore()} cuts off damaged
+ * segment tails.
+ * <p/>
+ * Writes of different keys are appended concurrently through {@link GroupCommitLog}, so they share one write and one
+ * fsync. When the active segment is flushed to the disk is determined by {@link SyncPolicy}.
+ * <p/>
+ * Record payload has the same format as the network messages, so replica reads can send it as is through
+ * {@link #getSerialized(Key)}.
+ * <p/>
+ * When there are {@code mergeThreshold} immutable segments, they are merged in the background into one segment, which
+ * takes place of the newest of them. Only records referenced by the key directory are copied, stubs older than
+ * {@code tombstoneGracePeriod} are dropped. Stub is the latest record of its key, and all older segments are merged
+ * together with it, so no older record of the key remains. Merge is committed by the merge record listing merged
+ * segments, which is written before merged segment replaces them. {@link #open()} completes interrupted merge by the
+ * record, so merged segment is never loaded together with the segments it replaces. Merges run on the hint thread,
+ * so hint is never written for the segment which is being replaced. Reads retain segment of the entry, so merged
+ * segment is closed by the last read which has started before the merge, and its disk space is freed.
+ * <p/>
+ * Date: 3/10/13
+ * Time: 6:20 PM
+ *
+ * @author Artem Titov
+ */
+public class LogStructuredLocalStoreService implements LocalStoreService, SerializedDataSource, ScannableDataSource {
+    private static final Logger log = LoggerFactory.getLogger(LogStructuredLocalStoreService.class);
+
+    private static final String SEGMENT_FILE_EXTENSION = ".data";
+    private static final String HINT_FILE_EXTENSION = ".hint";
+    private static final String MERGED_FILE_EXTENSION = ".merged";
+    private static final String MERGE_FILE_EXTENSION = ".merge";
+    private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+    private static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final long DEFAULT_MAPPING_WINDOW_SIZE = 1024 * 1024 * 1024;
+    private static final long DEFAULT_SYNC_PERIOD = 100;
+    private static final int WRITE_LOCK_STRIPES = 256;
+    private static final int RANGE_PAGE_SIZE = 1024;
+    private static final int DEFAULT_MERGE_THRESHOLD = 4;
+    private static final long DEFAULT_TOMBSTONE_GRACE_PERIOD = TimeUnit.DAYS.toMillis(10);
+
+    private static final ConcurrentIntHashIndex.KeyExtractor<KeyDirEntry> KEY_DIR_ENTRY_KEY =
+            new ConcurrentIntHashIndex.KeyExtractor<KeyDirEntry>() {
+                @Override
+                public Key getKey(final KeyDirEntry entry) {
+                    return entry.key;
+                }
+            };
+
+    private final ConcurrentIntHashIndex<KeyDirEntry> keyDir =
+            new ConcurrentIntHashIndex<KeyDirEntry>(KEY_DIR_ENTRY_KEY);
+    private final NavigableMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private final Map<Segment, Long> damagedSegments = new ConcurrentHashMap<Segment, Long>();
+    private final Set<Segment> unhintedSegments = Collections.newSetFromMap(new ConcurrentHashMap<Segment, Boolean>());
+    private final Striped<Lock> writeLocks = Striped.lock(WRITE_LOCK_STRIPES);
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+    private File directory;
+    private long maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+    private boolean memoryMapped;
+    private long mappingWindowSize = DEFAULT_MAPPING_WINDOW_SIZE;
+    private SyncPolicy syncPolicy = SyncPolicy.PERIODIC;
+    private long syncPeriod = DEFAULT_SYNC_PERIOD;
+    private int startupThreads = Runtime.getRuntime().availableProcessors();
+    private BlockCache blockCache;
+    private int mergeThreshold = DEFAULT_MERGE_THRESHOLD;
+    private long tombstoneGracePeriod = DEFAULT_TOMBSTONE_GRACE_PERIOD;
+    private volatile GroupCommitLog activeLog;
+    private volatile StartupStatistics startupStatistics;
+    private ScheduledExecutorService syncExecutor;
+    private ExecutorService hintExecutor;
+
+    @Required
+    public void setDataDirectory(final String dataDirectory) {
+        this.directory = new File(dataDirectory);
+    }
+
+    public void setMaxSegmentSize(final long maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * Read immutable segments through memory mapping instead of positioned reads.
+     *
+     * @param memoryMapped true to use memory mapping
+     */
+    public void setMemoryMapped(final boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Set maximum size of one memory mapping. Segments larger than window are mapped by several windows.
+     *
+     * @param mappingWindowSize window size in bytes, not greater than 2 GB
+     */
+    public void setMappingWindowSize(final long mappingWindowSize) {
+        this.mappingWindowSize = mappingWindowSize;
+    }
+
+    public void setSyncPolicy(final SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * Set period of the active segment flushes for {@link SyncPolicy#PERIODIC} policy.
+     *
+     * @param syncPeriod period in milliseconds
+     */
+    public void setSyncPeriod(final long syncPeriod) {
+        this.syncPeriod = syncPeriod;
+    }
+
+    /**
+     * Set number of threads which load segments on open.
+     *
+     * @param startupThreads number of threads, number of processors by default
+     */
+    public void setStartupThreads(final int startupThreads) {
+        this.startupThreads = startupThreads;
+    }
+
+    /**
+     * Set cache for records read from segments. Cache isn't used if segments are memory mapped.
+     *
+     * @param blockCache cache which may be shared with other storages
+     */
+    public void setBlockCache(final BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    /**
+     * Set number of immutable segments which triggers merge.
+     *
+     * @param mergeThreshold number of segments, 0 disables merges, 4 by default
+     */
+    public void setMergeThreshold(final int mergeThreshold) {
+        Validate.isTrue(mergeThreshold == 0 || mergeThreshold > 1, "Merge threshold must be 0 or greater than 1");
+        this.mergeThreshold = mergeThreshold;
+    }
+
+    /**
+     * Set time during which stubs are kept on merge, so replicas which missed the deletion can get it by read repair.
+     *
+     * @param tombstoneGracePeriod period in milliseconds, 10 days by default
+     */
+    public void setTombstoneGracePeriod(final long tombstoneGracePeriod) {
+        Validate.isTrue(tombstoneGracePeriod >= 0, "Grace period can't be negative");
+        this.tombstoneGracePeriod = tombstoneGracePeriod;
+    }
+
+    /**
+     * Return duration of the last open phases.
+     *
+     * @return statistics or null if store hasn't been opened
+     */
+    public StartupStatistics getStartupStatistics() {
+        return startupStatistics;
+    }
+
+    @Override
+    public StorageStatus open() throws IOException {
+        final StartupStatistics statistics = new StartupStatistics();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create data directory " + directory);
+        }
+        completeMerges();
+        final Lock writeLock = segmentLock.writeLock();
+        writeLock.lock();
+        try {
+            for (final int id : listIds(SEGMENT_FILE_EXTENSION)) {
+                segments.put(id, new Segment(id, getSegmentFile(id)));
+            }
+            statistics.finishPhase("open segments");
+            loadKeyDir(segments.values());
+            statistics.finishPhase("load key directory");
+            log.info(String.format("Loaded %d keys from %d segments, %d segments were scanned",
+                    keyDir.size(), segments.size(), unhintedSegments.size()));
+            if (!damagedSegments.isEmpty()) {
+                startupStatistics = statistics;
+                return StorageStatus.CORRUPTED;
+            }
+            sealSegments();
+            statistics.finishPhase("map segments");
+            createActiveSegment();
+            scheduleMissingHints();
+            scheduleMerge();
+        } finally {
+            writeLock.unlock();
+        }
+        startupStatistics = statistics;
+        log.info("Storage opened in " + statistics);
+        return StorageStatus.OK;
+    }
+
+    @Override
+    public StorageStatus restore() throws IOException {
+        final Lock writeLock = segmentLock.writeLock();
+        writeLock.lock();
+        try {
+            for (final Map.Entry<Segment, Long> entry : damagedSegments.entrySet()) {
+                log.info(String.format("Truncating segment %s to %d bytes", entry.getKey(), entry.getValue()));
+                entry.getKey().truncate(entry.getValue());
+            }
+            damagedSegments.clear();
+            if (activeLog == null) {
+                sealSegments();
+                createActiveSegment();
+                scheduleMissingHints();
+                scheduleMerge();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return StorageStatus.OK;
+    }
+
+    @Override
+    public DataObject get(final Key key) throws DataStoreException {
+        final KeyDirEntry entry = retainEntry(key);
+        final byte[] payload;
+        try {
+            payload = readPayload(entry);
+        } finally {
+            releaseSegment(entry.segment);
+        }
+        return SerializationUtils.deserializeDataObject(payload, 0);
+    }
+
+    private byte[] readPayload(final KeyDirEntry entry) throws DataStoreException {
+        final BlockCache cache = memoryMapped ? null : blockCache;
+        byte[] payload = cache == null ? null : cache.get(entry.segment.getCacheId(), entry.offset);
+        if (payload == null) {
+            try {
+                payload = entry.segment.read(entry.offset + RecordUtils.HEADER_SIZE,
+                        entry.length - RecordUtils.HEADER_SIZE);
+            } catch (IOException e) {
+                throw new DataStoreException(String.format("Failed to read data for key %s from segment %s",
+                        ArrayUtils.toHexString(entry.key.getHash()), entry.segment), e);
+            }
+            if (cache != null) {
+                cache.put(entry.segment.getCacheId(), entry.offset, payload);
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Payload is taken from the block cache if it's there, otherwise it's written from the segment mapping or
+     * transferred from the segment file. If segment is merged before the payload is written, payload is written from
+     * the merged segment, or write fails if record has been replaced or purged.
+     *
+     * @inheritDoc
+     */
+    @Override
+    public SerializedData getSerialized(final Key key) throws DataStoreException {
+        final KeyDirEntry entry = keyDir.get(key);
+        if (entry == null) {
+            throw new NoSuchElementException(ArrayUtils.toHexString(key.getHash()));
+        }
+        final byte[] cached = memoryMapped || blockCache == null
+                ? null : blockCache.get(entry.segment.getCacheId(), entry.offset);
+        if (cached != null) {
+            return new SerializedBuffer(ByteBuffer.wrap(cached));
+        }
+        return new SerializedData() {
+            @Override
+            public int getLength() {
+                return entry.length - RecordUtils.HEADER_SIZE;
+            }
+
+            @Override
+            public void writeTo(final WritableByteChannel channel) throws IOException {
+                KeyDirEntry current = entry;
+                while (!current.segment.retain()) {
+                    current = keyDir.get(key);
+                    if (current == null || !current.version.equals(entry.version)) {
+                        throw new IOException(String.format("Record of key %s has been removed from segment %s",
+                                ArrayUtils.toHexString(key.getHash()), entry.segment));
+                    }
+                }
+                try {
+                    current.segment.transferTo(current.offset + RecordUtils.HEADER_SIZE, getLength(), channel);
+                } finally {
+                    releaseSegment(current.segment);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void put(final DataObject dataObject) throws DataStoreException {
+        final Key key = dataObject.getKey();
+        final byte[] record = RecordUtils.toRecord(dataObject);
+        final Segment segment;
+        final Lock lock = writeLocks.get(key);
+        lock.lock();
+        try {
+            final KeyDirEntry old = keyDir.get(key);
+            if (old != null && dataObject.getVersion().isBefore(old.version)) {
+                throw new UpdatingOlderVersionException("Can't store older object");
+            }
+            final Lock readLock = segmentLock.readLock();
+            readLock.lock();
+            try {
+                final GroupCommitLog commitLog = activeLog;
+                segment = commitLog.getSegment();
+                final long offset;
+                try {
+                    offset = commitLog.append(record);
+                } catch (IOException e) {
+                    throw new DataStoreException(String.format("Failed to write data for key %s to segment %s",
+                            ArrayUtils.toHexString(key.getHash()), segment), e);
+                }
+                keyDir.put(new KeyDirEntry(key, segment, offset, record.length, dataObject.getVersion()));
+            } finally {
+                readLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (segment.getSize() >= maxSegmentSize) {
+            try {
+                rollActiveSegment(segment);
+            } catch (IOException e) {
+                throw new DataStoreException("Failed to roll segment " + segment, e);
+            }
+        }
+    }
+
+    /**
+     * Key directory isn't sorted, so each page of the returned iterator requires scan of all keys. Only objects of
+     * the page are read from segments.
+     *
+     * @inheritDoc
+     */
+    @Override
+    public Iterator<DataObject> iterator(final TokenRange range) {
+        return new KeyPagedRangeIterator(range, RANGE_PAGE_SIZE) {
+            @Override
+            protected List<Key> loadKeys(final TokenRange range, final Key after, final int limit)
+                    throws DataStoreException {
+                final RangePage<Key> page = new RangePage<Key>(range, after, limit);
+                final Iterator<KeyDirEntry> iterator = keyDir.iterator();
+                while (iterator.hasNext()) {
+                    final Key key = iterator.next().key;
+                    page.offer(key, key);
+                }
+                return page.getValues();
+            }
+
+            @Override
+            protected DataObject load(final Key key) throws DataStoreException {
+                return get(key);
+            }
+        };
+    }
+
+    /**
+     * Keys are taken from the key directory in one pass, objects are read from segments one by one.
+     *
+     * @inheritDoc
+     */
+    @Override
+    public Iterator<DataObject> scan() {
+        return LocalStoreUtils.getAll(this, Iterators.transform(keyDir.iterator(), new Function<KeyDirEntry, Key>() {
+            @Override
+            public Key apply(final KeyDirEntry entry) {
+                return entry.key;
+            }
+        }));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+            try {
+                syncExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for segment sync");
+            }
+            syncExecutor = null;
+        }
+        if (hintExecutor != null) {
+            hintExecutor.shutdown();
+            try {
+                hintExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for hint writing");
+            }
+            hintExecutor = null;
+        }
+        final Lock writeLock = segmentLock.writeLock();
+        writeLock.lock();
+        try {
+            if (activeLog != null) {
+                activeLog.getSegment().sync();
+                activeLog = null;
+            }
+            for (final Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+            damagedSegments.clear();
+            unhintedSegments.clear();
+            keyDir.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Create new active segment. Caller must hold segment write lock.
+     *
+     * @throws IOException if failed to create segment file
+     */
+    private void createActiveSegment() throws IOException {
+        final int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        final Segment segment = new Segment(id, getSegmentFile(id));
+        segments.put(id, segment);
+        activeLog = new GroupCommitLog(segment, syncPolicy);
+        log.debug("New active segment is " + segment);
+        if (syncPolicy == SyncPolicy.PERIODIC && syncExecutor == null) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("segment-sync-%d").setDaemon(true).build());
+            syncExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    final GroupCommitLog commitLog = activeLog;
+                    if (commitLog == null) {
+                        return;
+                    }
+                    try {
+                        commitLog.sync();
+                    } catch (IOException e) {
+                        log.error("Failed to sync segment " + commitLog.getSegment(), e);
+                    }
+                }
+            }, syncPeriod, syncPeriod, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Close full active segment and create new one, if it hasn't been done yet by concurrent writer.
+     *
+     * @param full full segment
+     * @throws IOException if failed to sync full segment or create new one
+     */
+    private void rollActiveSegment(final Segment full) throws IOException {
+        final Lock writeLock = segmentLock.writeLock();
+        writeLock.lock();
+        try {
+            if (activeLog == null || activeLog.getSegment() != full) {
+                return;
+            }
+            full.sync();
+            if (memoryMapped) {
+                full.seal(mappingWindowSize);
+            }
+            createActiveSegment();
+            scheduleHint(full);
+            scheduleMerge();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Load key directory from segments in parallel. Each segment is loaded from its hint file if it is valid, or
+     * scanned otherwise. Scanned segments are added to {@code unhintedSegments}, damaged ones are added to
+     * {@code damagedSegments}.
+     *
+     * @param toLoad segments
+     * @throws IOException if failed to read some segment
+     */
+    private void loadKeyDir(final Collection<Segment> toLoad) throws IOException {
+        if (toLoad.isEmpty()) {
+            return;
+        }
+        final int threads = Math.max(1, Math.min(startupThreads, toLoad.size()));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("segment-load-%d").setDaemon(true).build());
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>(toLoad.size());
+            for (final Segment segment : toLoad) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        loadSegment(segment);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while loading segments");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to load segment", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void loadSegment(final Segment segment) throws IOException {
+        if (HintFile.read(getHintFile(segment.getId()), segment.getSize(), new HintLoader(segment))) {
+            return;
+        }
+        unhintedSegments.add(segment);
+        final long validLength = segment.scan(new KeyDirBuilder(segment));
+        if (validLength < segment.getSize()) {
+            log.warn(String.format("Segment %s is damaged: valid length is %d, but size is %d",
+                    segment, validLength, segment.getSize()));
+            damagedSegments.put(segment, validLength);
+        }
+    }
+
+    /**
+     * Put entry to the key directory if it is located after the current entry of the same key. Used on load, when
+     * segments are processed concurrently in arbitrary order.
+     *
+     * @param entry entry
+     */
+    private void merge(final KeyDirEntry entry) {
+        while (true) {
+            final KeyDirEntry old = keyDir.putIfAbsent(entry);
+            if (old == null || !entry.isAfter(old) || keyDir.replace(old, entry)) {
+                return;
+            }
+        }
+    }
+
+    private void scheduleMissingHints() {
+        for (final Segment segment : unhintedSegments) {
+            if (segment != activeLog.getSegment()) {
+                scheduleHint(segment);
+            }
+        }
+        unhintedSegments.clear();
+    }
+
+    private void scheduleHint(final Segment segment) {
+        getHintExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isCurrent(segment)) {
+                    writeHint(segment);
+                }
+            }
+        });
+    }
+
+    private void writeHint(final Segment segment) {
+        try {
+            HintFile.write(getHintFile(segment.getId()), segment);
+            log.debug("Hint file written for segment " + segment);
+        } catch (IOException e) {
+            log.warn(String.format("Failed to write hint file for segment %s, it will be scanned on open",
+                    segment), e);
+        }
+    }
+
+    /**
+     * Return key directory entry with retained segment. Entry of the segment which has already been closed by merge is
+     * replaced by the merge, so key directory is read again.
+     *
+     * @param key key
+     * @return entry, its segment must be released by {@link #releaseSegment(Segment)}
+     * @throws NoSuchElementException if key isn't found
+     */
+    private KeyDirEntry retainEntry(final Key key) {
+        while (true) {
+            final KeyDirEntry entry = keyDir.get(key);
+            if (entry == null) {
+                throw new NoSuchElementException(ArrayUtils.toHexString(key.getHash()));
+            }
+            if (entry.segment.retain()) {
+                return entry;
+            }
+        }
+    }
+
+    private void releaseSegment(final Segment segment) {
+        try {
+            segment.release();
+        } catch (IOException e) {
+            log.warn("Failed to close merged segment " + segment, e);
+        }
+    }
+
+    private void scheduleMerge() {
+        if (mergeThreshold == 0) {
+            return;
+        }
+        getHintExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    merge();
+                } catch (IOException e) {
+                    log.error("Failed to merge segments", e);
+                }
+            }
+        });
+    }
+
+    private ExecutorService getHintExecutor() {
+        if (hintExecutor == null) {
+            hintExecutor = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("segment-hint-%d").setDaemon(true).build());
+        }
+        return hintExecutor;
+    }
+
+    private boolean isCurrent(final Segment segment) {
+        final Lock readLock = segmentLock.readLock();
+        readLock.lock();
+        try {
+            return segments.get(segment.getId()) == segment;
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Merge all immutable segments if there are at least {@code mergeThreshold} of them. Live records are copied to
+     * the merged file, then merge record is written and merged file replaces the newest merged segment, other merged
+     * segments are removed. Key directory entries which have been changed by concurrent writes aren't updated.
+     *
+     * @throws IOException if failed to read segments or write merged segment
+     */
+    private void merge() throws IOException {
+        final List<Segment> inputs;
+        final Lock readLock = segmentLock.readLock();
+        readLock.lock();
+        try {
+            if (activeLog == null) {
+                return;
+            }
+            inputs = new ArrayList<Segment>(segments.headMap(activeLog.getSegment().getId()).values());
+        } finally {
+            readLock.unlock();
+        }
+        if (inputs.size() < mergeThreshold) {
+            return;
+        }
+        final Segment newest = inputs.get(inputs.size() - 1);
+        final File mergedFile = getFile(newest.getId(), MERGED_FILE_EXTENSION);
+        if (mergedFile.exists() && !mergedFile.delete()) {
+            throw new IOException("Failed to remove unfinished merged segment " + mergedFile);
+        }
+        final Segment merged = new Segment(newest.getId(), mergedFile);
+        final SegmentMerger merger = new SegmentMerger(merged, System.currentTimeMillis() - tombstoneGracePeriod);
+        try {
+            for (final Segment input : inputs) {
+                merger.input = input;
+                input.scan(merger);
+                if (merger.failure != null) {
+                    throw merger.failure;
+                }
+            }
+            merged.sync();
+        } catch (IOException e) {
+            merged.close();
+            mergedFile.delete();
+            throw e;
+        }
+        final File record = writeMergeRecord(newest.getId(), inputs);
+        boolean removed = true;
+        final Lock writeLock = segmentLock.writeLock();
+        writeLock.lock();
+        try {
+            final File hint = getHintFile(newest.getId());
+            if (hint.exists() && !hint.delete()) {
+                throw new IOException("Failed to remove hint file " + hint);
+            }
+            merged.moveTo(getSegmentFile(newest.getId()));
+            if (memoryMapped) {
+                merged.seal(mappingWindowSize);
+            }
+            for (int i = 0; i < merger.replaced.size(); i++) {
+                keyDir.replace(merger.replaced.get(i), merger.replacements.get(i));
+            }
+            for (final KeyDirEntry entry : merger.purged) {
+                keyDir.remove(entry);
+            }
+            for (final Segment input : inputs) {
+                segments.remove(input.getId());
+            }
+            segments.put(merged.getId(), merged);
+            for (final Segment input : inputs) {
+                if (input.getId() != merged.getId()) {
+                    removed &= removeSegmentFiles(input.getId());
+                }
+                // readers which have already retained merged segment close it on release
+                releaseSegment(input);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        // record is kept until all merged segments are removed, otherwise they could resurrect purged keys
+        if (removed && !record.delete()) {
+            log.warn("Failed to remove merge record " + record);
+        }
+        // merge runs on the hint thread
+        writeHint(merged);
+        log.info(String.format("Segments %s merged into %s (%d records, %d tombstones purged)",
+                inputs, merged, merger.replaced.size(), merger.purged.size()));
+    }
+
+    /**
+     * Write record of the merge, which replaces segments by the merged segment with {@code id}. Record is written to
+     * the temporary file, flushed to the disk and renamed, so existing record always lists all merged segments.
+     * Segments of not yet removed record with the same id are kept in the new record.
+     *
+     * @param id     id of the merged segment
+     * @param inputs merged segments
+     * @return record file
+     * @throws IOException if write failed
+     */
+    private File writeMergeRecord(final int id, final List<Segment> inputs) throws IOException {
+        final File file = getFile(id, MERGE_FILE_EXTENSION);
+        final Set<Integer> ids = new TreeSet<Integer>();
+        if (file.exists()) {
+            for (final String line : FileUtils.readLines(file)) {
+                ids.add(Integer.parseInt(line.trim()));
+            }
+        }
+        for (final Segment input : inputs) {
+            ids.add(input.getId());
+        }
+        final File temporaryFile = getFile(id, MERGE_FILE_EXTENSION + TEMPORARY_FILE_EXTENSION);
+        final FileOutputStream out = new FileOutputStream(temporaryFile);
+        try {
+            IOUtils.writeLines(ids, null, out);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            throw new IOException(String.format("Failed to rename %s to %s", temporaryFile, file));
+        }
+        return file;
+    }
+
+    /**
+     * Complete merges interrupted after their records had been written and remove unfinished ones. Completion is
+     * idempotent, so it can be interrupted too.
+     *
+     * @throws IOException if failed to rename or remove files
+     */
+    private void completeMerges() throws IOException {
+        for (final int id : listIds(MERGE_FILE_EXTENSION + TEMPORARY_FILE_EXTENSION)) {
+            removeFile(getFile(id, MERGE_FILE_EXTENSION + TEMPORARY_FILE_EXTENSION));
+        }
+        for (final int id : listIds(MERGE_FILE_EXTENSION)) {
+            final File record = getFile(id, MERGE_FILE_EXTENSION);
+            log.info("Completing interrupted merge " + record);
+            final File mergedFile = getFile(id, MERGED_FILE_EXTENSION);
+            if (mergedFile.exists()) {
+                removeFile(getHintFile(id));
+                if (!mergedFile.renameTo(getSegmentFile(id))) {
+                    throw new IOException(String.format("Failed to rename %s to %s",
+                            mergedFile, getSegmentFile(id)));
+                }
+            }
+            for (final String line : FileUtils.readLines(record)) {
+                final int mergedId = Integer.parseInt(line.trim());
+                if (mergedId != id && !removeSegmentFiles(mergedId)) {
+                    throw new IOException("Failed to remove merged segment " + getSegmentFile(mergedId));
+                }
+            }
+            removeFile(record);
+        }
+        for (final int id : listIds(MERGED_FILE_EXTENSION)) {
+            log.info("Removing unfinished merged segment " + getFile(id, MERGED_FILE_EXTENSION));
+            removeFile(getFile(id, MERGED_FILE_EXTENSION));
+        }
+    }
+
+    private boolean removeSegmentFiles(final int id) {
+        boolean removed = true;
+        for (final File file : new File[]{getSegmentFile(id), getHintFile(id)}) {
+            if (file.exists() && !file.delete()) {
+                log.warn("Failed to remove merged file " + file);
+                removed = false;
+            }
+        }
+        return removed;
+    }
+
+    private static void removeFile(final File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to remove " + file);
+        }
+    }
+
+    private void sealSegments() throws IOException {
+        if (memoryMapped) {
+            for (final Segment segment : segments.values()) {
+                segment.seal(mappingWindowSize);
+            }
+        }
+    }
+
+    private File getSegmentFile(final int id) {
+        return getFile(id, SEGMENT_FILE_EXTENSION);
+    }
+
+    private File getHintFile(final int id) {
+        return getFile(id, HINT_FILE_EXTENSION);
+    }
+
+    private File getFile(final int id, final String extension) {
+        return new File(directory, String.format("%010d%s", id, extension));
+    }
+
+    private List<Integer> listIds(final String extension) {
+        final String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(extension);
+            }
+        });
+        final List<Integer> ids = new ArrayList<Integer>(names.length);
+        for (final String name : names) {
+            try {
+                ids.add(Integer.parseInt(name.substring(0, name.length() - extension.length())));
+            } catch (NumberFormatException e) {
+                log.warn("Skipping unknown file in data directory: " + name);
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private static final class KeyDirEntry {
+        private final Key key;
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final Version version;
+
+        private KeyDirEntry(final Key key,
+                            final Segment segment,
+                            final long offset,
+                            final int length,
+                            final Version version) {
+            this.key = key;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.version = version;
+        }
+
+        private boolean isAfter(final KeyDirEntry entry) {
+            final int segmentId = segment.getId();
+            final int otherSegmentId = entry.segment.getId();
+            return segmentId > otherSegmentId || segmentId == otherSegmentId && offset > entry.offset;
+        }
+    }
+
+    private final class KeyDirBuilder implements Segment.RecordVisitor {
+        private final Segment segment;
+
+        private KeyDirBuilder(final Segment segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        public void onRecord(final long offset, final byte[] record) {
+            final AtomicInteger position = new AtomicInteger(RecordUtils.HEADER_SIZE);
+            final Key key = SerializationUtils.deserializeKey(record, position);
+            final Version version = SerializationUtils.deserializeVersion(record, position);
+            merge(new KeyDirEntry(key, segment, offset, record.length, version));
+        }
+    }
+
+    /**
+     * Copy live records of the scanned segments to the merged segment. Record is live if key directory references
+     * it. Expired stubs aren't copied.
+     */
+    private final class SegmentMerger implements Segment.RecordVisitor {
+        private final Segment merged;
+        private final long purgeBefore;
+        private final List<KeyDirEntry> replaced = new ArrayList<KeyDirEntry>();
+        private final List<KeyDirEntry> replacements = new ArrayList<KeyDirEntry>();
+        private final List<KeyDirEntry> purged = new ArrayList<KeyDirEntry>();
+        private Segment input;
+        private IOException failure;
+
+        private SegmentMerger(final Segment merged, final long purgeBefore) {
+            this.merged = merged;
+            this.purgeBefore = purgeBefore;
+        }
+
+        @Override
+        public void onRecord(final long offset, final byte[] record) {
+            if (failure != null) {
+                return;
+            }
+            final Key key = SerializationUtils.deserializeKey(record, RecordUtils.HEADER_SIZE);
+            final KeyDirEntry entry = keyDir.get(key);
+            if (entry == null || entry.segment != input || entry.offset != offset) {
+                return;
+            }
+            if (RecordUtils.isStub(record) && RecordUtils.getCreationTime(record) < purgeBefore) {
+                purged.add(entry);
+                return;
+            }
+            try {
+                final long mergedOffset = merged.append(record);
+                replaced.add(entry);
+                replacements.add(new KeyDirEntry(key, merged, mergedOffset, record.length, entry.version));
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    private final class HintLoader implements HintFile.EntryVisitor {
+        private final Segment segment;
+
+        private HintLoader(final Segment segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        public void onEntry(final Key key, final Version version, final long offset, final int length) {
+            merge(new KeyDirEntry(key, segment, offset, length, version));
+        }
+    }
+}
@@ -0,0 +1,1106 @@
+package ru.selena.core.impl;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.OperationFailedException;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.core.impl.storage.*;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.utils.collections.ArrayUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent storage based on log-structured merge tree. Writes go to the sorted in-memory {@link Memtable}, which is
+ * flushed to the immutable {@link SSTable} file in the background when it becomes too large. Reads consult memtable
+ * and then tables from the newest to the oldest one.
+ * <p/>
+ * Tables are merged in the background by size tiers: when there are {@code compactionThreshold} neighbour (by age)
+ * tables of similar size, they are merged into one table which takes place of the newest one. Only neighbour tables
+ * are merged, so newer tables always contain newer versions and the first found record is the actual one.
+ * <p/>
+ * Stubs older than {@code tombstoneGracePeriod} are dropped on compaction, if tables older than compacted ones
+ * don't contain the same key.
+ * <p/>
+ * Merged table is written to the temporary file and replaces compacted tables only after compaction record, which
+ * lists them, is written to the disk. If storage is interrupted after that, {@link #open()} completes the
+ * compaction by the record, so merged table without purged stubs is never visible together with older compacted
+ * tables, which could resurrect deleted keys.
+ * <p/>
+ * Memtables and tables are sorted by token, so each page of {@link #iterator(TokenRange)} is read by merge of the
+ * sources starting from the last key of the previous page.
+ * <p/>
+ * Each table carries bloom filter which is loaded on open, so lookup of absent key usually doesn't touch the disk.
+ * Bloom filter checks statistics is available via {@link #getBloomFilterStatistics()}.
+ * <p/>
+ * Every write is appended to the write-ahead log of the current memtable before it is acknowledged. Log is removed
+ * when its memtable is flushed, so logs found on {@link #open()} mean unclean shutdown: open returns
+ * {@link StorageStatus#CORRUPTED} and {@link #restore()} replays logs into tables. Concurrent writes share one log
+ * write and one fsync, see {@link GroupCommitLog}. When the log is flushed to the disk is determined by
+ * {@link SyncPolicy}.
+ * <p/>
+ * Memtables are flushed one by one in order of their age. Failed flush is retried with growing delay and memtable is
+ * not switched until it succeeds, so writes keep going to the current memtable and its log. Memtables and tables are
+ * read in order of their ids, so the newest version is found even if memtable was flushed out of turn on close.
+ * <p/>
+ * Tables are never modified in place, so {@link #snapshot(String)} flushes memtables and hard links tables to the
+ * snapshot directory without blocking reads and writes. Snapshot is loaded on open if it is set by
+ * {@link #setRestoreSnapshot(String)}.
+ * <p/>
+ * Date: 3/13/13
+ * Time: 1:10 AM
+ *
+ * @author Artem Titov
+ */
+public class LsmTreeLocalStoreService implements LocalStoreService {
+    private static final Logger log = LoggerFactory.getLogger(LsmTreeLocalStoreService.class);
+
+    private static final String TABLE_FILE_EXTENSION = ".sst";
+    private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+    private static final String DAMAGED_FILE_EXTENSION = ".damaged";
+    private static final String LOG_FILE_EXTENSION = ".wal";
+    private static final String COMPACTION_FILE_EXTENSION = ".compaction";
+    private static final String SNAPSHOT_DIRECTORY = "snapshots";
+    private static final long DEFAULT_MEMTABLE_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+    private static final int DEFAULT_INDEX_INTERVAL = 16;
+    private static final double DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final long DEFAULT_MAPPING_WINDOW_SIZE = 1024 * 1024 * 1024;
+    private static final int TIER_SIZE_RATIO = 2;
+    private static final int WRITE_LOCK_STRIPES = 256;
+    private static final long DEFAULT_SYNC_PERIOD = 100;
+    private static final long DEFAULT_TOMBSTONE_GRACE_PERIOD = TimeUnit.DAYS.toMillis(10);
+    private static final int RANGE_PAGE_SIZE = 1024;
+    private static final long FLUSH_RETRY_DELAY = 100;
+    private static final long MAX_FLUSH_RETRY_DELAY = 10000;
+
+    private static final Function<DataObject, SSTable.Entry> TO_ENTRY = new Function<DataObject, SSTable.Entry>() {
+        @Override
+        public SSTable.Entry apply(final DataObject dataObject) {
+            return new SSTable.Entry(dataObject.getKey(), dataObject.getVersion(), RecordUtils.toRecord(dataObject));
+        }
+    };
+
+    private final Striped<Lock> writeLocks = Striped.lock(WRITE_LOCK_STRIPES);
+    private final ReadWriteLock memtableLock = new ReentrantReadWriteLock();
+    private final ReadWriteLock tablesLock = new ReentrantReadWriteLock();
+    /**
+     * Guards table files from being replaced or removed by compaction while they are linked to snapshot.
+     */
+    private final Lock snapshotLock = new ReentrantLock();
+    /**
+     * Wakes up flush retry when storage is closed.
+     */
+    private final Object flushRetryMonitor = new Object();
+    private final List<Memtable> flushingMemtables = new CopyOnWriteArrayList<Memtable>();
+    private final List<File> damagedTables = new ArrayList<File>();
+    private final List<File> unflushedLogs = new ArrayList<File>();
+    private final Map<Integer, GroupCommitLog> logs = new ConcurrentHashMap<Integer, GroupCommitLog>();
+    private final AtomicInteger nextTableId = new AtomicInteger();
+    private final BloomFilterStatistics bloomFilterStatistics = new BloomFilterStatistics();
+
+    private File directory;
+    private long memtableSize = DEFAULT_MEMTABLE_SIZE;
+    private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private int indexInterval = DEFAULT_INDEX_INTERVAL;
+    private double bloomFilterFalsePositiveRate = DEFAULT_BLOOM_FILTER_FALSE_POSITIVE_RATE;
+    private boolean memoryMapped;
+    private long mappingWindowSize = DEFAULT_MAPPING_WINDOW_SIZE;
+    private SyncPolicy syncPolicy = SyncPolicy.PERIODIC;
+    private long syncPeriod = DEFAULT_SYNC_PERIOD;
+    private long tombstoneGracePeriod = DEFAULT_TOMBSTONE_GRACE_PERIOD;
+    private BlockCache blockCache;
+    private File restoreSnapshot;
+
+    private volatile Memtable memtable;
+    private volatile GroupCommitLog activeLog;
+    private volatile List<SSTable> tables = Collections.emptyList();
+    private volatile boolean closed;
+    private volatile boolean flushFailing;
+    private ExecutorService flushExecutor;
+    private ExecutorService compactionExecutor;
+    private ScheduledExecutorService syncExecutor;
+
+    @Required
+    public void setDataDirectory(final String dataDirectory) {
+        this.directory = new File(dataDirectory);
+    }
+
+    public void setMemtableSize(final long memtableSize) {
+        this.memtableSize = memtableSize;
+    }
+
+    public void setCompactionThreshold(final int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public void setIndexInterval(final int indexInterval) {
+        this.indexInterval = indexInterval;
+    }
+
+    /**
+     * Set desired false positive probability of table bloom filters. Lower probability requires more bits per key.
+     * Applied to tables written after this call.
+     *
+     * @param bloomFilterFalsePositiveRate probability between 0 and 1 exclusively
+     */
+    public void setBloomFilterFalsePositiveRate(final double bloomFilterFalsePositiveRate) {
+        this.bloomFilterFalsePositiveRate = bloomFilterFalsePositiveRate;
+    }
+
+    /**
+     * Read tables through memory mapping instead of positioned reads.
+     *
+     * @param memoryMapped true to use memory mapping
+     */
+    public void setMemoryMapped(final boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Set maximum size of one memory mapping. Tables larger than window are mapped by several windows.
+     *
+     * @param mappingWindowSize window size in bytes, not greater than 2 GB
+     */
+    public void setMappingWindowSize(final long mappingWindowSize) {
+        this.mappingWindowSize = mappingWindowSize;
+    }
+
+    public void setSyncPolicy(final SyncPolicy syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * Set period of the write-ahead log flushes for {@link SyncPolicy#PERIODIC} policy.
+     *
+     * @param syncPeriod period in milliseconds
+     */
+    public void setSyncPeriod(final long syncPeriod) {
+        this.syncPeriod = syncPeriod;
+    }
+
+    /**
+     * Set how long stubs are kept. Stub older than grace period is dropped on compaction, so grace period must be
+     * longer than time required to deliver delete to all replicas, otherwise deleted data can be restored by read
+     * repair.
+     *
+     * @param tombstoneGracePeriod period in milliseconds, 10 days by default
+     */
+    public void setTombstoneGracePeriod(final long tombstoneGracePeriod) {
+        this.tombstoneGracePeriod = tombstoneGracePeriod;
+    }
+
+    /**
+     * Set cache for table blocks. Cache isn't used for memory mapped tables.
+     *
+     * @param blockCache cache which may be shared with other storages
+     */
+    public void setBlockCache(final BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    /**
+     * Set snapshot which is loaded on {@link #open()}. Snapshot tables are hard linked to the data directory, so
+     * snapshot itself stays unchanged. Snapshot is loaded only if data directory contains neither tables nor
+     * write-ahead logs, so the property can be left in configuration after the storage is restored.
+     *
+     * @param restoreSnapshot directory created by {@link #snapshot(String)}
+     */
+    public void setRestoreSnapshot(final String restoreSnapshot) {
+        this.restoreSnapshot = new File(restoreSnapshot);
+    }
+
+    public BloomFilterStatistics getBloomFilterStatistics() {
+        return bloomFilterStatistics;
+    }
+
+    @Override
+    public StorageStatus open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create data directory " + directory);
+        }
+        for (final File file : listFiles(COMPACTION_FILE_EXTENSION + TEMPORARY_FILE_EXTENSION)) {
+            if (!file.delete()) {
+                throw new IOException("Failed to remove unfinished compaction record " + file);
+            }
+        }
+        for (final File file : listFiles(COMPACTION_FILE_EXTENSION)) {
+            log.info("Completing interrupted compaction " + file);
+            completeCompaction(file);
+        }
+        if (restoreSnapshot != null) {
+            restoreSnapshot();
+        }
+        for (final File file : listFiles(TEMPORARY_FILE_EXTENSION)) {
+            log.info("Removing unfinished table " + file);
+            if (!file.delete()) {
+                throw new IOException("Failed to remove unfinished table " + file);
+            }
+        }
+        final List<SSTable> openedTables = new ArrayList<SSTable>();
+        int maxId = -1;
+        for (final File file : listFiles(TABLE_FILE_EXTENSION)) {
+            final int id = getId(file, TABLE_FILE_EXTENSION);
+            maxId = Math.max(maxId, id);
+            try {
+                openedTables.add(SSTable.open(
+                        id, file, bloomFilterStatistics, blockCache, memoryMapped, mappingWindowSize));
+            } catch (IOException e) {
+                log.error("Failed to open table " + file, e);
+                damagedTables.add(file);
+            }
+        }
+        Collections.sort(openedTables, new Comparator<SSTable>() {
+            @Override
+            public int compare(final SSTable t1, final SSTable t2) {
+                return t2.getId() - t1.getId();
+            }
+        });
+        tables = Collections.unmodifiableList(openedTables);
+        final File[] logFiles = listFiles(LOG_FILE_EXTENSION);
+        Arrays.sort(logFiles);
+        for (final File file : logFiles) {
+            maxId = Math.max(maxId, getId(file, LOG_FILE_EXTENSION));
+            unflushedLogs.add(file);
+        }
+        if (!unflushedLogs.isEmpty()) {
+            log.warn(String.format("Found %d unflushed write-ahead logs, storage wasn't closed properly",
+                    unflushedLogs.size()));
+        }
+        nextTableId.set(maxId + 1);
+        createMemtable();
+        closed = false;
+        flushExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("lsm-flush-%d").setDaemon(true).build());
+        compactionExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("lsm-compaction-%d").setDaemon(true).build());
+        if (syncPolicy == SyncPolicy.PERIODIC) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("lsm-log-sync-%d").setDaemon(true).build());
+            syncExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        activeLog.sync();
+                    } catch (IOException e) {
+                        log.error("Failed to sync write-ahead log", e);
+                    }
+                }
+            }, syncPeriod, syncPeriod, TimeUnit.MILLISECONDS);
+        }
+        log.info(String.format("Opened %d tables", openedTables.size()));
+        scheduleCompaction();
+        return damagedTables.isEmpty() && unflushedLogs.isEmpty() ? StorageStatus.OK : StorageStatus.CORRUPTED;
+    }
+
+    @Override
+    public StorageStatus restore() throws IOException {
+        for (final File file : damagedTables) {
+            final File target = new File(directory, file.getName() + DAMAGED_FILE_EXTENSION);
+            log.warn(String.format("Moving damaged table %s to %s, its data will be restored by read repair", file, target));
+            if (!file.renameTo(target)) {
+                throw new IOException("Failed to move damaged table " + file);
+            }
+        }
+        damagedTables.clear();
+        for (final File file : unflushedLogs) {
+            replayLog(file);
+        }
+        unflushedLogs.clear();
+        return StorageStatus.OK;
+    }
+
+    @Override
+    public DataObject get(final Key key) throws DataStoreException {
+        final DataObject dataObject = find(key);
+        if (dataObject == null) {
+            throw new NoSuchElementException(ArrayUtils.toHexString(key.getHash()));
+        }
+        return dataObject;
+    }
+
+    @Override
+    public void put(final DataObject dataObject) throws DataStoreException {
+        final Key key = dataObject.getKey();
+        final byte[] record = RecordUtils.toRecord(dataObject);
+        final Lock lock = writeLocks.get(key);
+        lock.lock();
+        try {
+            final DataObject old = find(key);
+            if (old != null && dataObject.getVersion().isBefore(old.getVersion())) {
+                throw new UpdatingOlderVersionException("Can't store older object");
+            }
+            final Lock readLock = memtableLock.readLock();
+            readLock.lock();
+            try {
+                activeLog.append(record);
+                memtable.put(dataObject);
+            } catch (IOException e) {
+                throw new DataStoreException(String.format("Failed to write data for key %s to write-ahead log",
+                        ArrayUtils.toHexString(key.getHash())), e);
+            } finally {
+                readLock.unlock();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (memtable.getSize() >= memtableSize) {
+            try {
+                switchMemtable(false);
+            } catch (IOException e) {
+                log.error("Failed to create write-ahead log, current memtable will be kept", e);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<DataObject> iterator(final TokenRange range) {
+        return new PagedRangeIterator(range, RANGE_PAGE_SIZE) {
+            @Override
+            protected List<DataObject> loadPage(final TokenRange range, final Key after, final int limit)
+                    throws DataStoreException {
+                final List<DataObject> page = new ArrayList<DataObject>(limit);
+                if (!range.isWrapping()) {
+                    readInterval(after == null ? KeyComparator.lowestKey(range.getStart() + 1) : after,
+                            range.getEnd(), after, limit, page);
+                    return page;
+                }
+                Key last = after;
+                if (last == null || TokenRange.getToken(last) > range.getStart()) {
+                    readInterval(last == null ? KeyComparator.lowestKey(range.getStart() + 1) : last,
+                            Integer.MAX_VALUE, last, limit, page);
+                    last = null;
+                }
+                if (page.size() < limit) {
+                    readInterval(last == null ? KeyComparator.lowestKey(Integer.MIN_VALUE) : last,
+                            range.getEnd(), last, limit, page);
+                }
+                return page;
+            }
+        };
+    }
+
+    /**
+     * Make snapshot in the {@code snapshots/<name>} subdirectory of the data directory. Current memtable is flushed,
+     * then all tables are hard linked to the snapshot directory by {@link FileLinks}. Links keep table content when
+     * tables are compacted and removed from the data directory. Writes made during snapshot may be not included.
+     *
+     * @param name snapshot name
+     * @return snapshot directory
+     * @throws IOException if snapshot exists or failed to flush memtables or link tables
+     */
+    public File snapshot(final String name) throws IOException {
+        Validate.isTrue(name.matches("[\\w.-]+"), "Wrong snapshot name " + name);
+        if (closed) {
+            throw new IOException("Storage is closed");
+        }
+        final File snapshotDirectory = new File(new File(directory, SNAPSHOT_DIRECTORY), name);
+        if (snapshotDirectory.exists()) {
+            throw new IOException("Snapshot already exists: " + snapshotDirectory);
+        }
+        if (!snapshotDirectory.mkdirs()) {
+            throw new IOException("Failed to create snapshot directory " + snapshotDirectory);
+        }
+        final long start = System.currentTimeMillis();
+        final List<SSTable> linked;
+        try {
+            flushMemtables();
+            snapshotLock.lock();
+            try {
+                linked = tables;
+                for (final SSTable table : linked) {
+                    FileLinks.link(table.getFile(), new File(snapshotDirectory, table.getFile().getName()));
+                }
+            } finally {
+                snapshotLock.unlock();
+            }
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(snapshotDirectory);
+            throw e;
+        }
+        log.info(String.format("Snapshot %s of %d tables created in %d ms", snapshotDirectory, linked.size(),
+                System.currentTimeMillis() - start));
+        return snapshotDirectory;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (flushRetryMonitor) {
+            flushRetryMonitor.notifyAll();
+        }
+        awaitTermination(flushExecutor);
+        awaitTermination(compactionExecutor);
+        awaitTermination(syncExecutor);
+        syncExecutor = null;
+        final List<Memtable> unflushed = new ArrayList<Memtable>(flushingMemtables);
+        Collections.reverse(unflushed);
+        if (memtable != null) {
+            unflushed.add(memtable);
+        }
+        for (final Memtable m : unflushed) {
+            if (!m.isEmpty()) {
+                flush(m);
+            } else {
+                removeLog(m.getId());
+            }
+        }
+        flushingMemtables.clear();
+        flushFailing = false;
+        memtable = null;
+        activeLog = null;
+        for (final SSTable table : tables) {
+            table.close();
+        }
+        tables = Collections.emptyList();
+        damagedTables.clear();
+        unflushedLogs.clear();
+    }
+
+    /**
+     * Find the newest data object for the key. Flushing memtables and tables are read from the newest to the oldest
+     * by their ids.
+     *
+     * @param key key
+     * @return data object or null if nothing found
+     * @throws DataStoreException if read from disk failed
+     */
+    private DataObject find(final Key key) throws DataStoreException {
+        DataObject dataObject = memtable.get(key);
+        if (dataObject != null) {
+            return dataObject;
+        }
+        final Lock readLock = tablesLock.readLock();
+        readLock.lock();
+        try {
+            final List<SSTable> current = tables;
+            int next = 0;
+            for (final Memtable m : flushingMemtables) {
+                for (; next < current.size() && current.get(next).getId() > m.getId(); next++) {
+                    final byte[] record = current.get(next).find(key);
+                    if (record != null) {
+                        return RecordUtils.toDataObject(record);
+                    }
+                }
+                dataObject = m.get(key);
+                if (dataObject != null) {
+                    return dataObject;
+                }
+            }
+            for (; next < current.size(); next++) {
+                final byte[] record = current.get(next).find(key);
+                if (record != null) {
+                    return RecordUtils.toDataObject(record);
+                }
+            }
+        } catch (IOException e) {
+            throw new DataStoreException(String.format("Failed to read data for key %s",
+                    ArrayUtils.toHexString(key.getHash())), e);
+        } finally {
+            readLock.unlock();
+        }
+        return null;
+    }
+
+    /**
+     * Read data objects in key order from the interval of tokens, which doesn't wrap around the ring end.
+     *
+     * @param from    lower bound key
+     * @param to      inclusive upper bound token
+     * @param exclude key which is skipped, may be null
+     * @param limit   maximum size of the result
+     * @param result  list to add data objects to
+     * @throws DataStoreException if read from disk failed
+     */
+    private void readInterval(final Key from,
+                              final int to,
+                              final Key exclude,
+                              final int limit,
+                              final List<DataObject> result) throws DataStoreException {
+        final List<Iterator<SSTable.Entry>> sources = new ArrayList<Iterator<SSTable.Entry>>();
+        sources.add(Iterators.transform(memtable.values(from).iterator(), TO_ENTRY));
+        for (final Memtable m : flushingMemtables) {
+            sources.add(Iterators.transform(m.values(from).iterator(), TO_ENTRY));
+        }
+        final Lock readLock = tablesLock.readLock();
+        readLock.lock();
+        try {
+            for (final SSTable table : tables) {
+                sources.add(table.iterator(from));
+            }
+            final Iterator<SSTable.Entry> entries = new MergingIterator(sources);
+            while (result.size() < limit && entries.hasNext()) {
+                final SSTable.Entry entry = entries.next();
+                if (TokenRange.getToken(entry.getKey()) > to) {
+                    return;
+                }
+                if (exclude == null || KeyComparator.INSTANCE.compare(entry.getKey(), exclude) != 0) {
+                    result.add(RecordUtils.toDataObject(entry.getRecord()));
+                }
+            }
+        } catch (OperationFailedException e) {
+            throw new DataStoreException("Failed to read tables from " + from, e);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Replace current memtable by the new one and flush it in the background. Memtable isn't switched while flush of
+     * the previous one is failing.
+     *
+     * @param force true to switch memtable of any size except empty one
+     * @throws IOException if failed to create write-ahead log, current memtable is kept then, or if switch is forced
+     *                     while flush is failing
+     */
+    private void switchMemtable(final boolean force) throws IOException {
+        final Memtable full;
+        final GroupCommitLog fullLog;
+        final Lock writeLock = memtableLock.writeLock();
+        writeLock.lock();
+        try {
+            if (force ? memtable.isEmpty() : memtable.getSize() < memtableSize) {
+                return;
+            }
+            if (flushFailing) {
+                if (force) {
+                    throw new IOException("Memtable flush is failing, memtable can't be switched");
+                }
+                return;
+            }
+            full = memtable;
+            fullLog = activeLog;
+            final int id = nextTableId.getAndIncrement();
+            final GroupCommitLog newLog = openLog(id);
+            flushingMemtables.add(0, full);
+            activeLog = newLog;
+            memtable = new Memtable(id);
+        } finally {
+            writeLock.unlock();
+        }
+        flushExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                retryFlush(full, fullLog);
+            }
+        });
+    }
+
+    /**
+     * Flush memtable until it succeeds or storage is closed, delay between attempts grows up to
+     * {@value #MAX_FLUSH_RETRY_DELAY} ms. Memtable which isn't flushed before close is flushed by {@link #close()}.
+     *
+     * @param m           memtable
+     * @param memtableLog write-ahead log of the memtable
+     */
+    private void retryFlush(final Memtable m, final GroupCommitLog memtableLog) {
+        long delay = FLUSH_RETRY_DELAY;
+        while (true) {
+            try {
+                memtableLog.sync();
+                flush(m);
+                flushFailing = false;
+                return;
+            } catch (IOException e) {
+                flushFailing = true;
+                if (closed) {
+                    log.error(String.format("Failed to flush memtable %d, it will be flushed on close", m.getId()), e);
+                    return;
+                }
+                log.error(String.format("Failed to flush memtable %d, retrying in %d ms", m.getId(), delay), e);
+            }
+            synchronized (flushRetryMonitor) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    flushRetryMonitor.wait(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            delay = Math.min(delay * 2, MAX_FLUSH_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Flush current memtable and wait until it and all memtables which are flushing now are written to tables.
+     *
+     * @throws IOException if any of memtables wasn't flushed
+     */
+    private void flushMemtables() throws IOException {
+        switchMemtable(true);
+        final List<Memtable> flushing = new ArrayList<Memtable>(flushingMemtables);
+        try {
+            // flush executor is single threaded, so this task is run after flushes of all switched memtables
+            flushExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for memtables flush");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to wait for memtables flush", e.getCause());
+        }
+        for (final Memtable m : flushing) {
+            if (flushingMemtables.contains(m)) {
+                throw new IOException(String.format("Memtable %d wasn't flushed", m.getId()));
+            }
+        }
+    }
+
+    private void createMemtable() throws IOException {
+        final int id = nextTableId.getAndIncrement();
+        activeLog = openLog(id);
+        memtable = new Memtable(id);
+    }
+
+    private GroupCommitLog openLog(final int id) throws IOException {
+        final GroupCommitLog newLog = new GroupCommitLog(new Segment(id, getLogFile(id)), syncPolicy);
+        logs.put(id, newLog);
+        return newLog;
+    }
+
+    private void flush(final Memtable m) throws IOException {
+        final SSTable table = writeTable(m.getId(), m.getCount(),
+                Iterators.transform(m.values().iterator(), TO_ENTRY));
+        addTable(table);
+        flushingMemtables.remove(m);
+        removeLog(m.getId());
+        log.debug(String.format("Memtable flushed to %s (%d records)", table, table.getCount()));
+        scheduleCompaction();
+    }
+
+    /**
+     * Write records of the unflushed write-ahead log to the table. Log tail damaged by unclean shutdown is skipped.
+     *
+     * @param file log file
+     * @throws IOException if failed to read log or write table
+     */
+    private void replayLog(final File file) throws IOException {
+        final int id = getId(file, LOG_FILE_EXTENSION);
+        if (getTableFile(id).exists()) {
+            log.info(String.format("Write-ahead log %s has been already flushed", file));
+        } else {
+            final Memtable replayed = new Memtable(id);
+            final Segment segment = new Segment(id, file);
+            try {
+                final long validLength = segment.scan(new Segment.RecordVisitor() {
+                    @Override
+                    public void onRecord(final long offset, final byte[] record) {
+                        replayed.put(RecordUtils.toDataObject(record));
+                    }
+                });
+                if (validLength < segment.getSize()) {
+                    log.warn(String.format("Skipping damaged tail of write-ahead log %s: valid length is %d, " +
+                            "but size is %d", file, validLength, segment.getSize()));
+                }
+            } finally {
+                segment.close();
+            }
+            if (!replayed.isEmpty()) {
+                addTable(writeTable(id, replayed.getCount(),
+                        Iterators.transform(replayed.values().iterator(), TO_ENTRY)));
+            }
+            log.info(String.format("Replayed %d records from write-ahead log %s", replayed.getCount(), file));
+        }
+        if (!file.delete()) {
+            throw new IOException("Failed to remove replayed write-ahead log " + file);
+        }
+    }
+
+    private void removeLog(final int id) throws IOException {
+        final GroupCommitLog removed = logs.remove(id);
+        if (removed == null) {
+            return;
+        }
+        removed.getSegment().close();
+        if (!removed.getSegment().getFile().delete()) {
+            log.warn("Failed to remove flushed write-ahead log " + removed.getSegment().getFile());
+        }
+    }
+
+    /**
+     * Add table to its place by id, tables are kept from the newest to the oldest.
+     *
+     * @param table table
+     */
+    private void addTable(final SSTable table) {
+        final Lock writeLock = tablesLock.writeLock();
+        writeLock.lock();
+        try {
+            final List<SSTable> newTables = new ArrayList<SSTable>(tables.size() + 1);
+            newTables.addAll(tables);
+            int position = 0;
+            while (position < newTables.size() && newTables.get(position).getId() > table.getId()) {
+                position++;
+            }
+            newTables.add(position, table);
+            tables = Collections.unmodifiableList(newTables);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (closed) {
+            return;
+        }
+        compactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<SSTable> window;
+                while (!closed && (window = selectCompactionWindow(tables)) != null) {
+                    try {
+                        compact(window);
+                    } catch (IOException e) {
+                        log.error("Compaction failed for tables " + window, e);
+                        return;
+                    } catch (OperationFailedException e) {
+                        log.error("Compaction failed for tables " + window, e);
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Find {@code compactionThreshold} neighbour tables which sizes differ not more than {@value #TIER_SIZE_RATIO}
+     * times. Tables smaller than memtable are considered as tables of memtable size.
+     *
+     * @param tables tables from the newest to the oldest
+     * @return tables to merge or null if nothing to merge
+     */
+    private List<SSTable> selectCompactionWindow(final List<SSTable> tables) {
+        for (int start = 0; start + compactionThreshold <= tables.size(); start++) {
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = start; i < start + compactionThreshold; i++) {
+                final long size = Math.max(tables.get(i).getSize(), memtableSize);
+                min = Math.min(min, size);
+                max = Math.max(max, size);
+            }
+            if (max <= min * TIER_SIZE_RATIO) {
+                return new ArrayList<SSTable>(tables.subList(start, start + compactionThreshold));
+            }
+        }
+        return null;
+    }
+
+    private void compact(final List<SSTable> window) throws IOException {
+        log.info("Compacting tables " + window);
+        final List<Iterator<SSTable.Entry>> sources = new ArrayList<Iterator<SSTable.Entry>>(window.size());
+        long expectedCount = 0;
+        for (final SSTable table : window) {
+            sources.add(table.iterator());
+            expectedCount += table.getCount();
+        }
+        final SSTable newest = window.get(0);
+        final List<SSTable> snapshot = tables;
+        final List<SSTable> older = new ArrayList<SSTable>(
+                snapshot.subList(snapshot.indexOf(window.get(window.size() - 1)) + 1, snapshot.size()));
+        final TombstoneFilter tombstoneFilter =
+                new TombstoneFilter(System.currentTimeMillis() - tombstoneGracePeriod, older);
+        final File temporaryFile = writeTemporaryTable(newest.getId(), expectedCount,
+                Iterators.filter(new MergingIterator(sources), tombstoneFilter));
+        final SSTable merged;
+        // merged table replaces file of the newest compacted table, which can't be done while it is linked
+        snapshotLock.lock();
+        try {
+            final File record = writeCompactionRecord(newest.getId(), window);
+            merged = openTable(newest.getId(), temporaryFile);
+            final Lock writeLock = tablesLock.writeLock();
+            writeLock.lock();
+            try {
+                final List<SSTable> newTables = new ArrayList<SSTable>(tables);
+                final int position = newTables.indexOf(newest);
+                newTables.removeAll(window);
+                newTables.add(position, merged);
+                tables = Collections.unmodifiableList(newTables);
+                boolean removed = true;
+                for (final SSTable table : window) {
+                    table.close();
+                    if (table.getId() != merged.getId() && !table.getFile().delete()) {
+                        log.warn("Failed to remove compacted table " + table.getFile() + ", it will be removed on open");
+                        removed = false;
+                    }
+                }
+                // record is kept until all compacted tables are removed, otherwise they can resurrect purged keys
+                if (removed && !record.delete()) {
+                    log.warn("Failed to remove compaction record " + record);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+        log.info(String.format("Tables %s merged into %s (%d records, %d tombstones purged)",
+                window, merged, merged.getCount(), tombstoneFilter.purged));
+    }
+
+    /**
+     * Write entries to the new table. Table is written to the temporary file at first, and then renamed, so
+     * table file is always complete.
+     *
+     * @param id            table id
+     * @param expectedCount expected number of entries
+     * @param entries       sorted entries
+     * @return opened table
+     * @throws IOException if write failed
+     */
+    private SSTable writeTable(final int id,
+                               final long expectedCount,
+                               final Iterator<SSTable.Entry> entries) throws IOException {
+        return openTable(id, writeTemporaryTable(id, expectedCount, entries));
+    }
+
+    /**
+     * Write entries to the temporary table file.
+     *
+     * @param id            table id
+     * @param expectedCount expected number of entries
+     * @param entries       sorted entries
+     * @return temporary file
+     * @throws IOException if write failed
+     */
+    private File writeTemporaryTable(final int id,
+                                     final long expectedCount,
+                                     final Iterator<SSTable.Entry> entries) throws IOException {
+        final File temporaryFile = new File(directory, id + TEMPORARY_FILE_EXTENSION);
+        final SSTableWriter writer = new SSTableWriter(
+                temporaryFile, indexInterval, expectedCount, bloomFilterFalsePositiveRate);
+        try {
+            while (entries.hasNext()) {
+                final SSTable.Entry entry = entries.next();
+                writer.append(entry.getKey(), entry.getRecord());
+            }
+            writer.finish();
+        } catch (IOException e) {
+            writer.close();
+            temporaryFile.delete();
+            throw e;
+        }
+        return temporaryFile;
+    }
+
+    /**
+     * Rename complete temporary table file to the table file and open table.
+     *
+     * @param id            table id
+     * @param temporaryFile temporary file
+     * @return opened table
+     * @throws IOException if rename or open failed
+     */
+    private SSTable openTable(final int id, final File temporaryFile) throws IOException {
+        final File file = getTableFile(id);
+        if (!temporaryFile.renameTo(file)) {
+            throw new IOException(String.format("Failed to rename %s to %s", temporaryFile, file));
+        }
+        return SSTable.open(id, file, bloomFilterStatistics, blockCache, memoryMapped, mappingWindowSize);
+    }
+
+    /**
+     * Write record of the compaction, which merges tables into the table with {@code id}. Record is written to the
+     * temporary file, flushed to the disk and renamed, so existing record always lists all compacted tables. Tables
+     * of not yet removed record with the same id are kept in the new record.
+     *
+     * @param id     id of the newest compacted table, which is replaced by the merged table
+     * @param window compacted tables
+     * @return record file
+     * @throws IOException if write failed
+     */
+    private File writeCompactionRecord(final int id, final List<SSTable> window) throws IOException {
+        final File file = getCompactionFile(id);
+        final Set<Integer> ids = new TreeSet<Integer>();
+        if (file.exists()) {
+            for (final String line : FileUtils.readLines(file)) {
+                ids.add(Integer.parseInt(line.trim()));
+            }
+        }
+        for (final SSTable table : window) {
+            ids.add(table.getId());
+        }
+        final File temporaryFile = new File(directory, id + COMPACTION_FILE_EXTENSION + TEMPORARY_FILE_EXTENSION);
+        final FileOutputStream out = new FileOutputStream(temporaryFile);
+        try {
+            IOUtils.writeLines(ids, null, out);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            throw new IOException(String.format("Failed to rename %s to %s", temporaryFile, file));
+        }
+        return file;
+    }
+
+    /**
+     * Complete compaction which was interrupted after its record had been written: rename merged table if it is still
+     * temporary, remove compacted tables and the record. Completion is idempotent, so it can be interrupted too.
+     *
+     * @param record compaction record
+     * @throws IOException if failed to rename or remove files
+     */
+    private void completeCompaction(final File record) throws IOException {
+        final int id = getId(record, COMPACTION_FILE_EXTENSION);
+        final File file = getTableFile(id);
+        final File temporaryFile = new File(directory, id + TEMPORARY_FILE_EXTENSION);
+        if (temporaryFile.exists() && !temporaryFile.renameTo(file)) {
+            throw new IOException(String.format("Failed to rename %s to %s", temporaryFile, file));
+        }
+        for (final String line : FileUtils.readLines(record)) {
+            final File compacted = getTableFile(Integer.parseInt(line.trim()));
+            if (!compacted.equals(file) && compacted.exists() && !compacted.delete()) {
+                throw new IOException("Failed to remove compacted table " + compacted);
+            }
+        }
+        if (!record.delete()) {
+            throw new IOException("Failed to remove compaction record " + record);
+        }
+    }
+
+    private File getTableFile(final int id) {
+        return new File(directory, String.format("%010d%s", id, TABLE_FILE_EXTENSION));
+    }
+
+    private File getCompactionFile(final int id) {
+        return new File(directory, String.format("%010d%s", id, COMPACTION_FILE_EXTENSION));
+    }
+
+    private File getLogFile(final int id) {
+        return new File(directory, String.format("%010d%s", id, LOG_FILE_EXTENSION));
+    }
+
+    private int getId(final File file, final String extension) {
+        final String name = file.getName();
+        return Integer.parseInt(name.substring(0, name.length() - extension.length()));
+    }
+
+    private File[] listFiles(final String extension) {
+        return listFiles(directory, extension);
+    }
+
+    /**
+     * Link tables of {@code restoreSnapshot} to the empty data directory. Tables are linked to temporary files at
+     * first, which are removed on open if restore is interrupted.
+     *
+     * @throws IOException if snapshot doesn't exist or failed to link tables
+     */
+    private void restoreSnapshot() throws IOException {
+        if (listFiles(TABLE_FILE_EXTENSION).length > 0 || listFiles(LOG_FILE_EXTENSION).length > 0) {
+            log.warn(String.format("Data directory %s isn't empty, snapshot %s isn't restored",
+                    directory, restoreSnapshot));
+            return;
+        }
+        final File[] files = listFiles(restoreSnapshot, TABLE_FILE_EXTENSION);
+        if (files == null) {
+            throw new IOException("Snapshot doesn't exist: " + restoreSnapshot);
+        }
+        for (final File file : listFiles(TEMPORARY_FILE_EXTENSION)) {
+            if (!file.delete()) {
+                throw new IOException("Failed to remove unfinished table " + file);
+            }
+        }
+        final List<File> temporaryFiles = new ArrayList<File>(files.length);
+        for (final File file : files) {
+            final File temporaryFile = new File(directory, getId(file, TABLE_FILE_EXTENSION) + TEMPORARY_FILE_EXTENSION);
+            FileLinks.link(file, temporaryFile);
+            temporaryFiles.add(temporaryFile);
+        }
+        for (final File temporaryFile : temporaryFiles) {
+            final File file = getTableFile(getId(temporaryFile, TEMPORARY_FILE_EXTENSION));
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException(String.format("Failed to rename %s to %s", temporaryFile, file));
+            }
+        }
+        log.info(String.format("Restored %d tables from snapshot %s", files.length, restoreSnapshot));
+    }
+
+    /**
+     * Skip stubs which are older than grace period, if no older table contains the key. Otherwise removing stub
+     * would resurrect older value. Compacted tables themselves aren't checked, because merged table becomes
+     * visible only together with their removal, see {@link #completeCompaction(File)}.
+     */
+    private static final class TombstoneFilter implements Predicate<SSTable.Entry> {
+        private final long purgeBefore;
+        private final List<SSTable> olderTables;
+        private int purged;
+
+        private TombstoneFilter(final long purgeBefore, final List<SSTable> olderTables) {
+            this.purgeBefore = purgeBefore;
+            this.olderTables = olderTables;
+        }
+
+        @Override
+        public boolean apply(final SSTable.Entry entry) {
+            final byte[] record = entry.getRecord();
+            if (!RecordUtils.isStub(record) || RecordUtils.getCreationTime(record) >= purgeBefore) {
+                return true;
+            }
+            for (final SSTable table : olderTables) {
+                if (table.mightContain(entry.getKey())) {
+                    return true;
+                }
+            }
+            purged++;
+            return false;
+        }
+    }
+
+    private static File[] listFiles(final File directory, final String extension) {
+        return directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.matches("\\d+" + Pattern.quote(extension));
+            }
+        });
+    }
+
+    private static void awaitTermination(final ExecutorService executor) throws IOException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for background storage tasks");
+        }
+    }
+}
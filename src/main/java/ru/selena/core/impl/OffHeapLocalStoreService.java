@@ -0,0 +1,467 @@
+package ru.selena.core.impl;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.selena.Factories;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.ScannableDataSource;
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.core.impl.storage.OffHeapHashIndex;
+import ru.selena.core.impl.storage.KeyPagedRangeIterator;
+import ru.selena.core.impl.storage.RangePage;
+import ru.selena.core.impl.storage.SlabAllocator;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.model.Version;
+import ru.selena.net.utils.SerializationUtils;
+import ru.selena.utils.NumberUtils;
+import ru.selena.utils.collections.ArrayUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Non persistent storage which keeps serialized data objects out of the java heap. Records are stored in the direct
+ * buffer chunks provided by {@link SlabAllocator} and located through {@link OffHeapHashIndex}, so heap usage
+ * doesn't depend on the number of stored objects and they aren't traversed by garbage collector. Data object is
+ * created only on {@link #get(Key)}.
+ * <p/>
+ * Keys are distributed among partitions, each partition has its own index and lock.
+ * <p/>
+ * Record format is {@code [payload length 4][creation time 8][payload]}, where payload is data object serialized by
+ * {@link SerializationUtils}.
+ * <p/>
+ * Stubs older than {@code tombstoneGracePeriod} are removed from the index and their memory is freed every
+ * {@code purgePeriod} ms, see {@link #purgeTombstones()}.
+ * <p/>
+ * Date: 3/21/13
+ * Time: 11:50 PM
+ *
+ * @author Artem Titov
+ */
+public class OffHeapLocalStoreService implements LocalStoreService, ScannableDataSource {
+    private static final Logger log = LoggerFactory.getLogger(OffHeapLocalStoreService.class);
+
+    private static final int INT_BYTE_SIZE = Integer.SIZE / Byte.SIZE;
+    private static final int CREATION_TIME_OFFSET = INT_BYTE_SIZE;
+    private static final int PAYLOAD_OFFSET = CREATION_TIME_OFFSET + Long.SIZE / Byte.SIZE;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+    private static final long DEFAULT_CAPACITY = 256 * 1024 * 1024;
+    private static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+    private static final double DEFAULT_GROWTH_FACTOR = 1.25;
+    private static final int DEFAULT_PARTITIONS = 16;
+    private static final int INITIAL_PARTITION_CAPACITY = 1024;
+    private static final int RANGE_PAGE_SIZE = 1024;
+    private static final long DEFAULT_TOMBSTONE_GRACE_PERIOD = TimeUnit.DAYS.toMillis(10);
+    private static final long DEFAULT_PURGE_PERIOD = TimeUnit.HOURS.toMillis(1);
+
+    private long capacity = DEFAULT_CAPACITY;
+    private int slabSize = DEFAULT_SLAB_SIZE;
+    private double growthFactor = DEFAULT_GROWTH_FACTOR;
+    private int partitionCount = DEFAULT_PARTITIONS;
+    private long tombstoneGracePeriod = DEFAULT_TOMBSTONE_GRACE_PERIOD;
+    private long purgePeriod = DEFAULT_PURGE_PERIOD;
+
+    private volatile SlabAllocator allocator;
+    private volatile Partition[] partitions;
+    private ScheduledExecutorService purgeExecutor;
+
+    /**
+     * Set maximum amount of off-heap memory for records. Index memory isn't included.
+     *
+     * @param capacity size in bytes
+     */
+    public void setCapacity(final long capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setSlabSize(final int slabSize) {
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * Set ratio of neighbour chunk size classes. Smaller factor wastes less memory on rounding, but more slabs are
+     * partially filled.
+     *
+     * @param growthFactor ratio greater than 1
+     */
+    public void setGrowthFactor(final double growthFactor) {
+        this.growthFactor = growthFactor;
+    }
+
+    public void setPartitions(final int partitions) {
+        this.partitionCount = partitions;
+    }
+
+    /**
+     * Set time during which stubs are kept, so replicas which missed the deletion can get it by read repair.
+     *
+     * @param tombstoneGracePeriod period in milliseconds, 10 days by default
+     */
+    public void setTombstoneGracePeriod(final long tombstoneGracePeriod) {
+        Validate.isTrue(tombstoneGracePeriod >= 0, "Grace period can't be negative");
+        this.tombstoneGracePeriod = tombstoneGracePeriod;
+    }
+
+    /**
+     * Set period of the background purge of expired stubs.
+     *
+     * @param purgePeriod period in milliseconds, 1 hour by default
+     */
+    public void setPurgePeriod(final long purgePeriod) {
+        Validate.isTrue(purgePeriod > 0, "Purge period must be positive");
+        this.purgePeriod = purgePeriod;
+    }
+
+    /**
+     * Return number of stored objects.
+     *
+     * @return number of objects
+     */
+    public long getCount() {
+        long count = 0;
+        for (final Partition partition : partitions) {
+            final Lock readLock = partition.lock.readLock();
+            readLock.lock();
+            try {
+                count += partition.index.size();
+            } finally {
+                readLock.unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return off-heap memory occupied by records.
+     *
+     * @return size in bytes
+     */
+    public long getUsedMemory() {
+        return allocator.getUsedBytes();
+    }
+
+    /**
+     * Return off-heap memory reserved by slabs and indexes.
+     *
+     * @return size in bytes
+     */
+    public long getReservedMemory() {
+        long reserved = allocator.getReservedBytes();
+        for (final Partition partition : partitions) {
+            final Lock readLock = partition.lock.readLock();
+            readLock.lock();
+            try {
+                reserved += partition.index.getCapacityBytes();
+            } finally {
+                readLock.unlock();
+            }
+        }
+        return reserved;
+    }
+
+    @Override
+    public StorageStatus open() throws IOException {
+        allocator = new SlabAllocator(slabSize, capacity, growthFactor);
+        final Partition[] newPartitions = new Partition[partitionCount];
+        for (int i = 0; i < newPartitions.length; i++) {
+            newPartitions[i] = new Partition();
+        }
+        partitions = newPartitions;
+        purgeExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("off-heap-purge-%d").setDaemon(true).build());
+        purgeExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                final int purged = purgeTombstones();
+                if (purged > 0) {
+                    log.info(String.format("Purged %d tombstones", purged));
+                }
+            }
+        }, purgePeriod, purgePeriod, TimeUnit.MILLISECONDS);
+        return StorageStatus.OK;
+    }
+
+    @Override
+    public StorageStatus restore() throws IOException {
+        return StorageStatus.OK;
+    }
+
+    @Override
+    public DataObject get(final Key key) throws DataStoreException {
+        final int hash = hash(key);
+        final Partition partition = getPartition(hash);
+        final byte[] payload;
+        final Lock readLock = partition.lock.readLock();
+        readLock.lock();
+        try {
+            final long address = partition.index.get(hash, new KeyMatcher(key));
+            if (address == SlabAllocator.NULL_ADDRESS) {
+                throw new NoSuchElementException(ArrayUtils.toHexString(key.getHash()));
+            }
+            payload = new byte[getInt(address, 0)];
+            allocator.read(address, PAYLOAD_OFFSET, payload, 0, payload.length);
+        } finally {
+            readLock.unlock();
+        }
+        return SerializationUtils.deserializeDataObject(payload, 0);
+    }
+
+    @Override
+    public void put(final DataObject dataObject) throws DataStoreException {
+        final Key key = dataObject.getKey();
+        final byte[] record = new byte[PAYLOAD_OFFSET + SerializationUtils.getRequiredSize(dataObject)];
+        NumberUtils.toByteArray(record.length - PAYLOAD_OFFSET, record, 0);
+        NumberUtils.toByteArray(dataObject.getCreationTime(), record, CREATION_TIME_OFFSET);
+        SerializationUtils.serializeDataObject(dataObject, record, PAYLOAD_OFFSET);
+        final int hash = hash(key);
+        final Partition partition = getPartition(hash);
+        final KeyMatcher matcher = new KeyMatcher(key);
+        final Lock writeLock = partition.lock.writeLock();
+        writeLock.lock();
+        try {
+            final long old = partition.index.get(hash, matcher);
+            if (old != SlabAllocator.NULL_ADDRESS && dataObject.getVersion().isBefore(readVersion(old))) {
+                throw new UpdatingOlderVersionException("Can't store older object");
+            }
+            final long address = allocator.allocate(record.length);
+            if (address == SlabAllocator.NULL_ADDRESS) {
+                throw new DataStoreException(String.format("Off-heap storage is full, failed to store %d bytes " +
+                        "for key %s", record.length, ArrayUtils.toHexString(key.getHash())));
+            }
+            allocator.write(address, 0, record);
+            partition.index.put(hash, address, matcher);
+            if (old != SlabAllocator.NULL_ADDRESS) {
+                allocator.free(old);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Index isn't sorted, so each page of the returned iterator requires scan of all keys. Only objects of the page
+     * are deserialized.
+     *
+     * @inheritDoc
+     */
+    @Override
+    public Iterator<DataObject> iterator(final TokenRange range) {
+        return new KeyPagedRangeIterator(range, RANGE_PAGE_SIZE) {
+            @Override
+            protected List<Key> loadKeys(final TokenRange range, final Key after, final int limit)
+                    throws DataStoreException {
+                final RangePage<Key> page = new RangePage<Key>(range, after, limit);
+                for (final Partition partition : partitions) {
+                    final Lock readLock = partition.lock.readLock();
+                    readLock.lock();
+                    try {
+                        partition.index.visit(new OffHeapHashIndex.AddressVisitor() {
+                            @Override
+                            public void onAddress(final long address) {
+                                final Key candidate = Factories.Instances.getKeyFactory().createKey(readKey(address));
+                                page.offer(candidate, candidate);
+                            }
+                        });
+                    } finally {
+                        readLock.unlock();
+                    }
+                }
+                return page.getValues();
+            }
+
+            @Override
+            protected DataObject load(final Key key) throws DataStoreException {
+                return get(key);
+            }
+        };
+    }
+
+    /**
+     * Keys of each partition are listed in one pass, objects are deserialized one by one.
+     *
+     * @inheritDoc
+     */
+    @Override
+    public Iterator<DataObject> scan() {
+        final Partition[] current = partitions;
+        return Iterators.concat(new AbstractIterator<Iterator<DataObject>>() {
+            private int index;
+
+            @Override
+            protected Iterator<DataObject> computeNext() {
+                if (index == current.length) {
+                    return endOfData();
+                }
+                return LocalStoreUtils.getAll(OffHeapLocalStoreService.this, listKeys(current[index++]).iterator());
+            }
+        });
+    }
+
+    private List<Key> listKeys(final Partition partition) {
+        final List<Key> keys = new ArrayList<Key>();
+        final Lock readLock = partition.lock.readLock();
+        readLock.lock();
+        try {
+            partition.index.visit(new OffHeapHashIndex.AddressVisitor() {
+                @Override
+                public void onAddress(final long address) {
+                    keys.add(Factories.Instances.getKeyFactory().createKey(readKey(address)));
+                }
+            });
+        } finally {
+            readLock.unlock();
+        }
+        return keys;
+    }
+
+    /**
+     * Release references to off-heap memory. Memory is returned to the system when direct buffers are collected.
+     *
+     * @throws IOException never
+     */
+    @Override
+    public void close() throws IOException {
+        if (purgeExecutor != null) {
+            purgeExecutor.shutdown();
+            try {
+                purgeExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for tombstones purge");
+            }
+            purgeExecutor = null;
+        }
+        partitions = new Partition[0];
+        allocator = null;
+    }
+
+    /**
+     * Remove stubs which are older than {@code tombstoneGracePeriod} and free their memory. Each partition is
+     * locked for writes while it is processed.
+     *
+     * @return number of removed stubs
+     */
+    public int purgeTombstones() {
+        final long purgeBefore = System.currentTimeMillis() - tombstoneGracePeriod;
+        int purged = 0;
+        for (final Partition partition : partitions) {
+            final List<Long> expired = new ArrayList<Long>();
+            final Lock writeLock = partition.lock.writeLock();
+            writeLock.lock();
+            try {
+                partition.index.visit(new OffHeapHashIndex.AddressVisitor() {
+                    @Override
+                    public void onAddress(final long address) {
+                        if (isStub(address) && getLong(address, CREATION_TIME_OFFSET) < purgeBefore) {
+                            expired.add(address);
+                        }
+                    }
+                });
+                for (final long address : expired) {
+                    partition.index.remove(HASH_FUNCTION.hashBytes(readKey(address)).asInt(),
+                            new OffHeapHashIndex.AddressMatcher() {
+                                @Override
+                                public boolean matches(final long candidate) {
+                                    return candidate == address;
+                                }
+                            });
+                    allocator.free(address);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            purged += expired.size();
+        }
+        return purged;
+    }
+
+    private Partition getPartition(final int hash) {
+        return partitions[(hash >>> Short.SIZE) % partitions.length];
+    }
+
+    private byte[] readKey(final long address) {
+        final byte[] key = new byte[getInt(address, PAYLOAD_OFFSET)];
+        allocator.read(address, PAYLOAD_OFFSET + INT_BYTE_SIZE, key, 0, key.length);
+        return key;
+    }
+
+    private Version readVersion(final long address) {
+        final int versionOffset = getVersionOffset(address);
+        final byte[] version = new byte[getInt(address, versionOffset)];
+        allocator.read(address, versionOffset + INT_BYTE_SIZE, version, 0, version.length);
+        return Factories.Instances.getVersionFactory().createVersion(version);
+    }
+
+    private boolean isStub(final long address) {
+        final int versionOffset = getVersionOffset(address);
+        final int flagsOffset = versionOffset + INT_BYTE_SIZE + getInt(address, versionOffset);
+        return (allocator.getBuffer(address).get(allocator.getPosition(address) + flagsOffset)
+                & SerializationUtils.STUB_FLAG) != 0;
+    }
+
+    private int getVersionOffset(final long address) {
+        return PAYLOAD_OFFSET + INT_BYTE_SIZE + getInt(address, PAYLOAD_OFFSET);
+    }
+
+    private int getInt(final long address, final int offset) {
+        return allocator.getBuffer(address).getInt(allocator.getPosition(address) + offset);
+    }
+
+    private long getLong(final long address, final int offset) {
+        return allocator.getBuffer(address).getLong(allocator.getPosition(address) + offset);
+    }
+
+    private static int hash(final Key key) {
+        return HASH_FUNCTION.hashBytes(key.getValue()).asInt();
+    }
+
+    private static final class Partition {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final OffHeapHashIndex index = new OffHeapHashIndex(INITIAL_PARTITION_CAPACITY);
+    }
+
+    /**
+     * Compare key with the key of the stored record without copying.
+     */
+    private final class KeyMatcher implements OffHeapHashIndex.AddressMatcher {
+        private final byte[] key;
+
+        private KeyMatcher(final Key key) {
+            this.key = key.getValue();
+        }
+
+        @Override
+        public boolean matches(final long address) {
+            if (getInt(address, PAYLOAD_OFFSET) != key.length) {
+                return false;
+            }
+            final ByteBuffer buffer = allocator.getBuffer(address);
+            final int position = allocator.getPosition(address) + PAYLOAD_OFFSET + INT_BYTE_SIZE;
+            for (int i = 0; i < key.length; i++) {
+                if (buffer.get(position + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
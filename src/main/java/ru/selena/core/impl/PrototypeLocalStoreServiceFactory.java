@@ -0,0 +1,45 @@
+package ru.selena.core.impl;
+
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.BeanFactoryAware;
+import org.springframework.beans.factory.annotation.Required;
+import ru.selena.core.LocalStoreService;
+
+/**
+ * Create storages from the prototype bean and set their {@code dataDirectory} property.
+ * <p/>
+ * Date: 3/27/13
+ * Time: 8:20 PM
+ *
+ * @author Artem Titov
+ */
+public class PrototypeLocalStoreServiceFactory implements LocalStoreServiceFactory, BeanFactoryAware {
+
+    private static final String DATA_DIRECTORY_PROPERTY = "dataDirectory";
+
+    private BeanFactory beanFactory;
+    private String beanName;
+
+    @Override
+    public void setBeanFactory(final BeanFactory beanFactory) {
+        this.beanFactory = beanFactory;
+    }
+
+    /**
+     * Set name of the storage bean, which must have prototype scope.
+     *
+     * @param beanName bean name
+     */
+    @Required
+    public void setBeanName(final String beanName) {
+        this.beanName = beanName;
+    }
+
+    @Override
+    public LocalStoreService createLocalStoreService(final String dataDirectory) {
+        final LocalStoreService localStoreService = beanFactory.getBean(beanName, LocalStoreService.class);
+        new BeanWrapperImpl(localStoreService).setPropertyValue(DATA_DIRECTORY_PROPERTY, dataDirectory);
+        return localStoreService;
+    }
+}
@@ -1,5 +1,8 @@
 package ru.selena.core.impl;
 
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.commons.lang.Validate;
 import org.springframework.beans.factory.annotation.Required;
 import ru.selena.core.RemoteStoreService;
@@ -7,11 +10,11 @@ import ru.selena.core.exception.DataStoreException;
 import ru.selena.core.exception.UpdatingOlderVersionException;
 import ru.selena.model.DataObject;
 import ru.selena.model.Key;
+import ru.selena.model.Version;
 import ru.selena.net.TransportService;
 import ru.selena.net.exception.ConflictException;
 import ru.selena.net.exception.NoDataException;
 import ru.selena.net.model.Host;
-import ru.selena.net.utils.SerializationUtils;
 
 import java.io.IOException;
 import java.util.Arrays;
@@ -37,23 +40,26 @@ public class RemoteStoreServiceImpl implements RemoteStoreService {
         Validate.notNull(key, "Key can't be null");
         Validate.notNull(remoteHost, "Remote host can't be null");
 
-        final byte[] dataObject;
         try {
-            dataObject = transportService.get(key.getValue(), remoteHost);
+            return transportService.getDataObject(key.getValue(), remoteHost);
         } catch (NoDataException e) {
-            throw new NoSuchElementException(String.format(
-                    "Host: %s. %s", remoteHost, e.getMessage()));
+            throw noSuchElement(e, remoteHost);
         } catch (IOException e) {
-            throw new DataStoreException(String.format(
-                    "Failed to load data from remote host (key: %s, host: %s). Cause: %s",
-                    Arrays.toString(key.getHash()), remoteHost, e.getMessage()), e);
+            throw getFailed(e, key, remoteHost);
         }
+    }
+
+    @Override
+    public Version getVersion(final Key key, final Host remoteHost) throws DataStoreException {
+        Validate.notNull(key, "Key can't be null");
+        Validate.notNull(remoteHost, "Remote host can't be null");
+
         try {
-            return SerializationUtils.deserializeDataObject(dataObject, 0);
-        } catch (RuntimeException e) {
-            throw new DataStoreException(String.format(
-                    "Failed to deserialize response from remote host (key: %s, host: %s)",
-                    Arrays.toString(key.getHash()), remoteHost), e);
+            return transportService.getVersion(key.getValue(), remoteHost);
+        } catch (NoDataException e) {
+            throw noSuchElement(e, remoteHost);
+        } catch (IOException e) {
+            throw getFailed(e, key, remoteHost);
         }
     }
 
@@ -62,16 +68,91 @@ public class RemoteStoreServiceImpl implements RemoteStoreService {
         Validate.notNull(dataObject, "Data object can't be null");
         Validate.notNull(remoteHost, "Remote host can't be null");
 
-        final byte[] buffer = new byte[SerializationUtils.getRequiredSize(dataObject)];
-        SerializationUtils.serializeDataObject(dataObject, buffer, 0);
         try {
-            transportService.send(buffer, remoteHost);
+            transportService.send(dataObject, remoteHost);
         } catch (ConflictException e) {
             throw new UpdatingOlderVersionException(e.getMessage(), e);
         } catch (IOException e) {
-            throw new DataStoreException(String.format(
-                    "Failed to send data to remote host (key: %s, host: %s). Cause: %s",
-                    Arrays.toString(dataObject.getKey().getHash()), remoteHost, e.getMessage()), e);
+            throw putFailed(e, dataObject, remoteHost);
+        }
+    }
+
+    @Override
+    public ListenableFuture<DataObject> getAsync(final Key key, final Host remoteHost) {
+        Validate.notNull(key, "Key can't be null");
+        Validate.notNull(remoteHost, "Remote host can't be null");
+
+        return Futures.withFallback(transportService.getDataObjectAsync(key.getValue(), remoteHost),
+                new GetFallback<DataObject>(key, remoteHost));
+    }
+
+    @Override
+    public ListenableFuture<Version> getVersionAsync(final Key key, final Host remoteHost) {
+        Validate.notNull(key, "Key can't be null");
+        Validate.notNull(remoteHost, "Remote host can't be null");
+
+        return Futures.withFallback(transportService.getVersionAsync(key.getValue(), remoteHost),
+                new GetFallback<Version>(key, remoteHost));
+    }
+
+    @Override
+    public ListenableFuture<Void> putAsync(final DataObject dataObject, final Host remoteHost) {
+        Validate.notNull(dataObject, "Data object can't be null");
+        Validate.notNull(remoteHost, "Remote host can't be null");
+
+        return Futures.withFallback(transportService.sendAsync(dataObject, remoteHost),
+                new FutureFallback<Void>() {
+                    @Override
+                    public ListenableFuture<Void> create(final Throwable t) {
+                        if (t instanceof ConflictException) {
+                            return Futures.immediateFailedFuture(new UpdatingOlderVersionException(t.getMessage(), t));
+                        } else if (t instanceof IOException) {
+                            return Futures.immediateFailedFuture(putFailed((IOException) t, dataObject, remoteHost));
+                        }
+                        return Futures.immediateFailedFuture(t);
+                    }
+                });
+    }
+
+    private static NoSuchElementException noSuchElement(final NoDataException e, final Host remoteHost) {
+        return new NoSuchElementException(String.format(
+                "Host: %s. %s", remoteHost, e.getMessage()));
+    }
+
+    private static DataStoreException getFailed(final IOException e, final Key key, final Host remoteHost) {
+        return new DataStoreException(String.format(
+                "Failed to load data from remote host (key: %s, host: %s). Cause: %s",
+                Arrays.toString(key.getHash()), remoteHost, e.getMessage()), e);
+    }
+
+    private static DataStoreException putFailed(final IOException e,
+                                                final DataObject dataObject,
+                                                final Host remoteHost) {
+        return new DataStoreException(String.format(
+                "Failed to send data to remote host (key: %s, host: %s). Cause: %s",
+                Arrays.toString(dataObject.getKey().getHash()), remoteHost, e.getMessage()), e);
+    }
+
+    /**
+     * Translates transport failures of read to the exceptions of synchronous read.
+     */
+    private static final class GetFallback<T> implements FutureFallback<T> {
+        private final Key key;
+        private final Host remoteHost;
+
+        private GetFallback(final Key key, final Host remoteHost) {
+            this.key = key;
+            this.remoteHost = remoteHost;
+        }
+
+        @Override
+        public ListenableFuture<T> create(final Throwable t) {
+            if (t instanceof NoDataException) {
+                return Futures.immediateFailedFuture(noSuchElement((NoDataException) t, remoteHost));
+            } else if (t instanceof IOException) {
+                return Futures.immediateFailedFuture(getFailed((IOException) t, key, remoteHost));
+            }
+            return Futures.immediateFailedFuture(t);
         }
     }
 }
@@ -0,0 +1,616 @@
+package ru.selena.core.impl;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.primitives.Ints;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+import ru.selena.core.KeyRingService;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.ScannableDataSource;
+import ru.selena.core.SerializedDataSource;
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.OperationFailedException;
+import ru.selena.core.impl.storage.SerializedBuffer;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.net.utils.SerializationUtils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Storage which splits the ring to token ranges and keeps each range in its own storage created by
+ * {@link LocalStoreServiceFactory} in the {@code shard-NNN} subdirectory. Shards have their own files, memtables,
+ * locks and background tasks, so writes to different shards don't contend and shards are compacted in parallel.
+ * <p/>
+ * Shard bounds are chosen when data directory is created. If {@link KeyRingService} is set and knows the ring, each
+ * ring segment is split to about {@code shards * segment size / ring size} shards, at least one, so no shard crosses
+ * the token of a host. Otherwise ring is split to {@code shards} equal ranges. Bounds are stored in the data
+ * directory and don't follow later ring changes, because moving data between shards would defeat dropping shards by
+ * files.
+ * <p/>
+ * When ring segment is moved to another host, shards of this segment can be streamed by
+ * {@link #iterator(TokenRange)} and then removed as a whole by {@link #dropShard(int)}, which just deletes shard
+ * files.
+ * <p/>
+ * Shards are opened, restored and closed in parallel by {@code openThreads} threads.
+ * <p/>
+ * Date: 3/27/13
+ * Time: 8:40 PM
+ *
+ * @author Artem Titov
+ */
+public class ShardedLocalStoreService implements LocalStoreService, SerializedDataSource, ScannableDataSource {
+    private static final Logger log = LoggerFactory.getLogger(ShardedLocalStoreService.class);
+
+    private static final String SHARD_DIRECTORY_PREFIX = "shard-";
+    private static final String DROPPED_SHARD_SUFFIX = ".dropped";
+    private static final String BOUNDS_FILE = "shards";
+    private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+    private static final int DEFAULT_SHARDS = 16;
+    private static final long RING_SIZE = 1L << Integer.SIZE;
+
+    private File directory;
+    private LocalStoreServiceFactory localStoreServiceFactory;
+    private KeyRingService keyRingService;
+    private int shardCount = DEFAULT_SHARDS;
+    private int openThreads = Runtime.getRuntime().availableProcessors();
+    private volatile Shard[] shards = new Shard[0];
+    private volatile int[] shardEnds = new int[0];
+
+    @Required
+    public void setDataDirectory(final String dataDirectory) {
+        this.directory = new File(dataDirectory);
+    }
+
+    @Required
+    public void setLocalStoreServiceFactory(final LocalStoreServiceFactory localStoreServiceFactory) {
+        this.localStoreServiceFactory = localStoreServiceFactory;
+    }
+
+    /**
+     * Set ring service which shard bounds of the new data directory are derived from.
+     *
+     * @param keyRingService ring service, ring is split to equal ranges if it isn't set
+     */
+    public void setKeyRingService(final KeyRingService keyRingService) {
+        this.keyRingService = keyRingService;
+    }
+
+    /**
+     * Set number of shards of the new data directory. Existing directory keeps its shards.
+     *
+     * @param shards number of shards, 16 by default
+     */
+    public void setShards(final int shards) {
+        Validate.isTrue(shards > 0, "Number of shards must be positive");
+        this.shardCount = shards;
+    }
+
+    /**
+     * Set number of threads which open, restore and close shards.
+     *
+     * @param openThreads number of threads, number of processors by default
+     */
+    public void setOpenThreads(final int openThreads) {
+        this.openThreads = openThreads;
+    }
+
+    /**
+     * Return token ranges of shards of the opened storage in ring order.
+     *
+     * @return ranges
+     */
+    public List<TokenRange> getShardRanges() {
+        final Shard[] current = shards;
+        final List<TokenRange> ranges = new ArrayList<TokenRange>(current.length);
+        for (final Shard shard : current) {
+            ranges.add(shard.range);
+        }
+        return ranges;
+    }
+
+    /**
+     * Return number of the shard which contains token.
+     *
+     * @param token token
+     * @return shard number
+     */
+    public int getShardIndex(final int token) {
+        final int[] ends = shardEnds;
+        int position = Arrays.binarySearch(ends, token);
+        if (position < 0) {
+            position = -(position + 1);
+        }
+        return position == ends.length ? 0 : position;
+    }
+
+    @Override
+    public StorageStatus open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create data directory " + directory);
+        }
+        removeDroppedShards();
+        final File[] existing = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File file) {
+                return file.isDirectory() && file.getName().matches(SHARD_DIRECTORY_PREFIX + "\\d+");
+            }
+        });
+        final int[] ends = loadShardEnds(existing.length > 0);
+        if (existing.length > 0 && existing.length != ends.length) {
+            throw new IOException(String.format("Data directory %s contains %d shards, but %d shards are configured",
+                    directory, existing.length, ends.length));
+        }
+        final Shard[] newShards = new Shard[ends.length];
+        for (int i = 0; i < ends.length; i++) {
+            newShards[i] = new Shard(new TokenRange(ends[(i + ends.length - 1) % ends.length], ends[i]),
+                    getShardDirectory(i));
+            newShards[i].store = localStoreServiceFactory.createLocalStoreService(newShards[i].directory.getPath());
+        }
+        shardEnds = ends;
+        shards = newShards;
+        final List<StorageStatus> statuses = forEachShard("open", new ShardTask() {
+            @Override
+            public StorageStatus run(final LocalStoreService store) throws IOException {
+                return store.open();
+            }
+        });
+        log.info(String.format("Opened %d shards", newShards.length));
+        return statuses.contains(StorageStatus.CORRUPTED) ? StorageStatus.CORRUPTED : StorageStatus.OK;
+    }
+
+    @Override
+    public StorageStatus restore() throws IOException {
+        final List<StorageStatus> statuses = forEachShard("restore", new ShardTask() {
+            @Override
+            public StorageStatus run(final LocalStoreService store) throws IOException {
+                return store.restore();
+            }
+        });
+        return statuses.contains(StorageStatus.CORRUPTED) ? StorageStatus.CORRUPTED : StorageStatus.OK;
+    }
+
+    @Override
+    public DataObject get(final Key key) throws DataStoreException {
+        final Shard shard = getShard(key);
+        final Lock readLock = shard.lock.readLock();
+        readLock.lock();
+        try {
+            return getStore(shard).get(key);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(final DataObject dataObject) throws DataStoreException {
+        final Shard shard = getShard(dataObject.getKey());
+        final Lock readLock = shard.lock.readLock();
+        readLock.lock();
+        try {
+            getStore(shard).put(dataObject);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Shard storage which isn't {@link SerializedDataSource} returns deserialized object, which is serialized again.
+     * Data of the shard storage which is {@link SerializedDataSource} refers to shard files, so it's written under
+     * the shard read lock and fails if shard has been dropped since it was returned.
+     *
+     * @inheritDoc
+     */
+    @Override
+    public SerializedData getSerialized(final Key key) throws DataStoreException {
+        final Shard shard = getShard(key);
+        final Lock readLock = shard.lock.readLock();
+        readLock.lock();
+        try {
+            final LocalStoreService store = getStore(shard);
+            if (store instanceof SerializedDataSource) {
+                return new ShardSerializedData(shard, store, ((SerializedDataSource) store).getSerialized(key));
+            }
+            final DataObject dataObject = store.get(key);
+            final byte[] buffer = new byte[SerializationUtils.getRequiredSize(dataObject)];
+            SerializationUtils.serializeDataObject(dataObject, buffer, 0);
+            return new SerializedBuffer(ByteBuffer.wrap(buffer));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Range is split to parts by shard bounds and parts are read from their shards one by one. Iteration over shard
+     * stops if shard is dropped.
+     *
+     * @inheritDoc
+     */
+    @Override
+    public Iterator<DataObject> iterator(final TokenRange range) {
+        final List<Iterator<DataObject>> parts = new ArrayList<Iterator<DataObject>>();
+        int position = range.getStart();
+        while (true) {
+            final Shard shard = shards[getShardIndex(position + 1)];
+            final int shardEnd = shard.range.getEnd();
+            final boolean last = new TokenRange(position, range.getEnd()).compareTokens(range.getEnd(), shardEnd) <= 0;
+            final TokenRange part = new TokenRange(position, last ? range.getEnd() : shardEnd);
+            parts.add(new ShardIterator(shard, part));
+            if (last) {
+                break;
+            }
+            position = shardEnd;
+        }
+        return Iterators.concat(parts.iterator());
+    }
+
+    /**
+     * Shards are scanned one by one. Scan of the shard which is dropped during the scan may fail.
+     *
+     * @inheritDoc
+     */
+    @Override
+    public Iterator<DataObject> scan() {
+        final Shard[] current = shards;
+        return Iterators.concat(new AbstractIterator<Iterator<DataObject>>() {
+            private int index;
+
+            @Override
+            protected Iterator<DataObject> computeNext() {
+                if (index == current.length) {
+                    return endOfData();
+                }
+                final Shard shard = current[index++];
+                final LocalStoreService store = shard.store;
+                if (store == null) {
+                    throw new OperationFailedException(String.format("Shard %s %s is failed",
+                            shard.directory, shard.range));
+                }
+                return LocalStoreUtils.scan(store);
+            }
+        });
+    }
+
+    /**
+     * Remove all data of the shard by deleting its files. Shard directory is renamed first and the new empty shard is
+     * opened in its place, then renamed directory is deleted. If directory can't be renamed, shard is reopened with
+     * its data. If new shard can't be opened, shard is marked failed: its operations fail until it is dropped again.
+     * Renamed directory which can't be deleted is deleted on open.
+     *
+     * @param index shard number
+     * @throws IOException if failed to close shard, rename its directory or open new one
+     */
+    public void dropShard(final int index) throws IOException {
+        final Shard shard = shards[index];
+        final File dropped = new File(directory, shard.directory.getName() + DROPPED_SHARD_SUFFIX);
+        final Lock writeLock = shard.lock.writeLock();
+        writeLock.lock();
+        try {
+            if (shard.store != null) {
+                shard.store.close();
+                shard.store = null;
+            }
+            // directory of the failed shard still holds its data
+            try {
+                FileUtils.deleteDirectory(dropped);
+                if (shard.directory.exists() && !shard.directory.renameTo(dropped)) {
+                    throw new IOException(String.format("Failed to rename %s to %s", shard.directory, dropped));
+                }
+            } catch (IOException e) {
+                shard.store = reopenShard(shard);
+                throw e;
+            }
+            final LocalStoreService store = localStoreServiceFactory.createLocalStoreService(shard.directory.getPath());
+            store.open();
+            shard.store = store;
+        } finally {
+            writeLock.unlock();
+        }
+        try {
+            FileUtils.deleteDirectory(dropped);
+        } catch (IOException e) {
+            log.warn(String.format("Failed to delete dropped shard %s, it will be deleted on open", dropped), e);
+        }
+        log.info(String.format("Shard %d %s is dropped", index, shard.range));
+    }
+
+    @Override
+    public void close() throws IOException {
+        forEachShard("close", new ShardTask() {
+            @Override
+            public StorageStatus run(final LocalStoreService store) throws IOException {
+                store.close();
+                return null;
+            }
+        });
+        shards = new Shard[0];
+        shardEnds = new int[0];
+    }
+
+    private Shard getShard(final Key key) {
+        return shards[getShardIndex(TokenRange.getToken(key))];
+    }
+
+    private static LocalStoreService getStore(final Shard shard) throws DataStoreException {
+        final LocalStoreService store = shard.store;
+        if (store == null) {
+            throw new DataStoreException(String.format("Shard %s %s is failed", shard.directory, shard.range));
+        }
+        return store;
+    }
+
+    /**
+     * Open storage of the shard which couldn't be dropped.
+     *
+     * @param shard shard
+     * @return storage or null if it can't be opened, so shard is failed
+     */
+    private LocalStoreService reopenShard(final Shard shard) {
+        try {
+            final LocalStoreService store = localStoreServiceFactory.createLocalStoreService(shard.directory.getPath());
+            if (store.open() == StorageStatus.CORRUPTED && store.restore() == StorageStatus.CORRUPTED) {
+                log.error(String.format("Shard %s is corrupted, it's marked failed", shard.directory));
+                return null;
+            }
+            return store;
+        } catch (IOException e) {
+            log.error(String.format("Failed to reopen shard %s, it's marked failed", shard.directory), e);
+            return null;
+        }
+    }
+
+    private void removeDroppedShards() throws IOException {
+        final File[] dropped = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File file) {
+                return file.isDirectory() && file.getName().endsWith(DROPPED_SHARD_SUFFIX);
+            }
+        });
+        for (final File file : dropped) {
+            log.info("Deleting dropped shard " + file);
+            FileUtils.deleteDirectory(file);
+        }
+    }
+
+    /**
+     * Return end tokens of shards in ascending order. Shard {@code i} is range {@code (ends[i - 1], ends[i]]}, the
+     * first shard starts from the end of the last one. Ends are read from the bounds file of the data directory, or
+     * chosen and written to it if directory is new. Directory with shards and without bounds file is split to equal
+     * ranges.
+     *
+     * @param existing whether data directory has shards
+     * @return ends
+     * @throws IOException if failed to read or write bounds file
+     */
+    private int[] loadShardEnds(final boolean existing) throws IOException {
+        final File file = new File(directory, BOUNDS_FILE);
+        if (file.exists()) {
+            final List<String> lines = FileUtils.readLines(file);
+            final int[] ends = new int[lines.size()];
+            for (int i = 0; i < ends.length; i++) {
+                ends[i] = Integer.parseInt(lines.get(i).trim());
+            }
+            return ends;
+        }
+        final List<TokenRange> segments = existing || keyRingService == null
+                ? Collections.<TokenRange>emptyList()
+                : keyRingService.getRingSegments();
+        final int[] ends = segments.isEmpty() ? getUniformEnds() : getSegmentEnds(segments);
+        final List<Integer> lines = new ArrayList<Integer>(ends.length);
+        for (final int end : ends) {
+            lines.add(end);
+        }
+        final File temporaryFile = new File(directory, BOUNDS_FILE + TEMPORARY_FILE_EXTENSION);
+        final FileOutputStream out = new FileOutputStream(temporaryFile);
+        try {
+            IOUtils.writeLines(lines, null, out);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            throw new IOException(String.format("Failed to rename %s to %s", temporaryFile, file));
+        }
+        log.info(String.format("Ring is split to %d shards by %s", ends.length,
+                segments.isEmpty() ? "equal ranges" : segments.size() + " ring segments"));
+        return ends;
+    }
+
+    /**
+     * Split ring to {@code shards} equal ranges. Shard {@code i} starts from token
+     * {@code MIN + ceil(i * 2^32 / shards)}.
+     *
+     * @return end tokens of shards
+     */
+    private int[] getUniformEnds() {
+        final int[] ends = new int[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            ends[i] = (int) (Integer.MIN_VALUE + ((i + 1) * RING_SIZE + shardCount - 1) / shardCount) - 1;
+        }
+        return ends;
+    }
+
+    /**
+     * Split each ring segment to equal ranges, number of ranges is proportional to the segment size.
+     *
+     * @param segments ring segments
+     * @return end tokens of shards
+     */
+    private int[] getSegmentEnds(final List<TokenRange> segments) {
+        final List<Integer> ends = new ArrayList<Integer>();
+        for (final TokenRange segment : segments) {
+            final long size = segment.getStart() == segment.getEnd()
+                    ? RING_SIZE
+                    : ((long) segment.getEnd() - segment.getStart()) & (RING_SIZE - 1);
+            final long parts = Math.max(1, Math.min(size, Math.round((double) size * shardCount / RING_SIZE)));
+            for (int i = 1; i <= parts; i++) {
+                ends.add((int) (segment.getStart() + size * i / parts));
+            }
+        }
+        Collections.sort(ends);
+        return Ints.toArray(ends);
+    }
+
+    private File getShardDirectory(final int index) {
+        return new File(directory, String.format("%s%03d", SHARD_DIRECTORY_PREFIX, index));
+    }
+
+    /**
+     * Run task for the storage of each shard in parallel.
+     *
+     * @param action action name for error messages
+     * @param task   task
+     * @return task results in shard order
+     * @throws IOException if any task failed
+     */
+    private List<StorageStatus> forEachShard(final String action, final ShardTask task) throws IOException {
+        final Shard[] current = shards;
+        if (current.length == 0) {
+            return Collections.emptyList();
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(openThreads, current.length)),
+                new ThreadFactoryBuilder().setNameFormat("shard-" + action + "-%d").setDaemon(true).build());
+        try {
+            final List<Future<StorageStatus>> futures = new ArrayList<Future<StorageStatus>>(current.length);
+            for (final Shard shard : current) {
+                futures.add(executor.submit(new Callable<StorageStatus>() {
+                    @Override
+                    public StorageStatus call() throws IOException {
+                        final LocalStoreService store = shard.store;
+                        return store == null ? null : task.run(store);
+                    }
+                }));
+            }
+            final List<StorageStatus> statuses = new ArrayList<StorageStatus>(current.length);
+            for (final Future<StorageStatus> future : futures) {
+                statuses.add(future.get());
+            }
+            return statuses;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(String.format("Interrupted while waiting for shards to %s", action));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(String.format("Failed to %s shard", action), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface ShardTask {
+
+        StorageStatus run(final LocalStoreService store) throws IOException;
+    }
+
+    private static final class Shard {
+        private final TokenRange range;
+        private final File directory;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile LocalStoreService store;
+
+        private Shard(final TokenRange range, final File directory) {
+            this.range = range;
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * Serialized data object of the shard storage, which is written only while shard storage isn't replaced.
+     */
+    private static final class ShardSerializedData implements SerializedData {
+        private final Shard shard;
+        private final LocalStoreService store;
+        private final SerializedData data;
+
+        private ShardSerializedData(final Shard shard, final LocalStoreService store, final SerializedData data) {
+            this.shard = shard;
+            this.store = store;
+            this.data = data;
+        }
+
+        @Override
+        public int getLength() {
+            return data.getLength();
+        }
+
+        @Override
+        public void writeTo(final WritableByteChannel channel) throws IOException {
+            final Lock readLock = shard.lock.readLock();
+            readLock.lock();
+            try {
+                if (store != shard.store) {
+                    throw new IOException(String.format("Shard %s %s is dropped", shard.directory, shard.range));
+                }
+                data.writeTo(channel);
+            } finally {
+                readLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Iterator over range of one shard, which is created lazily and is used only while shard storage isn't replaced.
+     * Iterator over failed shard throws {@link OperationFailedException}.
+     */
+    private static final class ShardIterator extends AbstractIterator<DataObject> {
+        private final Shard shard;
+        private final TokenRange range;
+        private LocalStoreService store;
+        private Iterator<DataObject> iterator;
+
+        private ShardIterator(final Shard shard, final TokenRange range) {
+            this.shard = shard;
+            this.range = range;
+        }
+
+        @Override
+        protected DataObject computeNext() {
+            final Lock readLock = shard.lock.readLock();
+            readLock.lock();
+            try {
+                if (iterator == null) {
+                    store = shard.store;
+                    if (store == null) {
+                        throw new OperationFailedException(String.format("Shard %s %s is failed",
+                                shard.directory, range));
+                    }
+                    iterator = store.iterator(range);
+                }
+                if (store != shard.store || !iterator.hasNext()) {
+                    return endOfData();
+                }
+                return iterator.next();
+            } finally {
+                readLock.unlock();
+            }
+        }
+    }
+}
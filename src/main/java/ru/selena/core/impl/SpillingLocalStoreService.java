@@ -0,0 +1,403 @@
+package ru.selena.core.impl;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Striped;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Required;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.ScannableDataSource;
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.core.impl.storage.PagedRangeIterator;
+import ru.selena.core.impl.storage.RangePage;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.model.Version;
+import ru.selena.net.utils.SerializationUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Storage which keeps data objects in the heap within {@code memoryLimit} and evicts colder objects to the spill
+ * storage, usually {@link LogStructuredLocalStoreService}. Evicted objects are read back from the spill storage on
+ * {@link #get(Key)} and return to memory.
+ * <p/>
+ * Eviction uses generalized clock: each resident object has access counter, which is incremented on every access
+ * and is limited by {@value #MAX_FREQUENCY}. When memory limit is exceeded, clock hand walks over resident objects
+ * decrementing counters and evicts the first object with zero counter. So objects accessed more often than clock
+ * hand passes them are never evicted, and workload which working set fits into the limit is served from memory.
+ * Eviction is done by the writing thread, other threads don't wait for it, so memory limit can be exceeded for a
+ * while under concurrent writes.
+ * <p/>
+ * Object in memory is always not older than its copy in the spill storage. Only objects modified since they were
+ * loaded are written on eviction. All modified objects are written to the spill storage on {@link #close()}.
+ * Objects are read from the spill storage without the key lock, so each eviction write increments spill
+ * generation of the key's stripe, and the read object is loaded to memory only if generation hasn't changed since
+ * the read. Otherwise it is read again under the lock.
+ * <p/>
+ * Date: 3/28/13
+ * Time: 9:00 PM
+ *
+ * @author Artem Titov
+ */
+public class SpillingLocalStoreService implements LocalStoreService, ScannableDataSource {
+    private static final Logger log = LoggerFactory.getLogger(SpillingLocalStoreService.class);
+
+    /**
+     * Approximate memory overhead of the map entry, resident entry and object headers for one object.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int MAX_FREQUENCY = 15;
+    private static final long DEFAULT_MEMORY_LIMIT = 64 * 1024 * 1024;
+    private static final int WRITE_LOCK_STRIPES = 256;
+    private static final int RANGE_PAGE_SIZE = 1024;
+
+    private final ConcurrentMap<Key, Resident> memory = new ConcurrentHashMap<Key, Resident>();
+    private final Striped<Lock> writeLocks = Striped.lock(WRITE_LOCK_STRIPES);
+    private final Lock evictionLock = new ReentrantLock();
+    private final AtomicLong memoryUsage = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong spillReads = new AtomicLong();
+    private final AtomicLongArray spillGenerations = new AtomicLongArray(WRITE_LOCK_STRIPES);
+
+    private LocalStoreService spillStoreService;
+    private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+    private Iterator<Map.Entry<Key, Resident>> clockHand;
+
+    @Required
+    public void setSpillStoreService(final LocalStoreService spillStoreService) {
+        this.spillStoreService = spillStoreService;
+    }
+
+    /**
+     * Set maximum approximate heap size of resident objects.
+     *
+     * @param memoryLimit size in bytes, 64 MB by default
+     */
+    public void setMemoryLimit(final long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Return approximate heap size of resident objects.
+     *
+     * @return size in bytes
+     */
+    public long getMemoryUsage() {
+        return memoryUsage.get();
+    }
+
+    public int getResidentCount() {
+        return memory.size();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Return number of objects which were read from the spill storage.
+     *
+     * @return number of reads
+     */
+    public long getSpillReads() {
+        return spillReads.get();
+    }
+
+    @Override
+    public StorageStatus open() throws IOException {
+        return spillStoreService.open();
+    }
+
+    @Override
+    public StorageStatus restore() throws IOException {
+        return spillStoreService.restore();
+    }
+
+    @Override
+    public DataObject get(final Key key) throws DataStoreException {
+        final Resident resident = memory.get(key);
+        if (resident != null) {
+            resident.touch();
+            return resident.dataObject;
+        }
+        final int stripe = getStripe(key);
+        final long generation = spillGenerations.get(stripe);
+        DataObject dataObject = spillStoreService.get(key);
+        spillReads.incrementAndGet();
+        final Lock lock = writeLocks.get(key);
+        lock.lock();
+        try {
+            final Resident current = memory.get(key);
+            if (current != null) {
+                current.touch();
+                return current.dataObject;
+            }
+            if (spillGenerations.get(stripe) != generation) {
+                // newer object could be put and evicted after the read
+                dataObject = spillStoreService.get(key);
+                spillReads.incrementAndGet();
+            }
+            addResident(key, new Resident(dataObject, false), null);
+        } finally {
+            lock.unlock();
+        }
+        evict();
+        return dataObject;
+    }
+
+    @Override
+    public void put(final DataObject dataObject) throws DataStoreException {
+        final Key key = dataObject.getKey();
+        final Lock lock = writeLocks.get(key);
+        lock.lock();
+        try {
+            final Resident old = memory.get(key);
+            final Version existing = old != null ? old.dataObject.getVersion() : getSpilledVersion(key);
+            if (existing != null && dataObject.getVersion().isBefore(existing)) {
+                throw new UpdatingOlderVersionException("Can't store older object");
+            }
+            final Resident resident = new Resident(dataObject, true);
+            if (old != null) {
+                resident.frequency = Math.min(old.frequency + 1, MAX_FREQUENCY);
+            }
+            addResident(key, resident, old);
+        } finally {
+            lock.unlock();
+        }
+        evict();
+    }
+
+    /**
+     * Resident objects and the spill storage are read by pages which are merged, resident object wins if both
+     * contain the key. Each page requires scan of all resident objects.
+     *
+     * @inheritDoc
+     */
+    @Override
+    public Iterator<DataObject> iterator(final TokenRange range) {
+        return new PagedRangeIterator(range, RANGE_PAGE_SIZE) {
+            @Override
+            protected List<DataObject> loadPage(final TokenRange range, final Key after, final int limit) {
+                final RangePage<DataObject> page = new RangePage<DataObject>(range, after, limit);
+                for (final Map.Entry<Key, Resident> entry : memory.entrySet()) {
+                    page.offer(entry.getKey(), entry.getValue().dataObject);
+                }
+                final List<DataObject> resident = page.getValues();
+                final List<DataObject> spilled = new ArrayList<DataObject>(limit);
+                final Iterator<DataObject> iterator = spillStoreService.iterator(
+                        after == null ? range : range.resumeFrom(TokenRange.getToken(after)));
+                while (spilled.size() < limit && iterator.hasNext()) {
+                    final DataObject dataObject = iterator.next();
+                    if (after == null || RangePage.compareKeys(range, dataObject.getKey(), after) > 0) {
+                        spilled.add(dataObject);
+                    }
+                }
+                return merge(range, resident, spilled, limit);
+            }
+        };
+    }
+
+    /**
+     * Resident objects are returned first, then objects of the spill storage which aren't resident.
+     *
+     * @inheritDoc
+     */
+    @Override
+    public Iterator<DataObject> scan() {
+        final Iterator<DataObject> resident = Iterators.transform(memory.values().iterator(),
+                new Function<Resident, DataObject>() {
+                    @Override
+                    public DataObject apply(final Resident resident) {
+                        return resident.dataObject;
+                    }
+                });
+        final Iterator<DataObject> spilled = Iterators.filter(LocalStoreUtils.scan(spillStoreService),
+                new Predicate<DataObject>() {
+                    @Override
+                    public boolean apply(final DataObject dataObject) {
+                        return !memory.containsKey(dataObject.getKey());
+                    }
+                });
+        return Iterators.concat(resident, spilled);
+    }
+
+    @Override
+    public void close() throws IOException {
+        int written = 0;
+        try {
+            for (final Map.Entry<Key, Resident> entry : memory.entrySet()) {
+                if (entry.getValue().dirty) {
+                    spillStoreService.put(entry.getValue().dataObject);
+                    written++;
+                }
+            }
+        } catch (DataStoreException e) {
+            throw new IOException("Failed to write resident objects to the spill storage", e);
+        } finally {
+            memory.clear();
+            memoryUsage.set(0);
+            clockHand = null;
+            spillStoreService.close();
+        }
+        log.info(String.format("Written %d resident objects to the spill storage", written));
+    }
+
+    private Version getSpilledVersion(final Key key) throws DataStoreException {
+        try {
+            return spillStoreService.get(key).getVersion();
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Put object to memory. Caller must hold write lock of the key.
+     *
+     * @param key      key
+     * @param resident new resident entry
+     * @param old      replaced entry or null
+     */
+    private void addResident(final Key key, final Resident resident, final Resident old) {
+        memory.put(key, resident);
+        memoryUsage.addAndGet(resident.size - (old == null ? 0 : old.size));
+    }
+
+    /**
+     * Evict objects until memory usage is within limit. Returns immediately if eviction is in progress in another
+     * thread.
+     */
+    private void evict() {
+        if (memoryUsage.get() <= memoryLimit || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            while (memoryUsage.get() > memoryLimit) {
+                if (clockHand == null || !clockHand.hasNext()) {
+                    clockHand = memory.entrySet().iterator();
+                    if (!clockHand.hasNext()) {
+                        return;
+                    }
+                }
+                final Map.Entry<Key, Resident> entry = clockHand.next();
+                final Resident resident = entry.getValue();
+                if (resident.frequency > 0) {
+                    resident.frequency--;
+                } else if (!spill(entry.getKey(), resident)) {
+                    return;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Move object to the spill storage.
+     *
+     * @param key      key
+     * @param resident resident entry
+     * @return false if write to the spill storage failed
+     */
+    private boolean spill(final Key key, final Resident resident) {
+        final Lock lock = writeLocks.get(key);
+        lock.lock();
+        try {
+            if (memory.get(key) != resident) {
+                return true;
+            }
+            if (resident.dirty) {
+                spillStoreService.put(resident.dataObject);
+                spillGenerations.incrementAndGet(getStripe(key));
+            }
+            memory.remove(key);
+            memoryUsage.addAndGet(-resident.size);
+            evictions.incrementAndGet();
+            return true;
+        } catch (DataStoreException e) {
+            log.error("Failed to evict object " + resident.dataObject + ", eviction is suspended", e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int getStripe(final Key key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % WRITE_LOCK_STRIPES;
+    }
+
+    /**
+     * Merge two pages sorted by ring order.
+     *
+     * @param range    range
+     * @param resident resident objects
+     * @param spilled  objects from the spill storage
+     * @param limit    maximum size of the result
+     * @return merged page
+     */
+    private static List<DataObject> merge(final TokenRange range,
+                                          final List<DataObject> resident,
+                                          final List<DataObject> spilled,
+                                          final int limit) {
+        final List<DataObject> result = new ArrayList<DataObject>(limit);
+        int r = 0;
+        int s = 0;
+        while (result.size() < limit && (r < resident.size() || s < spilled.size())) {
+            if (s == spilled.size()) {
+                result.add(resident.get(r++));
+            } else if (r == resident.size()) {
+                result.add(spilled.get(s++));
+            } else {
+                final int cmp = RangePage.compareKeys(range, resident.get(r).getKey(), spilled.get(s).getKey());
+                if (cmp < 0) {
+                    result.add(resident.get(r++));
+                } else if (cmp > 0) {
+                    result.add(spilled.get(s++));
+                } else {
+                    result.add(resident.get(r++));
+                    s++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Object kept in memory. Access counter is updated without synchronization, lost updates only make eviction
+     * less precise.
+     */
+    private static final class Resident {
+        private final DataObject dataObject;
+        private final boolean dirty;
+        private final long size;
+        private volatile int frequency;
+
+        private Resident(final DataObject dataObject, final boolean dirty) {
+            this.dataObject = dataObject;
+            this.dirty = dirty;
+            this.size = SerializationUtils.getRequiredSize(dataObject) + ENTRY_OVERHEAD;
+        }
+
+        private void touch() {
+            final int current = frequency;
+            if (current < MAX_FREQUENCY) {
+                frequency = current + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ru.selena.core.impl.compression;
+
+/**
+ * Block compression algorithm. Implementations must be thread safe.
+ * <p/>
+ * Date: 3/25/13
+ * Time: 9:30 PM
+ *
+ * @author Artem Titov
+ */
+public interface CompressionCodec {
+
+    /**
+     * Return size of the output buffer which is enough to compress any input of specified length.
+     *
+     * @param inputLength input length
+     * @return buffer size
+     */
+    int getMaxCompressedLength(final int inputLength);
+
+    /**
+     * Compress input.
+     *
+     * @param input        data to compress
+     * @param output       output buffer, must have at least {@link #getMaxCompressedLength(int)} bytes after offset
+     * @param outputOffset position in the output buffer
+     * @return compressed length
+     */
+    int compress(final byte[] input, final byte[] output, final int outputOffset);
+
+    /**
+     * Decompress data compressed by {@link #compress(byte[], byte[], int)}.
+     *
+     * @param input       buffer with compressed data
+     * @param inputOffset position of compressed data
+     * @param inputLength compressed length
+     * @param output      output buffer of exactly decompressed length
+     * @throws IllegalArgumentException if input is damaged
+     */
+    void decompress(final byte[] input, final int inputOffset, final int inputLength, final byte[] output);
+}
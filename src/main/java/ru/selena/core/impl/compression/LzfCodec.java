@@ -0,0 +1,160 @@
+package ru.selena.core.impl.compression;
+
+/**
+ * Pure java implementation of the LZF algorithm. LZF compresses worse than deflate, but several times faster, so it
+ * fits compression of every stored value.
+ * <p/>
+ * Compressed data is a sequence of chunks. Literal chunk starts with control byte {@code 000LLLLL} and is followed by
+ * {@code L + 1} literal bytes. Back reference chunk is {@code LLLOOOOO [L2] OOOOOOOO}, it copies {@code L + 2} bytes
+ * (or {@code L2 + 9} if {@code L} is 7) from the offset {@code O + 1} bytes behind the current output position.
+ * <p/>
+ * Date: 3/25/13
+ * Time: 9:45 PM
+ *
+ * @author Artem Titov
+ */
+public final class LzfCodec implements CompressionCodec {
+
+    private static final int HASH_SIZE = 1 << 14;
+    private static final int MAX_LITERAL = 1 << 5;
+    private static final int MAX_OFFSET = 1 << 13;
+    private static final int MAX_REFERENCE = (1 << 8) + (1 << 3);
+
+    private static final ThreadLocal<int[]> HASH_TABLES = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[HASH_SIZE];
+        }
+    };
+
+    @Override
+    public int getMaxCompressedLength(final int inputLength) {
+        return inputLength + (inputLength >>> 5) + 2;
+    }
+
+    @Override
+    public int compress(final byte[] input, final byte[] output, final int outputOffset) {
+        final int inputLength = input.length;
+        if (inputLength == 0) {
+            return 0;
+        }
+        // hash table isn't cleared between calls, stale references are rejected by comparing bytes
+        final int[] hashTable = HASH_TABLES.get();
+        int inPos = 0;
+        int outPos = outputOffset + 1;
+        int literals = 0;
+        int future = inputLength > 4 ? first(input, 0) : 0;
+        while (inPos < inputLength - 4) {
+            final byte p2 = input[inPos + 2];
+            future = (future << 8) + (p2 & 0xff);
+            int offset = hash(future);
+            final int reference = hashTable[offset];
+            hashTable[offset] = inPos;
+            if (reference < inPos && reference > 0
+                    && (offset = inPos - reference - 1) < MAX_OFFSET
+                    && input[reference + 2] == p2
+                    && input[reference + 1] == (byte) (future >> 8)
+                    && input[reference] == (byte) (future >> 16)) {
+                int maxLength = inputLength - inPos - 2;
+                if (maxLength > MAX_REFERENCE) {
+                    maxLength = MAX_REFERENCE;
+                }
+                if (literals == 0) {
+                    outPos--;
+                } else {
+                    output[outPos - literals - 1] = (byte) (literals - 1);
+                    literals = 0;
+                }
+                int length = 3;
+                while (length < maxLength && input[reference + length] == input[inPos + length]) {
+                    length++;
+                }
+                length -= 2;
+                if (length < 7) {
+                    output[outPos++] = (byte) ((offset >> 8) + (length << 5));
+                } else {
+                    output[outPos++] = (byte) ((offset >> 8) + (7 << 5));
+                    output[outPos++] = (byte) (length - 7);
+                }
+                output[outPos++] = (byte) offset;
+                outPos++;
+                inPos += length;
+                future = first(input, inPos);
+                future = (future << 8) + (input[inPos + 2] & 0xff);
+                hashTable[hash(future)] = inPos++;
+                future = (future << 8) + (input[inPos + 2] & 0xff);
+                hashTable[hash(future)] = inPos++;
+            } else {
+                output[outPos++] = input[inPos++];
+                literals++;
+                if (literals == MAX_LITERAL) {
+                    output[outPos - literals - 1] = (byte) (literals - 1);
+                    literals = 0;
+                    outPos++;
+                }
+            }
+        }
+        while (inPos < inputLength) {
+            output[outPos++] = input[inPos++];
+            literals++;
+            if (literals == MAX_LITERAL) {
+                output[outPos - literals - 1] = (byte) (literals - 1);
+                literals = 0;
+                outPos++;
+            }
+        }
+        output[outPos - literals - 1] = (byte) (literals - 1);
+        if (literals == 0) {
+            outPos--;
+        }
+        return outPos - outputOffset;
+    }
+
+    @Override
+    public void decompress(final byte[] input, final int inputOffset, final int inputLength, final byte[] output) {
+        final int inputEnd = inputOffset + inputLength;
+        int inPos = inputOffset;
+        int outPos = 0;
+        try {
+            while (inPos < inputEnd) {
+                int control = input[inPos++] & 0xff;
+                if (control < MAX_LITERAL) {
+                    control++;
+                    if (inPos + control > inputEnd) {
+                        throw new IllegalArgumentException("Compressed data is damaged: literal run is truncated");
+                    }
+                    System.arraycopy(input, inPos, output, outPos, control);
+                    outPos += control;
+                    inPos += control;
+                } else {
+                    int length = control >> 5;
+                    if (length == 7 && inPos < inputEnd) {
+                        length += input[inPos++] & 0xff;
+                    }
+                    length += 2;
+                    if (inPos >= inputEnd) {
+                        throw new IllegalArgumentException("Compressed data is damaged: reference is truncated");
+                    }
+                    int reference = outPos - ((control & 0x1f) << 8) - 1 - (input[inPos++] & 0xff);
+                    for (int i = 0; i < length; i++) {
+                        output[outPos++] = output[reference++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Compressed data is damaged", e);
+        }
+        if (outPos != output.length) {
+            throw new IllegalArgumentException(String.format(
+                    "Compressed data is damaged: expected %d bytes, but decompressed %d", output.length, outPos));
+        }
+    }
+
+    private static int first(final byte[] input, final int position) {
+        return (input[position] << 8) | (input[position + 1] & 0xff);
+    }
+
+    private static int hash(final int h) {
+        return ((h * 2777) >> 9) & (HASH_SIZE - 1);
+    }
+}
@@ -0,0 +1,232 @@
+package ru.selena.core.impl.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded cache of blocks read from storage files. One cache is meant to be shared by all files of the node,
+ * each file is identified by id from {@link #newFileId()}, which is never reused, so blocks of removed files are
+ * never returned and just age out.
+ * <p/>
+ * Cache is split to shards by block hash, each shard is guarded by its own lock and uses segmented LRU eviction:
+ * new block goes to the probation segment and is moved to the protected segment only on the second hit. Blocks read
+ * once by compaction or range scan are evicted from probation without touching hot blocks in the protected segment.
+ * <p/>
+ * Date: 3/24/13
+ * Time: 2:15 PM
+ *
+ * @author Artem Titov
+ */
+public final class BlockCache {
+
+    /**
+     * Approximate memory overhead of the map entry, cache key and array header for one block.
+     */
+    private static final int ENTRY_OVERHEAD = 112;
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final AtomicLong FILE_IDS = new AtomicLong();
+
+    private final long capacity;
+    private final Shard[] shards;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong residentBytes = new AtomicLong();
+
+    /**
+     * Create cache.
+     *
+     * @param capacity maximum size of cached blocks in bytes
+     * @param shards   number of independently locked shards
+     */
+    public BlockCache(final long capacity, final int shards) {
+        this.capacity = capacity;
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard(capacity / shards);
+        }
+    }
+
+    /**
+     * Return id for the new file. Ids are unique within the process.
+     *
+     * @return file id
+     */
+    public static long newFileId() {
+        return FILE_IDS.incrementAndGet();
+    }
+
+    /**
+     * Return cached block.
+     *
+     * @param fileId   file id
+     * @param position block position in the file
+     * @return block or null if it isn't cached
+     */
+    public byte[] get(final long fileId, final long position) {
+        final CacheKey key = new CacheKey(fileId, position);
+        final byte[] block = getShard(key).get(key);
+        if (block == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return block;
+    }
+
+    /**
+     * Put block to the cache. Block mustn't be modified after this call.
+     *
+     * @param fileId   file id
+     * @param position block position in the file
+     * @param block    block content
+     */
+    public void put(final long fileId, final long position, final byte[] block) {
+        final CacheKey key = new CacheKey(fileId, position);
+        getShard(key).put(key, block);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Return size of the cached blocks including per block overhead.
+     *
+     * @return size in bytes
+     */
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits: %d, misses: %d, hit ratio: %.4f, evictions: %d, resident bytes: %d",
+                getHits(), getMisses(), getHitRatio(), getEvictions(), getResidentBytes());
+    }
+
+    private Shard getShard(final CacheKey key) {
+        return shards[(key.hashCode() & Integer.MAX_VALUE) % shards.length];
+    }
+
+    private static long getEntrySize(final byte[] block) {
+        return block.length + ENTRY_OVERHEAD;
+    }
+
+    private final class Shard {
+        private final long capacity;
+        private final long protectedCapacity;
+        private final LinkedHashMap<CacheKey, byte[]> probation = new LinkedHashMap<CacheKey, byte[]>(16, 0.75f, true);
+        private final LinkedHashMap<CacheKey, byte[]> protectedBlocks =
+                new LinkedHashMap<CacheKey, byte[]>(16, 0.75f, true);
+        private long probationSize;
+        private long protectedSize;
+
+        private Shard(final long capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+        }
+
+        private synchronized byte[] get(final CacheKey key) {
+            byte[] block = protectedBlocks.get(key);
+            if (block != null) {
+                return block;
+            }
+            block = probation.remove(key);
+            if (block == null) {
+                return null;
+            }
+            final long size = getEntrySize(block);
+            probationSize -= size;
+            protectedBlocks.put(key, block);
+            protectedSize += size;
+            while (protectedSize > protectedCapacity) {
+                final Map.Entry<CacheKey, byte[]> eldest = removeEldest(protectedBlocks);
+                final long eldestSize = getEntrySize(eldest.getValue());
+                protectedSize -= eldestSize;
+                probation.put(eldest.getKey(), eldest.getValue());
+                probationSize += eldestSize;
+            }
+            return block;
+        }
+
+        private synchronized void put(final CacheKey key, final byte[] block) {
+            final long size = getEntrySize(block);
+            if (size > capacity || protectedBlocks.containsKey(key) || probation.containsKey(key)) {
+                return;
+            }
+            probation.put(key, block);
+            probationSize += size;
+            residentBytes.addAndGet(size);
+            while (probationSize + protectedSize > capacity) {
+                final long evicted;
+                if (!probation.isEmpty()) {
+                    evicted = getEntrySize(removeEldest(probation).getValue());
+                    probationSize -= evicted;
+                } else {
+                    evicted = getEntrySize(removeEldest(protectedBlocks).getValue());
+                    protectedSize -= evicted;
+                }
+                residentBytes.addAndGet(-evicted);
+                evictions.incrementAndGet();
+            }
+        }
+
+        private Map.Entry<CacheKey, byte[]> removeEldest(final LinkedHashMap<CacheKey, byte[]> segment) {
+            final Iterator<Map.Entry<CacheKey, byte[]>> iterator = segment.entrySet().iterator();
+            final Map.Entry<CacheKey, byte[]> eldest = iterator.next();
+            iterator.remove();
+            return eldest;
+        }
+    }
+
+    private static final class CacheKey {
+        private final long fileId;
+        private final long position;
+
+        private CacheKey(final long fileId, final long position) {
+            this.fileId = fileId;
+            this.position = position;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey k = (CacheKey) obj;
+            return fileId == k.fileId && position == k.position;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = fileId * 0x9e3779b97f4a7c15L + position;
+            hash ^= hash >>> 32;
+            hash *= 0x9e3779b97f4a7c15L;
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+}
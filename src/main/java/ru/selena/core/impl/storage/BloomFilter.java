@@ -0,0 +1,112 @@
+package ru.selena.core.impl.storage;
+
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang.Validate;
+import ru.selena.model.Key;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Bloom filter over key bytes. Uses 128 bit murmur3 hash split into two 64 bit hashes to simulate any number of hash
+ * functions.
+ * <p/>
+ * Date: 3/15/13
+ * Time: 8:30 PM
+ *
+ * @author Artem Titov
+ */
+public final class BloomFilter {
+
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    private BloomFilter(final long[] bits, final int hashCount) {
+        this.bits = bits;
+        this.bitCount = (long) bits.length * Long.SIZE;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Create empty filter sized for expected number of keys and desired false positive probability.
+     *
+     * @param expectedKeys      expected number of keys
+     * @param falsePositiveRate desired false positive probability, between 0 and 1 exclusively
+     * @return filter
+     * @throws IllegalArgumentException if false positive rate is out of range
+     */
+    public static BloomFilter create(final long expectedKeys, final double falsePositiveRate) {
+        Validate.isTrue(falsePositiveRate > 0 && falsePositiveRate < 1, "False positive rate must be in (0, 1)");
+        final long keys = Math.max(1, expectedKeys);
+        final long bitCount = Math.max(Long.SIZE,
+                (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+        final int hashCount = Math.max(1, (int) Math.round((double) bitCount / keys * Math.log(2)));
+        return new BloomFilter(new long[(int) ((bitCount + Long.SIZE - 1) / Long.SIZE)], hashCount);
+    }
+
+    /**
+     * Read filter written by {@link #writeTo(DataOutput)}.
+     *
+     * @param in input
+     * @return filter
+     * @throws IOException if read failed
+     */
+    public static BloomFilter readFrom(final DataInput in) throws IOException {
+        final int hashCount = in.readInt();
+        final long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits, hashCount);
+    }
+
+    public void writeTo(final DataOutput out) throws IOException {
+        out.writeInt(hashCount);
+        out.writeInt(bits.length);
+        for (final long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    public void add(final Key key) {
+        final long[] hashes = hash(key);
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = index(hashes, i);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Tell is the key might be added to filter.
+     *
+     * @param key key
+     * @return false if key definitely wasn't added and true otherwise
+     */
+    public boolean mightContain(final Key key) {
+        final long[] hashes = hash(key);
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = index(hashes, i);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long index(final long[] hashes, final int i) {
+        return ((hashes[0] + i * hashes[1]) & Long.MAX_VALUE) % bitCount;
+    }
+
+    private static long[] hash(final Key key) {
+        final byte[] hash = Hashing.murmur3_128().hashBytes(key.getValue()).asBytes();
+        long h1 = 0;
+        long h2 = 0;
+        for (int i = 0; i < 8; i++) {
+            h1 |= (hash[i] & 0xffL) << (i * 8);
+            h2 |= (hash[i + 8] & 0xffL) << (i * 8);
+        }
+        return new long[]{h1, h2};
+    }
+}
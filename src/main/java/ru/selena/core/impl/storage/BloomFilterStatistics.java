@@ -0,0 +1,75 @@
+package ru.selena.core.impl.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of bloom filter checks, shared by all tables of one storage. Use them to tune false positive rate: if
+ * false positives ratio is much higher than configured rate, filters are too small.
+ * <p/>
+ * Date: 3/15/13
+ * Time: 9:10 PM
+ *
+ * @author Artem Titov
+ */
+public final class BloomFilterStatistics {
+
+    private final AtomicLong negatives = new AtomicLong();
+    private final AtomicLong positives = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    void onNegative() {
+        negatives.incrementAndGet();
+    }
+
+    void onPositive() {
+        positives.incrementAndGet();
+    }
+
+    void onFalsePositive() {
+        falsePositives.incrementAndGet();
+    }
+
+    /**
+     * Return number of checks which allowed to skip table read.
+     *
+     * @return number of negative answers
+     */
+    public long getNegatives() {
+        return negatives.get();
+    }
+
+    /**
+     * Return number of checks which required table read.
+     *
+     * @return number of positive answers
+     */
+    public long getPositives() {
+        return positives.get();
+    }
+
+    /**
+     * Return number of checks which required table read, but key wasn't found in the table.
+     *
+     * @return number of false positive answers
+     */
+    public long getFalsePositives() {
+        return falsePositives.get();
+    }
+
+    /**
+     * Return observed false positive ratio, i.e. part of the checks for absent keys which required table read.
+     *
+     * @return false positive ratio or 0 if no checks for absent keys were performed
+     */
+    public double getFalsePositiveRatio() {
+        final long falsePositives = this.falsePositives.get();
+        final long absent = negatives.get() + falsePositives;
+        return absent == 0 ? 0 : (double) falsePositives / absent;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("negatives: %d, positives: %d, false positives: %d",
+                getNegatives(), getPositives(), getFalsePositives());
+    }
+}
@@ -0,0 +1,44 @@
+package ru.selena.core.impl.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read file with positioned reads into the heap buffers. Doesn't own the channel, so closing reader doesn't close the
+ * channel.
+ * <p/>
+ * Date: 3/17/13
+ * Time: 4:30 PM
+ *
+ * @author Artem Titov
+ */
+public final class ChannelReader implements PositionedReader {
+
+    private final FileChannel channel;
+
+    public ChannelReader(final FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public ByteBuffer read(final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        long current = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, current);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at " + current);
+            }
+            current += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // channel is owned by the caller
+    }
+}
@@ -0,0 +1,361 @@
+package ru.selena.core.impl.storage;
+
+import com.google.common.collect.AbstractIterator;
+import org.apache.commons.lang.Validate;
+import ru.selena.model.Key;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent open addressing hash table of records which contain their keys, such as data objects. Each slot is an
+ * int key hash in the primitive array and a reference to the record, so the index costs about 16 bytes per record
+ * instead of the entry object, key reference and table slot of {@link java.util.concurrent.ConcurrentHashMap}.
+ * Records with equal hashes are distinguished by {@link Key#equals(Object)} of their keys, which compares key bytes.
+ * <p/>
+ * Index is split to segments by hash, each segment has its own lock for modifications and its own table. Reads don't
+ * take locks: table slots are published through {@link AtomicReferenceArray} and grown table replaces the old one
+ * only after it is filled. Removed records leave markers, so linear probing of concurrent readers is never broken,
+ * markers are dropped when segment table is rebuilt. Iteration is weakly consistent, as for concurrent collections.
+ * <p/>
+ * Date: 3/30/13
+ * Time: 8:40 PM
+ *
+ * @author Artem Titov
+ */
+public final class ConcurrentIntHashIndex<V> {
+
+    private static final Object REMOVED = new Object();
+    private static final double MAX_LOAD_FACTOR = 0.75;
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+    private static final int MIN_SEGMENT_CAPACITY = 4;
+
+    private final KeyExtractor<V> keyExtractor;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int initialSegmentCapacity;
+
+    public ConcurrentIntHashIndex(final KeyExtractor<V> keyExtractor) {
+        this(keyExtractor, DEFAULT_INITIAL_CAPACITY, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Create index.
+     *
+     * @param keyExtractor     returns key of the record
+     * @param initialCapacity  expected number of records
+     * @param concurrencyLevel number of segments, will be rounded up to power of two
+     */
+    public ConcurrentIntHashIndex(final KeyExtractor<V> keyExtractor,
+                                  final int initialCapacity,
+                                  final int concurrencyLevel) {
+        Validate.notNull(keyExtractor, "Key extractor can't be null");
+        Validate.isTrue(initialCapacity >= 0, "Initial capacity can't be negative");
+        Validate.isTrue(concurrencyLevel > 0, "Concurrency level must be positive");
+        final int segmentCount = roundUpToPowerOfTwo(Math.min(concurrencyLevel, 1 << 16));
+        this.keyExtractor = keyExtractor;
+        this.segments = new Segment[segmentCount];
+        this.segmentShift = Integer.SIZE - Integer.numberOfTrailingZeros(segmentCount);
+        this.initialSegmentCapacity = roundUpToPowerOfTwo(Math.max(MIN_SEGMENT_CAPACITY,
+                (int) Math.ceil(initialCapacity / MAX_LOAD_FACTOR / segmentCount)));
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(initialSegmentCapacity);
+        }
+    }
+
+    /**
+     * Find record by key.
+     *
+     * @param key key
+     * @return record or null if index doesn't contain the key
+     */
+    public V get(final Key key) {
+        final int hash = key.hashCode();
+        final int spread = spread(hash);
+        final Table table = segmentFor(spread).table;
+        for (int slot = spread & table.mask; ; slot = (slot + 1) & table.mask) {
+            final Object value = table.values.get(slot);
+            if (value == null) {
+                return null;
+            }
+            if (value != REMOVED && table.hashes[slot] == hash && keyOf(value).equals(key)) {
+                return cast(value);
+            }
+        }
+    }
+
+    /**
+     * Put record replacing the record with the same key.
+     *
+     * @param value record
+     * @return replaced record or null
+     */
+    public V put(final V value) {
+        final Key key = keyExtractor.getKey(value);
+        final int hash = key.hashCode();
+        final int spread = spread(hash);
+        final Segment segment = segmentFor(spread);
+        segment.lock();
+        try {
+            final int slot = find(segment.table, key, hash, spread);
+            if (slot >= 0) {
+                return cast(segment.table.values.getAndSet(slot, value));
+            }
+            insert(segment, -slot - 1, hash, value);
+            return null;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Put record if index doesn't contain its key.
+     *
+     * @param value record
+     * @return existing record with the same key or null if record was put
+     */
+    public V putIfAbsent(final V value) {
+        final Key key = keyExtractor.getKey(value);
+        final int hash = key.hashCode();
+        final int spread = spread(hash);
+        final Segment segment = segmentFor(spread);
+        segment.lock();
+        try {
+            final int slot = find(segment.table, key, hash, spread);
+            if (slot >= 0) {
+                return cast(segment.table.values.get(slot));
+            }
+            insert(segment, -slot - 1, hash, value);
+            return null;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Replace record only if index contains the expected one. Records must have the same key.
+     *
+     * @param expected expected record
+     * @param value    new record
+     * @return true if record was replaced
+     */
+    public boolean replace(final V expected, final V value) {
+        final Key key = keyExtractor.getKey(value);
+        final int hash = key.hashCode();
+        final int spread = spread(hash);
+        final Segment segment = segmentFor(spread);
+        segment.lock();
+        try {
+            final int slot = find(segment.table, key, hash, spread);
+            return slot >= 0 && segment.table.values.compareAndSet(slot, expected, value);
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Remove record only if index contains the expected one.
+     *
+     * @param expected expected record
+     * @return true if record was removed
+     */
+    public boolean remove(final V expected) {
+        final Key key = keyExtractor.getKey(expected);
+        final int hash = key.hashCode();
+        final int spread = spread(hash);
+        final Segment segment = segmentFor(spread);
+        segment.lock();
+        try {
+            final int slot = find(segment.table, key, hash, spread);
+            if (slot < 0 || !segment.table.values.compareAndSet(slot, expected, REMOVED)) {
+                return false;
+            }
+            segment.size--;
+            return true;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    /**
+     * Return number of records. Result is exact only if index isn't modified concurrently.
+     *
+     * @return size
+     */
+    public int size() {
+        long size = 0;
+        for (final Segment segment : segments) {
+            size += segment.size;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return memory occupied by slot arrays.
+     *
+     * @return size in bytes, assuming compressed references
+     */
+    public long getCapacityBytes() {
+        long capacity = 0;
+        for (final Segment segment : segments) {
+            capacity += segment.table.values.length();
+        }
+        return capacity * (Integer.SIZE / Byte.SIZE) * 2;
+    }
+
+    public void clear() {
+        for (final Segment segment : segments) {
+            segment.lock();
+            try {
+                segment.table = new Table(initialSegmentCapacity);
+                segment.size = 0;
+                segment.used = 0;
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    /**
+     * Return weakly consistent iterator over records. Iterator doesn't support removal.
+     *
+     * @return iterator
+     */
+    public Iterator<V> iterator() {
+        return new AbstractIterator<V>() {
+            private int segment = -1;
+            private Table table;
+            private int slot;
+
+            @Override
+            protected V computeNext() {
+                while (true) {
+                    if (table == null || slot > table.mask) {
+                        if (++segment == segments.length) {
+                            return endOfData();
+                        }
+                        table = segments[segment].table;
+                        slot = 0;
+                        continue;
+                    }
+                    final Object value = table.values.get(slot++);
+                    if (value != null && value != REMOVED) {
+                        return cast(value);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Find slot of the key. Caller must hold segment lock.
+     *
+     * @return slot of the key or {@code -slot - 1} of the first free slot
+     */
+    private int find(final Table table, final Key key, final int hash, final int spread) {
+        for (int slot = spread & table.mask; ; slot = (slot + 1) & table.mask) {
+            final Object value = table.values.get(slot);
+            if (value == null) {
+                return -slot - 1;
+            }
+            if (value != REMOVED && table.hashes[slot] == hash && keyOf(value).equals(key)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Put record to the free slot and rebuild table if it's too full. Caller must hold segment lock.
+     */
+    private void insert(final Segment segment, final int slot, final int hash, final V value) {
+        final Table table = segment.table;
+        // hash must be visible to readers before the value
+        table.hashes[slot] = hash;
+        table.values.set(slot, value);
+        segment.size++;
+        if (++segment.used > MAX_LOAD_FACTOR * (table.mask + 1)) {
+            rebuild(segment);
+        }
+    }
+
+    /**
+     * Copy live records to the new table, which is twice larger if removed records don't take half of slots.
+     */
+    private void rebuild(final Segment segment) {
+        final Table old = segment.table;
+        final int capacity = segment.size > MAX_LOAD_FACTOR * (old.mask + 1) / 2 ? (old.mask + 1) << 1 : old.mask + 1;
+        final Table table = new Table(capacity);
+        for (int oldSlot = 0; oldSlot <= old.mask; oldSlot++) {
+            final Object value = old.values.get(oldSlot);
+            if (value == null || value == REMOVED) {
+                continue;
+            }
+            final int hash = old.hashes[oldSlot];
+            int slot = spread(hash) & table.mask;
+            while (table.values.get(slot) != null) {
+                slot = (slot + 1) & table.mask;
+            }
+            table.hashes[slot] = hash;
+            table.values.set(slot, value);
+        }
+        segment.used = segment.size;
+        segment.table = table;
+    }
+
+    private Segment segmentFor(final int spread) {
+        return segments[segmentShift == Integer.SIZE ? 0 : spread >>> segmentShift];
+    }
+
+    private Key keyOf(final Object value) {
+        return keyExtractor.getKey(ConcurrentIntHashIndex.<V>cast(value));
+    }
+
+    /**
+     * Mix key hash, so dense hashes of short keys are distributed over segments and slots.
+     */
+    private static int spread(final int hash) {
+        final int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int roundUpToPowerOfTwo(final int value) {
+        return Integer.highestOneBit(Math.max(value, 2) - 1) << 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V cast(final Object value) {
+        return (V) value;
+    }
+
+    /**
+     * Return key of the record.
+     */
+    public interface KeyExtractor<V> {
+
+        Key getKey(final V value);
+    }
+
+    private static final class Table {
+        private final int[] hashes;
+        private final AtomicReferenceArray<Object> values;
+        private final int mask;
+
+        private Table(final int capacity) {
+            this.hashes = new int[capacity];
+            this.values = new AtomicReferenceArray<Object>(capacity);
+            this.mask = capacity - 1;
+        }
+    }
+
+    private static final class Segment extends ReentrantLock {
+        private volatile Table table;
+        private volatile int size;
+        private int used;
+
+        private Segment(final int capacity) {
+            this.table = new Table(capacity);
+        }
+    }
+}
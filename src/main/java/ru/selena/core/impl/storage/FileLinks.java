@@ -0,0 +1,77 @@
+package ru.selena.core.impl.storage;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Creates hard links of immutable files. Hard link costs the same for any file size and doesn't take disk space, so
+ * snapshot of the storage files is made in milliseconds. Links are created by {@code java.nio.file.Files} found by
+ * reflection, because project is compiled for Java 6. If it isn't available or file system doesn't support hard links,
+ * file is copied.
+ * <p/>
+ * Link shares content with the original file, so only files which are never modified in place can be linked.
+ * <p/>
+ * Date: 3/31/13
+ * Time: 2:40 PM
+ *
+ * @author Artem Titov
+ */
+public final class FileLinks {
+    private static final Logger log = LoggerFactory.getLogger(FileLinks.class);
+
+    private static final Method TO_PATH;
+    private static final Method CREATE_LINK;
+
+    static {
+        Method toPath = null;
+        Method createLink = null;
+        try {
+            toPath = File.class.getMethod("toPath");
+            final Class<?> pathClass = Class.forName("java.nio.file.Path");
+            createLink = Class.forName("java.nio.file.Files").getMethod("createLink", pathClass, pathClass);
+        } catch (ClassNotFoundException e) {
+            log.info("Hard links aren't supported by the runtime, files will be copied");
+        } catch (NoSuchMethodException e) {
+            log.info("Hard links aren't supported by the runtime, files will be copied");
+        }
+        TO_PATH = createLink != null ? toPath : null;
+        CREATE_LINK = createLink;
+    }
+
+    private FileLinks() {
+        throw new AssertionError("This class not for instantiation");
+    }
+
+    /**
+     * Create hard link to the file or copy it if hard link can't be created.
+     *
+     * @param existing existing file
+     * @param link     new file, must not exist
+     * @throws IOException if neither link nor copy could be created
+     */
+    public static void link(final File existing, final File link) throws IOException {
+        if (link.exists()) {
+            throw new IOException("File already exists: " + link);
+        }
+        if (CREATE_LINK != null) {
+            try {
+                CREATE_LINK.invoke(null, TO_PATH.invoke(link), TO_PATH.invoke(existing));
+                return;
+            } catch (IllegalAccessException e) {
+                throw new IOException("Failed to link " + existing, e);
+            } catch (InvocationTargetException e) {
+                if (!(e.getCause() instanceof IOException) && !(e.getCause() instanceof UnsupportedOperationException)) {
+                    throw new IOException("Failed to link " + existing, e.getCause());
+                }
+                log.debug(String.format("Failed to link %s, file will be copied", existing), e.getCause());
+            }
+        }
+        FileUtils.copyFile(existing, link);
+    }
+}
@@ -0,0 +1,147 @@
+package ru.selena.core.impl.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append records to the segment with group commit. Concurrent appends are collected into batches, each batch is
+ * written with one write and, if {@link SyncPolicy#EVERY_WRITE} is used, flushed to the disk with one fsync. The
+ * first thread which finds no batch in progress becomes a leader and writes all records collected so far, other
+ * threads wait for it.
+ * <p/>
+ * Date: 3/19/13
+ * Time: 10:45 PM
+ *
+ * @author Artem Titov
+ */
+public final class GroupCommitLog {
+
+    private final Segment segment;
+    private final SyncPolicy syncPolicy;
+    private final Object lock = new Object();
+    private List<PendingWrite> pending = new ArrayList<PendingWrite>();
+    private boolean writing;
+    private volatile boolean dirty;
+
+    public GroupCommitLog(final Segment segment, final SyncPolicy syncPolicy) {
+        this.segment = segment;
+        this.syncPolicy = syncPolicy;
+    }
+
+    public Segment getSegment() {
+        return segment;
+    }
+
+    /**
+     * Append record and wait until it is written and, depending on sync policy, flushed to the disk.
+     *
+     * @param record record bytes
+     * @return offset of the record in the segment
+     * @throws IOException if write or flush failed
+     */
+    public long append(final byte[] record) throws IOException {
+        final PendingWrite write = new PendingWrite(record);
+        final List<PendingWrite> batch;
+        boolean interrupted = false;
+        synchronized (lock) {
+            pending.add(write);
+            while (writing && !write.done) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (write.done) {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return write.getOffset();
+            }
+            writing = true;
+            batch = pending;
+            pending = new ArrayList<PendingWrite>();
+        }
+        try {
+            writeBatch(batch);
+        } finally {
+            synchronized (lock) {
+                writing = false;
+                lock.notifyAll();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return write.getOffset();
+    }
+
+    /**
+     * Flush to the disk all records written since previous flush. Does nothing if there were no such records.
+     *
+     * @throws IOException if flush failed
+     */
+    public void sync() throws IOException {
+        if (dirty) {
+            dirty = false;
+            segment.sync();
+        }
+    }
+
+    private void writeBatch(final List<PendingWrite> batch) {
+        int length = 0;
+        for (final PendingWrite write : batch) {
+            length += write.record.length;
+        }
+        final byte[] buffer;
+        if (batch.size() == 1) {
+            buffer = batch.get(0).record;
+        } else {
+            buffer = new byte[length];
+            int position = 0;
+            for (final PendingWrite write : batch) {
+                System.arraycopy(write.record, 0, buffer, position, write.record.length);
+                position += write.record.length;
+            }
+        }
+        long offset = 0;
+        IOException error = null;
+        try {
+            offset = segment.append(buffer);
+            if (syncPolicy == SyncPolicy.EVERY_WRITE) {
+                segment.sync();
+            } else {
+                dirty = true;
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (lock) {
+            for (final PendingWrite write : batch) {
+                write.offset = offset;
+                write.error = error;
+                write.done = true;
+                offset += write.record.length;
+            }
+        }
+    }
+
+    private static final class PendingWrite {
+        private final byte[] record;
+        private long offset;
+        private IOException error;
+        private boolean done;
+
+        private PendingWrite(final byte[] record) {
+            this.record = record;
+        }
+
+        private long getOffset() throws IOException {
+            if (error != null) {
+                throw new IOException("Failed to write record to the log", error);
+            }
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package ru.selena.core.impl.storage;
+
+import ru.selena.Factories;
+import ru.selena.model.Key;
+import ru.selena.model.Version;
+import ru.selena.net.utils.SerializationUtils;
+import ru.selena.utils.NumberUtils;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Checkpoint of the segment part of key directory. Hint file contains key, version and location of every record of
+ * the immutable segment, so key directory can be restored without reading data records.
+ * <p/>
+ * Format: {@code [magic 4][segment size 8][count 4] entries [crc 4]}, where each entry is
+ * {@code [key length 4][key][version length 4][version][offset 8][record length 4]} and crc covers everything before
+ * it. Hint is valid only for segment of the recorded size.
+ * <p/>
+ * Date: 3/23/13
+ * Time: 4:10 PM
+ *
+ * @author Artem Titov
+ */
+public final class HintFile {
+
+    private static final int MAGIC = 0x5e1e0b17;
+    private static final int CRC_SIZE = 4;
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    private HintFile() {
+    }
+
+    /**
+     * Scan immutable segment and write its hint file. Hint is written to the temporary file and then renamed, so
+     * hint file is always complete.
+     *
+     * @param file    hint file
+     * @param segment immutable segment
+     * @throws IOException if failed to read segment or write hint
+     */
+    public static void write(final File file, final Segment segment) throws IOException {
+        final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        final DataOutputStream entriesOut = new DataOutputStream(entries);
+        final AtomicInteger count = new AtomicInteger();
+        final long segmentSize = segment.scan(new Segment.RecordVisitor() {
+            @Override
+            public void onRecord(final long offset, final byte[] record) {
+                final AtomicInteger position = new AtomicInteger(RecordUtils.HEADER_SIZE);
+                final byte[] key = SerializationUtils.deserializeMeasuredArray(record, position);
+                final byte[] version = SerializationUtils.deserializeMeasuredArray(record, position);
+                try {
+                    entriesOut.writeInt(key.length);
+                    entriesOut.write(key);
+                    entriesOut.writeInt(version.length);
+                    entriesOut.write(version);
+                    entriesOut.writeLong(offset);
+                    entriesOut.writeInt(record.length);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to write to memory", e);
+                }
+                count.incrementAndGet();
+            }
+        });
+        final File temporaryFile = new File(file.getPath() + TEMPORARY_FILE_SUFFIX);
+        final FileOutputStream fileOut = new FileOutputStream(temporaryFile);
+        try {
+            final CheckedOutputStream checkedOut =
+                    new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+            final DataOutputStream out = new DataOutputStream(checkedOut);
+            out.writeInt(MAGIC);
+            out.writeLong(segmentSize);
+            out.writeInt(count.get());
+            entries.writeTo(out);
+            out.writeInt((int) checkedOut.getChecksum().getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            throw new IOException(String.format("Failed to rename %s to %s", temporaryFile, file));
+        }
+    }
+
+    /**
+     * Read hint file.
+     *
+     * @param file        hint file
+     * @param segmentSize actual size of the segment
+     * @param visitor     receives entries, isn't called if hint is invalid
+     * @return true if hint has been read, false if it doesn't exist, is damaged or is written for segment of other size
+     * @throws IOException if read failed
+     */
+    public static boolean read(final File file, final long segmentSize, final EntryVisitor visitor)
+            throws IOException {
+        if (!file.isFile() || file.length() < CRC_SIZE) {
+            return false;
+        }
+        final byte[] content = new byte[(int) file.length()];
+        final DataInputStream fileIn = new DataInputStream(new FileInputStream(file));
+        try {
+            fileIn.readFully(content);
+        } finally {
+            fileIn.close();
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - CRC_SIZE);
+        if (NumberUtils.toInt(content, content.length - CRC_SIZE) != (int) crc.getValue()) {
+            return false;
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        try {
+            if (in.readInt() != MAGIC || in.readLong() != segmentSize) {
+                return false;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                final byte[] version = new byte[in.readInt()];
+                in.readFully(version);
+                visitor.onEntry(Factories.Instances.getKeyFactory().createKey(key),
+                        Factories.Instances.getVersionFactory().createVersion(version), in.readLong(), in.readInt());
+            }
+        } catch (EOFException e) {
+            throw new IOException("Hint file is damaged: " + file, e);
+        }
+        return true;
+    }
+
+    /**
+     * Receive entries read from the hint file.
+     */
+    public interface EntryVisitor {
+
+        /**
+         * Process next entry.
+         *
+         * @param key     record key
+         * @param version record version
+         * @param offset  record offset in the segment
+         * @param length  record length including header
+         */
+        void onEntry(final Key key, final Version version, final long offset, final int length);
+    }
+}
@@ -0,0 +1,85 @@
+package ru.selena.core.impl.storage;
+
+import ru.selena.model.Key;
+import ru.selena.utils.NumberUtils;
+
+import java.util.Comparator;
+
+/**
+ * Order keys by their token (integer value of {@link Key#getHash()}, the same one which is used in the key ring) and
+ * then by key bytes. So sorted storage structures keep keys of one ring segment together.
+ * <p/>
+ * Date: 3/12/13
+ * Time: 10:02 PM
+ *
+ * @author Artem Titov
+ */
+public final class KeyComparator implements Comparator<Key> {
+
+    public static final KeyComparator INSTANCE = new KeyComparator();
+
+    private KeyComparator() {
+    }
+
+    /**
+     * Return key which is less than any key with the specified token and greater than any key with lower token.
+     * Such key can be used only as a bound in sorted structures.
+     *
+     * @param token token
+     * @return bound key
+     */
+    public static Key lowestKey(final int token) {
+        return new BoundKey(token);
+    }
+
+    @Override
+    public int compare(final Key k1, final Key k2) {
+        final int t1 = NumberUtils.toInt(k1.getHash());
+        final int t2 = NumberUtils.toInt(k2.getHash());
+        if (t1 != t2) {
+            return t1 < t2 ? -1 : 1;
+        }
+        return compareBytes(k1.getValue(), k2.getValue());
+    }
+
+    /**
+     * Compare byte arrays lexicographically treating bytes as unsigned.
+     *
+     * @param a first array
+     * @param b second array
+     * @return negative number, zero or positive number if first array is less than, equal to or greater than second
+     */
+    public static int compareBytes(final byte[] a, final byte[] b) {
+        final int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            final int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Key with empty value.
+     */
+    private static final class BoundKey implements Key {
+        private static final byte[] EMPTY_VALUE = new byte[0];
+
+        private final byte[] hash;
+
+        private BoundKey(final int token) {
+            this.hash = NumberUtils.toByteArray(token);
+        }
+
+        @Override
+        public byte[] getValue() {
+            return EMPTY_VALUE;
+        }
+
+        @Override
+        public byte[] getHash() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ru.selena.core.impl.storage;
+
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Paged range iterator for storages which list keys of the page first and then read objects one by one. Key which
+ * has been removed between listing and reading is skipped, and the page is topped up by the keys after the last
+ * listed one, so short page still means end of range.
+ * <p/>
+ * Date: 3/31/13
+ * Time: 11:40 PM
+ *
+ * @author Artem Titov
+ */
+public abstract class KeyPagedRangeIterator extends PagedRangeIterator {
+
+    protected KeyPagedRangeIterator(final TokenRange range, final int pageSize) {
+        super(range, pageSize);
+    }
+
+    /**
+     * List keys of the page.
+     *
+     * @param range range
+     * @param after last key of the previous page or null for the first page
+     * @param limit maximum number of keys
+     * @return keys in ring order, list shorter than limit means end of range
+     * @throws DataStoreException if read failed
+     */
+    protected abstract List<Key> loadKeys(final TokenRange range, final Key after, final int limit)
+            throws DataStoreException;
+
+    /**
+     * Read data object.
+     *
+     * @param key key
+     * @return data object
+     * @throws NoSuchElementException if key has been removed
+     * @throws DataStoreException     if read failed
+     */
+    protected abstract DataObject load(final Key key) throws DataStoreException;
+
+    @Override
+    protected final List<DataObject> loadPage(final TokenRange range, final Key after, final int limit)
+            throws DataStoreException {
+        final List<DataObject> dataObjects = new ArrayList<DataObject>(limit);
+        Key last = after;
+        while (dataObjects.size() < limit) {
+            final int requested = limit - dataObjects.size();
+            final List<Key> keys = loadKeys(range, last, requested);
+            for (final Key key : keys) {
+                try {
+                    dataObjects.add(load(key));
+                } catch (NoSuchElementException e) {
+                    // removed concurrently
+                }
+            }
+            if (keys.size() < requested) {
+                break;
+            }
+            last = keys.get(keys.size() - 1);
+        }
+        return dataObjects;
+    }
+}
@@ -0,0 +1,81 @@
+package ru.selena.core.impl.storage;
+
+import org.apache.commons.lang.Validate;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read immutable file through memory mapping. Single mapping can't exceed 2 GB, so file is mapped by windows of
+ * configured size. Reads inside one window return slice of the mapping without any copying, reads crossing window
+ * boundary are copied to the heap buffer.
+ * <p/>
+ * File must not be changed while reader is used.
+ * <p/>
+ * Date: 3/17/13
+ * Time: 4:50 PM
+ *
+ * @author Artem Titov
+ */
+public final class MappedReader implements PositionedReader {
+
+    private final MappedByteBuffer[] windows;
+    private final long windowSize;
+    private final long length;
+
+    /**
+     * Map file.
+     *
+     * @param channel    file channel
+     * @param length     number of bytes from the file beginning to map
+     * @param windowSize size of one mapping, not greater than {@link Integer#MAX_VALUE}
+     * @throws IOException if mapping failed
+     */
+    public MappedReader(final FileChannel channel, final long length, final long windowSize) throws IOException {
+        Validate.isTrue(windowSize > 0 && windowSize <= Integer.MAX_VALUE,
+                "Mapping window size must be positive and not greater than " + Integer.MAX_VALUE);
+        this.windowSize = windowSize;
+        this.length = length;
+        this.windows = new MappedByteBuffer[(int) ((length + windowSize - 1) / windowSize)];
+        for (int i = 0; i < windows.length; i++) {
+            final long start = i * windowSize;
+            windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, length - start));
+        }
+    }
+
+    @Override
+    public ByteBuffer read(final long position, final int length) throws IOException {
+        if (position < 0 || position + length > this.length) {
+            throw new EOFException(String.format("Can't read %d bytes at %d, mapped length is %d",
+                    length, position, this.length));
+        }
+        int window = (int) (position / windowSize);
+        int offset = (int) (position % windowSize);
+        if (offset + length <= windows[window].capacity()) {
+            final ByteBuffer slice = windows[window].duplicate();
+            slice.position(offset);
+            slice.limit(offset + length);
+            return slice.slice();
+        }
+        final byte[] result = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            final ByteBuffer part = windows[window].duplicate();
+            part.position(offset);
+            final int count = Math.min(length - copied, part.remaining());
+            part.get(result, copied, count);
+            copied += count;
+            window++;
+            offset = 0;
+        }
+        return ByteBuffer.wrap(result);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // mapping is released when buffers become unreachable
+    }
+}
@@ -0,0 +1,108 @@
+package ru.selena.core.impl.storage;
+
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.net.utils.SerializationUtils;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent sorted in-memory table which collects latest writes before they are flushed to the disk.
+ * <p/>
+ * Date: 3/12/13
+ * Time: 10:30 PM
+ *
+ * @author Artem Titov
+ */
+public final class Memtable {
+
+    /**
+     * Approximate memory overhead of the skip list node and object headers for one entry.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final int id;
+    private final ConcurrentNavigableMap<Key, DataObject> data =
+            new ConcurrentSkipListMap<Key, DataObject>(KeyComparator.INSTANCE);
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Create memtable.
+     *
+     * @param id id of the table this memtable will be flushed to
+     */
+    public Memtable(final int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public DataObject get(final Key key) {
+        return data.get(key);
+    }
+
+    /**
+     * Store data object. Version check isn't performed here.
+     *
+     * @param dataObject data object
+     */
+    public void put(final DataObject dataObject) {
+        final DataObject old = data.put(dataObject.getKey(), dataObject);
+        long delta = getEntrySize(dataObject);
+        if (old != null) {
+            delta -= getEntrySize(old);
+        }
+        size.addAndGet(delta);
+    }
+
+    /**
+     * Return approximate memory occupied by memtable in bytes.
+     *
+     * @return size in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * Return number of entries. Takes time proportional to number of entries.
+     *
+     * @return number of entries
+     */
+    public int getCount() {
+        return data.size();
+    }
+
+    public boolean isEmpty() {
+        return data.isEmpty();
+    }
+
+    /**
+     * Return data objects sorted by {@link KeyComparator}.
+     *
+     * @return data objects
+     */
+    public Collection<DataObject> values() {
+        return data.values();
+    }
+
+    /**
+     * Return data objects sorted by {@link KeyComparator} starting from the first one which key isn't less than
+     * specified one.
+     *
+     * @param from lower bound key
+     * @return data objects
+     */
+    public Collection<DataObject> values(final Key from) {
+        return data.tailMap(from).values();
+    }
+
+    private static long getEntrySize(final DataObject dataObject) {
+        return SerializationUtils.getRequiredSize(dataObject) + ENTRY_OVERHEAD;
+    }
+}
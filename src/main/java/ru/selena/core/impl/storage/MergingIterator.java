@@ -0,0 +1,79 @@
+package ru.selena.core.impl.storage;
+
+import com.google.common.collect.AbstractIterator;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merge several sorted entry iterators into one sorted iterator. If several sources contain the same key, only the
+ * entry with the newest version is returned; for equal versions the entry from the source with lower index wins, so
+ * sources must be ordered from the newest to the oldest one.
+ * <p/>
+ * Date: 3/13/13
+ * Time: 12:40 AM
+ *
+ * @author Artem Titov
+ */
+public final class MergingIterator extends AbstractIterator<SSTable.Entry> {
+
+    private static final Comparator<Head> HEAD_COMPARATOR = new Comparator<Head>() {
+        @Override
+        public int compare(final Head h1, final Head h2) {
+            final int cmp = KeyComparator.INSTANCE.compare(h1.entry.getKey(), h2.entry.getKey());
+            if (cmp != 0) {
+                return cmp;
+            }
+            return h1.source - h2.source;
+        }
+    };
+
+    private final List<? extends Iterator<SSTable.Entry>> sources;
+    private final PriorityQueue<Head> heads;
+
+    public MergingIterator(final List<? extends Iterator<SSTable.Entry>> sources) {
+        this.sources = sources;
+        this.heads = new PriorityQueue<Head>(Math.max(1, sources.size()), HEAD_COMPARATOR);
+        for (int i = 0; i < sources.size(); i++) {
+            advance(i);
+        }
+    }
+
+    @Override
+    protected SSTable.Entry computeNext() {
+        final Head head = heads.poll();
+        if (head == null) {
+            return endOfData();
+        }
+        SSTable.Entry result = head.entry;
+        advance(head.source);
+        while (!heads.isEmpty()
+                && KeyComparator.INSTANCE.compare(heads.peek().entry.getKey(), result.getKey()) == 0) {
+            final Head duplicate = heads.poll();
+            if (duplicate.entry.getVersion().isAfter(result.getVersion())) {
+                result = duplicate.entry;
+            }
+            advance(duplicate.source);
+        }
+        return result;
+    }
+
+    private void advance(final int source) {
+        final Iterator<SSTable.Entry> iterator = sources.get(source);
+        if (iterator.hasNext()) {
+            heads.add(new Head(iterator.next(), source));
+        }
+    }
+
+    private static final class Head {
+        private final SSTable.Entry entry;
+        private final int source;
+
+        private Head(final SSTable.Entry entry, final int source) {
+            this.entry = entry;
+            this.source = source;
+        }
+    }
+}
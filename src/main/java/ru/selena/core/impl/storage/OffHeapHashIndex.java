@@ -0,0 +1,193 @@
+package ru.selena.core.impl.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Open addressing hash table from key hash to chunk address, stored in the direct buffer. Keys aren't stored in the
+ * index, candidates with equal hash are checked by {@link AddressMatcher}. Slot of the removed entry is taken by the
+ * following entries of the same probe sequence, so linear probing always stops at the first empty slot. Not thread
+ * safe.
+ * <p/>
+ * Date: 3/21/13
+ * Time: 11:05 PM
+ *
+ * @author Artem Titov
+ */
+public final class OffHeapHashIndex {
+
+    private static final int SLOT_SIZE = 12;
+    private static final int ADDRESS_OFFSET = 4;
+    private static final double MAX_LOAD_FACTOR = 0.75;
+
+    private ByteBuffer slots;
+    private int mask;
+    private int size;
+
+    /**
+     * Create index.
+     *
+     * @param initialCapacity initial number of slots, will be rounded up to power of two
+     */
+    public OffHeapHashIndex(final int initialCapacity) {
+        allocate(Integer.highestOneBit(Math.max(initialCapacity, 2) - 1) << 1);
+    }
+
+    /**
+     * Find address by hash.
+     *
+     * @param hash    key hash
+     * @param matcher checks whether address contains the key
+     * @return address or {@link SlabAllocator#NULL_ADDRESS} if not found
+     */
+    public long get(final int hash, final AddressMatcher matcher) {
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            final long address = getAddress(slot);
+            if (address == SlabAllocator.NULL_ADDRESS) {
+                return SlabAllocator.NULL_ADDRESS;
+            }
+            if (getHash(slot) == hash && matcher.matches(address)) {
+                return address;
+            }
+        }
+    }
+
+    /**
+     * Put address to the index replacing address of the same key.
+     *
+     * @param hash    key hash
+     * @param address new address
+     * @param matcher checks whether address contains the key
+     * @return replaced address or {@link SlabAllocator#NULL_ADDRESS} if key is new
+     */
+    public long put(final int hash, final long address, final AddressMatcher matcher) {
+        int slot = hash & mask;
+        for (; ; slot = (slot + 1) & mask) {
+            final long old = getAddress(slot);
+            if (old == SlabAllocator.NULL_ADDRESS) {
+                break;
+            }
+            if (getHash(slot) == hash && matcher.matches(old)) {
+                setSlot(slot, hash, address);
+                return old;
+            }
+        }
+        setSlot(slot, hash, address);
+        if (++size > MAX_LOAD_FACTOR * (mask + 1)) {
+            resize();
+        }
+        return SlabAllocator.NULL_ADDRESS;
+    }
+
+    /**
+     * Remove address of the key from the index.
+     *
+     * @param hash    key hash
+     * @param matcher checks whether address contains the key
+     * @return removed address or {@link SlabAllocator#NULL_ADDRESS} if not found
+     */
+    public long remove(final int hash, final AddressMatcher matcher) {
+        int slot = hash & mask;
+        for (; ; slot = (slot + 1) & mask) {
+            final long address = getAddress(slot);
+            if (address == SlabAllocator.NULL_ADDRESS) {
+                return SlabAllocator.NULL_ADDRESS;
+            }
+            if (getHash(slot) == hash && matcher.matches(address)) {
+                break;
+            }
+        }
+        final long removed = getAddress(slot);
+        int empty = slot;
+        for (int next = (empty + 1) & mask; ; next = (next + 1) & mask) {
+            final long address = getAddress(next);
+            if (address == SlabAllocator.NULL_ADDRESS) {
+                break;
+            }
+            // entry can be moved back if the empty slot is between its home slot and its current slot
+            final int home = getHash(next) & mask;
+            if (((next - home) & mask) >= ((next - empty) & mask)) {
+                setSlot(empty, getHash(next), address);
+                empty = next;
+            }
+        }
+        setSlot(empty, 0, SlabAllocator.NULL_ADDRESS);
+        size--;
+        return removed;
+    }
+
+    /**
+     * Pass all addresses of the index to visitor.
+     *
+     * @param visitor visitor
+     */
+    public void visit(final AddressVisitor visitor) {
+        for (int slot = 0; slot <= mask; slot++) {
+            final long address = getAddress(slot);
+            if (address != SlabAllocator.NULL_ADDRESS) {
+                visitor.onAddress(address);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return memory occupied by index.
+     *
+     * @return size in bytes
+     */
+    public long getCapacityBytes() {
+        return slots.capacity();
+    }
+
+    private void resize() {
+        final ByteBuffer oldSlots = slots;
+        final int oldSlotCount = mask + 1;
+        allocate(oldSlotCount << 1);
+        for (int oldSlot = 0; oldSlot < oldSlotCount; oldSlot++) {
+            final long address = oldSlots.getLong(oldSlot * SLOT_SIZE + ADDRESS_OFFSET);
+            if (address == SlabAllocator.NULL_ADDRESS) {
+                continue;
+            }
+            final int hash = oldSlots.getInt(oldSlot * SLOT_SIZE);
+            int slot = hash & mask;
+            while (getAddress(slot) != SlabAllocator.NULL_ADDRESS) {
+                slot = (slot + 1) & mask;
+            }
+            setSlot(slot, hash, address);
+        }
+    }
+
+    private void allocate(final int slotCount) {
+        slots = ByteBuffer.allocateDirect(slotCount * SLOT_SIZE);
+        mask = slotCount - 1;
+    }
+
+    private int getHash(final int slot) {
+        return slots.getInt(slot * SLOT_SIZE);
+    }
+
+    private long getAddress(final int slot) {
+        return slots.getLong(slot * SLOT_SIZE + ADDRESS_OFFSET);
+    }
+
+    private void setSlot(final int slot, final int hash, final long address) {
+        slots.putInt(slot * SLOT_SIZE, hash);
+        slots.putLong(slot * SLOT_SIZE + ADDRESS_OFFSET, address);
+    }
+
+    /**
+     * Check whether chunk contains the looked up key.
+     */
+    public interface AddressMatcher {
+
+        boolean matches(final long address);
+    }
+
+    public interface AddressVisitor {
+
+        void onAddress(final long address);
+    }
+}
@@ -0,0 +1,68 @@
+package ru.selena.core.impl.storage;
+
+import com.google.common.collect.AbstractIterator;
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.OperationFailedException;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Iterator over token range which loads data objects by pages. Each page is requested after the last key of the
+ * previous one, so storage doesn't keep any state between pages and no locks are held while iterator isn't used.
+ * Iterator is weakly consistent: objects written during iteration may be returned or not. Throws
+ * {@link OperationFailedException} if page load fails.
+ * <p/>
+ * Date: 3/26/13
+ * Time: 9:40 PM
+ *
+ * @author Artem Titov
+ */
+public abstract class PagedRangeIterator extends AbstractIterator<DataObject> {
+
+    private final TokenRange range;
+    private final int pageSize;
+    private Iterator<DataObject> page;
+    private Key lastKey;
+    private boolean lastPage;
+
+    protected PagedRangeIterator(final TokenRange range, final int pageSize) {
+        this.range = range;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Load page.
+     *
+     * @param range range
+     * @param after last key of the previous page or null for the first page
+     * @param limit maximum number of objects
+     * @return objects in ring order of their keys, page shorter than limit means end of range
+     * @throws DataStoreException if read failed
+     */
+    protected abstract List<DataObject> loadPage(final TokenRange range, final Key after, final int limit)
+            throws DataStoreException;
+
+    @Override
+    protected DataObject computeNext() {
+        while (page == null || !page.hasNext()) {
+            if (lastPage) {
+                return endOfData();
+            }
+            final List<DataObject> dataObjects;
+            try {
+                dataObjects = loadPage(range, lastKey, pageSize);
+            } catch (DataStoreException e) {
+                throw new OperationFailedException("Failed to read range " + range, e);
+            }
+            lastPage = dataObjects.size() < pageSize;
+            page = dataObjects.iterator();
+        }
+        final DataObject dataObject = page.next();
+        lastKey = dataObject.getKey();
+        return dataObject;
+    }
+}
@@ -0,0 +1,27 @@
+package ru.selena.core.impl.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Read access to the file content by absolute position. Implementations must be thread safe.
+ * <p/>
+ * Date: 3/17/13
+ * Time: 4:15 PM
+ *
+ * @author Artem Titov
+ */
+public interface PositionedReader extends Closeable {
+
+    /**
+     * Read bytes starting from position. Returned buffer must be treated as read only and can be shared with other
+     * readers.
+     *
+     * @param position position in the file
+     * @param length   number of bytes to read
+     * @return buffer with requested bytes between its position and limit
+     * @throws IOException if read failed or file is shorter than requested
+     */
+    ByteBuffer read(final long position, final int length) throws IOException;
+}
@@ -0,0 +1,95 @@
+package ru.selena.core.impl.storage;
+
+import ru.selena.core.TokenRange;
+import ru.selena.model.Key;
+import ru.selena.utils.collections.Pair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Collector of one page of range iteration for storages which keep keys unordered. Keys are offered in any order,
+ * page keeps only {@code limit} first ones in ring order which follow the last key of the previous page, so memory
+ * usage doesn't depend on the number of keys. Not thread safe.
+ * <p/>
+ * Date: 3/26/13
+ * Time: 9:10 PM
+ *
+ * @param <T> type of the value collected with key
+ * @author Artem Titov
+ */
+public final class RangePage<T> {
+
+    private final TokenRange range;
+    private final Key after;
+    private final int limit;
+    private final Comparator<Pair<Key, T>> comparator;
+    private final PriorityQueue<Pair<Key, T>> heap;
+
+    /**
+     * Create page.
+     *
+     * @param range range
+     * @param after last key of the previous page or null for the first page
+     * @param limit maximum number of keys
+     */
+    public RangePage(final TokenRange range, final Key after, final int limit) {
+        this.range = range;
+        this.after = after;
+        this.limit = limit;
+        this.comparator = new Comparator<Pair<Key, T>>() {
+            @Override
+            public int compare(final Pair<Key, T> p1, final Pair<Key, T> p2) {
+                return compareKeys(range, p1.getFirst(), p2.getFirst());
+            }
+        };
+        this.heap = new PriorityQueue<Pair<Key, T>>(limit + 1, Collections.reverseOrder(comparator));
+    }
+
+    /**
+     * Compare keys by ring order of the range and then by key bytes.
+     *
+     * @param range range
+     * @param k1    first key
+     * @param k2    second key
+     * @return negative number, zero or positive number if first key is before, equal to or after the second one
+     */
+    public static int compareKeys(final TokenRange range, final Key k1, final Key k2) {
+        final int cmp = range.compareTokens(TokenRange.getToken(k1), TokenRange.getToken(k2));
+        if (cmp != 0) {
+            return cmp;
+        }
+        return KeyComparator.compareBytes(k1.getValue(), k2.getValue());
+    }
+
+    public void offer(final Key key, final T value) {
+        if (!range.contains(key) || (after != null && compareKeys(range, key, after) <= 0)) {
+            return;
+        }
+        if (heap.size() == limit && compareKeys(range, key, heap.peek().getFirst()) >= 0) {
+            return;
+        }
+        heap.add(Pair.of(key, value));
+        if (heap.size() > limit) {
+            heap.poll();
+        }
+    }
+
+    /**
+     * Return collected values in ring order of their keys.
+     *
+     * @return values
+     */
+    public List<T> getValues() {
+        final List<Pair<Key, T>> entries = new ArrayList<Pair<Key, T>>(heap);
+        Collections.sort(entries, comparator);
+        final List<T> values = new ArrayList<T>(entries.size());
+        for (final Pair<Key, T> entry : entries) {
+            values.add(entry.getSecond());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,106 @@
+package ru.selena.core.impl.storage;
+
+import ru.selena.model.DataObject;
+import ru.selena.net.utils.SerializationUtils;
+import ru.selena.utils.NumberUtils;
+
+import java.util.zip.CRC32;
+
+/**
+ * Utilities for storage records. Each record persisted by storage engines has the following layout:
+ * <pre>
+ * | crc (4 bytes) | payload length (4 bytes) | creation time (8 bytes) | payload |
+ * </pre>
+ * where payload is a data object in the same format as {@link SerializationUtils} produces. Crc covers all bytes
+ * after the crc field.
+ * <p/>
+ * Date: 3/10/13
+ * Time: 5:12 PM
+ *
+ * @author Artem Titov
+ */
+public final class RecordUtils {
+
+    public static final int CRC_OFFSET = 0;
+    public static final int LENGTH_OFFSET = 4;
+    public static final int CREATION_TIME_OFFSET = 8;
+    public static final int HEADER_SIZE = 16;
+
+    private static final int INT_BYTE_SIZE = Integer.SIZE / Byte.SIZE;
+
+    private RecordUtils() {
+        throw new AssertionError("This class not for instantiation");
+    }
+
+    /**
+     * Build record for data object.
+     *
+     * @param dataObject data object
+     * @return record bytes
+     */
+    public static byte[] toRecord(final DataObject dataObject) {
+        final byte[] record = new byte[HEADER_SIZE + SerializationUtils.getRequiredSize(dataObject)];
+        SerializationUtils.serializeDataObject(dataObject, record, HEADER_SIZE);
+        NumberUtils.toByteArray(record.length - HEADER_SIZE, record, LENGTH_OFFSET);
+        NumberUtils.toByteArray(dataObject.getCreationTime(), record, CREATION_TIME_OFFSET);
+        NumberUtils.toByteArray(calculateCrc(record, 0, record.length), record, CRC_OFFSET);
+        return record;
+    }
+
+    /**
+     * Restore data object from record.
+     *
+     * @param record record bytes including header
+     * @return data object
+     */
+    public static DataObject toDataObject(final byte[] record) {
+        return SerializationUtils.deserializeDataObject(record, HEADER_SIZE);
+    }
+
+    /**
+     * Calculate crc for record which starts at offset.
+     *
+     * @param buffer buffer with record
+     * @param offset record offset
+     * @param length record length including header
+     * @return crc
+     */
+    public static int calculateCrc(final byte[] buffer, final int offset, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer, offset + LENGTH_OFFSET, length - LENGTH_OFFSET);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Tell is record which starts at offset not damaged.
+     *
+     * @param buffer buffer with record
+     * @param offset record offset
+     * @param length record length including header
+     * @return true if stored crc matches record content
+     */
+    public static boolean isValid(final byte[] buffer, final int offset, final int length) {
+        return NumberUtils.toInt(buffer, offset + CRC_OFFSET) == calculateCrc(buffer, offset, length);
+    }
+
+    public static int getPayloadLength(final byte[] header) {
+        return NumberUtils.toInt(header, LENGTH_OFFSET);
+    }
+
+    public static long getCreationTime(final byte[] header) {
+        return NumberUtils.toLong(header, CREATION_TIME_OFFSET);
+    }
+
+    /**
+     * Tell is record contains stub data object without deserializing it.
+     *
+     * @param record record bytes including header
+     * @return true if data object is stub
+     */
+    public static boolean isStub(final byte[] record) {
+        int position = HEADER_SIZE;
+        position += INT_BYTE_SIZE + NumberUtils.toInt(record, position);
+        position += INT_BYTE_SIZE + NumberUtils.toInt(record, position);
+        return (record[position] & SerializationUtils.STUB_FLAG) != 0;
+    }
+}
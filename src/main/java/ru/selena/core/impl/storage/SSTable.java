@@ -0,0 +1,362 @@
+package ru.selena.core.impl.storage;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import ru.selena.Factories;
+import ru.selena.core.exception.OperationFailedException;
+import ru.selena.model.Key;
+import ru.selena.model.Version;
+import ru.selena.net.utils.SerializationUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable sorted string table written by {@link SSTableWriter}. Sparse index and bloom filter are kept in memory, so
+ * lookup of absent key usually doesn't require any reads and lookup of existing key requires one positioned read of
+ * the block between two neighbour index entries. If table is opened with memory mapping, blocks are scanned right in
+ * the mapping and only found record is copied. Otherwise blocks read by lookups are kept in the {@link BlockCache},
+ * if it is given. Blocks read by {@link #iterator()} bypass the cache.
+ * <p/>
+ * Date: 3/12/13
+ * Time: 11:50 PM
+ *
+ * @author Artem Titov
+ */
+public final class SSTable implements Closeable {
+
+    private static final int INT_BYTE_SIZE = Integer.SIZE / Byte.SIZE;
+
+    private final int id;
+    private final long cacheId = BlockCache.newFileId();
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final PositionedReader reader;
+    private final Key[] indexKeys;
+    private final long[] indexOffsets;
+    private final BloomFilter bloomFilter;
+    private final BloomFilterStatistics bloomFilterStatistics;
+    private final BlockCache blockCache;
+    private final long dataLength;
+    private final int count;
+
+    private SSTable(final int id, final File file, final RandomAccessFile randomAccessFile,
+                    final PositionedReader reader, final Key[] indexKeys, final long[] indexOffsets,
+                    final BloomFilter bloomFilter, final BloomFilterStatistics bloomFilterStatistics,
+                    final BlockCache blockCache, final long dataLength, final int count) {
+        this.id = id;
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.reader = reader;
+        this.indexKeys = indexKeys;
+        this.indexOffsets = indexOffsets;
+        this.bloomFilter = bloomFilter;
+        this.bloomFilterStatistics = bloomFilterStatistics;
+        this.blockCache = blockCache;
+        this.dataLength = dataLength;
+        this.count = count;
+    }
+
+    /**
+     * Open table and load its index and bloom filter.
+     *
+     * @param id                    table id
+     * @param file                  table file
+     * @param bloomFilterStatistics statistics which will be updated on lookups
+     * @param blockCache            cache for blocks read by lookups, may be null. Isn't used if table is memory mapped
+     * @param memoryMapped          read table through memory mapping
+     * @param mappingWindowSize     maximum size of one mapping
+     * @return table
+     * @throws IOException if failed to read file or file is damaged
+     */
+    public static SSTable open(final int id,
+                               final File file,
+                               final BloomFilterStatistics bloomFilterStatistics,
+                               final BlockCache blockCache,
+                               final boolean memoryMapped,
+                               final long mappingWindowSize) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final long length = randomAccessFile.length();
+            if (length < SSTableWriter.FOOTER_SIZE) {
+                throw new IOException("Table file is too short: " + file);
+            }
+            randomAccessFile.seek(length - SSTableWriter.FOOTER_SIZE);
+            final long indexOffset = randomAccessFile.readLong();
+            final long bloomFilterOffset = randomAccessFile.readLong();
+            final int count = randomAccessFile.readInt();
+            if (randomAccessFile.readInt() != SSTableWriter.MAGIC
+                    || indexOffset < 0 || indexOffset > bloomFilterOffset || bloomFilterOffset > length) {
+                throw new IOException("Table file is damaged: " + file);
+            }
+            final byte[] index = new byte[(int) (length - SSTableWriter.FOOTER_SIZE - indexOffset)];
+            randomAccessFile.seek(indexOffset);
+            randomAccessFile.readFully(index);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+            final int indexSize = in.readInt();
+            final Key[] indexKeys = new Key[indexSize];
+            final long[] indexOffsets = new long[indexSize];
+            for (int i = 0; i < indexSize; i++) {
+                final byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                indexKeys[i] = Factories.Instances.getKeyFactory().createKey(key);
+                indexOffsets[i] = in.readLong();
+            }
+            final BloomFilter bloomFilter = BloomFilter.readFrom(in);
+            final FileChannel channel = randomAccessFile.getChannel();
+            final PositionedReader reader = memoryMapped
+                    ? new MappedReader(channel, indexOffset, mappingWindowSize)
+                    : new ChannelReader(channel);
+            return new SSTable(id, file, randomAccessFile, reader, indexKeys, indexOffsets,
+                    bloomFilter, bloomFilterStatistics, memoryMapped ? null : blockCache, indexOffset, count);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        } catch (RuntimeException e) {
+            randomAccessFile.close();
+            throw new IOException("Table file is damaged: " + file, e);
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return file.length();
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Find record for the key.
+     *
+     * @param key key
+     * @return record bytes or null if table doesn't contain key
+     * @throws IOException if read failed
+     */
+    public byte[] find(final Key key) throws IOException {
+        if (!bloomFilter.mightContain(key)) {
+            bloomFilterStatistics.onNegative();
+            return null;
+        }
+        bloomFilterStatistics.onPositive();
+        final byte[] record = findInBlock(key);
+        if (record == null) {
+            bloomFilterStatistics.onFalsePositive();
+        }
+        return record;
+    }
+
+    /**
+     * Check bloom filter without reading the table. Bloom filter statistics isn't updated.
+     *
+     * @param key key
+     * @return false if table definitely doesn't contain key
+     */
+    public boolean mightContain(final Key key) {
+        return bloomFilter.mightContain(key);
+    }
+
+    private byte[] findInBlock(final Key key) throws IOException {
+        final int block = findBlock(key);
+        if (block < 0) {
+            return null;
+        }
+        final ByteBuffer buffer = readBlock(block, true);
+        int offset = 0;
+        while (offset < buffer.limit()) {
+            final int recordLength = RecordUtils.HEADER_SIZE + buffer.getInt(offset + RecordUtils.LENGTH_OFFSET);
+            final int cmp = KeyComparator.INSTANCE.compare(readKey(buffer, offset + RecordUtils.HEADER_SIZE), key);
+            if (cmp == 0) {
+                return copy(buffer, offset, recordLength);
+            }
+            if (cmp > 0) {
+                return null;
+            }
+            offset += recordLength;
+        }
+        return null;
+    }
+
+    /**
+     * Return iterator over all table entries in key order. Iterator reads table block by block and throws
+     * {@link OperationFailedException} if read fails.
+     *
+     * @return iterator
+     */
+    public Iterator<Entry> iterator() {
+        return new EntryIterator(0);
+    }
+
+    /**
+     * Return iterator over table entries starting from the first entry which key isn't less than specified one.
+     * Iterator reads table block by block and throws {@link OperationFailedException} if read fails.
+     *
+     * @param from lower bound key
+     * @return iterator
+     */
+    public Iterator<Entry> iterator(final Key from) {
+        final PeekingIterator<Entry> iterator = Iterators.peekingIterator(
+                new EntryIterator(Math.max(findBlock(from), 0)));
+        while (iterator.hasNext() && KeyComparator.INSTANCE.compare(iterator.peek().getKey(), from) < 0) {
+            iterator.next();
+        }
+        return iterator;
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    @Override
+    public String toString() {
+        return file.getName();
+    }
+
+    /**
+     * Return number of the last index block which first key is less or equal to specified one.
+     *
+     * @param key key
+     * @return block number or -1 if key is less than any key in the table
+     */
+    private int findBlock(final Key key) {
+        int low = 0;
+        int high = indexKeys.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = KeyComparator.INSTANCE.compare(indexKeys[mid], key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Read index block.
+     *
+     * @param block    block number
+     * @param useCache look up block in the cache and put it there after read
+     * @return buffer with block content starting from zero index
+     * @throws IOException if read failed
+     */
+    private ByteBuffer readBlock(final int block, final boolean useCache) throws IOException {
+        final long start = indexOffsets[block];
+        final long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataLength;
+        if (blockCache == null || !useCache) {
+            return reader.read(start, (int) (end - start)).slice();
+        }
+        byte[] cached = blockCache.get(cacheId, start);
+        if (cached == null) {
+            final ByteBuffer buffer = reader.read(start, (int) (end - start));
+            cached = copy(buffer, buffer.position(), buffer.remaining());
+            blockCache.put(cacheId, start, cached);
+        }
+        return ByteBuffer.wrap(cached);
+    }
+
+    private static Key readKey(final ByteBuffer buffer, final int offset) {
+        final byte[] key = copy(buffer, offset + INT_BYTE_SIZE, buffer.getInt(offset));
+        return Factories.Instances.getKeyFactory().createKey(key);
+    }
+
+    private static byte[] copy(final ByteBuffer buffer, final int offset, final int length) {
+        final byte[] result = new byte[length];
+        final ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(result);
+        return result;
+    }
+
+    /**
+     * Table entry.
+     */
+    public static final class Entry {
+        private final Key key;
+        private final Version version;
+        private final byte[] record;
+
+        public Entry(final Key key, final Version version, final byte[] record) {
+            this.key = key;
+            this.version = version;
+            this.record = record;
+        }
+
+        public Entry(final byte[] record) {
+            final AtomicInteger position = new AtomicInteger(RecordUtils.HEADER_SIZE);
+            this.key = SerializationUtils.deserializeKey(record, position);
+            this.version = SerializationUtils.deserializeVersion(record, position);
+            this.record = record;
+        }
+
+        public Key getKey() {
+            return key;
+        }
+
+        public Version getVersion() {
+            return version;
+        }
+
+        public byte[] getRecord() {
+            return record;
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Entry> {
+        private int block;
+        private ByteBuffer buffer;
+        private int offset;
+
+        private EntryIterator(final int block) {
+            this.block = block;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (buffer == null || offset >= buffer.limit()) {
+                if (block >= indexOffsets.length) {
+                    return false;
+                }
+                try {
+                    buffer = readBlock(block++, false);
+                } catch (IOException e) {
+                    throw new OperationFailedException("Failed to read table " + file, e);
+                }
+                offset = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final int recordLength = RecordUtils.HEADER_SIZE + buffer.getInt(offset + RecordUtils.LENGTH_OFFSET);
+            final byte[] record = copy(buffer, offset, recordLength);
+            offset += recordLength;
+            return new Entry(record);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
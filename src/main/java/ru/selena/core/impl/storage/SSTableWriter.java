@@ -0,0 +1,108 @@
+package ru.selena.core.impl.storage;
+
+import ru.selena.model.Key;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write sorted string table file. Records must be appended in {@link KeyComparator} order, each key only once.
+ * File layout:
+ * <pre>
+ * | records | index | bloom filter | index offset (8 bytes) | bloom filter offset (8 bytes) | records count (4 bytes) | magic (4 bytes) |
+ * </pre>
+ * where index is number of entries (4 bytes) followed by entries. Each index entry is key length (4 bytes), key
+ * bytes and record offset (8 bytes). Index contains each {@code indexInterval}-th key. Bloom filter contains all
+ * keys of the table.
+ * <p/>
+ * Date: 3/12/13
+ * Time: 11:15 PM
+ *
+ * @author Artem Titov
+ */
+public final class SSTableWriter implements Closeable {
+
+    static final int MAGIC = 0x5e1e0a58;
+    static final int FOOTER_SIZE = 24;
+
+    private final FileOutputStream fileOut;
+    private final DataOutputStream out;
+    private final int indexInterval;
+    private final BloomFilter bloomFilter;
+    private final List<byte[]> indexKeys = new ArrayList<byte[]>();
+    private final List<Long> indexOffsets = new ArrayList<Long>();
+    private long position;
+    private int count;
+
+    /**
+     * Create writer.
+     *
+     * @param file                       table file
+     * @param indexInterval              number of records per one index entry
+     * @param expectedCount              expected number of records, used for bloom filter sizing
+     * @param bloomFilterFalsePositiveRate desired bloom filter false positive probability
+     * @throws IOException if failed to create file
+     */
+    public SSTableWriter(final File file,
+                         final int indexInterval,
+                         final long expectedCount,
+                         final double bloomFilterFalsePositiveRate) throws IOException {
+        this.fileOut = new FileOutputStream(file);
+        this.out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        this.indexInterval = indexInterval;
+        this.bloomFilter = BloomFilter.create(expectedCount, bloomFilterFalsePositiveRate);
+    }
+
+    /**
+     * Append record.
+     *
+     * @param key    record key
+     * @param record record bytes
+     * @throws IOException if write failed
+     */
+    public void append(final Key key, final byte[] record) throws IOException {
+        if (count % indexInterval == 0) {
+            indexKeys.add(key.getValue());
+            indexOffsets.add(position);
+        }
+        bloomFilter.add(key);
+        out.write(record);
+        position += record.length;
+        count++;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Write index, bloom filter and footer and flush file to the disk.
+     *
+     * @throws IOException if write failed
+     */
+    public void finish() throws IOException {
+        final long indexOffset = position;
+        out.writeInt(indexKeys.size());
+        long bloomFilterOffset = indexOffset + 4;
+        for (int i = 0; i < indexKeys.size(); i++) {
+            out.writeInt(indexKeys.get(i).length);
+            out.write(indexKeys.get(i));
+            out.writeLong(indexOffsets.get(i));
+            bloomFilterOffset += 4 + indexKeys.get(i).length + 8;
+        }
+        bloomFilter.writeTo(out);
+        out.writeLong(indexOffset);
+        out.writeLong(bloomFilterOffset);
+        out.writeInt(count);
+        out.writeInt(MAGIC);
+        out.flush();
+        fileOut.getFD().sync();
+        out.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,264 @@
+package ru.selena.core.impl.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Append only file with storage records. Records are never changed after they have been written, so all
+ * segments except active one are immutable. Immutable segment can be {@link #seal(long) sealed} to be read through
+ * memory mapping.
+ * <p/>
+ * Segment which is replaced while readers may still use it is closed by reference counting: segment is created with
+ * one reference of its owner, readers {@link #retain()} it for the read and {@link #release()} afterwards, and owner
+ * releases its reference instead of closing segment. File is closed by the last release. Memory mapping is freed by
+ * the garbage collector when segment isn't referenced any more.
+ * <p/>
+ * Date: 3/10/13
+ * Time: 5:40 PM
+ *
+ * @author Artem Titov
+ */
+public final class Segment implements Closeable {
+
+    private final int id;
+    private final long cacheId = BlockCache.newFileId();
+    private volatile File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private volatile long size;
+    private volatile PositionedReader reader;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * Open segment file. File will be created if it doesn't exist.
+     *
+     * @param id   segment id
+     * @param file segment file
+     * @throws IOException if failed to open file
+     */
+    public Segment(final int id, final File file) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.size = channel.size();
+        this.reader = new ChannelReader(channel);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Return id which identifies segment in the {@link BlockCache}.
+     *
+     * @return id unique within the process
+     */
+    public long getCacheId() {
+        return cacheId;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Append record to the end of segment. Not thread safe, caller must guarantee that only one thread appends
+     * records at the moment.
+     *
+     * @param record record bytes
+     * @return offset of the record in the segment
+     * @throws IOException if write failed
+     */
+    public long append(final byte[] record) throws IOException {
+        final long offset = size;
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        size = position;
+        return offset;
+    }
+
+    /**
+     * Read bytes from segment with one positioned read or from the memory mapping if segment is sealed. Thread safe.
+     *
+     * @param offset position in the segment
+     * @param length number of bytes to read
+     * @return read bytes
+     * @throws IOException if read failed or segment is shorter than requested
+     */
+    public byte[] read(final long offset, final int length) throws IOException {
+        final ByteBuffer buffer = reader.read(offset, length);
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == length) {
+            return buffer.array();
+        }
+        final byte[] result = new byte[length];
+        buffer.get(result);
+        return result;
+    }
+
+    /**
+     * Write bytes of the segment to the channel. Sealed segment writes its memory mapping, otherwise bytes are
+     * transferred by {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so they aren't copied to the heap.
+     * Thread safe.
+     *
+     * @param offset position in the segment
+     * @param length number of bytes to write
+     * @param target target channel
+     * @throws IOException if read or write failed or segment is shorter than requested
+     */
+    public void transferTo(final long offset, final int length, final WritableByteChannel target) throws IOException {
+        final PositionedReader current = reader;
+        if (current instanceof MappedReader) {
+            new SerializedBuffer(current.read(offset, length)).writeTo(target);
+            return;
+        }
+        if (offset + length > size) {
+            throw new EOFException(String.format("Can't transfer %d bytes at %d, segment size is %d",
+                    length, offset, size));
+        }
+        long position = offset;
+        while (position < offset + length) {
+            position += channel.transferTo(position, offset + length - position, target);
+        }
+    }
+
+    /**
+     * Mark segment as immutable and switch reads to the memory mapping. No records can be appended after this call.
+     *
+     * @param mappingWindowSize maximum size of one mapping
+     * @throws IOException if failed to map the file
+     */
+    public void seal(final long mappingWindowSize) throws IOException {
+        reader = new MappedReader(channel, size, mappingWindowSize);
+    }
+
+    /**
+     * Sequentially read all records from the beginning of the segment and pass them to visitor. Scanning stops on the
+     * first damaged or incomplete record.
+     *
+     * @param visitor record visitor
+     * @return length of the valid part of the segment
+     * @throws IOException if read failed
+     */
+    public long scan(final RecordVisitor visitor) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long position = 0;
+        try {
+            final byte[] header = new byte[RecordUtils.HEADER_SIZE];
+            while (position + RecordUtils.HEADER_SIZE <= size) {
+                in.readFully(header);
+                final int payloadLength = RecordUtils.getPayloadLength(header);
+                if (payloadLength < 0 || position + RecordUtils.HEADER_SIZE + payloadLength > size) {
+                    break;
+                }
+                final byte[] record = new byte[RecordUtils.HEADER_SIZE + payloadLength];
+                System.arraycopy(header, 0, record, 0, RecordUtils.HEADER_SIZE);
+                in.readFully(record, RecordUtils.HEADER_SIZE, payloadLength);
+                if (!RecordUtils.isValid(record, 0, record.length)) {
+                    break;
+                }
+                visitor.onRecord(position, record);
+                position += record.length;
+            }
+        } finally {
+            in.close();
+        }
+        return position;
+    }
+
+    /**
+     * Rename segment file. Segment stays open, so records can be read and appended as before.
+     *
+     * @param target new file
+     * @throws IOException if rename failed
+     */
+    public void moveTo(final File target) throws IOException {
+        if (!file.renameTo(target)) {
+            throw new IOException(String.format("Failed to rename %s to %s", file, target));
+        }
+        file = target;
+    }
+
+    /**
+     * Cut off segment tail.
+     *
+     * @param newSize new segment size
+     * @throws IOException if failed to truncate
+     */
+    public void truncate(final long newSize) throws IOException {
+        channel.truncate(newSize);
+        channel.force(true);
+        size = newSize;
+    }
+
+    /**
+     * Take reference to the segment, so it isn't closed until the reference is released.
+     *
+     * @return false if segment has already been closed by the last release
+     */
+    public boolean retain() {
+        while (true) {
+            final int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release reference to the segment and close it if reference was the last one.
+     *
+     * @throws IOException if failed to close segment
+     */
+    public void release() throws IOException {
+        if (references.decrementAndGet() == 0) {
+            close();
+        }
+    }
+
+    /**
+     * Flush all written data to the disk.
+     *
+     * @throws IOException if failed to flush
+     */
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    @Override
+    public String toString() {
+        return file.getName();
+    }
+
+    /**
+     * Receive records read from the segment.
+     */
+    public interface RecordVisitor {
+
+        /**
+         * Process next record.
+         *
+         * @param offset record offset in the segment
+         * @param record record bytes including header
+         */
+        void onRecord(final long offset, final byte[] record);
+    }
+}
@@ -0,0 +1,42 @@
+package ru.selena.core.impl.storage;
+
+import ru.selena.core.SerializedDataSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Serialized data object in the heap buffer or in the memory mapping.
+ * <p/>
+ * Date: 3/30/13
+ * Time: 6:25 PM
+ *
+ * @author Artem Titov
+ */
+public final class SerializedBuffer implements SerializedDataSource.SerializedData {
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Create serialized data object from bytes between position and limit of the buffer. Buffer isn't changed.
+     *
+     * @param buffer buffer
+     */
+    public SerializedBuffer(final ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int getLength() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void writeTo(final WritableByteChannel channel) throws IOException {
+        final ByteBuffer source = buffer.duplicate();
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package ru.selena.core.impl.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator of off-heap memory chunks. Memory is reserved by direct buffer slabs of the same size, each slab is cut to
+ * chunks of one size class. Size classes grow geometrically, so space lost to rounding is bounded by growth factor.
+ * Freed chunks are kept in per class free lists, which are stored right in the freed chunks, so allocator's heap
+ * usage depends only on the number of slabs. Chunks larger than slab get dedicated buffers.
+ * <p/>
+ * Chunk is identified by address, which is never zero, so zero can be used as empty address.
+ * <p/>
+ * Date: 3/21/13
+ * Time: 9:40 PM
+ *
+ * @author Artem Titov
+ */
+public final class SlabAllocator {
+
+    /**
+     * Address which is never returned by allocator.
+     */
+    public static final long NULL_ADDRESS = 0;
+
+    private static final int MIN_CHUNK_SIZE = 32;
+    private static final int ALIGNMENT = 8;
+    private static final int LARGE_CHUNK_CLASS = -1;
+
+    private final int slabSize;
+    private final long capacity;
+    private final int[] classSizes;
+    private final SizeClass[] classes;
+    private final List<Integer> freeSlabSlots = new ArrayList<Integer>();
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private volatile int[] slabClasses = new int[0];
+
+    /**
+     * Create allocator. No memory is reserved until first allocation.
+     *
+     * @param slabSize     size of one slab in bytes
+     * @param capacity     maximum amount of reserved memory in bytes
+     * @param growthFactor ratio of neighbour size classes, greater than 1
+     */
+    public SlabAllocator(final int slabSize, final long capacity, final double growthFactor) {
+        this.slabSize = slabSize;
+        this.capacity = capacity;
+        final List<Integer> sizes = new ArrayList<Integer>();
+        int size = MIN_CHUNK_SIZE;
+        while (size < slabSize) {
+            sizes.add(size);
+            size = Math.max(size + ALIGNMENT, align((int) Math.min(slabSize, size * growthFactor)));
+        }
+        sizes.add(slabSize);
+        this.classSizes = new int[sizes.size()];
+        this.classes = new SizeClass[sizes.size()];
+        for (int i = 0; i < classSizes.length; i++) {
+            classSizes[i] = sizes.get(i);
+            classes[i] = new SizeClass(i);
+        }
+    }
+
+    /**
+     * Allocate chunk. Thread safe.
+     *
+     * @param size required size in bytes
+     * @return chunk address or {@link #NULL_ADDRESS} if capacity is exhausted
+     */
+    public long allocate(final int size) {
+        if (size > slabSize) {
+            return allocateLarge(size);
+        }
+        int sizeClass = Arrays.binarySearch(classSizes, size);
+        if (sizeClass < 0) {
+            sizeClass = -sizeClass - 1;
+        }
+        return classes[sizeClass].allocate();
+    }
+
+    /**
+     * Return chunk to the allocator. Chunk content mustn't be used after this call. Thread safe.
+     *
+     * @param address chunk address
+     */
+    public void free(final long address) {
+        final int slab = getSlab(address);
+        final int sizeClass = slabClasses[slab];
+        if (sizeClass == LARGE_CHUNK_CLASS) {
+            freeLarge(slab);
+        } else {
+            classes[sizeClass].free(address);
+        }
+    }
+
+    /**
+     * Return buffer which contains chunk and position of the chunk in the buffer. Buffer mustn't be modified
+     * outside of the chunk, absolute get and put operations should be used.
+     *
+     * @param address chunk address
+     * @return slab buffer
+     */
+    public ByteBuffer getBuffer(final long address) {
+        return slabs[getSlab(address)];
+    }
+
+    public int getPosition(final long address) {
+        return (int) address;
+    }
+
+    public void read(final long address, final int offset, final byte[] target, final int targetOffset,
+                     final int length) {
+        final ByteBuffer buffer = getBuffer(address).duplicate();
+        buffer.position(getPosition(address) + offset);
+        buffer.get(target, targetOffset, length);
+    }
+
+    public void write(final long address, final int offset, final byte[] source) {
+        final ByteBuffer buffer = getBuffer(address).duplicate();
+        buffer.position(getPosition(address) + offset);
+        buffer.put(source);
+    }
+
+    /**
+     * Return amount of memory reserved by slabs.
+     *
+     * @return size in bytes
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * Return total size of allocated chunks.
+     *
+     * @return size in bytes
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    private long allocateLarge(final int size) {
+        final int slab = addSlab(size, LARGE_CHUNK_CLASS);
+        if (slab < 0) {
+            return NULL_ADDRESS;
+        }
+        usedBytes.addAndGet(size);
+        return toAddress(slab, 0);
+    }
+
+    private synchronized void freeLarge(final int slab) {
+        final int size = slabs[slab].capacity();
+        final ByteBuffer[] newSlabs = slabs.clone();
+        newSlabs[slab] = null;
+        slabs = newSlabs;
+        freeSlabSlots.add(slab);
+        usedBytes.addAndGet(-size);
+        reservedBytes.addAndGet(-size);
+    }
+
+    /**
+     * Reserve new slab.
+     *
+     * @param size      slab size
+     * @param sizeClass size class of chunks in slab
+     * @return slab number or -1 if capacity is exhausted
+     */
+    private synchronized int addSlab(final int size, final int sizeClass) {
+        if (reservedBytes.get() + size > capacity) {
+            return -1;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        final int slab;
+        final ByteBuffer[] newSlabs;
+        final int[] newSlabClasses;
+        if (freeSlabSlots.isEmpty()) {
+            slab = slabs.length;
+            newSlabs = Arrays.copyOf(slabs, slab + 1);
+            newSlabClasses = Arrays.copyOf(slabClasses, slab + 1);
+        } else {
+            slab = freeSlabSlots.remove(freeSlabSlots.size() - 1);
+            newSlabs = slabs.clone();
+            newSlabClasses = slabClasses.clone();
+        }
+        newSlabs[slab] = buffer;
+        newSlabClasses[slab] = sizeClass;
+        slabClasses = newSlabClasses;
+        slabs = newSlabs;
+        reservedBytes.addAndGet(size);
+        return slab;
+    }
+
+    private static long toAddress(final int slab, final int position) {
+        return ((long) (slab + 1) << Integer.SIZE) | position;
+    }
+
+    private static int getSlab(final long address) {
+        return (int) (address >>> Integer.SIZE) - 1;
+    }
+
+    private static int align(final int size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Chunks of one size. Free chunks are linked by addresses written at the beginning of each free chunk.
+     */
+    private final class SizeClass {
+        private final int sizeClass;
+        private final int chunkSize;
+        private long freeListHead = NULL_ADDRESS;
+        private int currentSlab = -1;
+        private int nextPosition;
+
+        private SizeClass(final int sizeClass) {
+            this.sizeClass = sizeClass;
+            this.chunkSize = classSizes[sizeClass];
+        }
+
+        private synchronized long allocate() {
+            final long address;
+            if (freeListHead != NULL_ADDRESS) {
+                address = freeListHead;
+                freeListHead = getBuffer(address).getLong(getPosition(address));
+            } else {
+                if (currentSlab < 0 || nextPosition + chunkSize > slabSize) {
+                    currentSlab = addSlab(slabSize, sizeClass);
+                    nextPosition = 0;
+                    if (currentSlab < 0) {
+                        return NULL_ADDRESS;
+                    }
+                }
+                address = toAddress(currentSlab, nextPosition);
+                nextPosition += chunkSize;
+            }
+            usedBytes.addAndGet(chunkSize);
+            return address;
+        }
+
+        private synchronized void free(final long address) {
+            getBuffer(address).putLong(getPosition(address), freeListHead);
+            freeListHead = address;
+            usedBytes.addAndGet(-chunkSize);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.selena.core.impl.storage;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Duration of storage startup phases.
+ * <p/>
+ * Date: 3/23/13
+ * Time: 5:20 PM
+ *
+ * @author Artem Titov
+ */
+public final class StartupStatistics {
+
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+    private long phaseStart = System.currentTimeMillis();
+
+    /**
+     * Finish current phase and start the next one.
+     *
+     * @param name name of the finished phase
+     */
+    public synchronized void finishPhase(final String name) {
+        final long now = System.currentTimeMillis();
+        phases.put(name, now - phaseStart);
+        phaseStart = now;
+    }
+
+    /**
+     * Return phase durations in the order of execution.
+     *
+     * @return phase name to duration in milliseconds
+     */
+    public synchronized Map<String, Long> getPhases() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(phases));
+    }
+
+    /**
+     * Return total duration of finished phases.
+     *
+     * @return duration in milliseconds
+     */
+    public synchronized long getTotalTime() {
+        long total = 0;
+        for (final long time : phases.values()) {
+            total += time;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder result = new StringBuilder();
+        for (final Map.Entry<String, Long> phase : phases.entrySet()) {
+            result.append(phase.getKey()).append(": ").append(phase.getValue()).append(" ms, ");
+        }
+        return result.append("total: ").append(getTotalTime()).append(" ms").toString();
+    }
+}
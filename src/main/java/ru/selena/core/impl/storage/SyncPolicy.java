@@ -0,0 +1,24 @@
+package ru.selena.core.impl.storage;
+
+/**
+ * Determine when written records are flushed to the disk.
+ * <p/>
+ * Date: 3/19/13
+ * Time: 10:20 PM
+ *
+ * @author Artem Titov
+ */
+public enum SyncPolicy {
+    /**
+     * Write is acknowledged only after it has been flushed to the disk. Concurrent writes share one flush.
+     */
+    EVERY_WRITE,
+    /**
+     * Written records are flushed to the disk periodically, so writes acknowledged during the last period can be lost.
+     */
+    PERIODIC,
+    /**
+     * Flushing is left to operating system. Records are flushed explicitly only on segment roll and close.
+     */
+    OS
+}
@@ -0,0 +1,159 @@
+package ru.selena.core.impl.storage;
+
+import org.apache.commons.lang.Validate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel. Time is divided into ticks of {@code tickDuration} ms, each level has
+ * {@value #SLOTS} slots and slot of level {@code n} covers {@code 64^n} ticks. Element is put to the lowest level
+ * which covers its deadline and moves to lower levels as time comes closer, so scheduling costs O(1) and advancing
+ * costs O(1) per tick plus O(levels) per element. Deadlines farther than the highest level are kept in the highest
+ * level and rescheduled on each its turn.
+ * <p/>
+ * Elements are never returned before their deadline, but can be returned up to one tick later. Elements can't be
+ * cancelled, so owner should check on return whether element is still actual.
+ * <p/>
+ * Not thread safe.
+ * <p/>
+ * Date: 3/29/13
+ * Time: 7:40 PM
+ *
+ * @author Artem Titov
+ */
+public class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int DEFAULT_LEVELS = 4;
+
+    private final long tickDuration;
+    private final int levels;
+    private final List<List<Entry<T>>> slots;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Create wheel with 4 levels, which places deadlines up to {@code 2^24} ticks precisely.
+     *
+     * @param tickDuration tick duration in ms
+     * @param now          current time in ms
+     */
+    public TimingWheel(final long tickDuration, final long now) {
+        this(tickDuration, DEFAULT_LEVELS, now);
+    }
+
+    /**
+     * Create wheel.
+     *
+     * @param tickDuration tick duration in ms
+     * @param levels       number of levels
+     * @param now          current time in ms
+     */
+    public TimingWheel(final long tickDuration, final int levels, final long now) {
+        Validate.isTrue(tickDuration > 0, "Tick duration must be positive");
+        Validate.isTrue(levels > 0 && levels * SLOT_BITS < Long.SIZE - 1, "Wrong number of levels " + levels);
+        this.tickDuration = tickDuration;
+        this.levels = levels;
+        this.slots = new ArrayList<List<Entry<T>>>(levels * SLOTS);
+        for (int i = 0; i < levels * SLOTS; i++) {
+            slots.add(null);
+        }
+        this.currentTick = now / tickDuration;
+    }
+
+    /**
+     * Schedule element. Element with deadline in the past is returned on the next {@link #advance(long)}.
+     *
+     * @param element  element
+     * @param deadline time in ms
+     */
+    public void schedule(final T element, final long deadline) {
+        // round up, so element isn't returned before deadline
+        place(new Entry<T>(element, deadline / tickDuration + (deadline % tickDuration > 0 ? 1 : 0)));
+        size++;
+    }
+
+    /**
+     * Move time forward and return elements which deadlines came.
+     *
+     * @param now current time in ms
+     * @return elements in deadline order up to one tick
+     */
+    public List<T> advance(final long now) {
+        final long nowTick = now / tickDuration;
+        if (size == 0) {
+            currentTick = Math.max(currentTick, nowTick + 1);
+            return Collections.emptyList();
+        }
+        final List<T> result = new ArrayList<T>();
+        while (currentTick <= nowTick && size > 0) {
+            for (int level = levels - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                    final List<Entry<T>> entries = takeSlot(level, currentTick);
+                    if (entries != null) {
+                        for (final Entry<T> entry : entries) {
+                            place(entry);
+                        }
+                    }
+                }
+            }
+            final List<Entry<T>> entries = takeSlot(0, currentTick);
+            if (entries != null) {
+                for (final Entry<T> entry : entries) {
+                    result.add(entry.element);
+                }
+                size -= entries.size();
+            }
+            currentTick++;
+        }
+        currentTick = Math.max(currentTick, nowTick + 1);
+        return result;
+    }
+
+    /**
+     * Return number of scheduled elements.
+     *
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+    private void place(final Entry<T> entry) {
+        final long delta = entry.deadlineTick - currentTick;
+        int level = 0;
+        while (level < levels - 1 && delta >= 1L << ((level + 1) * SLOT_BITS)) {
+            level++;
+        }
+        long tick = Math.max(entry.deadlineTick, currentTick);
+        if (delta >= 1L << (levels * SLOT_BITS)) {
+            // farther than the whole wheel, the last slot of the highest level before current one
+            tick = currentTick + (1L << (levels * SLOT_BITS)) - 1;
+        }
+        final int index = level * SLOTS + (int) ((tick >>> (level * SLOT_BITS)) & SLOT_MASK);
+        List<Entry<T>> slot = slots.get(index);
+        if (slot == null) {
+            slot = new ArrayList<Entry<T>>();
+            slots.set(index, slot);
+        }
+        slot.add(entry);
+    }
+
+    private List<Entry<T>> takeSlot(final int level, final long tick) {
+        return slots.set(level * SLOTS + (int) ((tick >>> (level * SLOT_BITS)) & SLOT_MASK), null);
+    }
+
+    private static final class Entry<T> {
+        private final T element;
+        private final long deadlineTick;
+
+        private Entry(final T element, final long deadlineTick) {
+            this.element = element;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+}
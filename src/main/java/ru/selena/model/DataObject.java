@@ -8,6 +8,11 @@ package ru.selena.model;
  */
 public interface DataObject {
 
+    /**
+     * Expiration time of objects without time to live.
+     */
+    long NEVER_EXPIRES = 0;
+
     /**
      * Return key for this object.
      *
@@ -43,4 +48,13 @@ public interface DataObject {
      * @return creation time
      */
     long getCreationTime();
+
+    /**
+     * Return time in ms after which this object is treated as deleted, or {@link #NEVER_EXPIRES} if object has no
+     * time to live. Expiration time is absolute, so all replicas expire object at the same moment up to their clock
+     * difference.
+     *
+     * @return expiration time
+     */
+    long getExpirationTime();
 }
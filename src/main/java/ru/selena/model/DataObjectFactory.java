@@ -22,6 +22,17 @@ public interface DataObjectFactory {
      */
     DataObject createDataObject(final Key key, final Version version, final byte[] value);
 
+    /**
+     * Create data object which expires at the specified time.
+     *
+     * @param key            key
+     * @param version        version
+     * @param value          value
+     * @param expirationTime expiration time in ms or {@link DataObject#NEVER_EXPIRES}
+     * @return data object
+     */
+    DataObject createDataObject(final Key key, final Version version, final byte[] value, final long expirationTime);
+
     /**
      * Create stub data object.
      *
@@ -19,6 +19,14 @@ public class DataObjectFactoryImpl implements DataObjectFactory {
         return new DataObjectImpl(key, version, value);
     }
 
+    @Override
+    public DataObject createDataObject(final Key key,
+                                       final Version version,
+                                       final byte[] value,
+                                       final long expirationTime) {
+        return new DataObjectImpl(key, version, value, expirationTime);
+    }
+
     @Override
     public DataObject createDataObject(final Key key, final Version version) {
         return new DataObjectImpl(key, version);
@@ -19,6 +19,7 @@ public class DataObjectImpl implements DataObject {
     private final byte[] value;
     private final boolean isStub;
     private final long creationTime;
+    private final long expirationTime;
 
     /**
      * Create data object.
@@ -28,7 +29,19 @@ public class DataObjectImpl implements DataObject {
      * @param value   value
      */
     DataObjectImpl(final Key key, final Version version, final byte[] value) {
-        this(key, version, false, value);
+        this(key, version, false, value, NEVER_EXPIRES);
+    }
+
+    /**
+     * Create data object with time to live.
+     *
+     * @param key            key
+     * @param version        version
+     * @param value          value
+     * @param expirationTime expiration time in ms
+     */
+    DataObjectImpl(final Key key, final Version version, final byte[] value, final long expirationTime) {
+        this(key, version, false, value, expirationTime);
     }
 
     /**
@@ -38,10 +51,14 @@ public class DataObjectImpl implements DataObject {
      * @param version version
      */
     DataObjectImpl(final Key key, final Version version) {
-        this(key, version, true, EMPTY_ARRAY);
+        this(key, version, true, EMPTY_ARRAY, NEVER_EXPIRES);
     }
 
-    private DataObjectImpl(final Key key, final Version version, final boolean isStub, final byte[] value) {
+    private DataObjectImpl(final Key key,
+                           final Version version,
+                           final boolean isStub,
+                           final byte[] value,
+                           final long expirationTime) {
         Validate.isTrue(key != null, "Key can't be null");
         Validate.isTrue(version != null, "Version can't be null");
         Validate.isTrue(value != null, "Value can't be null");
@@ -51,6 +68,7 @@ public class DataObjectImpl implements DataObject {
         this.value = value;
         this.isStub = isStub;
         this.creationTime = System.currentTimeMillis();
+        this.expirationTime = expirationTime;
     }
 
     @Override
@@ -78,6 +96,11 @@ public class DataObjectImpl implements DataObject {
         return creationTime;
     }
 
+    @Override
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
     @Override
     public int hashCode() {
         int result = 17;
@@ -91,11 +114,11 @@ public class DataObjectImpl implements DataObject {
         if (obj == this) {
             return true;
         }
-        if (!(obj instanceof DataObjectImpl)) {
+        if (!(obj instanceof DataObject)) {
             return false;
         }
-        final DataObjectImpl d = (DataObjectImpl) obj;
-        return key.equals(d.key) && version.equals(d.version);
+        final DataObject d = (DataObject) obj;
+        return key.equals(d.getKey()) && version.equals(d.getVersion());
     }
 
     @Override
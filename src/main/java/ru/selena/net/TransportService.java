@@ -1,5 +1,8 @@
 package ru.selena.net;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import ru.selena.model.DataObject;
+import ru.selena.model.Version;
 import ru.selena.net.exception.ConflictException;
 import ru.selena.net.exception.NoDataException;
 import ru.selena.net.model.Host;
@@ -36,4 +39,72 @@ public interface TransportService {
      * @throws NullPointerException if any parameter is null
      */
     void send(final byte[] dataObject, final Host host) throws IOException;
+
+    /**
+     * Return data object by key bytes. Data object is read from the response stream, so its value isn't copied.
+     *
+     * @param key  key bytes
+     * @param host remote host
+     * @return data object
+     * @throws NoDataException      if remote has no data associated with this key
+     * @throws IOException          if communication with remote host failed or response is malformed
+     * @throws NullPointerException if any parameter is null
+     */
+    DataObject getDataObject(final byte[] key, final Host host) throws IOException;
+
+    /**
+     * Send data object to remote host. Data object is written to the request stream, so its value isn't copied.
+     *
+     * @param dataObject data object
+     * @param host       remote host
+     * @throws ConflictException    if remote host respond about conflict
+     * @throws IOException          if communication with remote host failed or remote host failed to process request
+     * @throws NullPointerException if any parameter is null
+     */
+    void send(final DataObject dataObject, final Host host) throws IOException;
+
+    /**
+     * Return version of data object by key bytes without its value.
+     *
+     * @param key  key bytes
+     * @param host remote host
+     * @return version
+     * @throws NoDataException      if remote has no data associated with this key
+     * @throws IOException          if communication with remote host failed or response is malformed
+     * @throws NullPointerException if any parameter is null
+     */
+    Version getVersion(final byte[] key, final Host host) throws IOException;
+
+    /**
+     * Asynchronous variant of {@link #getDataObject(byte[], Host)}.
+     *
+     * @param key  key bytes
+     * @param host remote host
+     * @return future of data object, which fails with {@link NoDataException} if remote has no data associated with
+     *         this key or with {@link IOException} if communication with remote host failed
+     * @throws NullPointerException if any parameter is null
+     */
+    ListenableFuture<DataObject> getDataObjectAsync(final byte[] key, final Host host);
+
+    /**
+     * Asynchronous variant of {@link #getVersion(byte[], Host)}.
+     *
+     * @param key  key bytes
+     * @param host remote host
+     * @return future of version, which fails with {@link NoDataException} if remote has no data associated with
+     *         this key or with {@link IOException} if communication with remote host failed
+     * @throws NullPointerException if any parameter is null
+     */
+    ListenableFuture<Version> getVersionAsync(final byte[] key, final Host host);
+
+    /**
+     * Asynchronous variant of {@link #send(DataObject, Host)}.
+     *
+     * @param dataObject data object
+     * @param host       remote host
+     * @return future which fails with {@link ConflictException} if remote host respond about conflict or with
+     *         {@link IOException} if communication with remote host failed
+     * @throws NullPointerException if any parameter is null
+     */
+    ListenableFuture<Void> sendAsync(final DataObject dataObject, final Host host);
 }
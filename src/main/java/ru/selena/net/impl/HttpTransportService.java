@@ -1,16 +1,23 @@
 package ru.selena.net.impl;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.lang.Validate;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.params.HttpClientParams;
-import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.DefaultHttpClient;
@@ -19,36 +26,151 @@ import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import ru.selena.model.DataObject;
+import ru.selena.model.Version;
 import ru.selena.net.TransportService;
 import ru.selena.net.exception.ConflictException;
 import ru.selena.net.exception.NoDataException;
 import ru.selena.net.model.Host;
+import ru.selena.net.utils.SerializationUtils;
 import ru.selena.utils.collections.ArrayUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Asynchronous requests are executed by the bounded pool of {@code asyncThreads} threads, so number of threads
+ * doesn't depend on number of requests in flight of the callers. Request which can't be queued fails immediately.
+ * <p/>
+ * Data objects are written to the connection from their value arrays and read from it into arrays of the exact field
+ * size, without intermediate copies of the body. Values aren't streamed in chunks: {@link DataObject} holds its value
+ * as one array, so each request keeps one copy of it, which is limited by {@code maxObjectSize}. Responses larger
+ * than that fail before they are read.
+ * <p/>
+ * Connect and socket timeouts are 1000 ms by default, the request timeout of the coordinator, so thread isn't held
+ * by the replica long after the request has failed. Asynchronous request is aborted when its future is cancelled.
+ * <p/>
+ * All requests share one client, which keeps up to {@code asyncThreads} connections to each host and in total, so
+ * connections are reused between requests. Response is consumed on every path, so its connection returns to the
+ * pool. Pool is closed when the service is destroyed.
+ * <p/>
  * Date: 12/18/12
  * Time: 10:41 PM
  *
  * @author Artem Titov
  */
-public final class HttpTransportService implements TransportService {
+public final class HttpTransportService implements TransportService, DisposableBean {
     private static final Logger log = LoggerFactory.getLogger(HttpTransportService.class);
 
-    private static final int TIMEOUT = 30000;
+    private static final int DEFAULT_TIMEOUT = 1000;
+    private static final String GET_PATH = "/internal/get";
+    private static final String VERSION_PATH = "/internal/version";
+    private static final String PUT_PATH = "/internal/put";
+    private static final int DEFAULT_ASYNC_THREADS = 64;
+    private static final int ASYNC_QUEUE_SIZE = 4096;
+    private static final long ASYNC_THREAD_KEEP_ALIVE = 60000;
 
-    private HttpClient createHttpClient() {
+    private final ThreadPoolExecutor asyncPool = new ThreadPoolExecutor(
+            DEFAULT_ASYNC_THREADS, DEFAULT_ASYNC_THREADS, ASYNC_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(ASYNC_QUEUE_SIZE),
+            new ThreadFactoryBuilder().setNameFormat("transport-%d").setDaemon(true).build());
+    private final ListeningExecutorService asyncExecutor = MoreExecutors.listeningDecorator(asyncPool);
+    private final PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+    private int maxObjectSize = SerializationUtils.DEFAULT_MAX_OBJECT_SIZE;
+    private int connectTimeout = DEFAULT_TIMEOUT;
+    private int socketTimeout = DEFAULT_TIMEOUT;
+    private final DefaultHttpClient httpClient = createHttpClient();
+
+    {
+        asyncPool.allowCoreThreadTimeOut(true);
+        connectionManager.setMaxTotal(DEFAULT_ASYNC_THREADS);
+        connectionManager.setDefaultMaxPerRoute(DEFAULT_ASYNC_THREADS);
+    }
+
+    /**
+     * Set number of threads which execute asynchronous requests. Also limits number of pooled connections to each
+     * host and in total.
+     *
+     * @param asyncThreads number of threads, 64 by default
+     */
+    public void setAsyncThreads(final int asyncThreads) {
+        Validate.isTrue(asyncThreads > 0, "Number of threads must be positive");
+        if (asyncThreads > asyncPool.getMaximumPoolSize()) {
+            asyncPool.setMaximumPoolSize(asyncThreads);
+            asyncPool.setCorePoolSize(asyncThreads);
+        } else {
+            asyncPool.setCorePoolSize(asyncThreads);
+            asyncPool.setMaximumPoolSize(asyncThreads);
+        }
+        connectionManager.setMaxTotal(asyncThreads);
+        connectionManager.setDefaultMaxPerRoute(asyncThreads);
+    }
+
+    /**
+     * Set maximum size of the serialized data object in the response. Larger responses fail before their body is
+     * read.
+     *
+     * @param maxObjectSize size in bytes, 64 MB by default
+     */
+    public void setMaxObjectSize(final int maxObjectSize) {
+        Validate.isTrue(maxObjectSize > 0, "Maximum object size must be positive");
+        this.maxObjectSize = maxObjectSize;
+    }
+
+    /**
+     * Set timeout of connection establishment.
+     *
+     * @param connectTimeout timeout in milliseconds, 1000 by default
+     */
+    public void setConnectTimeout(final int connectTimeout) {
+        Validate.isTrue(connectTimeout > 0, "Connect timeout must be positive");
+        this.connectTimeout = connectTimeout;
+        HttpConnectionParams.setConnectionTimeout(httpClient.getParams(), connectTimeout);
+        HttpClientParams.setConnectionManagerTimeout(httpClient.getParams(), connectTimeout);
+    }
+
+    /**
+     * Set timeout of waiting for data on the connection.
+     *
+     * @param socketTimeout timeout in milliseconds, 1000 by default
+     */
+    public void setSocketTimeout(final int socketTimeout) {
+        Validate.isTrue(socketTimeout > 0, "Socket timeout must be positive");
+        this.socketTimeout = socketTimeout;
+        HttpConnectionParams.setSoTimeout(httpClient.getParams(), socketTimeout);
+    }
+
+    /**
+     * Stop asynchronous requests and close pooled connections.
+     */
+    @Override
+    public void destroy() {
+        asyncPool.shutdown();
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Create client of the shared connection pool. Waiting for pooled connection is limited by the connect timeout.
+     */
+    private DefaultHttpClient createHttpClient() {
         final HttpParams params = new BasicHttpParams();
         HttpClientParams.setRedirecting(params, false);
-        HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
-        HttpConnectionParams.setSoTimeout(params, TIMEOUT);
+        HttpClientParams.setConnectionManagerTimeout(params, connectTimeout);
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
         HttpConnectionParams.setTcpNoDelay(params, false);
         HttpProtocolParams.setContentCharset(params, "UTF-8");
         HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-        final ClientConnectionManager connectionManager = new PoolingClientConnectionManager();
         return new DefaultHttpClient(connectionManager, params);
     }
 
@@ -57,20 +179,44 @@ public final class HttpTransportService implements TransportService {
         Validate.notNull(key, "Key can't be null");
         Validate.notNull(host, "Host can't be null");
 
-        final HttpGet request = buildGetRequest(key);
-        final HttpClient client = createHttpClient();
-        final HttpResponse response = client.execute(new HttpHost(host.getHost(), host.getPort()), request);
-        final int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode != HttpStatus.SC_OK) {
-            final String reasonPhrase = response.getStatusLine().getReasonPhrase();
-            log.warn("Error response: " + statusCode + "(" + reasonPhrase + ")");
-            if (statusCode == HttpStatus.SC_NOT_FOUND) {
-                throw new NoDataException(reasonPhrase);
-            } else {
-                throw new IOException(reasonPhrase);
-            }
+        final HttpResponse response = executeGet(buildGetRequest(GET_PATH, key), host);
+        return readBody(response.getEntity());
+    }
+
+    @Override
+    public DataObject getDataObject(final byte[] key, final Host host) throws IOException {
+        Validate.notNull(key, "Key can't be null");
+        Validate.notNull(host, "Host can't be null");
+
+        return getDataObject(buildGetRequest(GET_PATH, key), host);
+    }
+
+    private DataObject getDataObject(final HttpGet request, final Host host) throws IOException {
+        final HttpResponse response = executeGet(request, host);
+        try {
+            return SerializationUtils.deserializeDataObject(response.getEntity().getContent(),
+                    getMaxSize(response.getEntity()));
+        } finally {
+            EntityUtils.consume(response.getEntity());
+        }
+    }
+
+    @Override
+    public Version getVersion(final byte[] key, final Host host) throws IOException {
+        Validate.notNull(key, "Key can't be null");
+        Validate.notNull(host, "Host can't be null");
+
+        return getVersion(buildGetRequest(VERSION_PATH, key), host);
+    }
+
+    private Version getVersion(final HttpGet request, final Host host) throws IOException {
+        final HttpResponse response = executeGet(request, host);
+        final byte[] version = readBody(response.getEntity());
+        try {
+            return SerializationUtils.deserializeVersion(version, 0);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed version response", e);
         }
-        return IOUtils.toByteArray(response.getEntity().getContent());
     }
 
     @Override
@@ -78,28 +224,193 @@ public final class HttpTransportService implements TransportService {
         Validate.notNull(dataObject, "Data object can't be null");
         Validate.notNull(host, "Host can't be null");
 
-        final HttpPost request = buildSendRequest(dataObject);
-        final HttpClient client = createHttpClient();
-        final HttpResponse response = client.execute(new HttpHost(host.getHost(), host.getPort()), request);
+        executeSend(buildPostRequest(new ByteArrayEntity(dataObject, ContentType.APPLICATION_OCTET_STREAM)), host);
+    }
+
+    @Override
+    public void send(final DataObject dataObject, final Host host) throws IOException {
+        Validate.notNull(dataObject, "Data object can't be null");
+        Validate.notNull(host, "Host can't be null");
+
+        executeSend(buildPostRequest(new DataObjectEntity(dataObject)), host);
+    }
+
+    @Override
+    public ListenableFuture<DataObject> getDataObjectAsync(final byte[] key, final Host host) {
+        Validate.notNull(key, "Key can't be null");
+        Validate.notNull(host, "Host can't be null");
+
+        final HttpGet request = buildGetRequest(GET_PATH, key);
+        return submit(request, new Callable<DataObject>() {
+            @Override
+            public DataObject call() throws IOException {
+                return getDataObject(request, host);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Version> getVersionAsync(final byte[] key, final Host host) {
+        Validate.notNull(key, "Key can't be null");
+        Validate.notNull(host, "Host can't be null");
+
+        final HttpGet request = buildGetRequest(VERSION_PATH, key);
+        return submit(request, new Callable<Version>() {
+            @Override
+            public Version call() throws IOException {
+                return getVersion(request, host);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Void> sendAsync(final DataObject dataObject, final Host host) {
+        Validate.notNull(dataObject, "Data object can't be null");
+        Validate.notNull(host, "Host can't be null");
+
+        final HttpPost request = buildPostRequest(new DataObjectEntity(dataObject));
+        return submit(request, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                executeSend(request, host);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Execute request in the pool. Request is aborted when returned future is cancelled, so the thread doesn't wait
+     * for the response nobody needs.
+     */
+    private <T> ListenableFuture<T> submit(final HttpUriRequest request, final Callable<T> task) {
+        final ListenableFuture<T> future;
+        try {
+            future = asyncExecutor.submit(task);
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(new IOException("Too many asynchronous requests in flight", e));
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isCancelled()) {
+                    request.abort();
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    /**
+     * Execute get request. Successful response must be consumed by the caller, error response is consumed here.
+     */
+    private HttpResponse executeGet(final HttpGet request, final Host host) throws IOException {
+        final HttpResponse response = httpClient.execute(new HttpHost(host.getHost(), host.getPort()), request);
         final int statusCode = response.getStatusLine().getStatusCode();
         if (statusCode != HttpStatus.SC_OK) {
+            EntityUtils.consume(response.getEntity());
             final String reasonPhrase = response.getStatusLine().getReasonPhrase();
             log.warn("Error response: " + statusCode + "(" + reasonPhrase + ")");
-            if (statusCode == HttpStatus.SC_CONFLICT) {
-                throw new ConflictException(reasonPhrase);
+            if (statusCode == HttpStatus.SC_NOT_FOUND) {
+                throw new NoDataException(reasonPhrase);
             } else {
                 throw new IOException(reasonPhrase);
             }
         }
+        return response;
     }
 
-    private HttpGet buildGetRequest(final byte[] key) {
-        return new HttpGet("/internal/get?key=" + ArrayUtils.toHexString(key));
+    private void executeSend(final HttpPost request, final Host host) throws IOException {
+        final HttpResponse response = httpClient.execute(new HttpHost(host.getHost(), host.getPort()), request);
+        try {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_OK) {
+                final String reasonPhrase = response.getStatusLine().getReasonPhrase();
+                log.warn("Error response: " + statusCode + "(" + reasonPhrase + ")");
+                if (statusCode == HttpStatus.SC_CONFLICT) {
+                    throw new ConflictException(reasonPhrase);
+                } else {
+                    throw new IOException(reasonPhrase);
+                }
+            }
+        } finally {
+            EntityUtils.consume(response.getEntity());
+        }
     }
 
-    private HttpPost buildSendRequest(final byte[] data) {
-        final HttpPost request = new HttpPost("/internal/put");
-        request.setEntity(new ByteArrayEntity(data, ContentType.APPLICATION_OCTET_STREAM));
+    /**
+     * Return maximum number of bytes which can be read from the entity: its content length, if it is known, or
+     * {@code maxObjectSize}.
+     *
+     * @param entity response entity
+     * @return maximum size of the body
+     * @throws IOException if content length is larger than {@code maxObjectSize}
+     */
+    private long getMaxSize(final HttpEntity entity) throws IOException {
+        final long contentLength = entity.getContentLength();
+        if (contentLength > maxObjectSize) {
+            throw new IOException(String.format("Response of %d bytes is larger than %d bytes",
+                    contentLength, maxObjectSize));
+        }
+        return contentLength >= 0 ? contentLength : maxObjectSize;
+    }
+
+    private byte[] readBody(final HttpEntity entity) throws IOException {
+        try {
+            final long maxSize = getMaxSize(entity);
+            final byte[] body = IOUtils.toByteArray(new BoundedInputStream(entity.getContent(), maxSize + 1));
+            if (body.length > maxSize) {
+                throw new IOException(String.format("Response is larger than %d bytes", maxSize));
+            }
+            return body;
+        } finally {
+            EntityUtils.consume(entity);
+        }
+    }
+
+    private HttpGet buildGetRequest(final String path, final byte[] key) {
+        return new HttpGet(path + "?key=" + ArrayUtils.toHexString(key));
+    }
+
+    private HttpPost buildPostRequest(final HttpEntity entity) {
+        final HttpPost request = new HttpPost(PUT_PATH);
+        request.setEntity(entity);
         return request;
     }
+
+    /**
+     * Entity which writes serialized data object directly to the connection.
+     */
+    private static final class DataObjectEntity extends AbstractHttpEntity {
+        private final DataObject dataObject;
+
+        private DataObjectEntity(final DataObject dataObject) {
+            this.dataObject = dataObject;
+            setContentType(ContentType.APPLICATION_OCTET_STREAM.toString());
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return SerializationUtils.getRequiredSize(dataObject);
+        }
+
+        @Override
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("Data object entity can only be written");
+        }
+
+        @Override
+        public void writeTo(final OutputStream out) throws IOException {
+            SerializationUtils.serializeDataObject(dataObject, out);
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
 }
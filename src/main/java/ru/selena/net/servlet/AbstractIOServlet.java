@@ -1,6 +1,6 @@
 package ru.selena.net.servlet;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.Validate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
@@ -12,11 +12,10 @@ import ru.selena.net.utils.SerializationUtils;
 import ru.selena.utils.collections.ArrayUtils;
 
 import javax.servlet.ServletException;
-import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 /**
@@ -24,6 +23,10 @@ import java.io.IOException;
  * Set {@link ru.selena.core.LocalStoreService} as store service for node's requests serving and
  * {@link ru.selena.core.CoordinationService} for client request serving
  * <p/>
+ * Request and response bodies are read and written by {@link SerializationUtils} stream methods without
+ * intermediate copies, but data object value is still held as one array per request, so requests larger than
+ * {@code maxObjectSize} are rejected with 413 status before their body is read.
+ * <p/>
  * Date: 12/17/12
  * Time: 11:25 PM
  *
@@ -32,12 +35,24 @@ import java.io.IOException;
 public abstract class AbstractIOServlet<T extends StoreService> extends HttpServlet {
 
     protected T storeService;
+    private int maxObjectSize = SerializationUtils.DEFAULT_MAX_OBJECT_SIZE;
 
     @Required
     public void setStoreService(final T storeService) {
         this.storeService = storeService;
     }
 
+    /**
+     * Set maximum size of the serialized data object in the request. Larger requests are rejected before their body
+     * is read.
+     *
+     * @param maxObjectSize size in bytes, 64 MB by default
+     */
+    public void setMaxObjectSize(final int maxObjectSize) {
+        Validate.isTrue(maxObjectSize > 0, "Maximum object size must be positive");
+        this.maxObjectSize = maxObjectSize;
+    }
+
     @Override
     protected void doGet(final HttpServletRequest request,
                          final HttpServletResponse response) throws ServletException, IOException {
@@ -61,31 +76,57 @@ public abstract class AbstractIOServlet<T extends StoreService> extends HttpServ
             return;
         }
 
-        processGet(Factories.Instances.getKeyFactory().createKey(key), response);
+        processGet(Factories.Instances.getKeyFactory().createKey(key), request, response);
     }
 
-    protected abstract void processGet(final Key key, final HttpServletResponse response) throws IOException;
+    protected abstract void processGet(final Key key,
+                                       final HttpServletRequest request,
+                                       final HttpServletResponse response) throws IOException;
 
     @Override
     protected void doPost(final HttpServletRequest request,
                           final HttpServletResponse response) throws ServletException, IOException {
-        final DataObject dataObject = deserializeDataObject(request.getInputStream());
-        processPost(dataObject, response);
+        final int contentLength = request.getContentLength();
+        if (contentLength > maxObjectSize) {
+            final String message = String.format("Data object is larger than %d bytes", maxObjectSize);
+            log().warn(message);
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, message);
+            return;
+        }
+        final DataObject dataObject;
+        try {
+            dataObject = SerializationUtils.deserializeDataObject(request.getInputStream(),
+                    contentLength >= 0 ? contentLength : maxObjectSize);
+        } catch (IOException e) {
+            log().warn("Failed to read data object", e);
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Failed to read data object");
+            return;
+        }
+        processPost(dataObject, request, response);
     }
 
-    protected abstract void processPost(final DataObject dataObject, final HttpServletResponse response) throws IOException;
+    protected abstract void processPost(final DataObject dataObject,
+                                        final HttpServletRequest request,
+                                        final HttpServletResponse response) throws IOException;
 
     @Override
     protected void doDelete(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
 
     }
 
-    private DataObject deserializeDataObject(final ServletInputStream in) throws IOException {
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        IOUtils.copy(in, out);
-        final byte[] source = out.toByteArray();
-
-        return SerializationUtils.deserializeDataObject(source, 0);
+    /**
+     * Write data object to the response body without copying its value.
+     *
+     * @param dataObject data object
+     * @param response   response
+     * @throws IOException if failed to write response
+     */
+    protected void serializeDataObject(final DataObject dataObject, final HttpServletResponse response)
+            throws IOException {
+        response.setContentLength(SerializationUtils.getRequiredSize(dataObject));
+        final ServletOutputStream out = response.getOutputStream();
+        SerializationUtils.serializeDataObject(dataObject, out);
+        out.close();
     }
 
     protected final Logger log() {
@@ -1,23 +1,39 @@
 package ru.selena.net.servlet;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.apache.commons.lang.Validate;
 import org.springframework.beans.factory.annotation.Required;
 import ru.selena.core.CoordinationService;
 import ru.selena.core.exception.DataStoreException;
 import ru.selena.model.DataObject;
 import ru.selena.model.Key;
-import ru.selena.net.utils.SerializationUtils;
 import ru.selena.utils.collections.ArrayUtils;
 
-import javax.servlet.ServletOutputStream;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class can be used for client request serving or for node's request serving.
  * Set {@link ru.selena.core.LocalStoreService} as store service for node's requests serving and
  * {@link ru.selena.core.CoordinationService} for client request serving
  * <p/>
+ * Requests are served asynchronously: servlet starts {@link AsyncContext}, submits operation to the coordinator and
+ * returns the worker thread to the container. So number of requests in flight isn't limited by the container thread
+ * pool. Servlet must be registered with async support.
+ * <p/>
+ * Response is written by the container thread started by {@link AsyncContext#start(Runnable)}, not by the thread which
+ * completes the operation, so slow client doesn't hold coordinator threads. Request which isn't completed in
+ * {@code asyncTimeout} ms fails with 503 status, request which fails in the container fails with 500 status. The
+ * timeout is only a backstop: it's twice the coordinator timeout by default, so requests normally fail by the
+ * coordinator deadline.
+ * <p/>
  * Date: 12/17/12
  * Time: 11:25 PM
  *
@@ -25,49 +41,163 @@ import java.util.NoSuchElementException;
  */
 public class IOServlet extends AbstractIOServlet<CoordinationService> {
 
+    private static final long DEFAULT_ASYNC_TIMEOUT = 2000;
+
+    private long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+
     @Required
     public void setStoreService(final CoordinationService storeService) {
         this.storeService = storeService;
     }
 
+    /**
+     * Set timeout of the asynchronous request, it should be greater than the coordinator timeout of 1000 ms.
+     *
+     * @param asyncTimeout timeout in milliseconds, 2000 by default
+     */
+    public void setAsyncTimeout(final long asyncTimeout) {
+        Validate.isTrue(asyncTimeout > 0, "Timeout must be positive");
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    @Override
+    protected void processGet(final Key key,
+                              final HttpServletRequest request,
+                              final HttpServletResponse response) throws IOException {
+        Futures.addCallback(storeService.getAsync(key), new AsyncResponse<DataObject>(request, response) {
+            @Override
+            protected void writeSuccess(final DataObject dataObject) throws IOException {
+                if (dataObject.isStub()) {
+                    log().warn("Found stub object");
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+                serializeDataObject(dataObject, response);
+            }
+
+            @Override
+            protected void writeFailure(final Throwable t) throws IOException {
+                if (t instanceof NoSuchElementException) {
+                    log().warn("No any data found", t);
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                } else {
+                    log().error("Failed to get data for key " + ArrayUtils.toHexString(key.getHash()), t);
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, t.getMessage());
+                }
+            }
+        });
+    }
+
     @Override
-    protected void processGet(final Key key, final HttpServletResponse response) throws IOException {
-        final DataObject dataObject;
-        try {
-            dataObject = storeService.get(key);
-        } catch (NoSuchElementException e) {
-            log().warn("No any data found", e);
-            response.sendError(HttpServletResponse.SC_NOT_FOUND);
-            return;
-        } catch (DataStoreException e) {
-            log().error("Failed to get data for key " + ArrayUtils.toHexString(key.getHash()), e);
-            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
-            return;
+    protected void processPost(final DataObject dataObject,
+                               final HttpServletRequest request,
+                               final HttpServletResponse response) throws IOException {
+        Futures.addCallback(storeService.putAsync(dataObject), new AsyncResponse<Void>(request, response) {
+            @Override
+            protected void writeSuccess(final Void ignore) {
+            }
+
+            @Override
+            protected void writeFailure(final Throwable t) throws IOException {
+                if (!(t instanceof DataStoreException)) {
+                    log().error("Failed to put data for key " + ArrayUtils.toHexString(
+                            dataObject.getKey().getHash()), t);
+                }
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous response which is written once: either by the result of the operation or by the container
+     * timeout or error, whichever comes first.
+     *
+     * @param <V> type of the operation result
+     */
+    private abstract class AsyncResponse<V> implements FutureCallback<V>, AsyncListener {
+        protected final HttpServletResponse response;
+        private final AsyncContext asyncContext;
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private AsyncResponse(final HttpServletRequest request, final HttpServletResponse response) {
+            this.response = response;
+            this.asyncContext = request.startAsync();
+            asyncContext.setTimeout(asyncTimeout);
+            asyncContext.addListener(this);
         }
 
-        if (dataObject.isStub()) {
-            log().warn("Found stub object");
-            response.sendError(HttpServletResponse.SC_NOT_FOUND);
-            return;
+        protected abstract void writeSuccess(final V result) throws IOException;
+
+        protected abstract void writeFailure(final Throwable t) throws IOException;
+
+        @Override
+        public void onSuccess(final V result) {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            asyncContext.start(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeSuccess(result);
+                    } catch (IOException e) {
+                        log().warn("Failed to write response", e);
+                    } finally {
+                        asyncContext.complete();
+                    }
+                }
+            });
         }
 
-        final ServletOutputStream out = response.getOutputStream();
-        serializeDataObject(dataObject, out);
-        out.close();
-    }
+        @Override
+        public void onFailure(final Throwable t) {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            asyncContext.start(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeFailure(t);
+                    } catch (IOException e) {
+                        log().warn("Failed to write response", e);
+                    } finally {
+                        asyncContext.complete();
+                    }
+                }
+            });
+        }
 
-    @Override
-    protected void processPost(final DataObject dataObject, final HttpServletResponse response) throws IOException {
-        try {
-            storeService.put(dataObject);
-        } catch (DataStoreException e) {
-            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        @Override
+        public void onTimeout(final AsyncEvent event) throws IOException {
+            if (completed.compareAndSet(false, true)) {
+                log().warn(String.format("Request isn't completed in %d ms", asyncTimeout));
+                sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
         }
-    }
 
-    private void serializeDataObject(final DataObject dataObject, final ServletOutputStream out) throws IOException {
-        final byte[] buffer = new byte[SerializationUtils.getRequiredSize(dataObject)];
-        SerializationUtils.serializeDataObject(dataObject, buffer, 0);
-        out.write(buffer);
+        @Override
+        public void onError(final AsyncEvent event) throws IOException {
+            if (completed.compareAndSet(false, true)) {
+                log().error("Asynchronous request failed", event.getThrowable());
+                sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+        }
+
+        private void sendError(final int status) throws IOException {
+            try {
+                response.sendError(status);
+            } finally {
+                asyncContext.complete();
+            }
+        }
     }
 }
@@ -2,16 +2,20 @@ package ru.selena.net.servlet;
 
 import org.springframework.beans.factory.annotation.Required;
 import ru.selena.core.LocalStoreService;
+import ru.selena.core.SerializedDataSource;
 import ru.selena.core.exception.DataStoreException;
 import ru.selena.core.exception.UpdatingOlderVersionException;
 import ru.selena.model.DataObject;
 import ru.selena.model.Key;
+import ru.selena.model.Version;
 import ru.selena.net.utils.SerializationUtils;
 import ru.selena.utils.collections.ArrayUtils;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.channels.Channels;
 import java.util.NoSuchElementException;
 
 /**
@@ -19,6 +23,9 @@ import java.util.NoSuchElementException;
  * Set {@link ru.selena.core.LocalStoreService} as store service for node's requests serving and
  * {@link ru.selena.core.CoordinationService} for client request serving
  * <p/>
+ * If store service is {@link SerializedDataSource}, stored bytes are written to the response as is. Requests to
+ * {@value #VERSION_PATH} return only serialized version of the data object.
+ * <p/>
  * Date: 12/17/12
  * Time: 11:25 PM
  *
@@ -26,13 +33,25 @@ import java.util.NoSuchElementException;
  */
 public class InternalIOServlet extends AbstractIOServlet<LocalStoreService> {
 
+    private static final String VERSION_PATH = "/internal/version";
+
     @Required
     public void setStoreService(final LocalStoreService storeService) {
         this.storeService = storeService;
     }
 
     @Override
-    protected void processGet(final Key key, final HttpServletResponse response) throws IOException {
+    protected void processGet(final Key key,
+                              final HttpServletRequest request,
+                              final HttpServletResponse response) throws IOException {
+        if (VERSION_PATH.equals(request.getServletPath())) {
+            processVersionGet(key, response);
+            return;
+        }
+        if (storeService instanceof SerializedDataSource) {
+            processSerializedGet((SerializedDataSource) storeService, key, response);
+            return;
+        }
         final DataObject dataObject;
         try {
             dataObject = storeService.get(key);
@@ -46,18 +65,65 @@ public class InternalIOServlet extends AbstractIOServlet<LocalStoreService> {
             return;
         }
 
-        final ServletOutputStream out = response.getOutputStream();
         try {
-            serializeDataObject(dataObject, out);
+            serializeDataObject(dataObject, response);
         } catch (RuntimeException e) {
             log().error("Failed to serialize data to stream for key " + ArrayUtils.toHexString(key.getHash()), e);
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
         }
+    }
+
+    /**
+     * Write only version of the data object, so replica which is read for digest doesn't send the value.
+     */
+    private void processVersionGet(final Key key, final HttpServletResponse response) throws IOException {
+        final Version version;
+        try {
+            version = storeService.get(key).getVersion();
+        } catch (NoSuchElementException e) {
+            log().warn("No any data found", e);
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+            return;
+        } catch (DataStoreException e) {
+            log().error("Failed to get version for key " + ArrayUtils.toHexString(key.getHash()), e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return;
+        }
+
+        final byte[] buffer = new byte[SerializationUtils.getRequiredSize(version)];
+        SerializationUtils.serializeVersion(version, buffer, 0);
+        response.setContentLength(buffer.length);
+        final ServletOutputStream out = response.getOutputStream();
+        out.write(buffer);
+        out.close();
+    }
+
+    private void processSerializedGet(final SerializedDataSource source,
+                                      final Key key,
+                                      final HttpServletResponse response) throws IOException {
+        final SerializedDataSource.SerializedData data;
+        try {
+            data = source.getSerialized(key);
+        } catch (NoSuchElementException e) {
+            log().warn("No any data found", e);
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+            return;
+        } catch (DataStoreException e) {
+            log().error("Failed to get data for key " + ArrayUtils.toHexString(key.getHash()), e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return;
+        }
+
+        response.setContentLength(data.getLength());
+        final ServletOutputStream out = response.getOutputStream();
+        data.writeTo(Channels.newChannel(out));
         out.close();
     }
 
     @Override
-    protected void processPost(final DataObject dataObject, final HttpServletResponse response) throws IOException {
+    protected void processPost(final DataObject dataObject,
+                               final HttpServletRequest request,
+                               final HttpServletResponse response) throws IOException {
         try {
             storeService.put(dataObject);
         } catch (UpdatingOlderVersionException e) {
@@ -66,10 +132,4 @@ public class InternalIOServlet extends AbstractIOServlet<LocalStoreService> {
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
         }
     }
-
-    private void serializeDataObject(final DataObject dataObject, final ServletOutputStream out) throws IOException {
-        final byte[] buffer = new byte[SerializationUtils.getRequiredSize(dataObject)];
-        SerializationUtils.serializeDataObject(dataObject, buffer, 0);
-        out.write(buffer);
-    }
 }
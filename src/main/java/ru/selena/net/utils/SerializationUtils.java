@@ -7,11 +7,24 @@ import ru.selena.model.Key;
 import ru.selena.model.Version;
 import ru.selena.utils.NumberUtils;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static ru.selena.Factories.Instances.*;
 
 /**
+ * Data object is serialized as key, version, flags byte and, for not stub objects, value. Each of key, version and
+ * value is prefixed by its 4 bytes length. Flags are {@link #STUB_FLAG} and {@link #EXPIRATION_FLAG}, if the last one
+ * is set, 8 bytes expiration time follows the flags byte.
+ * <p/>
+ * Stream methods read and write value directly from and to its array, so serialized object is never copied as a
+ * whole, which matters for large values. Value itself isn't streamed: it is read to one array, so the size of the
+ * object read from the stream is always limited by the caller.
+ * <p/>
  * Date: 12/18/12
  * Time: 12:41 PM
  *
@@ -20,8 +33,13 @@ import static ru.selena.Factories.Instances.*;
 public final class SerializationUtils {
     private static final Logger log = LoggerFactory.getLogger(SerializationUtils.class);
 
+    public static final byte STUB_FLAG = 1;
+    public static final byte EXPIRATION_FLAG = 2;
+    public static final int DEFAULT_MAX_OBJECT_SIZE = 64 * 1024 * 1024;
+
     private static final byte[] EMPTY_ARRAY = new byte[0];
     private static final int INT_BYTE_SIZE = Integer.SIZE / Byte.SIZE;
+    private static final int LONG_BYTE_SIZE = Long.SIZE / Byte.SIZE;
 
     public static DataObject deserializeDataObject(final byte[] buffer, final int offset) {
         return deserializeDataObject(buffer, new AtomicInteger(offset));
@@ -40,11 +58,16 @@ public final class SerializationUtils {
         log.debug("Deserializing object");
         final Key key = deserializeKey(buffer, offset);
         final Version version = deserializeVersion(buffer, offset);
-        final boolean isStub = buffer[offset.getAndIncrement()] == 1;
-        if (isStub) {
+        final byte flags = buffer[offset.getAndIncrement()];
+        long expirationTime = DataObject.NEVER_EXPIRES;
+        if ((flags & EXPIRATION_FLAG) != 0) {
+            expirationTime = NumberUtils.toLong(buffer, offset.getAndAdd(LONG_BYTE_SIZE));
+        }
+        if ((flags & STUB_FLAG) != 0) {
             return getDataObjectFactory().createDataObject(key, version);
         } else {
-            return getDataObjectFactory().createDataObject(key, version, deserializeMeasuredArray(buffer, offset));
+            return getDataObjectFactory().createDataObject(key, version, deserializeMeasuredArray(buffer, offset),
+                    expirationTime);
         }
     }
 
@@ -88,6 +111,68 @@ public final class SerializationUtils {
 
     public static void serializeDataObject(final DataObject dataObject, final byte[] buffer, final int offset) {
         log.debug("Serializing object");
+        final int valueOffset = serializeHeader(dataObject, buffer, offset);
+        if (!dataObject.isStub()) {
+            System.arraycopy(dataObject.getValue(), 0, buffer, valueOffset, dataObject.getValue().length);
+        }
+    }
+
+    /**
+     * Write data object to the stream. Only key, version and flags are copied to the temporary buffer, value is
+     * written as is.
+     *
+     * @param dataObject data object
+     * @param out        output stream
+     * @throws IOException if failed to write to the stream
+     */
+    public static void serializeDataObject(final DataObject dataObject, final OutputStream out) throws IOException {
+        log.debug("Serializing object to stream");
+        final int valueLength = dataObject.isStub() ? 0 : dataObject.getValue().length;
+        final byte[] header = new byte[getRequiredSize(dataObject) - valueLength];
+        serializeHeader(dataObject, header, 0);
+        out.write(header);
+        if (valueLength > 0) {
+            out.write(dataObject.getValue());
+        }
+    }
+
+    /**
+     * Read data object from the stream. Each field is read directly to the array of its size. Length of each field is
+     * checked before the array is allocated, so malformed or too large object fails without allocation.
+     *
+     * @param in      input stream
+     * @param maxSize maximum size of the serialized object, usually content length of the request
+     * @return deserialized data object
+     * @throws IOException if failed to read from the stream, stream doesn't contain data object or object is larger
+     *                     than {@code maxSize}
+     */
+    public static DataObject deserializeDataObject(final InputStream in, final long maxSize) throws IOException {
+        log.debug("Deserializing object from stream");
+        final DataInputStream input = new DataInputStream(in);
+        final AtomicLong remaining = new AtomicLong(maxSize);
+        final Key key = getKeyFactory().createKey(readMeasuredArray(input, remaining));
+        final Version version = getVersionFactory().createVersion(readMeasuredArray(input, remaining));
+        final byte flags = input.readByte();
+        final boolean expiring = (flags & EXPIRATION_FLAG) != 0;
+        reserve(remaining, 1 + (expiring ? LONG_BYTE_SIZE : 0));
+        final long expirationTime = expiring ? input.readLong() : DataObject.NEVER_EXPIRES;
+        if ((flags & STUB_FLAG) != 0) {
+            return getDataObjectFactory().createDataObject(key, version);
+        } else {
+            return getDataObjectFactory().createDataObject(key, version, readMeasuredArray(input, remaining),
+                    expirationTime);
+        }
+    }
+
+    /**
+     * Serialize everything except value bytes.
+     *
+     * @param dataObject data object
+     * @param buffer     buffer
+     * @param offset     offset
+     * @return offset of value bytes
+     */
+    private static int serializeHeader(final DataObject dataObject, final byte[] buffer, final int offset) {
         final int keyRequiredSize = getRequiredSize(dataObject.getKey());
         final int versionRequiredSize = getRequiredSize(dataObject.getVersion());
         final AtomicInteger currentOffset = new AtomicInteger(offset);
@@ -95,12 +180,16 @@ public final class SerializationUtils {
         serializeKey(dataObject.getKey(), buffer, currentOffset.getAndAdd(keyRequiredSize));
         serializeVersion(dataObject.getVersion(), buffer, currentOffset.getAndAdd(versionRequiredSize));
 
+        final boolean expiring = hasExpirationTime(dataObject);
         buffer[currentOffset.getAndIncrement()] =
-                dataObject.isStub() ? (byte) 1 : (byte) 0;
+                (byte) ((dataObject.isStub() ? STUB_FLAG : 0) | (expiring ? EXPIRATION_FLAG : 0));
+        if (expiring) {
+            NumberUtils.toByteArray(dataObject.getExpirationTime(), buffer, currentOffset.getAndAdd(LONG_BYTE_SIZE));
+        }
         if (!dataObject.isStub()) {
             NumberUtils.toByteArray(dataObject.getValue().length, buffer, currentOffset.getAndAdd(INT_BYTE_SIZE));
-            System.arraycopy(dataObject.getValue(), 0, buffer, currentOffset.get(), dataObject.getValue().length);
         }
+        return currentOffset.get();
     }
 
     public static void serializeKey(final Key key, final byte[] buffer, final int offset) {
@@ -118,9 +207,14 @@ public final class SerializationUtils {
 
     public static int getRequiredSize(final DataObject dataObject) {
         return getRequiredSize(dataObject.getKey()) + getRequiredSize(dataObject.getVersion()) + 1
+                + (hasExpirationTime(dataObject) ? LONG_BYTE_SIZE : 0)
                 + (!dataObject.isStub() ? dataObject.getValue().length + INT_BYTE_SIZE : 0);
     }
 
+    private static boolean hasExpirationTime(final DataObject dataObject) {
+        return !dataObject.isStub() && dataObject.getExpirationTime() != DataObject.NEVER_EXPIRES;
+    }
+
     public static int getRequiredSize(final Key key) {
         return key.getValue().length + INT_BYTE_SIZE;
     }
@@ -136,4 +230,22 @@ public final class SerializationUtils {
         offset.addAndGet(INT_BYTE_SIZE + length);
         return value;
     }
+
+    private static byte[] readMeasuredArray(final DataInputStream in, final AtomicLong remaining) throws IOException {
+        reserve(remaining, INT_BYTE_SIZE);
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative array length " + length);
+        }
+        reserve(remaining, length);
+        final byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    private static void reserve(final AtomicLong remaining, final int size) throws IOException {
+        if (remaining.addAndGet(-size) < 0) {
+            throw new IOException("Data object is larger than the size limit");
+        }
+    }
 }
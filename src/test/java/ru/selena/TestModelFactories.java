@@ -2,6 +2,7 @@ package ru.selena;
 
 import ru.selena.model.*;
 import ru.selena.model.impl.*;
+import ru.selena.utils.NumberUtils;
 
 /**
  * Date: 2/25/13
@@ -19,6 +20,13 @@ public final class TestModelFactories {
         return dataObjectFactory.createDataObject(key, version, value);
     }
 
+    public static DataObject createDataObject(final Key key,
+                                              final Version version,
+                                              final byte[] value,
+                                              final long expirationTime) {
+        return dataObjectFactory.createDataObject(key, version, value, expirationTime);
+    }
+
     public static DataObject createDataObject(final Key key, final Version version) {
         return dataObjectFactory.createDataObject(key, version);
     }
@@ -30,4 +38,30 @@ public final class TestModelFactories {
     public static Version createVersion(final byte[] version) {
         return versionFactory.createVersion(version);
     }
+
+    public static Key createKey(final int key) {
+        return createKey(NumberUtils.toByteArray(key));
+    }
+
+    public static Version createVersion(final long version) {
+        return createVersion(NumberUtils.toByteArray(version));
+    }
+
+    /**
+     * Create data object which value is bytes of the key.
+     */
+    public static DataObject createDataObject(final int key, final long version) {
+        return createDataObject(key, version, NumberUtils.toByteArray(key));
+    }
+
+    public static DataObject createDataObject(final int key, final long version, final byte[] value) {
+        return createDataObject(createKey(key), createVersion(version), value);
+    }
+
+    /**
+     * Create data object with expiration time which value is bytes of the key.
+     */
+    public static DataObject createDataObject(final int key, final long version, final long expirationTime) {
+        return createDataObject(createKey(key), createVersion(version), NumberUtils.toByteArray(key), expirationTime);
+    }
 }
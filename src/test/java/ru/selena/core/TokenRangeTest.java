@@ -0,0 +1,57 @@
+package ru.selena.core;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Date: 3/26/13
+ * Time: 11:50 PM
+ *
+ * @author Artem Titov
+ */
+public class TokenRangeTest {
+
+    @Test
+    public void testContains() throws Exception {
+        final TokenRange range = new TokenRange(10, 20);
+        assertFalse(range.isWrapping());
+        assertFalse(range.contains(10));
+        assertTrue(range.contains(11));
+        assertTrue(range.contains(20));
+        assertFalse(range.contains(21));
+    }
+
+    @Test
+    public void testWrappingRange() throws Exception {
+        final TokenRange range = new TokenRange(20, 10);
+        assertTrue(range.isWrapping());
+        assertTrue(range.contains(Integer.MAX_VALUE));
+        assertTrue(range.contains(Integer.MIN_VALUE));
+        assertTrue(range.contains(10));
+        assertFalse(range.contains(15));
+        assertFalse(range.contains(20));
+        assertTrue(range.compareTokens(Integer.MAX_VALUE, Integer.MIN_VALUE) < 0);
+        assertTrue(range.compareTokens(21, Integer.MAX_VALUE) < 0);
+    }
+
+    @Test
+    public void testWholeRing() throws Exception {
+        final TokenRange range = TokenRange.wholeRing();
+        assertFalse(range.isWrapping());
+        assertTrue(range.contains(Integer.MIN_VALUE));
+        assertTrue(range.contains(0));
+        assertTrue(range.contains(Integer.MAX_VALUE));
+        assertTrue(new TokenRange(5, 5).contains(5));
+    }
+
+    @Test
+    public void testResumeFrom() throws Exception {
+        final TokenRange range = new TokenRange(20, 10).resumeFrom(Integer.MIN_VALUE);
+        assertFalse(range.isWrapping());
+        assertTrue(range.contains(Integer.MIN_VALUE));
+        assertFalse(range.contains(Integer.MAX_VALUE));
+        assertTrue(range.contains(10));
+    }
+}
@@ -0,0 +1,116 @@
+package ru.selena.core.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.selena.TestModelFactories;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.model.DataObject;
+import ru.selena.utils.NumberUtils;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static ru.selena.TestModelFactories.createDataObject;
+import static ru.selena.TestModelFactories.createKey;
+
+/**
+ * Date: 3/25/13
+ * Time: 11:30 PM
+ *
+ * @author Artem Titov
+ */
+public class CompressingLocalStoreServiceTest {
+
+    private InMemoryLocalStoreService underlyingService;
+    private CompressingLocalStoreService storeService;
+
+    @Before
+    public void setUp() throws Exception {
+        underlyingService = new InMemoryLocalStoreService();
+        storeService = new CompressingLocalStoreService();
+        storeService.setLocalStoreService(underlyingService);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storeService.close();
+    }
+
+    @Test
+    public void testCompressibleValue() throws Exception {
+        final byte[] value = createJson(100);
+        storeService.put(createDataObject(1, 1, value));
+        assertTrue(underlyingService.get(createKey(1)).getValue().length < value.length / 2);
+        final DataObject dataObject = storeService.get(createKey(1));
+        assertEquals(createDataObject(1, 1, new byte[0]), dataObject);
+        assertEquals(dataObject, createDataObject(1, 1, new byte[0]));
+        assertTrue(Arrays.equals(value, dataObject.getValue()));
+    }
+
+    @Test
+    public void testValueWithoutHeader() throws Exception {
+        underlyingService.put(createDataObject(1, 1, new byte[]{1, 2}));
+        underlyingService.put(createDataObject(2, 1, new byte[]{7, 2, 3, 4, 5, 6}));
+        underlyingService.put(createDataObject(3, 1, new byte[0]));
+        for (int key = 1; key <= 3; key++) {
+            try {
+                storeService.get(createKey(key));
+                fail("Value without header is read");
+            } catch (DataStoreException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testIncompressibleValue() throws Exception {
+        final byte[] value = new byte[1000];
+        new Random(17).nextBytes(value);
+        storeService.put(createDataObject(1, 1, value));
+        assertEquals(value.length + 1, underlyingService.get(createKey(1)).getValue().length);
+        assertTrue(Arrays.equals(value, storeService.get(createKey(1)).getValue()));
+    }
+
+    @Test
+    public void testSmallValue() throws Exception {
+        final byte[] value = new byte[10];
+        storeService.put(createDataObject(1, 1, value));
+        assertEquals(value.length + 1, underlyingService.get(createKey(1)).getValue().length);
+        assertTrue(Arrays.equals(value, storeService.get(createKey(1)).getValue()));
+    }
+
+    @Test
+    public void testPutStub() throws Exception {
+        storeService.put(TestModelFactories.createDataObject(createKey(1),
+                TestModelFactories.createVersion(NumberUtils.toByteArray(1L))));
+        assertTrue(underlyingService.get(createKey(1)).isStub());
+        assertTrue(storeService.get(createKey(1)).isStub());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testGetMissing() throws Exception {
+        storeService.get(createKey(1));
+    }
+
+    @Test(expected = UpdatingOlderVersionException.class)
+    public void testPutOlderVersion() throws Exception {
+        storeService.put(createDataObject(1, 2, createJson(10)));
+        storeService.put(createDataObject(1, 1, createJson(10)));
+    }
+
+    private static byte[] createJson(final int records) throws Exception {
+        final StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < records; i++) {
+            builder.append("{\"id\":").append(i).append(",\"status\":\"active\",\"tags\":[\"a\",\"b\"]},");
+        }
+        return builder.append("]").toString().getBytes("UTF-8");
+    }
+}
@@ -1,5 +1,9 @@
 package ru.selena.core.impl;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -11,16 +15,26 @@ import ru.selena.core.KeyRingService;
 import ru.selena.core.LocalStoreService;
 import ru.selena.core.RemoteStoreService;
 import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.UpdatingOlderVersionException;
 import ru.selena.model.DataObject;
 import ru.selena.model.Key;
+import ru.selena.model.Version;
 import ru.selena.net.model.Host;
 import ru.selena.net.model.impl.HostWithIntegerTokenFactory;
 import ru.selena.utils.NumberUtils;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 import static org.mockito.Mockito.*;
 
@@ -32,6 +46,9 @@ import static org.mockito.Mockito.*;
  */
 public class CoordinationServiceImplTest {
 
+    private static final ListeningExecutorService REMOTE_EXECUTOR =
+            MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+
     private CoordinationServiceImpl coordinationService;
     private KeyRingService keyRingService;
     private ClusterManager clusterManager;
@@ -79,7 +96,7 @@ public class CoordinationServiceImplTest {
 
     @After
     public void tearDown() throws Exception {
-
+        coordinationService.destroy();
     }
 
     @Test
@@ -92,7 +109,7 @@ public class CoordinationServiceImplTest {
         when(remoteStoreService.get(key, host3)).thenReturn(dataObject3);
 
         coordinationService.setLocalStoreService(localStoreService);
-        coordinationService.setRemoteStoreService(remoteStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
         coordinationService.afterPropertiesSet();
 
         final DataObject dataObject = coordinationService.get(key);
@@ -112,7 +129,7 @@ public class CoordinationServiceImplTest {
         when(remoteStoreService.get(key, host3)).thenThrow(new NoSuchElementException());
 
         coordinationService.setLocalStoreService(localStoreService);
-        coordinationService.setRemoteStoreService(remoteStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
         coordinationService.afterPropertiesSet();
 
         coordinationService.get(key);
@@ -124,7 +141,7 @@ public class CoordinationServiceImplTest {
         final Answer<DataObject> answer = new Answer<DataObject>() {
             @Override
             public DataObject answer(InvocationOnMock invocation) throws Throwable {
-                Thread.sleep(1000);
+                Thread.sleep(1500);
                 return dataObject1;
             }
         };
@@ -135,19 +152,46 @@ public class CoordinationServiceImplTest {
         when(remoteStoreService.get(key, host3)).thenAnswer(answer);
 
         coordinationService.setLocalStoreService(localStoreService);
-        coordinationService.setRemoteStoreService(remoteStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
         coordinationService.afterPropertiesSet();
 
         coordinationService.get(key);
     }
 
+    @Test
+    public void testRemoteReadsCancelledOnTimeout() throws Exception {
+        LocalStoreService localStoreService = mock(LocalStoreService.class);
+        when(localStoreService.get(key)).thenReturn(dataObject1);
+
+        final SettableFuture<DataObject> read2 = SettableFuture.create();
+        final SettableFuture<DataObject> read3 = SettableFuture.create();
+        RemoteStoreService remoteStoreService = mock(RemoteStoreService.class);
+        when(remoteStoreService.getAsync(key, host2)).thenReturn(read2);
+        when(remoteStoreService.getAsync(key, host3)).thenReturn(read3);
+
+        coordinationService.setLocalStoreService(localStoreService);
+        coordinationService.setRemoteStoreService(remoteStoreService);
+        coordinationService.afterPropertiesSet();
+
+        try {
+            coordinationService.get(key);
+            fail("Read must time out");
+        } catch (DataStoreException e) {
+            // expected
+        }
+        // operations are cancelled after the request has failed
+        Thread.sleep(100);
+        assertTrue("Read of host2 isn't cancelled", read2.isCancelled());
+        assertTrue("Read of host3 isn't cancelled", read3.isCancelled());
+    }
+
     @Test(expected = DataStoreException.class)
     public void testGetWhenMajorPartResponseTimeout() throws Exception {
         LocalStoreService localStoreService = mock(LocalStoreService.class);
         final Answer<DataObject> answer = new Answer<DataObject>() {
             @Override
             public DataObject answer(InvocationOnMock invocation) throws Throwable {
-                Thread.sleep(1000);
+                Thread.sleep(1500);
                 return dataObject1;
             }
         };
@@ -158,7 +202,7 @@ public class CoordinationServiceImplTest {
         when(remoteStoreService.get(key, host3)).thenAnswer(answer);
 
         coordinationService.setLocalStoreService(localStoreService);
-        coordinationService.setRemoteStoreService(remoteStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
         coordinationService.afterPropertiesSet();
 
         coordinationService.get(key);
@@ -181,7 +225,7 @@ public class CoordinationServiceImplTest {
         when(remoteStoreService.get(key, host3)).thenThrow(new NoSuchElementException());
 
         coordinationService.setLocalStoreService(localStoreService);
-        coordinationService.setRemoteStoreService(remoteStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
         coordinationService.afterPropertiesSet();
 
         try {
@@ -204,7 +248,7 @@ public class CoordinationServiceImplTest {
         when(remoteStoreService.get(key, host3)).thenReturn(dataObject1);
 
         coordinationService.setLocalStoreService(localStoreService);
-        coordinationService.setRemoteStoreService(remoteStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
         coordinationService.afterPropertiesSet();
 
         coordinationService.get(key);
@@ -222,7 +266,7 @@ public class CoordinationServiceImplTest {
         when(remoteStoreService.get(key, host3)).thenReturn(dataObject1);
 
         coordinationService.setLocalStoreService(localStoreService);
-        coordinationService.setRemoteStoreService(remoteStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
         coordinationService.afterPropertiesSet();
 
         try {
@@ -252,7 +296,7 @@ public class CoordinationServiceImplTest {
         doThrow(new DataStoreException("Test")).when(localStoreService).put(dataObject1);
 
         coordinationService.setLocalStoreService(localStoreService);
-        coordinationService.setRemoteStoreService(remoteStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
         coordinationService.afterPropertiesSet();
 
         try {
@@ -272,7 +316,7 @@ public class CoordinationServiceImplTest {
         RemoteStoreService remoteStoreService = mock(RemoteStoreService.class);
 
         coordinationService.setLocalStoreService(localStoreService);
-        coordinationService.setRemoteStoreService(remoteStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
         coordinationService.afterPropertiesSet();
 
         coordinationService.put(dataObject1);
@@ -284,4 +328,263 @@ public class CoordinationServiceImplTest {
         verifyNoMoreInteractions(localStoreService);
         verifyNoMoreInteractions(remoteStoreService);
     }
+
+    @Test
+    public void testPutOlderVersion() throws Exception {
+        LocalStoreService localStoreService = mock(LocalStoreService.class);
+        doThrow(new UpdatingOlderVersionException("Test")).when(localStoreService).put(dataObject1);
+        when(localStoreService.get(key)).thenReturn(dataObject3);
+
+        RemoteStoreService remoteStoreService = mock(RemoteStoreService.class);
+        when(remoteStoreService.get(key, host2)).thenReturn(dataObject3);
+        when(remoteStoreService.get(key, host3)).thenReturn(dataObject3);
+
+        coordinationService.setLocalStoreService(localStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
+        coordinationService.afterPropertiesSet();
+
+        try {
+            coordinationService.put(dataObject1);
+            fail("No UpdatingOlderVersionException was thrown");
+        } catch (UpdatingOlderVersionException ignore) {
+        }
+        Thread.sleep(1000);
+        verify(remoteStoreService, never()).put(dataObject1, host2);
+        verify(remoteStoreService, never()).put(dataObject1, host3);
+        verify(remoteStoreService).get(key, host2);
+    }
+
+    @Test
+    public void testHedgedRead() throws Exception {
+        LocalStoreService localStoreService = mock(LocalStoreService.class);
+        when(localStoreService.get(key)).thenReturn(dataObject3);
+
+        final AtomicBoolean slow = new AtomicBoolean();
+        RemoteStoreService remoteStoreService = mock(RemoteStoreService.class);
+        when(remoteStoreService.get(key, host2)).thenAnswer(new Answer<DataObject>() {
+            @Override
+            public DataObject answer(InvocationOnMock invocation) throws Throwable {
+                if (slow.get()) {
+                    Thread.sleep(500);
+                }
+                return dataObject3;
+            }
+        });
+        when(remoteStoreService.get(key, host3)).thenReturn(dataObject3);
+
+        coordinationService.setHedgedReads(true);
+        coordinationService.setLocalStoreService(localStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
+        coordinationService.afterPropertiesSet();
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals("Wrong result", dataObject3, coordinationService.get(key));
+        }
+        final long hedges = coordinationService.getHedgeCount();
+        final long wins = coordinationService.getHedgeWinCount();
+
+        slow.set(true);
+        final long start = System.currentTimeMillis();
+        assertEquals("Wrong result", dataObject3, coordinationService.get(key));
+        assertTrue("Read waited for slow replica", System.currentTimeMillis() - start < 400);
+        verify(remoteStoreService, atLeastOnce()).get(key, host3);
+        assertEquals(hedges + 1, coordinationService.getHedgeCount());
+        assertEquals(wins + 1, coordinationService.getHedgeWinCount());
+    }
+
+    @Test
+    public void testHedgedReadOnFailure() throws Exception {
+        LocalStoreService localStoreService = mock(LocalStoreService.class);
+        when(localStoreService.get(key)).thenReturn(dataObject3);
+
+        RemoteStoreService remoteStoreService = mock(RemoteStoreService.class);
+        when(remoteStoreService.get(key, host2)).thenThrow(new DataStoreException("Test"));
+        when(remoteStoreService.get(key, host3)).thenReturn(dataObject3);
+
+        coordinationService.setHedgedReads(true);
+        coordinationService.setLocalStoreService(localStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
+        coordinationService.afterPropertiesSet();
+
+        assertEquals("Wrong result", dataObject3, coordinationService.get(key));
+        verify(remoteStoreService).get(key, host3);
+        assertEquals(1, coordinationService.getHedgeCount());
+        assertEquals(1, coordinationService.getHedgeWinCount());
+    }
+
+    @Test
+    public void testDigestRead() throws Exception {
+        final CountDownLatch localRead = new CountDownLatch(1);
+        LocalStoreService localStoreService = mock(LocalStoreService.class);
+        when(localStoreService.get(key)).thenAnswer(new Answer<DataObject>() {
+            @Override
+            public DataObject answer(InvocationOnMock invocation) throws Throwable {
+                localRead.countDown();
+                return dataObject3;
+            }
+        });
+
+        // digests are returned only after the data replica has been read
+        final Answer<Version> digest = new Answer<Version>() {
+            @Override
+            public Version answer(InvocationOnMock invocation) throws Throwable {
+                localRead.await();
+                return dataObject3.getVersion();
+            }
+        };
+        RemoteStoreService remoteStoreService = mock(RemoteStoreService.class);
+        when(remoteStoreService.getVersion(key, host2)).thenAnswer(digest);
+        when(remoteStoreService.getVersion(key, host3)).thenAnswer(digest);
+
+        coordinationService.setDigestReads(true);
+        coordinationService.setLocalStoreService(localStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
+        coordinationService.afterPropertiesSet();
+
+        assertEquals("Wrong result", dataObject3, coordinationService.get(key));
+        verify(remoteStoreService, never()).get(eq(key), any(Host.class));
+        verify(remoteStoreService, never()).put(any(DataObject.class), any(Host.class));
+        verify(localStoreService, never()).put(any(DataObject.class));
+    }
+
+    @Test
+    public void testDigestReadWhenVersionsDisagree() throws Exception {
+        LocalStoreService localStoreService = mock(LocalStoreService.class);
+        when(localStoreService.get(key)).thenReturn(dataObject1);
+
+        RemoteStoreService remoteStoreService = mock(RemoteStoreService.class);
+        when(remoteStoreService.getVersion(key, host2)).thenReturn(dataObject3.getVersion());
+        when(remoteStoreService.getVersion(key, host3)).thenReturn(dataObject3.getVersion());
+        when(remoteStoreService.get(key, host2)).thenReturn(dataObject3);
+        when(remoteStoreService.get(key, host3)).thenReturn(dataObject3);
+
+        coordinationService.setDigestReads(true);
+        coordinationService.setLocalStoreService(localStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
+        coordinationService.afterPropertiesSet();
+
+        assertEquals("Wrong result", dataObject3, coordinationService.get(key));
+        Thread.sleep(1000);
+        verify(remoteStoreService, times(1)).get(eq(key), any(Host.class));
+        verify(localStoreService).put(dataObject3);
+    }
+
+    @Test
+    public void testDigestReadWhenDataReplicaDoesNotRespond() throws Exception {
+        LocalStoreService localStoreService = mock(LocalStoreService.class);
+        when(localStoreService.get(key)).thenAnswer(new Answer<DataObject>() {
+            @Override
+            public DataObject answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(1500);
+                return dataObject3;
+            }
+        });
+
+        RemoteStoreService remoteStoreService = mock(RemoteStoreService.class);
+        when(remoteStoreService.getVersion(key, host2)).thenReturn(dataObject3.getVersion());
+        when(remoteStoreService.getVersion(key, host3)).thenReturn(dataObject3.getVersion());
+        when(remoteStoreService.get(key, host2)).thenReturn(dataObject3);
+        when(remoteStoreService.get(key, host3)).thenReturn(dataObject3);
+
+        coordinationService.setDigestReads(true);
+        coordinationService.setLocalStoreService(localStoreService);
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
+        coordinationService.afterPropertiesSet();
+
+        final long start = System.currentTimeMillis();
+        assertEquals("Wrong result", dataObject3, coordinationService.get(key));
+        assertTrue("Read waited for data replica", System.currentTimeMillis() - start < 500);
+        verify(remoteStoreService, times(1)).get(eq(key), any(Host.class));
+    }
+
+    @Test
+    public void testDigestReadFromClosestReplica() throws Exception {
+        final Host host4 = new HostWithIntegerTokenFactory().createHost("localhost", 8083, NumberUtils.toByteArray(8));
+        when(keyRingService.getPreferredHosts(key)).thenReturn(Arrays.<Host>asList(host2, host3, host4));
+
+        RemoteStoreService remoteStoreService = mock(RemoteStoreService.class);
+        final Map<Host, AtomicInteger> fullReads = new HashMap<Host, AtomicInteger>();
+        for (final Host host : Arrays.asList(host2, host3, host4)) {
+            final long delay = host.equals(host2) ? 10 : host.equals(host4) ? 5 : 0;
+            fullReads.put(host, new AtomicInteger());
+            when(remoteStoreService.get(key, host)).thenAnswer(new Answer<DataObject>() {
+                @Override
+                public DataObject answer(InvocationOnMock invocation) throws Throwable {
+                    Thread.sleep(delay);
+                    fullReads.get(host).incrementAndGet();
+                    return dataObject3;
+                }
+            });
+            when(remoteStoreService.getVersion(key, host)).thenReturn(dataObject3.getVersion());
+        }
+
+        coordinationService.setDigestReads(true);
+        coordinationService.setLocalStoreService(mock(LocalStoreService.class));
+        coordinationService.setRemoteStoreService(async(remoteStoreService));
+        coordinationService.afterPropertiesSet();
+
+        for (int i = 0; i < 256; i++) {
+            assertEquals("Wrong result", dataObject3, coordinationService.get(key));
+        }
+        for (final AtomicInteger count : fullReads.values()) {
+            count.set(0);
+        }
+        for (int i = 0; i < 128; i++) {
+            assertEquals("Wrong result", dataObject3, coordinationService.get(key));
+        }
+        assertTrue("Full reads: " + fullReads, fullReads.get(host3).get() >= 124);
+    }
+
+    /**
+     * Return remote store service which performs asynchronous operations by synchronous ones of the mock.
+     */
+    private static RemoteStoreService async(final RemoteStoreService remoteStoreService) {
+        return new RemoteStoreService() {
+            @Override
+            public DataObject get(final Key key, final Host remoteHost) throws DataStoreException {
+                return remoteStoreService.get(key, remoteHost);
+            }
+
+            @Override
+            public Version getVersion(final Key key, final Host remoteHost) throws DataStoreException {
+                return remoteStoreService.getVersion(key, remoteHost);
+            }
+
+            @Override
+            public void put(final DataObject dataObject, final Host remoteHost) throws DataStoreException {
+                remoteStoreService.put(dataObject, remoteHost);
+            }
+
+            @Override
+            public ListenableFuture<DataObject> getAsync(final Key key, final Host remoteHost) {
+                return REMOTE_EXECUTOR.submit(new Callable<DataObject>() {
+                    @Override
+                    public DataObject call() throws Exception {
+                        return remoteStoreService.get(key, remoteHost);
+                    }
+                });
+            }
+
+            @Override
+            public ListenableFuture<Version> getVersionAsync(final Key key, final Host remoteHost) {
+                return REMOTE_EXECUTOR.submit(new Callable<Version>() {
+                    @Override
+                    public Version call() throws Exception {
+                        return remoteStoreService.getVersion(key, remoteHost);
+                    }
+                });
+            }
+
+            @Override
+            public ListenableFuture<Void> putAsync(final DataObject dataObject, final Host remoteHost) {
+                return REMOTE_EXECUTOR.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        remoteStoreService.put(dataObject, remoteHost);
+                        return null;
+                    }
+                });
+            }
+        };
+    }
 }
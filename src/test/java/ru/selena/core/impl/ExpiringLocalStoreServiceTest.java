@@ -0,0 +1,183 @@
+package ru.selena.core.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.OperationFailedException;
+import ru.selena.model.DataObject;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+import static ru.selena.TestModelFactories.createDataObject;
+import static ru.selena.TestModelFactories.createKey;
+
+/**
+ * Date: 3/29/13
+ * Time: 10:10 PM
+ *
+ * @author Artem Titov
+ */
+public class ExpiringLocalStoreServiceTest {
+
+    private static final long TICK_DURATION = 20;
+    private static final long WAIT_TIMEOUT = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalStoreService underlyingService;
+    private ExpiringLocalStoreService storeService;
+
+    @Before
+    public void setUp() throws Exception {
+        underlyingService = new InMemoryLocalStoreService();
+        storeService = createStoreService(underlyingService);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storeService.close();
+    }
+
+    @Test
+    public void testExpireOnRead() throws Exception {
+        storeService.put(createDataObject(1, 1, System.currentTimeMillis() - 1));
+        final DataObject dataObject = storeService.get(createKey(1));
+        assertTrue(dataObject.isStub());
+        assertEquals(createDataObject(1, 1, DataObject.NEVER_EXPIRES), dataObject);
+        assertTrue(underlyingService.get(createKey(1)).isStub());
+    }
+
+    @Test
+    public void testBackgroundExpiration() throws Exception {
+        final long expirationTime = System.currentTimeMillis() + 100;
+        for (int i = 0; i < 200; i++) {
+            storeService.put(createDataObject(i, 1, i % 2 == 0 ? expirationTime : DataObject.NEVER_EXPIRES));
+        }
+        waitForExpiration(storeService, 100);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i % 2 == 0, underlyingService.get(createKey(i)).isStub());
+        }
+    }
+
+    @Test
+    public void testOverwrittenObjectIsNotExpired() throws Exception {
+        storeService.put(createDataObject(1, 1, System.currentTimeMillis() + 50));
+        storeService.put(createDataObject(1, 2, DataObject.NEVER_EXPIRES));
+        storeService.put(createDataObject(2, 1, System.currentTimeMillis() + 100));
+        waitForExpiration(storeService, 1);
+        final DataObject dataObject = storeService.get(createKey(1));
+        assertFalse(dataObject.isStub());
+        assertEquals(createDataObject(1, 2, DataObject.NEVER_EXPIRES), dataObject);
+    }
+
+    @Test
+    public void testIteratorReturnsStubs() throws Exception {
+        storeService.put(createDataObject(1, 1, System.currentTimeMillis() - 1));
+        storeService.put(createDataObject(2, 1, DataObject.NEVER_EXPIRES));
+        final Iterator<DataObject> iterator = storeService.iterator(TokenRange.wholeRing());
+        int stubs = 0;
+        int count = 0;
+        while (iterator.hasNext()) {
+            stubs += iterator.next().isStub() ? 1 : 0;
+            count++;
+        }
+        assertEquals(2, count);
+        assertEquals(1, stubs);
+    }
+
+    @Test
+    public void testScheduleOnOpen() throws Exception {
+        final LogStructuredLocalStoreService persistentService = createPersistentService();
+        ExpiringLocalStoreService service = createStoreService(persistentService);
+        service.open();
+        service.put(createDataObject(1, 1, System.currentTimeMillis() + 200));
+        service.close();
+
+        service = createStoreService(createPersistentService());
+        assertEquals(LocalStoreService.StorageStatus.OK, service.open());
+        try {
+            waitForExpiration(service, 1);
+        } finally {
+            service.close();
+        }
+        persistentService.open();
+        try {
+            assertTrue(persistentService.get(createKey(1)).isStub());
+        } finally {
+            persistentService.close();
+        }
+    }
+
+    @Test
+    public void testScheduleOnRestore() throws Exception {
+        final AtomicBoolean restored = new AtomicBoolean();
+        final LocalStoreService corruptedService = mock(LocalStoreService.class);
+        when(corruptedService.open()).thenReturn(LocalStoreService.StorageStatus.CORRUPTED);
+        when(corruptedService.restore()).thenAnswer(new Answer<LocalStoreService.StorageStatus>() {
+            @Override
+            public LocalStoreService.StorageStatus answer(final InvocationOnMock invocation) {
+                restored.set(true);
+                return LocalStoreService.StorageStatus.OK;
+            }
+        });
+        final DataObject dataObject = createDataObject(1, 1, System.currentTimeMillis() + 100);
+        when(corruptedService.iterator(any(TokenRange.class))).thenAnswer(new Answer<Iterator<DataObject>>() {
+            @Override
+            public Iterator<DataObject> answer(final InvocationOnMock invocation) {
+                if (!restored.get()) {
+                    throw new OperationFailedException("Storage is corrupted");
+                }
+                return Collections.singletonList(dataObject).iterator();
+            }
+        });
+        when(corruptedService.get(createKey(1))).thenReturn(dataObject);
+
+        final ExpiringLocalStoreService service = createStoreService(corruptedService);
+        try {
+            assertEquals(LocalStoreService.StorageStatus.CORRUPTED, service.open());
+            assertEquals(LocalStoreService.StorageStatus.OK, service.restore());
+            waitForExpiration(service, 1);
+            Thread.sleep(200);
+            assertEquals(1, service.getExpiredCount());
+            verify(corruptedService, times(1)).iterator(any(TokenRange.class));
+        } finally {
+            service.close();
+        }
+    }
+
+    private LogStructuredLocalStoreService createPersistentService() {
+        final LogStructuredLocalStoreService service = new LogStructuredLocalStoreService();
+        service.setDataDirectory(folder.getRoot().getAbsolutePath());
+        return service;
+    }
+
+    private static ExpiringLocalStoreService createStoreService(final LocalStoreService underlyingService) {
+        final ExpiringLocalStoreService service = new ExpiringLocalStoreService();
+        service.setLocalStoreService(underlyingService);
+        service.setTickDuration(TICK_DURATION);
+        return service;
+    }
+
+    private static void waitForExpiration(final ExpiringLocalStoreService service, final long expected)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+        while (service.getExpiredCount() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(TICK_DURATION);
+        }
+        assertEquals(expected, service.getExpiredCount());
+    }
+}
@@ -0,0 +1,115 @@
+package ru.selena.core.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.selena.TestModelFactories;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.utils.NumberUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static ru.selena.TestModelFactories.createDataObject;
+import static ru.selena.TestModelFactories.createKey;
+
+/**
+ * Date: 3/22/13
+ * Time: 10:15 PM
+ *
+ * @author Artem Titov
+ */
+public class InMemoryLocalStoreServiceTest {
+
+    private static final int THREADS = 8;
+    private static final int VERSIONS = 10000;
+
+    private InMemoryLocalStoreService storeService;
+
+    @Before
+    public void setUp() throws Exception {
+        storeService = new InMemoryLocalStoreService();
+        storeService.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storeService.close();
+    }
+
+    @Test
+    public void testPutNewerVersion() throws Exception {
+        storeService.put(createDataObject(1, 1));
+        storeService.put(createDataObject(1, 2));
+        assertEquals(createDataObject(1, 2), storeService.get(createKey(1)));
+    }
+
+    @Test
+    public void testPutSameVersion() throws Exception {
+        storeService.put(createDataObject(1, 1));
+        storeService.put(createDataObject(1, 1));
+        assertEquals(createDataObject(1, 1), storeService.get(createKey(1)));
+    }
+
+    @Test(expected = UpdatingOlderVersionException.class)
+    public void testPutOlderVersion() throws Exception {
+        storeService.put(createDataObject(1, 2));
+        storeService.put(createDataObject(1, 1));
+    }
+
+    @Test
+    public void testSweepTombstones() throws Exception {
+        storeService.put(createDataObject(1, 1));
+        storeService.put(TestModelFactories.createDataObject(createKey(2),
+                TestModelFactories.createVersion(NumberUtils.toByteArray(1L))));
+        assertEquals(0, storeService.sweepTombstones());
+        assertTrue(storeService.get(createKey(2)).isStub());
+
+        storeService.setTombstoneGracePeriod(-1);
+        assertEquals(1, storeService.sweepTombstones());
+        assertEquals(createDataObject(1, 1), storeService.get(createKey(1)));
+        try {
+            storeService.get(createKey(2));
+            assertEquals("Exception not thrown", true, false);
+        } catch (NoSuchElementException ignore) {
+        }
+    }
+
+    @Test
+    public void testConcurrentPutKeepsNewestVersion() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int version = thread; version < VERSIONS; version += THREADS) {
+                        try {
+                            storeService.put(createDataObject(1, version));
+                        } catch (UpdatingOlderVersionException ignore) {
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (final Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertEquals(createDataObject(1, VERSIONS - 1), storeService.get(createKey(1)));
+    }
+
+    @Test
+    public void testIterateRange() throws Exception {
+        for (int i = 0; i < 3000; i++) {
+            storeService.put(createDataObject(i, 1));
+        }
+        RangeIterationAssert.assertRangeIteration(storeService, 3000);
+    }
+}
@@ -0,0 +1,61 @@
+package ru.selena.core.impl;
+
+import org.junit.Test;
+import ru.selena.net.model.Host;
+import ru.selena.net.model.impl.HostWithIntegerTokenFactory;
+import ru.selena.utils.NumberUtils;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Date: 3/31/13
+ * Time: 8:50 PM
+ *
+ * @author Artem Titov
+ */
+public class LatencyTrackerTest {
+
+    private Host host1 = new HostWithIntegerTokenFactory().createHost("localhost", 8080, NumberUtils.toByteArray(2));
+    private Host host2 = new HostWithIntegerTokenFactory().createHost("localhost", 8081, NumberUtils.toByteArray(4));
+
+    @Test
+    public void testBuckets() throws Exception {
+        long previousBound = -1;
+        for (long micros = 0; micros < 100000; micros++) {
+            final int bucket = LatencyTracker.getBucket(micros);
+            final long bound = LatencyTracker.getUpperBound(bucket);
+            assertTrue(micros <= bound);
+            assertTrue(bound <= micros + micros / 4);
+            assertTrue(bucket == 0 || LatencyTracker.getUpperBound(bucket - 1) < micros);
+            assertTrue(bound >= previousBound);
+            previousBound = bound;
+        }
+        assertEquals(Long.MAX_VALUE, LatencyTracker.getUpperBound(LatencyTracker.getBucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testEstimate() throws Exception {
+        final LatencyTracker tracker = new LatencyTracker(0.95);
+        assertEquals(LatencyTracker.UNKNOWN, tracker.getEstimate(host1));
+        for (int i = 1; i <= 1000; i++) {
+            tracker.record(host1, i);
+            tracker.record(host2, 10);
+        }
+        final long estimate = tracker.getEstimate(host1);
+        assertTrue("Estimate " + estimate, estimate >= 950 && estimate <= 950 * 5 / 4);
+        assertEquals(11, tracker.getEstimate(host2));
+    }
+
+    @Test
+    public void testDecay() throws Exception {
+        final LatencyTracker tracker = new LatencyTracker(0.5);
+        for (int i = 0; i < 1024; i++) {
+            tracker.record(host1, 10000);
+        }
+        for (int i = 0; i < 4096; i++) {
+            tracker.record(host1, 100);
+        }
+        assertTrue("Estimate " + tracker.getEstimate(host1), tracker.getEstimate(host1) < 200);
+    }
+}
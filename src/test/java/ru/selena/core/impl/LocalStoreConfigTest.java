@@ -0,0 +1,33 @@
+package ru.selena.core.impl;
+
+import org.junit.Test;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import ru.selena.core.LocalStoreService;
+
+import java.util.Map;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Check that storage configurations of {@code local-store-config.xml} match properties of storages.
+ * <p/>
+ * Date: 3/31/13
+ * Time: 9:20 PM
+ *
+ * @author Artem Titov
+ */
+public class LocalStoreConfigTest {
+
+    @Test
+    public void testCreateStorages() throws Exception {
+        final ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext("local-store-config.xml");
+        try {
+            final Map<String, LocalStoreService> storages = context.getBeansOfType(LocalStoreService.class, false, true);
+            assertEquals(7, storages.size());
+            assertTrue(context.getBean("localStoreShard") instanceof LsmTreeLocalStoreService);
+        } finally {
+            context.close();
+        }
+    }
+}
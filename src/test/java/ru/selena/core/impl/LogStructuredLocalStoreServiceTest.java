@@ -0,0 +1,376 @@
+package ru.selena.core.impl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.selena.TestModelFactories;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.SerializedDataSource;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.core.impl.storage.BlockCache;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.net.utils.SerializationUtils;
+import ru.selena.utils.NumberUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static ru.selena.TestModelFactories.createDataObject;
+import static ru.selena.TestModelFactories.createKey;
+
+/**
+ * Date: 3/10/13
+ * Time: 9:05 PM
+ *
+ * @author Artem Titov
+ */
+public class LogStructuredLocalStoreServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LogStructuredLocalStoreService storeService;
+
+    @Before
+    public void setUp() throws Exception {
+        storeService = createStoreService();
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storeService.close();
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        final DataObject dataObject = createDataObject(1, 1, new byte[]{1, 2, 3});
+        storeService.put(dataObject);
+        final DataObject stored = storeService.get(dataObject.getKey());
+        assertEquals(dataObject, stored);
+        assertTrue(Arrays.equals(dataObject.getValue(), stored.getValue()));
+    }
+
+    @Test
+    public void testPutStub() throws Exception {
+        final Key key = TestModelFactories.createKey(NumberUtils.toByteArray(1));
+        storeService.put(TestModelFactories.createDataObject(key, TestModelFactories.createVersion(NumberUtils.toByteArray(1l))));
+        assertTrue(storeService.get(key).isStub());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testGetMissing() throws Exception {
+        storeService.get(TestModelFactories.createKey(NumberUtils.toByteArray(1)));
+    }
+
+    @Test(expected = UpdatingOlderVersionException.class)
+    public void testPutOlderVersion() throws Exception {
+        storeService.put(createDataObject(1, 2, new byte[]{1}));
+        storeService.put(createDataObject(1, 1, new byte[]{2}));
+    }
+
+    @Test
+    public void testPutNewerVersion() throws Exception {
+        storeService.put(createDataObject(1, 1, new byte[]{1}));
+        storeService.put(createDataObject(1, 2, new byte[]{2}));
+        assertTrue(Arrays.equals(new byte[]{2}, storeService.get(createKey(1)).getValue()));
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        storeService.setMaxSegmentSize(64);
+        for (int i = 0; i < 100; i++) {
+            storeService.put(createDataObject(i % 10, i, NumberUtils.toByteArray(i)));
+        }
+        storeService.close();
+        assertTrue(folder.getRoot().list().length > 1);
+
+        storeService = createStoreService();
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        for (int i = 90; i < 100; i++) {
+            final DataObject dataObject = storeService.get(createKey(i % 10));
+            assertEquals(createDataObject(i % 10, i, NumberUtils.toByteArray(i)), dataObject);
+            assertTrue(Arrays.equals(NumberUtils.toByteArray(i), dataObject.getValue()));
+        }
+    }
+
+    @Test
+    public void testReopenWithHints() throws Exception {
+        storeService.setMaxSegmentSize(64);
+        for (int i = 0; i < 100; i++) {
+            storeService.put(createDataObject(i % 10, i, NumberUtils.toByteArray(i)));
+        }
+        storeService.close();
+        final File[] hints = listFiles(".hint");
+        assertEquals(listFiles(".data").length - 1, hints.length);
+
+        final RandomAccessFile damagedHint = new RandomAccessFile(hints[0], "rw");
+        damagedHint.seek(damagedHint.length() - 1);
+        damagedHint.write(damagedHint.read() + 1);
+        damagedHint.close();
+
+        storeService = createStoreService();
+        storeService.setStartupThreads(4);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        assertTrue(storeService.getStartupStatistics().getPhases().containsKey("load key directory"));
+        for (int i = 90; i < 100; i++) {
+            final DataObject dataObject = storeService.get(createKey(i % 10));
+            assertEquals(createDataObject(i % 10, i, NumberUtils.toByteArray(i)), dataObject);
+            assertTrue(Arrays.equals(NumberUtils.toByteArray(i), dataObject.getValue()));
+        }
+    }
+
+    @Test
+    public void testBlockCache() throws Exception {
+        storeService.close();
+        final BlockCache blockCache = new BlockCache(1024 * 1024, 4);
+        storeService = createStoreService();
+        storeService.setBlockCache(blockCache);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        storeService.put(createDataObject(1, 1, new byte[]{1}));
+        assertTrue(Arrays.equals(new byte[]{1}, storeService.get(createKey(1)).getValue()));
+        assertTrue(Arrays.equals(new byte[]{1}, storeService.get(createKey(1)).getValue()));
+        assertEquals(1, blockCache.getHits());
+        assertEquals(1, blockCache.getMisses());
+    }
+
+    @Test
+    public void testMemoryMappedSegments() throws Exception {
+        storeService.setMaxSegmentSize(1024);
+        for (int i = 0; i < 1000; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        storeService.close();
+
+        storeService = createStoreService();
+        storeService.setMemoryMapped(true);
+        storeService.setMappingWindowSize(100);
+        storeService.setMaxSegmentSize(1024);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        for (int i = 1000; i < 2000; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(Arrays.equals(NumberUtils.toByteArray(i), storeService.get(createKey(i)).getValue()));
+        }
+    }
+
+    @Test
+    public void testGetSerialized() throws Exception {
+        storeService.setMaxSegmentSize(1024);
+        for (int i = 0; i < 200; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        assertSerialized(200);
+        storeService.close();
+
+        storeService = createStoreService();
+        storeService.setMemoryMapped(true);
+        storeService.setMappingWindowSize(100);
+        storeService.setMaxSegmentSize(1024);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        assertSerialized(200);
+        storeService.close();
+
+        storeService = createStoreService();
+        storeService.setBlockCache(new BlockCache(1024 * 1024, 4));
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        for (int i = 0; i < 200; i++) {
+            storeService.get(createKey(i));
+        }
+        assertSerialized(200);
+    }
+
+    private void assertSerialized(final int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            final DataObject dataObject = createDataObject(i, 1, NumberUtils.toByteArray(i));
+            final byte[] expected = new byte[SerializationUtils.getRequiredSize(dataObject)];
+            SerializationUtils.serializeDataObject(dataObject, expected, 0);
+            final SerializedDataSource.SerializedData data = storeService.getSerialized(createKey(i));
+            assertEquals(expected.length, data.getLength());
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            data.writeTo(Channels.newChannel(out));
+            assertTrue(Arrays.equals(expected, out.toByteArray()));
+        }
+    }
+
+    @Test
+    public void testRestoreDamagedSegment() throws Exception {
+        storeService.put(createDataObject(1, 1, new byte[]{1}));
+        storeService.put(createDataObject(2, 1, new byte[]{2}));
+        storeService.close();
+
+        final File segment = folder.getRoot().listFiles()[0];
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 1);
+        file.close();
+
+        storeService = createStoreService();
+        assertEquals(LocalStoreService.StorageStatus.CORRUPTED, storeService.open());
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.restore());
+        assertTrue(Arrays.equals(new byte[]{1}, storeService.get(createKey(1)).getValue()));
+        try {
+            storeService.get(createKey(2));
+            assertEquals("Exception not thrown", true, false);
+        } catch (NoSuchElementException ignore) {
+        }
+        storeService.put(createDataObject(2, 1, new byte[]{3}));
+        assertTrue(Arrays.equals(new byte[]{3}, storeService.get(createKey(2)).getValue()));
+    }
+
+    @Test
+    public void testMergePurgesTombstones() throws Exception {
+        storeService.close();
+        storeService = createStoreService();
+        storeService.setMaxSegmentSize(64);
+        storeService.setMergeThreshold(2);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        putValuesAndStubs();
+        Thread.sleep(10);
+        storeService.close();
+
+        storeService = createStoreService();
+        storeService.setMergeThreshold(2);
+        storeService.setTombstoneGracePeriod(0);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        storeService.close();
+        assertTrue(listFiles(".data").length <= 3);
+
+        storeService = createStoreService();
+        storeService.setMergeThreshold(0);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        assertValuesAndStubsPurged();
+    }
+
+    @Test
+    public void testCompleteInterruptedMerge() throws Exception {
+        storeService.close();
+        storeService = createStoreService();
+        storeService.setMaxSegmentSize(64);
+        storeService.setMergeThreshold(0);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        putValuesAndStubs();
+        Thread.sleep(10);
+        storeService.close();
+        final File backup = folder.newFolder("backup");
+        final File[] inputs = listFiles(".data");
+        final StringBuilder record = new StringBuilder();
+        int newestId = 0;
+        for (final File input : inputs) {
+            FileUtils.copyFileToDirectory(input, backup);
+            final int id = Integer.parseInt(input.getName().substring(0, input.getName().indexOf('.')));
+            record.append(id).append('\n');
+            newestId = Math.max(newestId, id);
+        }
+
+        storeService = createStoreService();
+        storeService.setMergeThreshold(2);
+        storeService.setTombstoneGracePeriod(0);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        storeService.close();
+
+        // crash after merged segment has replaced the newest input, but before other inputs are removed
+        for (final File input : inputs) {
+            if (!input.exists()) {
+                FileUtils.copyFileToDirectory(new File(backup, input.getName()), folder.getRoot());
+            }
+        }
+        FileUtils.writeStringToFile(new File(folder.getRoot(), String.format("%010d.merge", newestId)),
+                record.toString());
+        FileUtils.writeStringToFile(new File(folder.getRoot(), String.format("%010d.merged", newestId + 1)), "");
+
+        storeService = createStoreService();
+        storeService.setMergeThreshold(0);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        assertEquals(0, listFiles(".merge").length);
+        assertEquals(0, listFiles(".merged").length);
+        assertValuesAndStubsPurged();
+    }
+
+    @Test
+    public void testGetSerializedAfterMerge() throws Exception {
+        storeService.close();
+        storeService = createStoreService();
+        storeService.setMaxSegmentSize(64);
+        storeService.setMergeThreshold(0);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        for (int i = 0; i < 10; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        final File first = listFiles(".data")[0];
+        final SerializedDataSource.SerializedData data = storeService.getSerialized(createKey(0));
+
+        storeService.setMergeThreshold(2);
+        for (int i = 10; i < 20; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (first.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Segments aren't merged", !first.exists());
+
+        // payload is written from the merged segment
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        data.writeTo(Channels.newChannel(out));
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        storeService.getSerialized(createKey(0)).writeTo(Channels.newChannel(expected));
+        assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+    }
+
+    private void putValuesAndStubs() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            storeService.put(TestModelFactories.createDataObject(createKey(i),
+                    TestModelFactories.createVersion(NumberUtils.toByteArray(2l))));
+        }
+    }
+
+    private void assertValuesAndStubsPurged() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            try {
+                final DataObject dataObject = storeService.get(createKey(i));
+                assertTrue("Value of the deleted key is found", i % 2 == 1);
+                assertTrue(Arrays.equals(NumberUtils.toByteArray(i), dataObject.getValue()));
+            } catch (NoSuchElementException e) {
+                assertTrue("Value is lost", i % 2 == 0);
+            }
+        }
+    }
+
+    private File[] listFiles(final String extension) {
+        return folder.getRoot().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(extension);
+            }
+        });
+    }
+
+    @Test
+    public void testIterateRange() throws Exception {
+        for (int i = 0; i < 3000; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        RangeIterationAssert.assertRangeIteration(storeService, 3000);
+    }
+
+    private LogStructuredLocalStoreService createStoreService() {
+        final LogStructuredLocalStoreService storeService = new LogStructuredLocalStoreService();
+        storeService.setDataDirectory(folder.getRoot().getAbsolutePath());
+        return storeService;
+    }
+}
@@ -0,0 +1,425 @@
+package ru.selena.core.impl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.selena.TestModelFactories;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.core.impl.storage.BlockCache;
+import ru.selena.core.impl.storage.SyncPolicy;
+import ru.selena.model.DataObject;
+import ru.selena.utils.NumberUtils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static ru.selena.TestModelFactories.createDataObject;
+import static ru.selena.TestModelFactories.createKey;
+
+/**
+ * Date: 3/13/13
+ * Time: 11:20 PM
+ *
+ * @author Artem Titov
+ */
+public class LsmTreeLocalStoreServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LsmTreeLocalStoreService storeService;
+
+    @Before
+    public void setUp() throws Exception {
+        storeService = createStoreService();
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storeService.close();
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        final DataObject dataObject = createDataObject(1, 1, new byte[]{1, 2, 3});
+        storeService.put(dataObject);
+        final DataObject stored = storeService.get(dataObject.getKey());
+        assertEquals(dataObject, stored);
+        assertTrue(Arrays.equals(dataObject.getValue(), stored.getValue()));
+    }
+
+    @Test
+    public void testGetMissing() throws Exception {
+        storeService.put(createDataObject(1, 1, new byte[]{1}));
+        storeService.close();
+        storeService = createStoreService();
+        storeService.open();
+        try {
+            storeService.get(createKey(2));
+            assertEquals("Exception not thrown", true, false);
+        } catch (NoSuchElementException ignore) {
+        }
+        assertEquals(1, storeService.getBloomFilterStatistics().getNegatives());
+        assertEquals(0, storeService.getBloomFilterStatistics().getPositives());
+    }
+
+    @Test(expected = UpdatingOlderVersionException.class)
+    public void testPutOlderVersionThanFlushed() throws Exception {
+        storeService.put(createDataObject(1, 2, new byte[]{1}));
+        storeService.close();
+        storeService = createStoreService();
+        storeService.open();
+        storeService.put(createDataObject(1, 1, new byte[]{2}));
+    }
+
+    @Test
+    public void testFlushAndCompaction() throws Exception {
+        storeService.setMemtableSize(1024);
+        for (int i = 0; i < 2000; i++) {
+            storeService.put(createDataObject(i % 300, i, NumberUtils.toByteArray(i)));
+        }
+        for (int i = 1700; i < 2000; i++) {
+            assertTrue(Arrays.equals(NumberUtils.toByteArray(i), storeService.get(createKey(i % 300)).getValue()));
+        }
+        storeService.close();
+
+        final int tables = countTables();
+        assertTrue("Tables weren't compacted: " + tables, tables < 2000 * 40 / 1024);
+
+        storeService = createStoreService();
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        for (int i = 1700; i < 2000; i++) {
+            final DataObject dataObject = storeService.get(createKey(i % 300));
+            assertEquals(createDataObject(i % 300, i, NumberUtils.toByteArray(i)), dataObject);
+            assertTrue(Arrays.equals(NumberUtils.toByteArray(i), dataObject.getValue()));
+        }
+    }
+
+    @Test
+    public void testFailedFlushIsRetried() throws Exception {
+        // directory in place of the temporary table file fails table write of the first memtable
+        final File blocker = new File(folder.getRoot(), "0.tmp");
+        assertTrue(blocker.mkdir());
+        storeService.setMemtableSize(1);
+        storeService.put(createDataObject(1, 1, new byte[]{1}));
+        storeService.put(createDataObject(1, 2, new byte[]{2}));
+        for (int i = 2; i < 10; i++) {
+            storeService.put(createDataObject(i, 1, new byte[]{(byte) i}));
+        }
+        Thread.sleep(200);
+        assertEquals(createDataObject(1, 2, new byte[]{2}), storeService.get(createKey(1)));
+        try {
+            storeService.put(createDataObject(1, 1, new byte[]{1}));
+            fail("Older version is accepted");
+        } catch (UpdatingOlderVersionException e) {
+            // expected
+        }
+
+        assertTrue(blocker.delete());
+        final long deadline = System.currentTimeMillis() + 5000;
+        final File table = new File(folder.getRoot(), "0000000000.sst");
+        while (!table.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Memtable isn't flushed after failure", table.exists());
+        storeService.put(createDataObject(10, 1, new byte[]{10}));
+        assertEquals(createDataObject(1, 2, new byte[]{2}), storeService.get(createKey(1)));
+
+        storeService.close();
+        storeService = createStoreService();
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        assertEquals(createDataObject(1, 2, new byte[]{2}), storeService.get(createKey(1)));
+        for (int i = 2; i <= 10; i++) {
+            assertEquals(createDataObject(i, 1, new byte[]{(byte) i}), storeService.get(createKey(i)));
+        }
+    }
+
+    @Test
+    public void testMemoryMappedTables() throws Exception {
+        storeService.setMemtableSize(4096);
+        for (int i = 0; i < 1000; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        storeService.close();
+
+        storeService = createStoreService();
+        storeService.setMemoryMapped(true);
+        storeService.setMappingWindowSize(100);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(Arrays.equals(NumberUtils.toByteArray(i), storeService.get(createKey(i)).getValue()));
+        }
+    }
+
+    @Test
+    public void testBlockCache() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        storeService.close();
+
+        final BlockCache blockCache = new BlockCache(1024 * 1024, 4);
+        storeService = createStoreService();
+        storeService.setBlockCache(blockCache);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 100; i++) {
+                assertTrue(Arrays.equals(NumberUtils.toByteArray(i), storeService.get(createKey(i)).getValue()));
+            }
+        }
+        assertTrue(blockCache.getHits() > blockCache.getMisses());
+        assertTrue(blockCache.getResidentBytes() > 0);
+    }
+
+    @Test
+    public void testDamagedTable() throws Exception {
+        storeService.put(createDataObject(1, 1, new byte[]{1}));
+        storeService.close();
+        assertTrue(new File(folder.getRoot(), "0000000100.sst").createNewFile());
+
+        storeService = createStoreService();
+        assertEquals(LocalStoreService.StorageStatus.CORRUPTED, storeService.open());
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.restore());
+        assertTrue(Arrays.equals(new byte[]{1}, storeService.get(createKey(1)).getValue()));
+    }
+
+    @Test
+    public void testReplayLogAfterUncleanShutdown() throws Exception {
+        storeService.close();
+        final LsmTreeLocalStoreService crashed = createStoreService();
+        crashed.setSyncPolicy(SyncPolicy.EVERY_WRITE);
+        assertEquals(LocalStoreService.StorageStatus.OK, crashed.open());
+        for (int i = 0; i < 100; i++) {
+            crashed.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        final File[] logs = folder.getRoot().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(".wal");
+            }
+        });
+        assertTrue(logs.length > 0);
+        Arrays.sort(logs);
+        final RandomAccessFile lastLog = new RandomAccessFile(logs[logs.length - 1], "rw");
+        try {
+            lastLog.seek(lastLog.length());
+            lastLog.write(new byte[]{1, 2, 3});
+        } finally {
+            lastLog.close();
+        }
+
+        storeService = createStoreService();
+        assertEquals(LocalStoreService.StorageStatus.CORRUPTED, storeService.open());
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.restore());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(Arrays.equals(NumberUtils.toByteArray(i), storeService.get(createKey(i)).getValue()));
+        }
+        storeService.close();
+        storeService = createStoreService();
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+    }
+
+    @Test
+    public void testPurgeTombstones() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        storeService.close();
+        storeService = createStoreService();
+        storeService.open();
+        for (int i = 0; i < 5; i++) {
+            storeService.put(TestModelFactories.createDataObject(createKey(i),
+                    TestModelFactories.createVersion(NumberUtils.toByteArray(2L))));
+        }
+        storeService.close();
+
+        storeService = createStoreService();
+        storeService.setCompactionThreshold(2);
+        storeService.setTombstoneGracePeriod(0);
+        storeService.open();
+        awaitCompaction();
+        storeService.close();
+        assertEquals(1, countTables());
+
+        storeService = createStoreService();
+        storeService.open();
+        for (int i = 0; i < 5; i++) {
+            try {
+                storeService.get(createKey(i));
+                assertEquals("Exception not thrown", true, false);
+            } catch (NoSuchElementException ignore) {
+            }
+        }
+        for (int i = 5; i < 10; i++) {
+            assertTrue(Arrays.equals(NumberUtils.toByteArray(i), storeService.get(createKey(i)).getValue()));
+        }
+    }
+
+    @Test
+    public void testKeepTombstonesWithinGracePeriod() throws Exception {
+        storeService.put(createDataObject(1, 1, new byte[]{1}));
+        storeService.close();
+        storeService = createStoreService();
+        storeService.open();
+        storeService.put(TestModelFactories.createDataObject(createKey(1),
+                TestModelFactories.createVersion(NumberUtils.toByteArray(2L))));
+        storeService.close();
+
+        storeService = createStoreService();
+        storeService.setCompactionThreshold(2);
+        storeService.open();
+        awaitCompaction();
+        storeService.close();
+        assertEquals(1, countTables());
+
+        storeService = createStoreService();
+        storeService.open();
+        assertTrue(storeService.get(createKey(1)).isStub());
+    }
+
+    @Test
+    public void testCompleteInterruptedCompaction() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        storeService.close();
+        storeService = createStoreService();
+        storeService.open();
+        for (int i = 0; i < 5; i++) {
+            storeService.put(TestModelFactories.createDataObject(createKey(i),
+                    TestModelFactories.createVersion(NumberUtils.toByteArray(2L))));
+        }
+        storeService.close();
+        final File[] compacted = listTables();
+        final File backup = folder.newFolder("backup");
+        for (final File table : compacted) {
+            FileUtils.copyFileToDirectory(table, backup);
+        }
+
+        storeService = createStoreService();
+        storeService.setCompactionThreshold(2);
+        storeService.setTombstoneGracePeriod(0);
+        storeService.open();
+        awaitCompaction();
+        storeService.close();
+        assertEquals(1, countTables());
+
+        // storage is interrupted after compaction record is written, but before merged table is renamed
+        final File merged = listTables()[0];
+        final String id = merged.getName().substring(0, merged.getName().indexOf('.'));
+        assertTrue(merged.renameTo(new File(folder.getRoot(), Integer.parseInt(id) + ".tmp")));
+        final List<String> ids = new ArrayList<String>();
+        for (final File table : compacted) {
+            FileUtils.copyFileToDirectory(new File(backup, table.getName()), folder.getRoot());
+            ids.add(String.valueOf(Integer.parseInt(table.getName().substring(0, table.getName().indexOf('.')))));
+        }
+        FileUtils.writeLines(new File(folder.getRoot(), id + ".compaction"), ids);
+
+        storeService = createStoreService();
+        storeService.open();
+        assertEquals(1, countTables());
+        assertFalse(new File(folder.getRoot(), id + ".compaction").exists());
+        for (int i = 0; i < 5; i++) {
+            try {
+                storeService.get(createKey(i));
+                assertEquals("Exception not thrown", true, false);
+            } catch (NoSuchElementException ignore) {
+            }
+        }
+        for (int i = 5; i < 10; i++) {
+            assertTrue(Arrays.equals(NumberUtils.toByteArray(i), storeService.get(createKey(i)).getValue()));
+        }
+    }
+
+    private void awaitCompaction() throws InterruptedException {
+        for (int i = 0; i < 100 && countTables() > 1; i++) {
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void testIterateRange() throws Exception {
+        storeService.setMemtableSize(4096);
+        for (int i = 0; i < 3000; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        for (int i = 0; i < 3000; i += 7) {
+            storeService.put(createDataObject(i, 2, NumberUtils.toByteArray(i)));
+        }
+        RangeIterationAssert.assertRangeIteration(storeService, 3000);
+    }
+
+    @Test
+    public void testSnapshotAndRestore() throws Exception {
+        storeService.setMemtableSize(1024);
+        for (int i = 0; i < 500; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        final File snapshot = storeService.snapshot("first");
+        assertTrue(snapshot.list().length > 0);
+        // overwrite everything, so compaction replaces and removes snapshotted tables
+        for (int i = 0; i < 500; i++) {
+            storeService.put(createDataObject(i, 2, NumberUtils.toByteArray(-i)));
+        }
+        storeService.close();
+        storeService = createStoreService();
+        storeService.open();
+
+        final LsmTreeLocalStoreService restored = new LsmTreeLocalStoreService();
+        restored.setDataDirectory(folder.newFolder("restored").getAbsolutePath());
+        restored.setRestoreSnapshot(snapshot.getAbsolutePath());
+        assertEquals(LocalStoreService.StorageStatus.OK, restored.open());
+        try {
+            for (int i = 0; i < 500; i++) {
+                assertEquals(createDataObject(i, 1, NumberUtils.toByteArray(i)), restored.get(createKey(i)));
+                assertTrue(Arrays.equals(NumberUtils.toByteArray(i), restored.get(createKey(i)).getValue()));
+            }
+            restored.put(createDataObject(0, 3, new byte[]{1}));
+        } finally {
+            restored.close();
+        }
+        // snapshot isn't restored into non empty directory again
+        assertEquals(LocalStoreService.StorageStatus.OK, restored.open());
+        try {
+            assertTrue(Arrays.equals(new byte[]{1}, restored.get(createKey(0)).getValue()));
+        } finally {
+            restored.close();
+        }
+        for (int i = 0; i < 500; i++) {
+            assertTrue(Arrays.equals(NumberUtils.toByteArray(-i), storeService.get(createKey(i)).getValue()));
+        }
+    }
+
+    private int countTables() {
+        return listTables().length;
+    }
+
+    private File[] listTables() {
+        return folder.getRoot().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(".sst");
+            }
+        });
+    }
+
+    private LsmTreeLocalStoreService createStoreService() {
+        final LsmTreeLocalStoreService storeService = new LsmTreeLocalStoreService();
+        storeService.setDataDirectory(folder.getRoot().getAbsolutePath());
+        return storeService;
+    }
+}
@@ -0,0 +1,142 @@
+package ru.selena.core.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.selena.TestModelFactories;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.model.DataObject;
+import ru.selena.utils.NumberUtils;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static ru.selena.TestModelFactories.createDataObject;
+import static ru.selena.TestModelFactories.createKey;
+
+/**
+ * Date: 3/22/13
+ * Time: 12:40 AM
+ *
+ * @author Artem Titov
+ */
+public class OffHeapLocalStoreServiceTest {
+
+    private OffHeapLocalStoreService storeService;
+
+    @Before
+    public void setUp() throws Exception {
+        storeService = new OffHeapLocalStoreService();
+        storeService.setCapacity(4 * 1024 * 1024);
+        storeService.setSlabSize(64 * 1024);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storeService.close();
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        for (int i = 0; i < 10000; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        assertEquals(10000, storeService.getCount());
+        for (int i = 0; i < 10000; i++) {
+            final DataObject dataObject = storeService.get(createKey(i));
+            assertEquals(createDataObject(i, 1, new byte[0]), dataObject);
+            assertTrue(Arrays.equals(NumberUtils.toByteArray(i), dataObject.getValue()));
+        }
+    }
+
+    @Test
+    public void testPutStub() throws Exception {
+        storeService.put(TestModelFactories.createDataObject(createKey(1),
+                TestModelFactories.createVersion(NumberUtils.toByteArray(1L))));
+        assertTrue(storeService.get(createKey(1)).isStub());
+    }
+
+    @Test
+    public void testPurgeTombstones() throws Exception {
+        for (int i = 0; i < 10000; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            storeService.put(TestModelFactories.createDataObject(createKey(i),
+                    TestModelFactories.createVersion(NumberUtils.toByteArray(2L))));
+        }
+        assertEquals(0, storeService.purgeTombstones());
+        final long used = storeService.getUsedMemory();
+
+        Thread.sleep(10);
+        storeService.setTombstoneGracePeriod(0);
+        assertEquals(5000, storeService.purgeTombstones());
+        assertEquals(5000, storeService.getCount());
+        assertTrue(storeService.getUsedMemory() < used);
+        for (int i = 0; i < 10000; i++) {
+            if (i % 2 == 0) {
+                try {
+                    storeService.get(createKey(i));
+                    assertEquals("Exception not thrown", true, false);
+                } catch (NoSuchElementException ignore) {
+                }
+            } else {
+                assertTrue(Arrays.equals(NumberUtils.toByteArray(i), storeService.get(createKey(i)).getValue()));
+            }
+        }
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testGetMissing() throws Exception {
+        storeService.put(createDataObject(1, 1, new byte[]{1}));
+        storeService.get(createKey(2));
+    }
+
+    @Test(expected = UpdatingOlderVersionException.class)
+    public void testPutOlderVersion() throws Exception {
+        storeService.put(createDataObject(1, 2, new byte[]{1}));
+        storeService.put(createDataObject(1, 1, new byte[]{2}));
+    }
+
+    @Test
+    public void testOverwriteReusesMemory() throws Exception {
+        storeService.put(createDataObject(1, 1, new byte[100]));
+        final long used = storeService.getUsedMemory();
+        for (int i = 2; i < 1000; i++) {
+            storeService.put(createDataObject(1, i, new byte[100]));
+        }
+        assertEquals(used, storeService.getUsedMemory());
+        assertEquals(1, storeService.getCount());
+        assertEquals(createDataObject(1, 999, new byte[0]), storeService.get(createKey(1)));
+    }
+
+    @Test
+    public void testLargeValue() throws Exception {
+        final byte[] value = new byte[100 * 1024];
+        value[value.length - 1] = 1;
+        storeService.put(createDataObject(1, 1, value));
+        assertTrue(Arrays.equals(value, storeService.get(createKey(1)).getValue()));
+        storeService.put(createDataObject(1, 2, new byte[]{1}));
+        assertTrue(storeService.getUsedMemory() < value.length);
+    }
+
+    @Test(expected = DataStoreException.class)
+    public void testCapacityExhausted() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            storeService.put(createDataObject(i, 1, new byte[100 * 1024]));
+        }
+    }
+
+    @Test
+    public void testIterateRange() throws Exception {
+        for (int i = 0; i < 3000; i++) {
+            storeService.put(createDataObject(i, 1, NumberUtils.toByteArray(i)));
+        }
+        RangeIterationAssert.assertRangeIteration(storeService, 3000);
+    }
+}
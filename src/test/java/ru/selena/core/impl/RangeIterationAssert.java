@@ -0,0 +1,108 @@
+package ru.selena.core.impl;
+
+import com.google.common.collect.Lists;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.TokenRange;
+import ru.selena.core.impl.storage.RangePage;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static ru.selena.TestModelFactories.createKey;
+
+/**
+ * Check {@link LocalStoreService#iterator(TokenRange)} and {@link LocalStoreUtils#scan(LocalStoreService)} of the
+ * storage which contains keys created from integers {@code [0, keys)}. Tokens of such keys are dense, so many keys share the same token.
+ * <p/>
+ * Date: 3/26/13
+ * Time: 11:20 PM
+ *
+ * @author Artem Titov
+ */
+final class RangeIterationAssert {
+
+    private RangeIterationAssert() {
+        throw new AssertionError("This class not for instantiation");
+    }
+
+    static void assertRangeIteration(final LocalStoreService storeService, final int keys) {
+        final int middle = TokenRange.getToken(createKey(keys / 2));
+        assertRange(storeService, keys, new TokenRange(middle - 50, middle + 50));
+        assertRange(storeService, keys, new TokenRange(middle, middle - 1));
+        assertRange(storeService, keys, TokenRange.wholeRing());
+        assertRange(storeService, keys, new TokenRange(Integer.MIN_VALUE, Integer.MIN_VALUE + 1));
+
+        final TokenRange range = new TokenRange(middle, middle);
+        final Iterator<DataObject> iterator = storeService.iterator(range);
+        Key last = null;
+        for (int i = 0; i < keys / 3; i++) {
+            last = iterator.next().getKey();
+        }
+        final TokenRange remaining = range.resumeFrom(TokenRange.getToken(last));
+        assertEquals(getExpected(range, keys).subList(keys / 3, keys), getKeys(storeService.iterator(remaining),
+                new Comparator<Key>() {
+                    @Override
+                    public int compare(final Key k1, final Key k2) {
+                        return RangePage.compareKeys(range, k1, k2);
+                    }
+                }, last));
+        assertScan(storeService, keys);
+    }
+
+    private static void assertScan(final LocalStoreService storeService, final int keys) {
+        final List<Key> actual = new ArrayList<Key>();
+        final Iterator<DataObject> iterator = LocalStoreUtils.scan(storeService);
+        while (iterator.hasNext()) {
+            actual.add(iterator.next().getKey());
+        }
+        assertEquals(keys, actual.size());
+        assertEquals(new HashSet<Key>(getExpected(TokenRange.wholeRing(), keys)), new HashSet<Key>(actual));
+    }
+
+    private static void assertRange(final LocalStoreService storeService, final int keys, final TokenRange range) {
+        final List<Key> actual = new ArrayList<Key>();
+        final Iterator<DataObject> iterator = storeService.iterator(range);
+        while (iterator.hasNext()) {
+            actual.add(iterator.next().getKey());
+        }
+        assertEquals(getExpected(range, keys), actual);
+    }
+
+    private static List<Key> getExpected(final TokenRange range, final int keys) {
+        final List<Key> expected = new ArrayList<Key>();
+        for (int i = 0; i < keys; i++) {
+            if (range.contains(createKey(i))) {
+                expected.add(createKey(i));
+            }
+        }
+        Collections.sort(expected, new Comparator<Key>() {
+            @Override
+            public int compare(final Key k1, final Key k2) {
+                return RangePage.compareKeys(range, k1, k2);
+            }
+        });
+        return expected;
+    }
+
+    /**
+     * Collect keys after the last key returned before resume. Keys with the same token are returned again.
+     */
+    private static List<Key> getKeys(final Iterator<DataObject> iterator, final Comparator<Key> comparator,
+                                     final Key after) {
+        final List<Key> result = Lists.newArrayList();
+        while (iterator.hasNext()) {
+            final Key key = iterator.next().getKey();
+            if (comparator.compare(key, after) > 0) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+}
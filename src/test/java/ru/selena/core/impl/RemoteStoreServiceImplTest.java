@@ -3,13 +3,16 @@ package ru.selena.core.impl;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import ru.selena.HttpServerInitializer;
 import ru.selena.TestModelFactories;
 import ru.selena.core.ClusterManager;
 import ru.selena.core.KeyRingService;
 import ru.selena.core.LocalStoreService;
+import ru.selena.core.SerializedDataSource;
 import ru.selena.core.exception.DataStoreException;
 import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.core.impl.storage.SerializedBuffer;
 import ru.selena.model.DataObject;
 import ru.selena.model.Key;
 import ru.selena.net.impl.HttpTransportService;
@@ -17,9 +20,14 @@ import ru.selena.net.model.Host;
 import ru.selena.net.model.impl.HostWithIntegerTokenFactory;
 import ru.selena.net.servlet.IOServlet;
 import ru.selena.net.servlet.InternalIOServlet;
+import ru.selena.net.utils.SerializationUtils;
 import ru.selena.utils.NumberUtils;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
@@ -72,6 +80,7 @@ public class RemoteStoreServiceImplTest {
     @After
     public void destroy() throws Exception {
         serverInitializer.stop();
+        transportService.destroy();
     }
 
     @Test
@@ -209,4 +218,98 @@ public class RemoteStoreServiceImplTest {
         verify(localStoreService, times(1)).put(value);
         verifyNoMoreInteractions(localStoreService);
     }
+
+    @Test
+    public void testLargeValue() throws Exception {
+        final Key key = TestModelFactories.createKey(new byte[]{1, 2, 3, 4});
+        final byte[] bytes = new byte[8 * 1024 * 1024 + 17];
+        new Random(17).nextBytes(bytes);
+        final DataObject value = TestModelFactories.createDataObject(
+                key,
+                TestModelFactories.createVersion(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}),
+                bytes
+        );
+        remoteStoreService.put(value, host);
+        final ArgumentCaptor<DataObject> captor = ArgumentCaptor.forClass(DataObject.class);
+        verify(localStoreService, times(1)).put(captor.capture());
+        assertTrue(Arrays.equals(bytes, captor.getValue().getValue()));
+
+        when(localStoreService.get(key)).thenReturn(value);
+        final DataObject returnedValue = remoteStoreService.get(key, host);
+        assertEquals(value, returnedValue);
+        assertTrue(Arrays.equals(bytes, returnedValue.getValue()));
+    }
+
+    @Test
+    public void testGetSerialized() throws Exception {
+        final LocalStoreService serializedSource = mock(LocalStoreService.class,
+                withSettings().extraInterfaces(SerializedDataSource.class));
+        internalIOServlet.setStoreService(serializedSource);
+        final Key key = TestModelFactories.createKey(new byte[]{1, 2, 3, 4});
+        final DataObject value = TestModelFactories.createDataObject(
+                key,
+                TestModelFactories.createVersion(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}),
+                new byte[]{1, 2, 3, 4}
+        );
+        final byte[] serialized = new byte[SerializationUtils.getRequiredSize(value)];
+        SerializationUtils.serializeDataObject(value, serialized, 0);
+        when(((SerializedDataSource) serializedSource).getSerialized(key))
+                .thenReturn(new SerializedBuffer(ByteBuffer.wrap(serialized)));
+        final DataObject returnedValue = remoteStoreService.get(key, host);
+        assertEquals(value, returnedValue);
+        assertTrue(Arrays.equals(value.getValue(), returnedValue.getValue()));
+        verify(serializedSource, never()).get(key);
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        final Key key = TestModelFactories.createKey(new byte[]{1, 2, 3, 4});
+        final DataObject value = TestModelFactories.createDataObject(
+                key,
+                TestModelFactories.createVersion(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}),
+                new byte[]{1, 2, 3, 4}
+        );
+        remoteStoreService.putAsync(value, host).get();
+        verify(localStoreService, times(1)).put(value);
+
+        when(localStoreService.get(key)).thenReturn(value);
+        assertEquals(value, remoteStoreService.getAsync(key, host).get());
+
+        doThrow(new UpdatingOlderVersionException("Test")).when(localStoreService).put(value);
+        try {
+            remoteStoreService.putAsync(value, host).get();
+            assertEquals("Exception not thrown", true, false);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UpdatingOlderVersionException);
+        }
+
+        when(localStoreService.get(key)).thenThrow(new NoSuchElementException("Test"));
+        try {
+            remoteStoreService.getAsync(key, host).get();
+            assertEquals("Exception not thrown", true, false);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NoSuchElementException);
+        }
+    }
+
+    @Test
+    public void testGetVersion() throws Exception {
+        final Key key = TestModelFactories.createKey(new byte[]{1, 2, 3, 4});
+        final DataObject value = TestModelFactories.createDataObject(
+                key,
+                TestModelFactories.createVersion(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}),
+                new byte[]{1, 2, 3, 4}
+        );
+        when(localStoreService.get(key)).thenReturn(value);
+        assertEquals(value.getVersion(), remoteStoreService.getVersion(key, host));
+        assertEquals(value.getVersion(), remoteStoreService.getVersionAsync(key, host).get());
+
+        when(localStoreService.get(key)).thenThrow(new NoSuchElementException("Test"));
+        try {
+            remoteStoreService.getVersion(key, host);
+            assertEquals("Exception not thrown", true, false);
+        } catch (NoSuchElementException e) {
+            assertTrue(e.getMessage().endsWith("Test"));
+        }
+    }
 }
@@ -0,0 +1,257 @@
+package ru.selena.core.impl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.selena.TestModelFactories;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.SerializedDataSource;
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.net.model.impl.HostWithIntegerTokenFactory;
+import ru.selena.utils.NumberUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static junit.framework.Assert.*;
+import static ru.selena.TestModelFactories.createDataObject;
+
+/**
+ * Date: 3/27/13
+ * Time: 10:10 PM
+ *
+ * @author Artem Titov
+ */
+public class ShardedLocalStoreServiceTest {
+
+    private static final int SHARDS = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ShardedLocalStoreService storeService;
+    private volatile boolean failOpen;
+
+    @Before
+    public void setUp() throws Exception {
+        storeService = createStoreService(SHARDS);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storeService.close();
+    }
+
+    @Test
+    public void testShardRanges() throws Exception {
+        final List<TokenRange> ranges = storeService.getShardRanges();
+        assertEquals(SHARDS, ranges.size());
+        assertEquals(Integer.MAX_VALUE, ranges.get(0).getStart());
+        assertEquals(Integer.MAX_VALUE, ranges.get(SHARDS - 1).getEnd());
+        for (int i = 0; i < SHARDS; i++) {
+            final TokenRange range = ranges.get(i);
+            assertEquals(range.getEnd(), ranges.get((i + 1) % SHARDS).getStart());
+            assertEquals(i, storeService.getShardIndex(range.getStart() + 1));
+            assertEquals(i, storeService.getShardIndex(range.getEnd()));
+        }
+    }
+
+    @Test
+    public void testPutAndGetAfterReopen() throws Exception {
+        final boolean[] usedShards = new boolean[SHARDS];
+        for (int i = 0; i < 1000; i++) {
+            storeService.put(createSpreadDataObject(i));
+            usedShards[storeService.getShardIndex(TokenRange.getToken(createSpreadKey(i)))] = true;
+        }
+        for (final boolean used : usedShards) {
+            assertTrue(used);
+        }
+        storeService.close();
+        storeService = createStoreService(SHARDS);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(createSpreadDataObject(i), storeService.get(createSpreadKey(i)));
+        }
+    }
+
+    @Test
+    public void testIterateRange() throws Exception {
+        for (int i = 0; i < 3000; i++) {
+            storeService.put(createDataObject(i, 1));
+        }
+        RangeIterationAssert.assertRangeIteration(storeService, 3000);
+    }
+
+    @Test
+    public void testDropShard() throws Exception {
+        final int shard = storeService.getShardIndex(TokenRange.getToken(createSpreadKey(1)));
+        int other = 2;
+        while (storeService.getShardIndex(TokenRange.getToken(createSpreadKey(other))) == shard) {
+            other++;
+        }
+        storeService.put(createSpreadDataObject(1));
+        storeService.put(createSpreadDataObject(other));
+        storeService.dropShard(shard);
+        try {
+            storeService.get(createSpreadKey(1));
+            fail("Data of dropped shard is available");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        storeService.get(createSpreadKey(other));
+        storeService.put(createSpreadDataObject(1));
+        storeService.get(createSpreadKey(1));
+    }
+
+    @Test
+    public void testDropShardFailure() throws Exception {
+        final int shard = storeService.getShardIndex(TokenRange.getToken(createSpreadKey(1)));
+        int other = 2;
+        while (storeService.getShardIndex(TokenRange.getToken(createSpreadKey(other))) == shard) {
+            other++;
+        }
+        storeService.put(createSpreadDataObject(1));
+        storeService.put(createSpreadDataObject(other));
+        failOpen = true;
+        try {
+            storeService.dropShard(shard);
+            fail("Exception not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        failOpen = false;
+        try {
+            storeService.get(createSpreadKey(1));
+            fail("Failed shard is available");
+        } catch (DataStoreException e) {
+            // expected
+        }
+        storeService.get(createSpreadKey(other));
+
+        storeService.dropShard(shard);
+        storeService.put(createSpreadDataObject(1));
+        storeService.get(createSpreadKey(1));
+    }
+
+    @Test
+    public void testSerializedDataOfDroppedShard() throws Exception {
+        final ShardedLocalStoreService serializedService = new ShardedLocalStoreService();
+        serializedService.setDataDirectory(folder.newFolder("serialized").getAbsolutePath());
+        serializedService.setShards(SHARDS);
+        serializedService.setLocalStoreServiceFactory(new LocalStoreServiceFactory() {
+            @Override
+            public LocalStoreService createLocalStoreService(final String dataDirectory) {
+                final LogStructuredLocalStoreService shard = new LogStructuredLocalStoreService();
+                shard.setDataDirectory(dataDirectory);
+                return shard;
+            }
+        });
+        assertEquals(LocalStoreService.StorageStatus.OK, serializedService.open());
+        try {
+            serializedService.put(createSpreadDataObject(1));
+            final SerializedDataSource.SerializedData data = serializedService.getSerialized(createSpreadKey(1));
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            data.writeTo(Channels.newChannel(out));
+            assertEquals(data.getLength(), out.size());
+
+            final SerializedDataSource.SerializedData dropped = serializedService.getSerialized(createSpreadKey(1));
+            serializedService.dropShard(serializedService.getShardIndex(TokenRange.getToken(createSpreadKey(1))));
+            try {
+                dropped.writeTo(Channels.newChannel(new ByteArrayOutputStream()));
+                fail("Data of dropped shard is written");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            serializedService.close();
+        }
+    }
+
+    @Test
+    public void testShardRangesFromRing() throws Exception {
+        storeService.close();
+        FileUtils.cleanDirectory(folder.getRoot());
+        final int[] tokens = {0, 1 << 30};
+        final IntegerKeyRingService keyRingService = new IntegerKeyRingService();
+        keyRingService.setReplicationFactor(1);
+        keyRingService.updateRing(Arrays.asList(
+                new HostWithIntegerTokenFactory().createHost("localhost", 8080, NumberUtils.toByteArray(tokens[0])),
+                new HostWithIntegerTokenFactory().createHost("localhost", 8081, NumberUtils.toByteArray(tokens[1]))));
+        storeService = createStoreService(4);
+        storeService.setKeyRingService(keyRingService);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+
+        final List<TokenRange> ranges = storeService.getShardRanges();
+        assertEquals(4, ranges.size());
+        final Set<Integer> ends = new HashSet<Integer>();
+        for (int i = 0; i < ranges.size(); i++) {
+            ends.add(ranges.get(i).getEnd());
+            assertEquals(ranges.get(i).getEnd(), ranges.get((i + 1) % ranges.size()).getStart());
+            assertEquals(i, storeService.getShardIndex(ranges.get(i).getStart() + 1));
+            assertEquals(i, storeService.getShardIndex(ranges.get(i).getEnd()));
+        }
+        assertTrue(ends.contains(tokens[0]));
+        assertTrue(ends.contains(tokens[1]));
+        for (int i = 0; i < 3000; i++) {
+            storeService.put(createDataObject(i, 1));
+        }
+        RangeIterationAssert.assertRangeIteration(storeService, 3000);
+
+        // bounds don't follow ring changes and shard setting
+        storeService.close();
+        keyRingService.updateRing(Arrays.asList(
+                new HostWithIntegerTokenFactory().createHost("localhost", 8080, NumberUtils.toByteArray(1))));
+        storeService = createStoreService(SHARDS);
+        storeService.setKeyRingService(keyRingService);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        assertEquals(ranges, storeService.getShardRanges());
+    }
+
+    private ShardedLocalStoreService createStoreService(final int shards) {
+        final ShardedLocalStoreService storeService = new ShardedLocalStoreService();
+        storeService.setDataDirectory(folder.getRoot().getAbsolutePath());
+        storeService.setShards(shards);
+        storeService.setLocalStoreServiceFactory(new LocalStoreServiceFactory() {
+            @Override
+            public LocalStoreService createLocalStoreService(final String dataDirectory) {
+                final LsmTreeLocalStoreService shard = new LsmTreeLocalStoreService() {
+                    @Override
+                    public StorageStatus open() throws IOException {
+                        if (failOpen) {
+                            throw new IOException("Test");
+                        }
+                        return super.open();
+                    }
+                };
+                shard.setDataDirectory(dataDirectory);
+                return shard;
+            }
+        });
+        return storeService;
+    }
+
+    /**
+     * Create key which token is far from tokens of other keys, unlike keys of small integers.
+     */
+    private static Key createSpreadKey(final int key) {
+        return TestModelFactories.createKey(NumberUtils.toByteArray(key * 0x9e3779b97f4a7c15L));
+    }
+
+    private static DataObject createSpreadDataObject(final int key) {
+        return TestModelFactories.createDataObject(createSpreadKey(key),
+                TestModelFactories.createVersion(NumberUtils.toByteArray(1L)), NumberUtils.toByteArray(key));
+    }
+}
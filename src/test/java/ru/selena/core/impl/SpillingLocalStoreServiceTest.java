@@ -0,0 +1,168 @@
+package ru.selena.core.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.utils.NumberUtils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static ru.selena.TestModelFactories.createDataObject;
+import static ru.selena.TestModelFactories.createKey;
+import static ru.selena.TestModelFactories.createVersion;
+
+/**
+ * Date: 3/28/13
+ * Time: 10:30 PM
+ *
+ * @author Artem Titov
+ */
+public class SpillingLocalStoreServiceTest {
+
+    private static final long MEMORY_LIMIT = 80 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SpillingLocalStoreService storeService;
+
+    @Before
+    public void setUp() throws Exception {
+        storeService = createStoreService();
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storeService.close();
+    }
+
+    @Test
+    public void testMemoryLimit() throws Exception {
+        for (int i = 0; i < 5000; i++) {
+            storeService.put(createLargeDataObject(i, 1));
+        }
+        assertTrue(storeService.getMemoryUsage() <= MEMORY_LIMIT);
+        assertTrue(storeService.getEvictions() > 0);
+        for (int i = 0; i < 5000; i++) {
+            assertValue(i, storeService.get(createKey(i)));
+        }
+        assertTrue(storeService.getMemoryUsage() <= MEMORY_LIMIT);
+    }
+
+    @Test
+    public void testFrequentlyUsedObjectsStayInMemory() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            storeService.put(createLargeDataObject(i, 1));
+        }
+        for (int i = 0; i < 1000; i++) {
+            storeService.put(createLargeDataObject(1000 + i, 1));
+            storeService.get(createKey(i % 100));
+        }
+        final long spillReads = storeService.getSpillReads();
+        for (int i = 0; i < 4000; i++) {
+            storeService.put(createLargeDataObject(2000 + i, 1));
+            assertValue(i % 100, storeService.get(createKey(i % 100)));
+        }
+        assertTrue(storeService.getSpillReads() - spillReads < 40);
+    }
+
+    @Test(expected = UpdatingOlderVersionException.class)
+    public void testPutOlderVersionThanSpilled() throws Exception {
+        storeService.put(createLargeDataObject(0, 2));
+        for (int i = 1; i < 5000; i++) {
+            storeService.put(createLargeDataObject(i, 1));
+        }
+        storeService.put(createLargeDataObject(0, 1));
+    }
+
+    @Test
+    public void testGetDoesNotLoadOlderObject() throws Exception {
+        storeService.close();
+        final AtomicBoolean interfere = new AtomicBoolean();
+        final LogStructuredLocalStoreService spillStoreService = new LogStructuredLocalStoreService() {
+            @Override
+            public DataObject get(final Key key) throws DataStoreException {
+                final DataObject dataObject = super.get(key);
+                if (interfere.compareAndSet(true, false)) {
+                    // newer object is put and evicted after the older one has been read
+                    storeService.put(createLargeDataObject(0, 2));
+                    for (int i = 1; super.get(createKey(0)).getVersion().isBefore(createVersion(2)); i++) {
+                        storeService.put(createLargeDataObject(i, 1));
+                    }
+                }
+                return dataObject;
+            }
+        };
+        spillStoreService.setDataDirectory(folder.getRoot().getAbsolutePath());
+        storeService = new SpillingLocalStoreService();
+        storeService.setSpillStoreService(spillStoreService);
+        storeService.setMemoryLimit(MEMORY_LIMIT);
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        storeService.put(createLargeDataObject(0, 1));
+        for (int i = 1; i < 5000; i++) {
+            storeService.put(createLargeDataObject(i, 1));
+        }
+
+        interfere.set(true);
+        assertEquals(createLargeDataObject(0, 2), storeService.get(createKey(0)));
+        assertEquals(createLargeDataObject(0, 2), storeService.get(createKey(0)));
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        for (int i = 0; i < 2000; i++) {
+            storeService.put(createLargeDataObject(i, 1));
+        }
+        storeService.close();
+        storeService = createStoreService();
+        assertEquals(LocalStoreService.StorageStatus.OK, storeService.open());
+        assertEquals(0, storeService.getResidentCount());
+        for (int i = 0; i < 2000; i++) {
+            assertValue(i, storeService.get(createKey(i)));
+        }
+    }
+
+    @Test
+    public void testIterateRange() throws Exception {
+        for (int i = 0; i < 3000; i++) {
+            storeService.put(createLargeDataObject(i, 1));
+        }
+        for (int i = 0; i < 3000; i += 5) {
+            storeService.get(createKey(i));
+        }
+        RangeIterationAssert.assertRangeIteration(storeService, 3000);
+    }
+
+    private SpillingLocalStoreService createStoreService() {
+        final LogStructuredLocalStoreService spillStoreService = new LogStructuredLocalStoreService();
+        spillStoreService.setDataDirectory(folder.getRoot().getAbsolutePath());
+        final SpillingLocalStoreService storeService = new SpillingLocalStoreService();
+        storeService.setSpillStoreService(spillStoreService);
+        storeService.setMemoryLimit(MEMORY_LIMIT);
+        return storeService;
+    }
+
+    private static void assertValue(final int key, final DataObject dataObject) {
+        final byte[] expected = new byte[100];
+        System.arraycopy(NumberUtils.toByteArray(key), 0, expected, 0, 4);
+        assertTrue(Arrays.equals(expected, dataObject.getValue()));
+    }
+
+
+    private static DataObject createLargeDataObject(final int key, final long version) {
+        final byte[] value = new byte[100];
+        System.arraycopy(NumberUtils.toByteArray(key), 0, value, 0, 4);
+        return createDataObject(key, version, value);
+    }
+}
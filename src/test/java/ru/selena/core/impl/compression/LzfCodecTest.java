@@ -0,0 +1,63 @@
+package ru.selena.core.impl.compression;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Date: 3/25/13
+ * Time: 11:10 PM
+ *
+ * @author Artem Titov
+ */
+public class LzfCodecTest {
+
+    private final LzfCodec codec = new LzfCodec();
+
+    @Test
+    public void testCompressibleData() throws Exception {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("{\"id\":").append(i).append(",\"name\":\"user").append(i % 10).append("\"}");
+        }
+        final byte[] input = builder.toString().getBytes("UTF-8");
+        assertTrue(roundTrip(input) < input.length / 2);
+    }
+
+    @Test
+    public void testRandomData() throws Exception {
+        final Random random = new Random(17);
+        for (int length = 0; length < 300; length++) {
+            final byte[] input = new byte[length];
+            random.nextBytes(input);
+            assertTrue(roundTrip(input) <= codec.getMaxCompressedLength(length));
+        }
+    }
+
+    @Test
+    public void testLongRuns() throws Exception {
+        final byte[] input = new byte[100000];
+        Arrays.fill(input, 50000, 100000, (byte) 7);
+        assertTrue(roundTrip(input) < 2000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDamagedData() throws Exception {
+        final byte[] input = new byte[1000];
+        final byte[] compressed = new byte[codec.getMaxCompressedLength(input.length)];
+        final int length = codec.compress(input, compressed, 0);
+        codec.decompress(compressed, 0, length - 1, new byte[input.length]);
+    }
+
+    private int roundTrip(final byte[] input) {
+        final byte[] compressed = new byte[3 + codec.getMaxCompressedLength(input.length)];
+        final int length = codec.compress(input, compressed, 3);
+        final byte[] output = new byte[input.length];
+        codec.decompress(compressed, 3, length, output);
+        assertTrue(Arrays.equals(input, output));
+        return length;
+    }
+}
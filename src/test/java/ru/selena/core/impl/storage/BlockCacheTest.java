@@ -0,0 +1,61 @@
+package ru.selena.core.impl.storage;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Date: 3/24/13
+ * Time: 4:30 PM
+ *
+ * @author Artem Titov
+ */
+public class BlockCacheTest {
+
+    private static final int BLOCK_SIZE = 100;
+    private static final int ENTRY_SIZE = BLOCK_SIZE + 112;
+
+    @Test
+    public void testGetAndPut() throws Exception {
+        final BlockCache cache = new BlockCache(1024 * 1024, 4);
+        final long fileId = BlockCache.newFileId();
+        assertNull(cache.get(fileId, 0));
+        final byte[] block = new byte[BLOCK_SIZE];
+        cache.put(fileId, 0, block);
+        assertSame(block, cache.get(fileId, 0));
+        assertNull(cache.get(BlockCache.newFileId(), 0));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(ENTRY_SIZE, cache.getResidentBytes());
+    }
+
+    @Test
+    public void testEvictionBySize() throws Exception {
+        final BlockCache cache = new BlockCache(10 * ENTRY_SIZE, 1);
+        final long fileId = BlockCache.newFileId();
+        for (int i = 0; i < 100; i++) {
+            cache.put(fileId, i, new byte[BLOCK_SIZE]);
+        }
+        assertEquals(10 * ENTRY_SIZE, cache.getResidentBytes());
+        assertEquals(90, cache.getEvictions());
+        assertNull(cache.get(fileId, 0));
+        assertNotNull(cache.get(fileId, 99));
+    }
+
+    @Test
+    public void testScanResistance() throws Exception {
+        final BlockCache cache = new BlockCache(10 * ENTRY_SIZE, 1);
+        final long hotFileId = BlockCache.newFileId();
+        for (int i = 0; i < 5; i++) {
+            cache.put(hotFileId, i, new byte[BLOCK_SIZE]);
+            assertNotNull(cache.get(hotFileId, i));
+        }
+        final long scannedFileId = BlockCache.newFileId();
+        for (int i = 0; i < 1000; i++) {
+            cache.put(scannedFileId, i, new byte[BLOCK_SIZE]);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(cache.get(hotFileId, i));
+        }
+    }
+}
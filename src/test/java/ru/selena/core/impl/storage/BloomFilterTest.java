@@ -0,0 +1,62 @@
+package ru.selena.core.impl.storage;
+
+import org.junit.Test;
+import ru.selena.TestModelFactories;
+import ru.selena.utils.NumberUtils;
+
+import java.io.*;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Date: 3/15/13
+ * Time: 10:05 PM
+ *
+ * @author Artem Titov
+ */
+public class BloomFilterTest {
+
+    private static final int KEYS = 10000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    @Test
+    public void testNoFalseNegatives() throws Exception {
+        final BloomFilter filter = createFilter();
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(filter.mightContain(TestModelFactories.createKey(NumberUtils.toByteArray(i))));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() throws Exception {
+        final BloomFilter filter = createFilter();
+        int falsePositives = 0;
+        for (int i = KEYS; i < 2 * KEYS; i++) {
+            if (filter.mightContain(TestModelFactories.createKey(NumberUtils.toByteArray(i)))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < KEYS * FALSE_POSITIVE_RATE * 2);
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        final BloomFilter filter = createFilter();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        filter.writeTo(new DataOutputStream(out));
+        final BloomFilter restored = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+        for (int i = 0; i < 2 * KEYS; i++) {
+            final byte[] key = NumberUtils.toByteArray(i);
+            assertTrue(filter.mightContain(TestModelFactories.createKey(key))
+                    == restored.mightContain(TestModelFactories.createKey(key)));
+        }
+    }
+
+    private static BloomFilter createFilter() {
+        final BloomFilter filter = BloomFilter.create(KEYS, FALSE_POSITIVE_RATE);
+        for (int i = 0; i < KEYS; i++) {
+            filter.add(TestModelFactories.createKey(NumberUtils.toByteArray(i)));
+        }
+        return filter;
+    }
+}
@@ -0,0 +1,160 @@
+package ru.selena.core.impl.storage;
+
+import org.junit.Test;
+import ru.selena.TestModelFactories;
+import ru.selena.model.Key;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static ru.selena.TestModelFactories.createKey;
+
+/**
+ * Date: 3/30/13
+ * Time: 10:20 PM
+ *
+ * @author Artem Titov
+ */
+public class ConcurrentIntHashIndexTest {
+
+    private static final ConcurrentIntHashIndex.KeyExtractor<Record> RECORD_KEY =
+            new ConcurrentIntHashIndex.KeyExtractor<Record>() {
+                @Override
+                public Key getKey(final Record record) {
+                    return record.key;
+                }
+            };
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        final ConcurrentIntHashIndex<Record> index = new ConcurrentIntHashIndex<Record>(RECORD_KEY, 0, 2);
+        for (int i = 0; i < 10000; i++) {
+            assertNull(index.put(new Record(createKey(i), i)));
+        }
+        assertEquals(10000, index.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, index.get(createKey(i)).value);
+        }
+        assertNull(index.get(createKey(10000)));
+
+        final Record old = index.get(createKey(1));
+        final Record record = new Record(createKey(1), -1);
+        assertSame(old, index.putIfAbsent(record));
+        assertTrue(index.replace(old, record));
+        assertFalse(index.replace(old, new Record(createKey(1), -2)));
+        assertSame(record, index.get(createKey(1)));
+
+        assertFalse(index.remove(old));
+        for (int i = 0; i < 10000; i += 2) {
+            assertTrue(index.remove(index.get(createKey(i))));
+        }
+        assertEquals(5000, index.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i % 2 == 1, index.get(createKey(i)) != null);
+        }
+        final Set<Key> keys = new HashSet<Key>();
+        final Iterator<Record> iterator = index.iterator();
+        while (iterator.hasNext()) {
+            keys.add(iterator.next().key);
+        }
+        assertEquals(5000, keys.size());
+    }
+
+    @Test
+    public void testEqualHashes() throws Exception {
+        final ConcurrentIntHashIndex<Record> index = new ConcurrentIntHashIndex<Record>(RECORD_KEY);
+        // Arrays.hashCode of {0, 31} and {1, 0} are equal
+        final Key first = TestModelFactories.createKey(new byte[]{0, 31});
+        final Key second = TestModelFactories.createKey(new byte[]{1, 0});
+        assertEquals(first.hashCode(), second.hashCode());
+        index.put(new Record(first, 1));
+        assertNull(index.get(second));
+        index.put(new Record(second, 2));
+        assertEquals(1, index.get(first).value);
+        assertEquals(2, index.get(second).value);
+        assertTrue(index.remove(index.get(first)));
+        assertNull(index.get(first));
+        assertEquals(2, index.get(second).value);
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final ConcurrentIntHashIndex<Record> index = new ConcurrentIntHashIndex<Record>(RECORD_KEY, 16, 4);
+        final int threads = 4;
+        final int keysPerThread = 50000;
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        try {
+            // reader checks that keys which are never modified stay visible while tables grow
+            for (int i = 0; i < 100; i++) {
+                index.put(new Record(createKey(-1 - i), i));
+            }
+            final Future<Integer> reader = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    int misses = 0;
+                    while (writing.get()) {
+                        for (int i = 0; i < 100; i++) {
+                            if (index.get(createKey(-1 - i)) == null) {
+                                misses++;
+                            }
+                        }
+                    }
+                    return misses;
+                }
+            });
+            final List<Future<Void>> writers = new ArrayList<Future<Void>>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                writers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int i = thread; i < threads * keysPerThread; i += threads) {
+                            index.put(new Record(createKey(i), i));
+                            if (i % 3 == 0) {
+                                index.remove(index.get(createKey(i)));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> writer : writers) {
+                writer.get();
+            }
+            writing.set(false);
+            assertEquals(0, reader.get().intValue());
+        } finally {
+            executor.shutdownNow();
+        }
+        int expected = 100;
+        for (int i = 0; i < threads * keysPerThread; i++) {
+            assertEquals(i % 3 != 0, index.get(createKey(i)) != null);
+            expected += i % 3 != 0 ? 1 : 0;
+        }
+        assertEquals(expected, index.size());
+    }
+
+    private static final class Record {
+        private final Key key;
+        private final int value;
+
+        private Record(final Key key, final int value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
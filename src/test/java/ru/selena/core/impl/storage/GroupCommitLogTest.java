@@ -0,0 +1,77 @@
+package ru.selena.core.impl.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.selena.TestModelFactories;
+import ru.selena.utils.NumberUtils;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Date: 3/20/13
+ * Time: 12:30 AM
+ *
+ * @author Artem Titov
+ */
+public class GroupCommitLogTest {
+
+    private static final int THREADS = 8;
+    private static final int RECORDS_PER_THREAD = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testConcurrentAppend() throws Exception {
+        final Segment segment = new Segment(0, new File(folder.getRoot(), "0.wal"));
+        final GroupCommitLog commitLog = new GroupCommitLog(segment, SyncPolicy.EVERY_WRITE);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final List<Future<Map<Long, byte[]>>> futures = new ArrayList<Future<Map<Long, byte[]>>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Map<Long, byte[]>>() {
+                @Override
+                public Map<Long, byte[]> call() throws Exception {
+                    final Map<Long, byte[]> written = new HashMap<Long, byte[]>();
+                    for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                        final byte[] record = createRecord(thread * RECORDS_PER_THREAD + i);
+                        written.put(commitLog.append(record), record);
+                    }
+                    return written;
+                }
+            }));
+        }
+        final Map<Long, byte[]> written = new HashMap<Long, byte[]>();
+        for (final Future<Map<Long, byte[]>> future : futures) {
+            written.putAll(future.get());
+        }
+        executor.shutdown();
+        assertEquals(THREADS * RECORDS_PER_THREAD, written.size());
+
+        final Map<Long, byte[]> scanned = new HashMap<Long, byte[]>();
+        final long validLength = segment.scan(new Segment.RecordVisitor() {
+            @Override
+            public void onRecord(final long offset, final byte[] record) {
+                scanned.put(offset, record);
+            }
+        });
+        assertEquals(segment.getSize(), validLength);
+        assertEquals(written.size(), scanned.size());
+        for (final Map.Entry<Long, byte[]> entry : written.entrySet()) {
+            assertEquals(true, Arrays.equals(entry.getValue(), scanned.get(entry.getKey())));
+        }
+        segment.close();
+    }
+
+    private static byte[] createRecord(final int key) {
+        return RecordUtils.toRecord(TestModelFactories.createDataObject(
+                TestModelFactories.createKey(NumberUtils.toByteArray(key)),
+                TestModelFactories.createVersion(NumberUtils.toByteArray(1L)),
+                NumberUtils.toByteArray(key)));
+    }
+}
@@ -0,0 +1,73 @@
+package ru.selena.core.impl.storage;
+
+import org.junit.Test;
+import ru.selena.TestModelFactories;
+import ru.selena.core.TokenRange;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.utils.NumberUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Date: 3/31/13
+ * Time: 11:50 PM
+ *
+ * @author Artem Titov
+ */
+public class KeyPagedRangeIteratorTest {
+
+    @Test
+    public void testKeysRemovedAfterListingAreSkipped() throws Exception {
+        final List<Key> keys = new ArrayList<Key>();
+        for (int i = 0; i < 100; i++) {
+            keys.add(TestModelFactories.createKey(NumberUtils.toByteArray(i)));
+        }
+        final TokenRange range = TokenRange.wholeRing();
+        final List<Key> expected = new ArrayList<Key>();
+        final RangePage<Key> all = new RangePage<Key>(range, null, keys.size());
+        for (final Key key : keys) {
+            all.offer(key, key);
+        }
+        // every third key disappears between listing and reading, so each listed page is short of one object
+        final List<Key> removed = new ArrayList<Key>();
+        for (int i = 0; i < keys.size(); i++) {
+            final Key key = all.getValues().get(i);
+            if (i % 3 == 0) {
+                removed.add(key);
+            } else {
+                expected.add(key);
+            }
+        }
+
+        final Iterator<DataObject> iterator = new KeyPagedRangeIterator(range, 3) {
+            @Override
+            protected List<Key> loadKeys(final TokenRange range, final Key after, final int limit) {
+                final RangePage<Key> page = new RangePage<Key>(range, after, limit);
+                for (final Key key : keys) {
+                    page.offer(key, key);
+                }
+                return page.getValues();
+            }
+
+            @Override
+            protected DataObject load(final Key key) throws DataStoreException {
+                if (removed.contains(key)) {
+                    throw new NoSuchElementException();
+                }
+                return TestModelFactories.createDataObject(key, TestModelFactories.createVersion(NumberUtils.toByteArray(1L)));
+            }
+        };
+        final List<Key> actual = new ArrayList<Key>();
+        while (iterator.hasNext()) {
+            actual.add(iterator.next().getKey());
+        }
+        assertEquals(expected, actual);
+    }
+}
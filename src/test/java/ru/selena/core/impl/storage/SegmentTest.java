@@ -0,0 +1,45 @@
+package ru.selena.core.impl.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Date: 3/31/13
+ * Time: 9:40 PM
+ *
+ * @author Artem Titov
+ */
+public class SegmentTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLastReleaseClosesSegment() throws Exception {
+        final Segment segment = new Segment(0, new File(folder.getRoot(), "0.data"));
+        segment.append(new byte[]{1, 2, 3});
+        assertTrue(segment.retain());
+
+        // owner's release doesn't close segment retained by the reader
+        segment.release();
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3}, segment.read(0, 3)));
+
+        segment.release();
+        assertFalse(segment.retain());
+        try {
+            segment.read(0, 3);
+            fail("Segment isn't closed");
+        } catch (ClosedChannelException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ru.selena.core.impl.storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Date: 3/29/13
+ * Time: 9:40 PM
+ *
+ * @author Artem Titov
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void testAdvance() throws Exception {
+        final TimingWheel<String> wheel = new TimingWheel<String>(10, 1000);
+        wheel.schedule("a", 1015);
+        wheel.schedule("b", 1020);
+        wheel.schedule("c", 990);
+        assertEquals(Arrays.asList("c"), wheel.advance(1000));
+        assertEquals(Collections.<String>emptyList(), wheel.advance(1019));
+        assertEquals(Arrays.asList("a", "b"), wheel.advance(1020));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testDistantDeadlines() throws Exception {
+        final long tick = 10;
+        final TimingWheel<Long> wheel = new TimingWheel<Long>(tick, 2, 0);
+        final Random random = new Random(17);
+        final List<Long> deadlines = new ArrayList<Long>();
+        for (int i = 0; i < 10000; i++) {
+            // up to 10 times farther than two levels cover
+            final long deadline = (long) (random.nextDouble() * tick * 64 * 64 * 10);
+            deadlines.add(deadline);
+            wheel.schedule(deadline, deadline);
+        }
+        Collections.sort(deadlines);
+        final List<Long> returned = new ArrayList<Long>();
+        for (long now = 0; wheel.size() > 0; now += 3 * tick + 7) {
+            for (final Long deadline : wheel.advance(now)) {
+                assertTrue(deadline <= now);
+                assertTrue(deadline > now - 4 * tick - 7);
+                returned.add(deadline);
+            }
+        }
+        Collections.sort(returned);
+        assertEquals(deadlines, returned);
+    }
+}
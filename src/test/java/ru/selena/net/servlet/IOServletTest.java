@@ -0,0 +1,213 @@
+package ru.selena.net.servlet;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import ru.selena.HttpServerInitializer;
+import ru.selena.TestModelFactories;
+import ru.selena.core.ClusterManager;
+import ru.selena.core.CoordinationService;
+import ru.selena.core.KeyRingService;
+import ru.selena.core.LocalStoreService;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.net.model.Host;
+import ru.selena.net.model.impl.HostWithIntegerTokenFactory;
+import ru.selena.net.utils.SerializationUtils;
+import ru.selena.utils.NumberUtils;
+import ru.selena.utils.collections.ArrayUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Date: 3/31/13
+ * Time: 7:10 PM
+ *
+ * @author Artem Titov
+ */
+public class IOServletTest {
+
+    private static final int MAX_THREADS = 16;
+    private static final int REQUESTS = 4 * MAX_THREADS;
+    private static final int MAX_OBJECT_SIZE = 1024;
+
+    private Host host = new HostWithIntegerTokenFactory().createHost("localhost", 8080, NumberUtils.toByteArray(1));
+    private Key key = TestModelFactories.createKey(new byte[]{1, 2, 3, 4});
+    private DataObject dataObject = TestModelFactories.createDataObject(key,
+            TestModelFactories.createVersion(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}), new byte[]{1, 2, 3, 4});
+
+    private CoordinationService coordinationService;
+    private IOServlet clientIOServlet;
+    private HttpServerInitializer serverInitializer;
+
+    @Before
+    public void init() throws Exception {
+        final ClusterManager clusterManager = mock(ClusterManager.class);
+        when(clusterManager.getCurrentHost()).thenReturn(host);
+        coordinationService = mock(CoordinationService.class);
+        clientIOServlet = new IOServlet();
+        clientIOServlet.setStoreService(coordinationService);
+        clientIOServlet.setMaxObjectSize(MAX_OBJECT_SIZE);
+        serverInitializer = new HttpServerInitializer();
+        serverInitializer.setClientServlet(clientIOServlet);
+        serverInitializer.setInternalServlet(new InternalIOServlet());
+        serverInitializer.setClusterManager(clusterManager);
+        serverInitializer.setKeyRingService(mock(KeyRingService.class));
+        serverInitializer.setLocalStoreService(mock(LocalStoreService.class));
+        serverInitializer.setMaxThreads(MAX_THREADS);
+        serverInitializer.afterPropertiesSet();
+        serverInitializer.start();
+    }
+
+    @After
+    public void destroy() throws Exception {
+        serverInitializer.stop();
+    }
+
+    @Test
+    public void testRequestsInFlightExceedWorkerThreads() throws Exception {
+        final List<SettableFuture<DataObject>> reads = new ArrayList<SettableFuture<DataObject>>();
+        final List<SettableFuture<Void>> writes = new ArrayList<SettableFuture<Void>>();
+        final CountDownLatch inFlight = new CountDownLatch(REQUESTS);
+        when(coordinationService.getAsync(any(Key.class))).thenAnswer(new Answer<ListenableFuture<DataObject>>() {
+            @Override
+            public ListenableFuture<DataObject> answer(final InvocationOnMock invocation) {
+                final SettableFuture<DataObject> future = SettableFuture.create();
+                synchronized (reads) {
+                    reads.add(future);
+                }
+                inFlight.countDown();
+                return future;
+            }
+        });
+        when(coordinationService.putAsync(any(DataObject.class))).thenAnswer(new Answer<ListenableFuture<Void>>() {
+            @Override
+            public ListenableFuture<Void> answer(final InvocationOnMock invocation) {
+                final SettableFuture<Void> future = SettableFuture.create();
+                synchronized (writes) {
+                    writes.add(future);
+                }
+                inFlight.countDown();
+                return future;
+            }
+        });
+
+        final ExecutorService clients = Executors.newFixedThreadPool(REQUESTS);
+        try {
+            final List<Future<Integer>> responses = new ArrayList<Future<Integer>>(REQUESTS);
+            for (int i = 0; i < REQUESTS; i++) {
+                final boolean read = i % 2 == 0;
+                responses.add(clients.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return read ? get() : put();
+                    }
+                }));
+            }
+            assertTrue("Requests in flight are limited by worker threads", inFlight.await(10, TimeUnit.SECONDS));
+
+            synchronized (reads) {
+                for (final SettableFuture<DataObject> future : reads) {
+                    future.set(dataObject);
+                }
+            }
+            synchronized (writes) {
+                for (final SettableFuture<Void> future : writes) {
+                    future.set(null);
+                }
+            }
+            for (final Future<Integer> response : responses) {
+                assertEquals(HttpURLConnection.HTTP_OK, (int) response.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testGetNotFound() throws Exception {
+        when(coordinationService.getAsync(any(Key.class))).thenReturn(
+                Futures.<DataObject>immediateFailedFuture(new NoSuchElementException("Test")));
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, get());
+
+        when(coordinationService.getAsync(any(Key.class))).thenReturn(
+                Futures.immediateFuture(TestModelFactories.createDataObject(key, dataObject.getVersion())));
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, get());
+    }
+
+    @Test
+    public void testGetTimeout() throws Exception {
+        final SettableFuture<DataObject> future = SettableFuture.create();
+        when(coordinationService.getAsync(any(Key.class))).thenReturn(future);
+        clientIOServlet.setAsyncTimeout(100);
+        assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, get());
+        // late result is ignored
+        future.set(dataObject);
+    }
+
+    @Test
+    public void testPutTooLarge() throws Exception {
+        final DataObject large = TestModelFactories.createDataObject(key, dataObject.getVersion(),
+                new byte[MAX_OBJECT_SIZE]);
+        assertEquals(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, put(large));
+    }
+
+    private int get() throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(String.format(
+                "http://localhost:%d/get?key=%s", host.getPort(), ArrayUtils.toHexString(key.getHash())))
+                .openConnection();
+        try {
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                final InputStream in = connection.getInputStream();
+                assertEquals(dataObject, SerializationUtils.deserializeDataObject(in, connection.getContentLength()));
+                in.close();
+            }
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private int put() throws IOException {
+        return put(dataObject);
+    }
+
+    private int put(final DataObject dataObject) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(String.format(
+                "http://localhost:%d/put", host.getPort())).openConnection();
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            final OutputStream out = connection.getOutputStream();
+            SerializationUtils.serializeDataObject(dataObject, out);
+            out.close();
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -6,7 +6,13 @@ import ru.selena.model.DataObject;
 import ru.selena.utils.NumberUtils;
 import ru.selena.utils.collections.ArrayUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * Date: 12/18/12
@@ -32,4 +38,47 @@ public class SerializationUtilsTest {
         final DataObject deserializedData = SerializationUtils.deserializeDataObject(buffer, 0);
         assertEquals(data, deserializedData);
     }
+
+    @Test
+    public void testSerializeExpiringDataObject() throws Exception {
+        final DataObject data = TestModelFactories.createDataObject(
+                TestModelFactories.createKey(NumberUtils.toByteArray(1)),
+                TestModelFactories.createVersion(NumberUtils.toByteArray(2L)), new byte[]{(byte) 3}, 1364579400000L);
+        final byte[] buffer = new byte[SerializationUtils.getRequiredSize(data)];
+        SerializationUtils.serializeDataObject(data, buffer, 0);
+        final DataObject deserializedData = SerializationUtils.deserializeDataObject(buffer, 0);
+        assertEquals(data, deserializedData);
+        assertEquals(1364579400000L, deserializedData.getExpirationTime());
+        assertTrue(Arrays.equals(data.getValue(), deserializedData.getValue()));
+    }
+
+    @Test
+    public void testSerializeDataObjectToStream() throws Exception {
+        final DataObject data = TestModelFactories.createDataObject(
+                TestModelFactories.createKey(NumberUtils.toByteArray(1)),
+                TestModelFactories.createVersion(NumberUtils.toByteArray(2L)), new byte[]{(byte) 3, (byte) 4}, 17L);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SerializationUtils.serializeDataObject(data, out);
+        final byte[] buffer = new byte[SerializationUtils.getRequiredSize(data)];
+        SerializationUtils.serializeDataObject(data, buffer, 0);
+        assertTrue(Arrays.equals(buffer, out.toByteArray()));
+
+        final DataObject deserializedData =
+                SerializationUtils.deserializeDataObject(new ByteArrayInputStream(buffer), buffer.length);
+        assertEquals(data, deserializedData);
+        assertEquals(17L, deserializedData.getExpirationTime());
+        assertTrue(Arrays.equals(data.getValue(), deserializedData.getValue()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDeserializeDataObjectLargerThanLimit() throws Exception {
+        final DataObject data = TestModelFactories.createDataObject(
+                TestModelFactories.createKey(NumberUtils.toByteArray(1)),
+                TestModelFactories.createVersion(NumberUtils.toByteArray(2L)), new byte[]{(byte) 3, (byte) 4});
+        final byte[] buffer = new byte[SerializationUtils.getRequiredSize(data)];
+        SerializationUtils.serializeDataObject(data, buffer, 0);
+        // value length field claims more bytes than the stream has
+        NumberUtils.toByteArray(Integer.MAX_VALUE, buffer, buffer.length - 2 - 4);
+        SerializationUtils.deserializeDataObject(new ByteArrayInputStream(buffer), buffer.length);
+    }
 }
@@ -0,0 +1,92 @@
+package ru.selena.tools;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import ru.selena.TestModelFactories;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.impl.CompressingLocalStoreService;
+import ru.selena.core.impl.OffHeapLocalStoreService;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.utils.NumberUtils;
+
+import java.util.Random;
+
+/**
+ * Compare memory footprint and throughput of {@link OffHeapLocalStoreService} with and without
+ * {@link CompressingLocalStoreService} on JSON like values.
+ * <p/>
+ * Date: 3/25/13
+ * Time: 11:50 PM
+ *
+ * @author Artem Titov
+ */
+@Ignore
+public class CompressionTool {
+
+    private static final int OBJECTS = 100000;
+    private static final int WARM_UP_ROUNDS = 2;
+
+    @Test
+    public void measure() throws Exception {
+        final DataObject[] dataObjects = createDataObjects();
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            run(dataObjects, false);
+            run(dataObjects, true);
+        }
+        System.out.println("store\tused memory\tput ops/s\tget ops/s");
+        run(dataObjects, false);
+        run(dataObjects, true);
+    }
+
+    private static void run(final DataObject[] dataObjects, final boolean compress) throws Exception {
+        final OffHeapLocalStoreService offHeapService = new OffHeapLocalStoreService();
+        offHeapService.setCapacity(1024L * 1024 * 1024);
+        final LocalStoreService storeService;
+        if (compress) {
+            final CompressingLocalStoreService compressingService = new CompressingLocalStoreService();
+            compressingService.setLocalStoreService(offHeapService);
+            storeService = compressingService;
+        } else {
+            storeService = offHeapService;
+        }
+        storeService.open();
+        try {
+            long start = System.nanoTime();
+            for (final DataObject dataObject : dataObjects) {
+                storeService.put(dataObject);
+            }
+            final long putTime = System.nanoTime() - start;
+            long checksum = 0;
+            start = System.nanoTime();
+            for (final DataObject dataObject : dataObjects) {
+                checksum += storeService.get(dataObject.getKey()).getValue().length;
+            }
+            final long getTime = System.nanoTime() - start;
+            System.out.println(String.format("%s\t%d\t%d\t%d (%d)", compress ? "lzf" : "raw",
+                    offHeapService.getUsedMemory(), dataObjects.length * 1000000000L / putTime,
+                    dataObjects.length * 1000000000L / getTime, checksum));
+        } finally {
+            storeService.close();
+        }
+    }
+
+    private static DataObject[] createDataObjects() throws Exception {
+        final Random random = new Random(17);
+        final DataObject[] dataObjects = new DataObject[OBJECTS];
+        for (int i = 0; i < OBJECTS; i++) {
+            final StringBuilder builder = new StringBuilder("{\"id\":").append(i).append(",\"events\":[");
+            final int events = 5 + random.nextInt(20);
+            for (int j = 0; j < events; j++) {
+                builder.append("{\"type\":\"").append(random.nextBoolean() ? "click" : "view")
+                        .append("\",\"timestamp\":").append(1364000000000L + random.nextInt(1000000))
+                        .append(",\"page\":\"/catalog/item/").append(random.nextInt(1000)).append("\"},");
+            }
+            builder.append("]}");
+            final Key key = TestModelFactories.createKey(NumberUtils.toByteArray(i));
+            dataObjects[i] = TestModelFactories.createDataObject(key,
+                    TestModelFactories.createVersion(NumberUtils.toByteArray(1L)), builder.toString().getBytes("UTF-8"));
+        }
+        return dataObjects;
+    }
+}
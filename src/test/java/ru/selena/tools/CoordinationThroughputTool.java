@@ -0,0 +1,214 @@
+package ru.selena.tools;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Ignore;
+import org.junit.Test;
+import ru.selena.TestModelFactories;
+import ru.selena.core.ClusterManager;
+import ru.selena.core.KeyRingService;
+import ru.selena.core.RemoteStoreService;
+import ru.selena.core.exception.DataStoreException;
+import ru.selena.core.impl.CoordinationServiceImpl;
+import ru.selena.core.impl.InMemoryLocalStoreService;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.model.Version;
+import ru.selena.net.model.Host;
+import ru.selena.net.model.impl.HostWithIntegerTokenFactory;
+import ru.selena.utils.NumberUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measure throughput and latency percentiles of {@link CoordinationServiceImpl} with replication factor 3, where
+ * remote replicas answer after fixed delay. Half of operations are reads and half are writes of new versions.
+ * <p/>
+ * Date: 3/31/13
+ * Time: 4:20 PM
+ *
+ * @author Artem Titov
+ */
+@Ignore
+public class CoordinationThroughputTool {
+
+    private static final long REMOTE_LATENCY_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+    private static final int KEYS = 1024;
+    private static final int CLIENT_THREADS = 32;
+    private static final long WARM_UP_MILLIS = 5000;
+    private static final long MEASURE_MILLIS = 10000;
+
+    @Test
+    public void measure() throws Exception {
+        final Host localHost = new HostWithIntegerTokenFactory().createHost("localhost", 8080, NumberUtils.toByteArray(2));
+        final List<Host> hosts = Arrays.asList(localHost,
+                new HostWithIntegerTokenFactory().createHost("localhost", 8081, NumberUtils.toByteArray(4)),
+                new HostWithIntegerTokenFactory().createHost("localhost", 8082, NumberUtils.toByteArray(6)));
+        final ClusterManager clusterManager = mock(ClusterManager.class);
+        when(clusterManager.getCurrentHost()).thenReturn(localHost);
+        final KeyRingService keyRingService = mock(KeyRingService.class);
+        when(keyRingService.getPreferredHosts(any(Key.class))).thenReturn(hosts);
+
+        final InMemoryLocalStoreService localStoreService = new InMemoryLocalStoreService();
+        localStoreService.open();
+        final CoordinationServiceImpl coordinationService = new CoordinationServiceImpl();
+        coordinationService.setReadCount(2);
+        coordinationService.setWriteCount(2);
+        coordinationService.setClusterManager(clusterManager);
+        coordinationService.setKeyRingService(keyRingService);
+        coordinationService.setLocalStoreService(localStoreService);
+        coordinationService.setRemoteStoreService(new DelayedRemoteStoreService(localStoreService));
+        coordinationService.afterPropertiesSet();
+
+        final Key[] keys = new Key[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = TestModelFactories.createKey(NumberUtils.toByteArray(i));
+            coordinationService.put(TestModelFactories.createDataObject(keys[i],
+                    TestModelFactories.createVersion(NumberUtils.toByteArray(0L)), new byte[100]));
+        }
+        run(coordinationService, keys, WARM_UP_MILLIS);
+        final long[] latencies = run(coordinationService, keys, MEASURE_MILLIS);
+        Arrays.sort(latencies);
+        System.out.println(String.format("threads: %d, ops/s: %d, p50: %d us, p99: %d us, max: %d us",
+                CLIENT_THREADS, latencies.length * 1000L / MEASURE_MILLIS,
+                percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 1)));
+        coordinationService.destroy();
+        localStoreService.close();
+    }
+
+    /**
+     * Run clients for the duration.
+     *
+     * @return latencies of all operations in microseconds
+     */
+    private static long[] run(final CoordinationServiceImpl coordinationService,
+                              final Key[] keys,
+                              final long duration) throws Exception {
+        final AtomicLong versions = new AtomicLong(1);
+        final long end = System.currentTimeMillis() + duration;
+        final ExecutorService executor = Executors.newFixedThreadPool(CLIENT_THREADS);
+        final List<Future<List<Long>>> futures = new ArrayList<Future<List<Long>>>(CLIENT_THREADS);
+        for (int t = 0; t < CLIENT_THREADS; t++) {
+            futures.add(executor.submit(new Callable<List<Long>>() {
+                @Override
+                public List<Long> call() throws Exception {
+                    final List<Long> latencies = new ArrayList<Long>();
+                    final Random random = new Random();
+                    while (System.currentTimeMillis() < end) {
+                        final Key key = keys[random.nextInt(KEYS)];
+                        final long start = System.nanoTime();
+                        try {
+                            if (random.nextBoolean()) {
+                                coordinationService.get(key);
+                            } else {
+                                coordinationService.put(TestModelFactories.createDataObject(key,
+                                        TestModelFactories.createVersion(NumberUtils.toByteArray(
+                                                versions.incrementAndGet())), new byte[100]));
+                            }
+                        } catch (DataStoreException ignore) {
+                        }
+                        latencies.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    }
+                    return latencies;
+                }
+            }));
+        }
+        final List<Long> all = new ArrayList<Long>();
+        for (final Future<List<Long>> future : futures) {
+            all.addAll(future.get());
+        }
+        executor.shutdown();
+        final long[] result = new long[all.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = all.get(i);
+        }
+        return result;
+    }
+
+    private static long percentile(final long[] sorted, final double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+
+    /**
+     * Remote replicas which share data with the local one and answer after {@value #REMOTE_LATENCY_NANOS} ns.
+     * Asynchronous operations are completed by the timer thread.
+     */
+    private static final class DelayedRemoteStoreService implements RemoteStoreService {
+        private final InMemoryLocalStoreService storeService;
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+        private DelayedRemoteStoreService(final InMemoryLocalStoreService storeService) {
+            this.storeService = storeService;
+        }
+
+        @Override
+        public DataObject get(final Key key, final Host remoteHost) throws DataStoreException {
+            LockSupport.parkNanos(REMOTE_LATENCY_NANOS);
+            return storeService.get(key);
+        }
+
+        @Override
+        public Version getVersion(final Key key, final Host remoteHost) throws DataStoreException {
+            return get(key, remoteHost).getVersion();
+        }
+
+        @Override
+        public void put(final DataObject dataObject, final Host remoteHost) throws DataStoreException {
+            LockSupport.parkNanos(REMOTE_LATENCY_NANOS);
+        }
+
+        @Override
+        public ListenableFuture<DataObject> getAsync(final Key key, final Host remoteHost) {
+            final SettableFuture<DataObject> result = SettableFuture.create();
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        result.set(storeService.get(key));
+                    } catch (Exception e) {
+                        result.setException(e);
+                    }
+                }
+            }, REMOTE_LATENCY_NANOS, TimeUnit.NANOSECONDS);
+            return result;
+        }
+
+        @Override
+        public ListenableFuture<Version> getVersionAsync(final Key key, final Host remoteHost) {
+            final SettableFuture<Version> result = SettableFuture.create();
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        result.set(storeService.get(key).getVersion());
+                    } catch (Exception e) {
+                        result.setException(e);
+                    }
+                }
+            }, REMOTE_LATENCY_NANOS, TimeUnit.NANOSECONDS);
+            return result;
+        }
+
+        @Override
+        public ListenableFuture<Void> putAsync(final DataObject dataObject, final Host remoteHost) {
+            final SettableFuture<Void> result = SettableFuture.create();
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    result.set(null);
+                }
+            }, REMOTE_LATENCY_NANOS, TimeUnit.NANOSECONDS);
+            return result;
+        }
+    }
+}
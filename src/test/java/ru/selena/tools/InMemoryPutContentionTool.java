@@ -0,0 +1,106 @@
+package ru.selena.tools;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import ru.selena.TestModelFactories;
+import ru.selena.core.LocalStoreService;
+import ru.selena.core.exception.UpdatingOlderVersionException;
+import ru.selena.core.impl.InMemoryLocalStoreService;
+import ru.selena.model.DataObject;
+import ru.selena.model.Key;
+import ru.selena.utils.NumberUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measure put throughput of {@link InMemoryLocalStoreService} on hot key workload with growing number of threads
+ * and compare it with the same store serialized by global lock.
+ * <p/>
+ * Date: 3/22/13
+ * Time: 10:50 PM
+ *
+ * @author Artem Titov
+ */
+@Ignore
+public class InMemoryPutContentionTool {
+
+    private static final int HOT_KEYS = 16;
+    private static final int OPERATIONS_PER_THREAD = 1000000;
+    private static final int WARM_UP_ROUNDS = 2;
+
+    @Test
+    public void measure() throws Exception {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+            run(new InMemoryLocalStoreService(), processors);
+            run(new GloballyLockedStoreService(), processors);
+        }
+        System.out.println("threads\tcompare-and-replace ops/s\tglobal lock ops/s");
+        for (int threads = 1; threads <= processors; threads *= 2) {
+            System.out.println(String.format("%d\t%d\t%d", threads,
+                    run(new InMemoryLocalStoreService(), threads),
+                    run(new GloballyLockedStoreService(), threads)));
+        }
+    }
+
+    private static long run(final LocalStoreService storeService, final int threads) throws Exception {
+        storeService.open();
+        final List<DataObject[]> workloads = new ArrayList<DataObject[]>(threads);
+        for (int t = 0; t < threads; t++) {
+            workloads.add(createWorkload(t, threads));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CyclicBarrier start = new CyclicBarrier(threads + 1);
+        final AtomicLong rejected = new AtomicLong();
+        final List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+        for (final DataObject[] workload : workloads) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (final DataObject dataObject : workload) {
+                        try {
+                            storeService.put(dataObject);
+                        } catch (UpdatingOlderVersionException e) {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.await();
+        final long startTime = System.nanoTime();
+        for (final Future<?> future : futures) {
+            future.get();
+        }
+        final long elapsed = System.nanoTime() - startTime;
+        executor.shutdown();
+        storeService.close();
+        return (long) threads * OPERATIONS_PER_THREAD * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    private static DataObject[] createWorkload(final int thread, final int threads) {
+        final Key[] keys = new Key[HOT_KEYS];
+        for (int i = 0; i < HOT_KEYS; i++) {
+            keys[i] = TestModelFactories.createKey(NumberUtils.toByteArray(i));
+        }
+        final DataObject[] workload = new DataObject[OPERATIONS_PER_THREAD];
+        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+            final long version = (long) i * threads + thread;
+            workload[i] = TestModelFactories.createDataObject(keys[i % HOT_KEYS],
+                    TestModelFactories.createVersion(NumberUtils.toByteArray(version)), new byte[]{1});
+        }
+        return workload;
+    }
+
+    private static final class GloballyLockedStoreService extends InMemoryLocalStoreService {
+        @Override
+        public synchronized void put(final DataObject dataObject) throws UpdatingOlderVersionException {
+            super.put(dataObject);
+        }
+    }
+}